@@ -0,0 +1,79 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**Writes the json and spreadsheet reports and saves the registry after a real run, -a, of synthetic queries against a synthetic registry in a
+ * temp directory. In the smm package for the package private report and save methods. The setup run isn't timed, the 1M registry takes a while.*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx6G"})
+public class ReportingBenchmark {
+
+	@Param({"100000", "1000000"})
+	public int registrySize;
+
+	@Param({"1000", "10000"})
+	public int numberQueries;
+
+	private File tempDir = null;
+	private File savedRegistry = null;
+	private SubjectMatchMaker smm = null;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		tempDir = Files.createTempDirectory("smmReporting").toFile();
+		File registryDir = new File(tempDir, "Registry");
+		registryDir.mkdirs();
+		SyntheticSubjects ss = new SyntheticSubjects(1);
+		PrintWriter out = new PrintWriter(new File(registryDir, "currentRegistry_bench_PHI.txt"));
+		for (int i=0; i< registrySize; i++) out.println(Util.stringArrayToString(ss.fetchRegistryFields(i), "\t"));
+		out.close();
+		File queryFile = new File(tempDir, "queries_PHI.txt");
+		out = new PrintWriter(queryFile);
+		for (int i=0; i< numberQueries; i++) out.println(Util.stringArrayToString(ss.fetchQueryFields(i, registrySize), "\t"));
+		out.close();
+		smm = new SubjectMatchMaker(new String[] {"-r", registryDir.getCanonicalPath(), "-q", queryFile.getCanonicalPath(),
+				"-o", new File(tempDir, "Results").getCanonicalPath(), "-a", "-v"});
+		savedRegistry = new File(tempDir, "savedRegistry_PHI.txt");
+	}
+
+	@TearDown(Level.Trial)
+	public void cleanUp() {
+		Util.deleteDirectory(tempDir);
+	}
+
+	@Benchmark
+	public void printJson() throws IOException {
+		smm.printJson();
+	}
+
+	@Benchmark
+	public void printResults() throws IOException {
+		smm.printResults();
+	}
+
+	@Benchmark
+	public void saveRegistry() throws IOException {
+		SubjectMatchMaker.writeRegistry(smm.getRegistry(), null, savedRegistry);
+	}
+}
@@ -0,0 +1,107 @@
+package edu.utah.hci.bioinfo.smm.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import edu.utah.hci.bioinfo.smm.BKTreeIndex;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+import edu.utah.hci.bioinfo.smm.Subject;
+
+/**Builds the MRN and DoB metric trees over registries of random 7-8 digit MRNs and 1930-2019 DoBs, and times lookups within maxDistance edits.
+ * Build runs are single shots, the heap used by each tree is printed at the end of the trial. The 10M registry needs most of the 6G heap.*/
+@State(Scope.Benchmark)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = {"-Xmx6G"})
+public class BKTreeBenchmark {
+
+	@Param({"1000000", "10000000"})
+	public int registrySize;
+
+	@Param({"0", "1"})
+	public int maxDistance;
+
+	private RegistryStore registry = null;
+	private BKTreeIndex mrnTree = null;
+	private BKTreeIndex dobTree = null;
+	private String[] mrnQueries = null;
+	private String[] dobQueries = null;
+	private int nextQuery = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		Random random = new Random(1);
+		registry = new RegistryStore(false);
+		for (int i=0; i< registrySize; i++) {
+			String[] fields = {"Smith", "Ann", Integer.toString(1+ random.nextInt(12)), Integer.toString(1+ random.nextInt(28)),
+					Integer.toString(1930+ random.nextInt(90)), random.nextBoolean() ? "M" : "F", Integer.toString(1000000+ random.nextInt(90000000))};
+			registry.add(new Subject(i, fields, false, null, false, false, false));
+		}
+		registry.trim();
+		mrnTree = new BKTreeIndex(registry, BKTreeIndex.MRN_KEY);
+		dobTree = new BKTreeIndex(registry, BKTreeIndex.DOB_KEY);
+
+		//registry keys with a one char substitution
+		RegistryStore.ComparisonKeys ck = registry.createComparisonKeys();
+		mrnQueries = new String[1024];
+		dobQueries = new String[1024];
+		for (int i=0; i< mrnQueries.length; i++) {
+			CharSequence[] keys = registry.loadComparisonKeys(random.nextInt(registrySize), ck);
+			mrnQueries[i] = substitute(keys[BKTreeIndex.MRN_KEY].toString(), random);
+			dobQueries[i] = substitute(keys[BKTreeIndex.DOB_KEY].toString(), random);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void report() {
+		System.out.println("\nMRN tree "+mrnTree.getNumberNodes()+" nodes, depth "+mrnTree.getMaxDepth()+", "+(mrnTree.estimateBytes()/1000000)+" MB; DoB tree "+
+				dobTree.getNumberNodes()+" nodes, depth "+dobTree.getMaxDepth()+", "+(dobTree.estimateBytes()/1000000)+" MB");
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public BKTreeIndex buildMrnTree() {
+		return new BKTreeIndex(registry, BKTreeIndex.MRN_KEY);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public BKTreeIndex buildDobTree() {
+		return new BKTreeIndex(registry, BKTreeIndex.DOB_KEY);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int[] mrnLookup() {
+		return mrnTree.fetchRows(mrnQueries[nextQuery++ & 1023], maxDistance, 0, registrySize);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int[] dobLookup() {
+		return dobTree.fetchRows(dobQueries[nextQuery++ & 1023], maxDistance, 0, registrySize);
+	}
+
+	private static String substitute(String s, Random random) {
+		char[] c = s.toCharArray();
+		int i = random.nextInt(c.length);
+		if (c[i] != '/') c[i] = (char)('0'+ random.nextInt(10));
+		return new String(c);
+	}
+}
@@ -0,0 +1,86 @@
+package edu.utah.hci.bioinfo.smm.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import edu.utah.hci.bioinfo.smm.MatcherEngine;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+import edu.utah.hci.bioinfo.smm.Subject;
+
+/**One MatcherEngine scanning a whole registry chunk, no blocking, with the columnar batch bounds and with the scalar path scoring every row.
+ * Queries are registry subjects with a one letter name typo, 'typo', or additionally without an MRN, 'noMrn', which weakens the bounds.*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4G"})
+public class BatchScoringBenchmark {
+
+	private static final String[] LAST_NAMES = {"Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez"};
+	private static final String[] FIRST_NAMES = {"James", "Mary", "Robert", "Patricia", "John", "Jennifer", "Michael", "Linda", "David", "Elizabeth"};
+
+	@Param({"100000"})
+	public int registrySize;
+
+	@Param({"100"})
+	public int numberQueries;
+
+	@Param({"typo", "noMrn"})
+	public String queryType;
+
+	@Param({"true", "false"})
+	public boolean batchScoring;
+
+	private RegistryStore registry = null;
+	private Subject[] queries = null;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		Random random = new Random(1);
+		registry = new RegistryStore(false);
+		String[][] fields = new String[registrySize][];
+		for (int i=0; i< registrySize; i++) {
+			fields[i] = new String[] {
+					LAST_NAMES[random.nextInt(LAST_NAMES.length)]+ (char)('a'+ random.nextInt(26)),
+					FIRST_NAMES[random.nextInt(FIRST_NAMES.length)],
+					Integer.toString(1+ random.nextInt(12)),
+					Integer.toString(1+ random.nextInt(28)),
+					Integer.toString(1930+ random.nextInt(90)),
+					random.nextBoolean() ? "M" : "F",
+					Integer.toString(1000000+ random.nextInt(90000000))
+			};
+			registry.add(new Subject(i, fields[i].clone(), false, null, false, false, false));
+		}
+		registry.trim();
+		queries = new Subject[numberQueries];
+		for (int i=0; i< numberQueries; i++) {
+			String[] q = fields[random.nextInt(registrySize)].clone();
+			char[] last = q[0].toCharArray();
+			last[random.nextInt(last.length)] = (char)('a'+ random.nextInt(26));
+			q[0] = new String(last);
+			if (queryType.equals("noMrn")) q[6] = ".";
+			queries[i] = new Subject(i, q, false, null, true, false, false);
+		}
+	}
+
+	@Benchmark
+	public MatcherEngine scan() {
+		MatcherEngine me = new MatcherEngine(registry, 0, registrySize, queries, null, 0.12, 1, 3);
+		me.setBatchScoring(batchScoring);
+		me.run();
+		return me;
+	}
+}
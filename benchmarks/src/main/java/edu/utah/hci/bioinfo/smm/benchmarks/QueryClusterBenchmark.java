@@ -0,0 +1,70 @@
+package edu.utah.hci.bioinfo.smm.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import edu.utah.hci.bioinfo.smm.CoreId;
+import edu.utah.hci.bioinfo.smm.QueryClusterer;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+import edu.utah.hci.bioinfo.smm.Subject;
+import edu.utah.hci.bioinfo.smm.SyntheticSubjects;
+
+/**Collapses unmatched queries with new coreIds that match each other, the compareQueries step of a run with -a. Queries are synthetic copies of
+ * a registry of registrySize rows, so the fewer rows per query the more duplicates. Above 5000 queries the pairs come from a blocking index.
+ * Clustering again gives the same groups so each op does the full work.*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4G"})
+public class QueryClusterBenchmark {
+
+	@Param({"1000", "10000", "100000"})
+	public int numberQueries;
+
+	@Param({"100000"})
+	public int registrySize;
+
+	@Param({"0"})
+	public int numberThreads;
+
+	private Subject[] queries = null;
+	private ExecutorService executor = null;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		if (numberThreads == 0) numberThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+		SyntheticSubjects ss = new SyntheticSubjects(1);
+		CoreId coreIdMaker = new CoreId();
+		queries = new Subject[numberQueries];
+		for (int i=0; i< numberQueries; i++) queries[i] = new Subject(i, ss.fetchQueryFields(i, registrySize), true, coreIdMaker, true, false, false);
+		executor = Executors.newFixedThreadPool(numberThreads);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Benchmark
+	public QueryClusterer compareQueries() throws IOException {
+		QueryClusterer qc = new QueryClusterer(new RegistryStore(false), 0.12, 1, 0.12, numberThreads, executor, false, false);
+		qc.cluster(queries);
+		return qc;
+	}
+}
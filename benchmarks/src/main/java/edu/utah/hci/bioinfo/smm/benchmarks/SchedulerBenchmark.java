@@ -0,0 +1,119 @@
+package edu.utah.hci.bioinfo.smm.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import edu.utah.hci.bioinfo.smm.BlockingIndex;
+import edu.utah.hci.bioinfo.smm.MatcherEngine;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+import edu.utah.hci.bioinfo.smm.Subject;
+import edu.utah.hci.bioinfo.smm.SubjectMatchMaker;
+import edu.utah.hci.bioinfo.smm.TileScheduler;
+
+/**Scores query sets against a registry with the fixed registry chunks, one MatcherEngine per thread, and with the work stealing tiles (-g).
+ * Queries are registry subjects with a one letter typo in the name. Each run is a single shot, the 1M query sets take a while.
+ * Compare at a thread count matching your deployment, e.g. -p numberThreads=16, the default uses all but one core.*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = {"-Xmx6G"})
+public class SchedulerBenchmark {
+
+	private static final String[] LAST_NAMES = {"Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez",
+			"Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Jackson", "Martin"};
+	private static final String[] FIRST_NAMES = {"James", "Mary", "Robert", "Patricia", "John", "Jennifer", "Michael", "Linda", "David", "Elizabeth",
+			"William", "Barbara", "Richard", "Susan", "Joseph", "Jessica", "Thomas", "Sarah", "Charles", "Karen"};
+	private static final int MIN_SUBJECTS_PER_CHUNK = 100;
+
+	@Param({"1000", "100000", "1000000"})
+	public int numberQueries;
+
+	@Param({"100000"})
+	public int registrySize;
+
+	@Param({"true"})
+	public boolean blocking;
+
+	@Param({"0"})
+	public int numberThreads;
+
+	private RegistryStore registry = null;
+	private BlockingIndex blockingIndex = null;
+	private Subject[] queries = null;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		if (numberThreads == 0) numberThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+		Random random = new Random(1);
+		registry = new RegistryStore(false);
+		String[][] fields = new String[registrySize][];
+		for (int i=0; i< registrySize; i++) {
+			fields[i] = new String[] {
+					LAST_NAMES[random.nextInt(LAST_NAMES.length)]+ randomLetters(random, 2),
+					FIRST_NAMES[random.nextInt(FIRST_NAMES.length)],
+					Integer.toString(1+ random.nextInt(12)),
+					Integer.toString(1+ random.nextInt(28)),
+					Integer.toString(1930+ random.nextInt(90)),
+					random.nextBoolean() ? "M" : "F",
+					Integer.toString(1000000+ random.nextInt(90000000))
+			};
+			registry.add(new Subject(i, fields[i].clone(), false, null, false, false, false));
+		}
+		registry.trim();
+		if (blocking) blockingIndex = new BlockingIndex(registry);
+
+		//queries are registry subjects with a typo in the last name
+		queries = new Subject[numberQueries];
+		for (int i=0; i< numberQueries; i++) {
+			String[] q = fields[random.nextInt(registrySize)].clone();
+			char[] last = q[0].toCharArray();
+			last[random.nextInt(last.length)] = (char)('a'+ random.nextInt(26));
+			q[0] = new String(last);
+			queries[i] = new Subject(i, q, false, null, true, false, false);
+		}
+	}
+
+	@Benchmark
+	public Subject[] chunks() throws Exception {
+		int numPerChunk = Math.max(MIN_SUBJECTS_PER_CHUNK, (int)Math.round((double)registrySize / numberThreads));
+		int[][] split = SubjectMatchMaker.chunk(registrySize, numPerChunk);
+		MatcherEngine[] matchers = new MatcherEngine[split.length];
+		for (int i=0; i< matchers.length; i++) matchers[i] = new MatcherEngine(registry, split[i][0], split[i][1], queries, blockingIndex, 0.12, 1, 3);
+		ExecutorService executor = Executors.newFixedThreadPool(matchers.length);
+		for (MatcherEngine m: matchers) executor.execute(m);
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.DAYS);
+		MatcherEngine.setTopMatches(matchers, registry, queries, 3);
+		return queries;
+	}
+
+	@Benchmark
+	public Subject[] tiles() throws IOException {
+		TileScheduler ts = new TileScheduler(registry, queries, blockingIndex, 0.12, 1, 3, numberThreads, MIN_SUBJECTS_PER_CHUNK);
+		ts.run();
+		ts.setTopMatches();
+		return queries;
+	}
+
+	private static String randomLetters(Random random, int length) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i< length; i++) sb.append((char)('a'+ random.nextInt(26)));
+		return sb.toString();
+	}
+}
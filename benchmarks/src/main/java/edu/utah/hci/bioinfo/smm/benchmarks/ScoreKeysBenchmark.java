@@ -0,0 +1,75 @@
+package edu.utah.hci.bioinfo.smm.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import edu.utah.hci.bioinfo.smm.MatcherEngine;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+import edu.utah.hci.bioinfo.smm.Subject;
+import edu.utah.hci.bioinfo.smm.SyntheticSubjects;
+
+/**Scores one query:registry key pair per op with MatcherEngine.scoreKeysLD, the query against the registry row it was copied from, 'source', 
+ * or a random one, 'random', as most scan comparisons are. Registry keys are read from the packed store as the matchers do. 
+ * Bounded scoring stops at a score of 1, about where a full top 3 sits, unbounded scores every key.*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2G"})
+public class ScoreKeysBenchmark {
+
+	private static final int NUMBER_PAIRS = 4096;
+
+	@Param({"100000"})
+	public int registrySize;
+
+	@Param({"source", "random"})
+	public String pairType;
+
+	private RegistryStore registry = null;
+	private MatcherEngine engine = null;
+	private RegistryStore.ComparisonKeys ck = null;
+	private String[][] queryKeys = null;
+	private int[] rows = null;
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		SyntheticSubjects ss = new SyntheticSubjects(1);
+		ss.setNewSubjectRate(0);
+		registry = ss.makeRegistry(registrySize, false);
+		Subject[] queries = ss.makeQueries(NUMBER_PAIRS, registrySize, false);
+		queryKeys = new String[NUMBER_PAIRS][];
+		rows = new int[NUMBER_PAIRS];
+		for (int i=0; i< NUMBER_PAIRS; i++) {
+			queryKeys[i] = queries[i].getComparisonKeys();
+			rows[i] = pairType.equals("source") ? ss.fetchSourceRow(i, registrySize) : (int)((i * 2654435761L) % registrySize);
+		}
+		engine = new MatcherEngine(registry, 0, registrySize, queries, null, 0.12, 1, 3);
+		ck = registry.createComparisonKeys();
+	}
+
+	@Benchmark
+	public double unbounded() {
+		int i = next++ & (NUMBER_PAIRS - 1);
+		return engine.scoreKeysLD(queryKeys[i], registry.loadComparisonKeys(rows[i], ck));
+	}
+
+	@Benchmark
+	public double bounded() {
+		int i = next++ & (NUMBER_PAIRS - 1);
+		return engine.scoreKeysLD(queryKeys[i], registry.loadComparisonKeys(rows[i], ck), 1);
+	}
+}
@@ -0,0 +1,64 @@
+package edu.utah.hci.bioinfo.smm.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+import edu.utah.hci.bioinfo.smm.Subject;
+import edu.utah.hci.bioinfo.smm.SyntheticSubjects;
+import edu.utah.hci.bioinfo.smm.Util;
+
+/**Splits and validates synthetic tab delimited lines into Subjects, registry lines into the columnar store as a load without a snapshot does,
+ * and query lines into query Subjects. The lines are held in memory so file reading isn't timed.*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4G"})
+public class SubjectParsingBenchmark {
+
+	@Param({"100000", "1000000"})
+	public int registrySize;
+
+	@Param({"10000"})
+	public int numberQueries;
+
+	private String[] registryLines = null;
+	private String[] queryLines = null;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		SyntheticSubjects ss = new SyntheticSubjects(1);
+		registryLines = new String[registrySize];
+		for (int i=0; i< registrySize; i++) registryLines[i] = Util.stringArrayToString(ss.fetchRegistryFields(i), "\t");
+		queryLines = new String[numberQueries];
+		for (int i=0; i< numberQueries; i++) queryLines[i] = Util.stringArrayToString(ss.fetchQueryFields(i, registrySize), "\t");
+	}
+
+	@Benchmark
+	public RegistryStore parseRegistry() throws IOException {
+		RegistryStore store = new RegistryStore(false);
+		for (int i=0; i< registryLines.length; i++) store.add(new Subject(i, Util.splitTabs(registryLines[i]), true, null, false, false, false));
+		store.trim();
+		return store;
+	}
+
+	@Benchmark
+	public Subject[] parseQueries() throws IOException {
+		Subject[] queries = new Subject[queryLines.length];
+		for (int i=0; i< queryLines.length; i++) queries[i] = new Subject(i, Util.splitTabs(queryLines[i]), false, null, true, false, false);
+		return queries;
+	}
+}
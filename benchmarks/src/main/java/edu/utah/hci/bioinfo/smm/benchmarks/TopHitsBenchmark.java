@@ -0,0 +1,69 @@
+package edu.utah.hci.bioinfo.smm.benchmarks;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import edu.utah.hci.bioinfo.smm.Subject;
+import edu.utah.hci.bioinfo.smm.TopHits;
+
+/**Top hit selection for one query against a registry chunk, the prior set the score in every Subject and sorted the chunk,
+ * the current streams (index, score) primitives through a bounded heap. Scores are precomputed so just the selection is timed.*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx6G"})
+public class TopHitsBenchmark {
+
+	@Param({"100000", "1000000", "10000000"})
+	public int registrySize;
+
+	@Param({"3"})
+	public int numberTopMatchesToReturn;
+
+	private Subject[] registry = null;
+	private double[] scores = null;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		Random random = new Random(1);
+		registry = new Subject[registrySize];
+		scores = new double[registrySize];
+		for (int i=0; i< registrySize; i++) {
+			String gender = random.nextBoolean() ? "M" : "F";
+			registry[i] = new Subject(i, new String[] {".", ".", ".", ".", ".", gender, "."}, false, null, false, false, false);
+			//typical spread, a few near zero, most between 1 and 3
+			scores[i] = random.nextDouble() * 3;
+		}
+	}
+
+	@Benchmark
+	public Subject[] sortChunk() {
+		for (int i=0; i< registry.length; i++) registry[i].setScore(scores[i]);
+		Arrays.sort(registry);
+		return Arrays.copyOf(registry, numberTopMatchesToReturn);
+	}
+
+	@Benchmark
+	public int[] topHitsHeap() {
+		TopHits topHits = new TopHits(numberTopMatchesToReturn);
+		for (int i=0; i< scores.length; i++) {
+			if (scores[i] <= topHits.getWorstScore()) topHits.add(i, scores[i]);
+		}
+		return topHits.fetchSortedIndexes();
+	}
+}
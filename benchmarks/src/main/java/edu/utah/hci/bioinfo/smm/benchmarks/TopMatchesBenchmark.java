@@ -0,0 +1,74 @@
+package edu.utah.hci.bioinfo.smm.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import edu.utah.hci.bioinfo.smm.BlockingIndex;
+import edu.utah.hci.bioinfo.smm.MatcherEngine;
+import edu.utah.hci.bioinfo.smm.QGramIndex;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+import edu.utah.hci.bioinfo.smm.Subject;
+import edu.utah.hci.bioinfo.smm.SyntheticSubjects;
+
+/**Finds the top matches for synthetic queries with one MatcherEngine over the whole registry, the per thread work of a search.
+ * With blocking, the default, candidates come from the blocking and name indexes as with -b, otherwise every row is scanned as with -x.
+ * The comparisons scored per query are printed at the end of the trial.*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx6G"})
+public class TopMatchesBenchmark {
+
+	@Param({"100000", "1000000"})
+	public int registrySize;
+
+	@Param({"100", "1000"})
+	public int numberQueries;
+
+	@Param({"true"})
+	public boolean blocking;
+
+	private RegistryStore registry = null;
+	private BlockingIndex blockingIndex = null;
+	private Subject[] queries = null;
+	private MatcherEngine last = null;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		SyntheticSubjects ss = new SyntheticSubjects(1);
+		registry = ss.makeRegistry(registrySize, false);
+		queries = ss.makeQueries(numberQueries, registrySize, false);
+		if (blocking) {
+			blockingIndex = new BlockingIndex(registry);
+			blockingIndex.setNameIndex(new QGramIndex(registry, registrySize), 0.12);
+			blockingIndex.setKeyTrees(registry);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void report() {
+		System.out.println("\n"+(last.getNumberComparisons() / numberQueries)+" comparisons per query, "+(last.getNumberPruned() / numberQueries)+" pruned");
+	}
+
+	@Benchmark
+	public MatcherEngine findTopMatches() {
+		MatcherEngine me = new MatcherEngine(registry, 0, registrySize, queries, blockingIndex, 0.12, 1, 3);
+		me.run();
+		last = me;
+		return me;
+	}
+}
@@ -0,0 +1,254 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.util.Arrays;
+
+/**Burkhard-Keller metric tree over one comparison key of the registry, the MRN or the m/d/y DoB, that returns every registry row whose key is
+ * within a given Levenshtein distance of a query's. Each distinct key value is a node, children hang off their parent by their distance to it,
+ * so by the triangle inequality a search only descends into children whose edge is within d of the query's distance to the parent.
+ * A d of 0 follows a single path, larger ones visit a good part of a tree of short numeric keys, so lookups are kept to queries the name index can't serve.
+ * Distances use the LevenshteinKernel. Nodes and their rows are kept in flat arrays, the values in a PackedStrings,
+ * to stay small on multi million row registries. Rows with a missing key aren't indexed. Rows added or updated after the tree is built,
+ * e.g. by a running server, are kept in a small delta that is scanned in full.*/
+public class BKTreeIndex {
+
+	public static final int DOB_KEY = 1;
+	public static final int MRN_KEY = 3;
+	private static final long INDEX_MASK = 0xFFFFFFFFL;
+
+	//distinct key values, one per node, the root is node 0
+	private PackedStrings values = new PackedStrings();
+	//children of node i are nodes childStarts[i] to childStarts[i+1], breadth first, edgeDistance is their distance to their parent
+	private int[] childStarts = null;
+	private int[] edgeDistance = null;
+	//rows for node i are rows[rowStarts[i]] to rows[rowStarts[i+1]], sorted
+	private int[] rowStarts = null;
+	private int[] rows = null;
+	private int keyIndex = 0;
+	private int maxDepth = 0;
+	//rows added since the tree was built and their keys
+	private int[] deltaRows = new int[0];
+	private PackedStrings deltaValues = new PackedStrings();
+
+	/**@param keyIndex the comparison key to index, MRN_KEY or DOB_KEY, see RegistryStore.loadComparisonKeys()*/
+	public BKTreeIndex(RegistryStore registry, int keyIndex) {
+		this.keyIndex = keyIndex;
+		RegistryStore.ComparisonKeys ck = registry.createComparisonKeys();
+
+		//group the rows by key, (keyHash << 32 | row) sorted, as in the BlockingIndex
+		int num = 0;
+		for (int i=0; i< registry.size(); i++) if (registry.loadComparisonKeys(i, ck)[keyIndex].length() != 0) num++;
+		long[] entries = new long[num];
+		int index = 0;
+		for (int i=0; i< registry.size(); i++) {
+			CharSequence key = registry.loadComparisonKeys(i, ck)[keyIndex];
+			if (key.length() != 0) entries[index++] = ((long)hash(key) << 32) | (i & INDEX_MASK);
+		}
+		Arrays.sort(entries);
+
+		//one node per distinct value, hash collisions are split by comparing the values
+		int[] entryNodes = new int[entries.length];
+		CharSlice slice = new CharSlice();
+		int[] groupNodes = new int[4];
+		int numberGroupNodes = 0;
+		for (int i=0; i< entries.length; i++) {
+			if (i != 0 && (entries[i] >> 32) != (entries[i-1] >> 32)) numberGroupNodes = 0;
+			CharSequence key = registry.loadComparisonKeys((int)(entries[i] & INDEX_MASK), ck)[keyIndex];
+			int node = -1;
+			for (int j=0; j< numberGroupNodes && node == -1; j++) {
+				if (contentEquals(values.fetch(groupNodes[j], slice), key)) node = groupNodes[j];
+			}
+			if (node == -1) {
+				node = values.size();
+				values.add(key.toString());
+				if (numberGroupNodes == groupNodes.length) groupNodes = Arrays.copyOf(groupNodes, numberGroupNodes * 2);
+				groupNodes[numberGroupNodes++] = node;
+			}
+			entryNodes[i] = node;
+		}
+		values.trim();
+
+		//insert the nodes in hash order, close to random, which keeps the tree shallow
+		int numberNodes = values.size();
+		int[] firstChild = new int[numberNodes];
+		int[] nextSibling = new int[numberNodes];
+		int[] edges = new int[numberNodes];
+		Arrays.fill(firstChild, -1);
+		Arrays.fill(nextSibling, -1);
+		LevenshteinKernel kernel = new LevenshteinKernel();
+		CharSlice parentSlice = new CharSlice();
+		for (int node=1; node< numberNodes; node++) {
+			kernel.setPattern(values.fetch(node, slice));
+			int parent = 0;
+			int depth = 1;
+			while (true) {
+				int distance = distance(parent, kernel, parentSlice);
+				int child = firstChild[parent];
+				while (child != -1 && edges[child] != distance) child = nextSibling[child];
+				if (child == -1) {
+					edges[node] = distance;
+					nextSibling[node] = firstChild[parent];
+					firstChild[parent] = node;
+					break;
+				}
+				parent = child;
+				depth++;
+			}
+			if (depth > maxDepth) maxDepth = depth;
+		}
+
+		//renumber breadth first so each node's children are contiguous, searches then walk memory in order
+		int[] order = new int[numberNodes];
+		int[] newIds = new int[numberNodes];
+		childStarts = new int[numberNodes+1];
+		edgeDistance = new int[numberNodes];
+		int tail = numberNodes == 0 ? 0 : 1;
+		for (int i=0; i< numberNodes; i++) {
+			childStarts[i] = tail;
+			for (int child = firstChild[order[i]]; child != -1; child = nextSibling[child]) {
+				newIds[child] = tail;
+				edgeDistance[tail] = edges[child];
+				order[tail++] = child;
+			}
+		}
+		childStarts[numberNodes] = tail;
+		firstChild = null;
+		nextSibling = null;
+		edges = null;
+		PackedStrings ordered = new PackedStrings();
+		for (int i=0; i< numberNodes; i++) ordered.add(values.get(order[i]));
+		ordered.trim();
+		values = ordered;
+
+		//rows per node, these stay sorted as the entries are sorted by row within a hash
+		rowStarts = new int[numberNodes+1];
+		for (int node: entryNodes) rowStarts[newIds[node]+1]++;
+		for (int i=0; i< numberNodes; i++) rowStarts[i+1]+= rowStarts[i];
+		rows = new int[entries.length];
+		int[] fill = Arrays.copyOf(rowStarts, numberNodes);
+		for (int i=0; i< entries.length; i++) rows[fill[newIds[entryNodes[i]]]++] = (int)(entries[i] & INDEX_MASK);
+	}
+
+	/**Adds the given rows with the key to the delta, for rows added to the registry or whose key was filled in after the tree was built.*/
+	public void update(RegistryStore registry, int[] updatedRows) {
+		RegistryStore.ComparisonKeys ck = registry.createComparisonKeys();
+		int num = deltaRows.length;
+		int[] more = Arrays.copyOf(deltaRows, num + updatedRows.length);
+		for (int row: updatedRows) {
+			CharSequence key = registry.loadComparisonKeys(row, ck)[keyIndex];
+			if (key.length() == 0) continue;
+			more[num++] = row;
+			deltaValues.add(key.toString());
+		}
+		deltaRows = Arrays.copyOf(more, num);
+	}
+
+	/**Returns the sorted registry rows whose key is within maxDistance edits of the query key, limited to those >= startIndex and < stopIndex.
+	 * An empty query key returns null, it can't be searched. Thread safe.*/
+	public int[] fetchRows(CharSequence queryKey, int maxDistance, int startIndex, int stopIndex) {
+		if (queryKey.length() == 0) return null;
+		if (values.size() == 0 && deltaRows.length == 0) return new int[0];
+		LevenshteinKernel kernel = new LevenshteinKernel();
+		kernel.setPattern(queryKey);
+		CharSlice slice = new CharSlice();
+		int[] stack = new int[64];
+		int stackSize = 0;
+		if (values.size() != 0) stack[stackSize++] = 0;
+		int[] hits = new int[16];
+		int numberHits = 0;
+		while (stackSize != 0) {
+			int node = stack[--stackSize];
+			int distance = distance(node, kernel, slice);
+			if (distance <= maxDistance) {
+				//copy the node's rows in range
+				int start = lowerBound(rows, rowStarts[node], rowStarts[node+1], startIndex);
+				int stop = lowerBound(rows, start, rowStarts[node+1], stopIndex);
+				if (numberHits + stop - start > hits.length) hits = Arrays.copyOf(hits, Math.max(hits.length * 2, numberHits + stop - start));
+				System.arraycopy(rows, start, hits, numberHits, stop - start);
+				numberHits+= stop - start;
+			}
+			for (int child = childStarts[node]; child < childStarts[node+1]; child++) {
+				if (Math.abs(edgeDistance[child] - distance) > maxDistance) continue;
+				if (stackSize == stack.length) stack = Arrays.copyOf(stack, stackSize * 2);
+				stack[stackSize++] = child;
+			}
+		}
+		if (deltaRows.length == 0) {
+			int[] found = Arrays.copyOf(hits, numberHits);
+			Arrays.sort(found);
+			return found;
+		}
+
+		//the delta, its rows may also be in the tree or listed twice
+		for (int i=0; i< deltaRows.length; i++) {
+			int row = deltaRows[i];
+			if (row < startIndex || row >= stopIndex || kernel.distance(deltaValues.fetch(i, slice), maxDistance) == -1) continue;
+			if (numberHits == hits.length) hits = Arrays.copyOf(hits, hits.length * 2);
+			hits[numberHits++] = row;
+		}
+		Arrays.sort(hits, 0, numberHits);
+		int numUnique = 0;
+		for (int i=0; i< numberHits; i++) {
+			if (i==0 || hits[i] != hits[i-1]) hits[numUnique++] = hits[i];
+		}
+		return Arrays.copyOf(hits, numUnique);
+	}
+
+	/*Distance from the kernel's pattern to the node's value.*/
+	private int distance(int node, LevenshteinKernel kernel, CharSlice slice) {
+		return kernel.distance(values.fetch(node, slice), Integer.MAX_VALUE);
+	}
+
+	/**Max edits for a key of the given length that keep its score, edits/length, within the max edit score. Same as for the name index.*/
+	public static int fetchMaxDistance(int keyLength, double maxEditScore) {
+		return QGramIndex.fetchMaxEdits(keyLength, maxEditScore);
+	}
+
+	/*Same as String.hashCode(), for any CharSequence.*/
+	private static int hash(CharSequence s) {
+		int h = 0;
+		for (int i=0; i< s.length(); i++) h = 31*h + s.charAt(i);
+		return h;
+	}
+
+	private static boolean contentEquals(CharSequence a, CharSequence b) {
+		if (a.length() != b.length()) return false;
+		for (int i=0; i< a.length(); i++) if (a.charAt(i) != b.charAt(i)) return false;
+		return true;
+	}
+
+	/*Index of the first value >= key in a[start, stop).*/
+	private static int lowerBound(int[] a, int start, int stop, int key) {
+		int low = start;
+		int high = stop;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (a[mid] < key) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	/**Approximate heap use of the tree.*/
+	public long estimateBytes() {
+		return values.estimateBytes() + deltaValues.estimateBytes() + 4L * (childStarts.length + edgeDistance.length + rowStarts.length + rows.length + deltaRows.length);
+	}
+
+	/**The comparison key indexed, MRN_KEY or DOB_KEY.*/
+	public int getKeyIndex() {
+		return keyIndex;
+	}
+
+	public int getNumberNodes() {
+		return values.size();
+	}
+
+	/**Number of registry rows with the key.*/
+	public int getNumberEntries() {
+		return rows.length + deltaRows.length;
+	}
+
+	/**Deepest node, the most distances computed by a d=0 lookup.*/
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+}
@@ -0,0 +1,112 @@
+package edu.utah.hci.bioinfo.smm;
+
+/**Columnar first pass for scoring one query against a block of registry rows. Each key is swept down its packed registry column,
+ * gender 64 rows per word from the bit sets, DoBs as yyyymmdd ints, numeric MRNs as longs, and name lengths from the offsets,
+ * giving every row a lower bound on its scoreKeysLD score without building its keys: the exact missing key penalties,
+ * the exact gender score, 1/length for a DoB or MRN that differs, and the length difference for the name.
+ * Rows whose bound can't make the top hits are skipped, only the rest are scored by the scalar path, so the top hits are unchanged.
+ * Not thread safe, use one per MatcherEngine.*/
+public class BatchScorer {
+
+	public static final int BLOCK_SIZE = 256;
+
+	private RegistryStore registry = null;
+	private double missingOneKeyPenalty = 0;
+	private double missingAdditionalKeyPenalty = 0;
+
+	//per block
+	private int[] blockRows = new int[BLOCK_SIZE];
+	private double[] lowerBounds = new double[BLOCK_SIZE];
+	private int[] numberMissing = new int[BLOCK_SIZE];
+
+	//the query, lengths are 0 for missing keys
+	private int nameLength = 0;
+	private int dob = 0;
+	private int dobLength = 0;
+	private int gender = 0;		//1 male, 0 female, -1 missing
+	private long mrn = 0;
+	private int mrnLength = 0;
+
+	public BatchScorer(RegistryStore registry, double missingOneKeyPenalty, double missingAdditionalKeyPenalty) {
+		this.registry = registry;
+		this.missingOneKeyPenalty = missingOneKeyPenalty;
+		this.missingAdditionalKeyPenalty = missingAdditionalKeyPenalty;
+	}
+
+	/**Loads the query, returns false if its bounds can't be computed, e.g. negative penalties, then use the scalar path.*/
+	public boolean setQuery(Subject query, String[] queryKeys) {
+		if (queryKeys.length != 4 || missingOneKeyPenalty < 0 || missingAdditionalKeyPenalty < 0) return false;
+		nameLength = queryKeys[0].length();
+		dobLength = queryKeys[1].length();
+		dob = dobLength == 0 ? 0 : RegistryStore.packDob(query.getDobMonth(), query.getDobDay(), query.getDobYear());
+		if (queryKeys[2].length() == 0) gender = -1;
+		else if (queryKeys[2].equals("M")) gender = 1;
+		else if (queryKeys[2].equals("F")) gender = 0;
+		else return false;
+		mrnLength = queryKeys[3].length();
+		mrn = RegistryStore.packMrn(queryKeys[3]);
+		return true;
+	}
+
+	/**Fills getLowerBounds() for rows[from] to rows[to-1], or from to to-1 if rows is null, at most BLOCK_SIZE rows.*/
+	public void fillLowerBounds(int[] rows, int from, int to) {
+		int n = to - from;
+		int[] r = blockRows;
+		if (rows == null) for (int i=0; i< n; i++) r[i] = from + i;
+		else System.arraycopy(rows, from, r, 0, n);
+		double[] lb = lowerBounds;
+		int[] missing = numberMissing;
+
+		//name, the distance is at least the length difference
+		PackedStrings names = registry.getNameKeyColumn();
+		for (int i=0; i< n; i++) {
+			int length = names.length(r[i]);
+			boolean isMissing = length == 0 || nameLength == 0;
+			missing[i] = isMissing ? 1 : 0;
+			lb[i] = isMissing ? 0 : ((double)Math.abs(nameLength - length)) / nameLength;
+		}
+
+		//dob, packed ints, those that differ are at least one edit
+		int[] dobs = registry.getDobColumn();
+		double dobEdit = dobLength == 0 ? 0 : 1.0 / dobLength;
+		for (int i=0; i< n; i++) {
+			int d = dobs[r[i]];
+			boolean isMissing = dobLength == 0 || d / 10000 == 0 || (d / 100) % 100 == 0 || d % 100 == 0;
+			missing[i]+= isMissing ? 1 : 0;
+			if (isMissing == false && d != dob) lb[i]+= dobEdit;
+		}
+
+		//gender, 64 rows per word, those known that differ from the query's score 1
+		long[] known = registry.getGenderKnownColumn();
+		long[] male = registry.getGenderMaleColumn();
+		long queryMale = gender == 1 ? -1L : 0;
+		for (int i=0; i< n; i++) {
+			int row = r[i];
+			int word = row >> 6;
+			if (gender == -1 || ((known[word] >>> row) & 1) == 0) missing[i]++;
+			else if ((((male[word] ^ queryMale) >>> row) & 1) != 0) lb[i]+= 1;
+		}
+
+		//mrn, numeric ones that differ are at least one edit, the String fallbacks aren't bounded
+		long[] mrns = registry.getMrnColumn();
+		boolean queryNumeric = mrn >= 0;
+		double mrnEdit = mrnLength == 0 ? 0 : 1.0 / mrnLength;
+		for (int i=0; i< n; i++) {
+			long m = mrns[r[i]];
+			if (mrnLength == 0 || m == RegistryStore.MRN_MISSING) missing[i]++;
+			else if (queryNumeric && m >= 0 && m != mrn) lb[i]+= mrnEdit;
+		}
+
+		//missing key penalties, as in scoreKeysLD
+		for (int i=0; i< n; i++) {
+			int num = missing[i];
+			if (num == 1) lb[i]+= missingOneKeyPenalty;
+			else if (num > 1) lb[i]+= missingOneKeyPenalty + ((num-1)* missingAdditionalKeyPenalty);
+		}
+	}
+
+	/**Lower bounds from the last fillLowerBounds(), the first is for its first row.*/
+	public double[] getLowerBounds() {
+		return lowerBounds;
+	}
+}
@@ -0,0 +1,257 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**Candidate generation index for the registry. Each registry subject is dropped into a handful of buckets built from its keys:
+ * MRN prefix and suffix, partial DoBs (month/day, month/year, day/year), and last and first name prefixes. A query is then only fully scored
+ * against the union of registry subjects that share at least one bucket with it. The query side also looks up a month/day transposed DoB.
+ * A single typo in any one key thus still finds the subject through the others.
+ * Buckets are stored as a sorted array of (bucketHash, registryIndex) longs to keep the footprint small on multi million subject registries.
+ * Hash collisions only add extra candidates, these are removed by the full scoring. With a QGramIndex set, registry subjects whose names are
+ * within the max edit score of the query's are added, so a typo in the name prefix plus a missing or altered MRN and DoB is still found.
+ * When the query's name is too short or missing for that, BKTreeIndexes add those with an MRN or DoB within the max edit score instead.
+ * Rows added or updated by a running server go into a small sorted delta, see update().*/
+public class BlockingIndex {
+
+	private static final int MRN_AFFIX_LENGTH = 4;
+	private static final int NAME_PREFIX_LENGTH = 3;
+	private static final long INDEX_MASK = 0xFFFFFFFFL;
+
+	//(bucketHash << 32 | registryIndex), sorted smallest to largest
+	private long[] entries = null;
+	private long[] delta = new long[0];
+	private int numberBuckets = 0;
+	private QGramIndex nameIndex = null;
+	private double maxEditScoreForMatch = 0;
+	private RegistryStore keyTreeRegistry = null;
+	private volatile BKTreeIndex mrnTree = null;
+	private volatile BKTreeIndex dobTree = null;
+
+	public BlockingIndex(RegistryStore registry) {
+		//count the entries
+		int num = 0;
+		for (int i=0; i< registry.size(); i++) num+= fetchBucketKeys(registry, i).size();
+
+		//load the entries
+		entries = new long[num];
+		int index = 0;
+		for (int i=0; i< registry.size(); i++) {
+			for (String key: fetchBucketKeys(registry, i)) entries[index++] = makeEntry(key.hashCode(), i);
+		}
+		Arrays.sort(entries);
+		countBuckets();
+	}
+
+	/**Indexes the subjects by their array index, e.g. to find near duplicate queries, see QueryClusterer.*/
+	public BlockingIndex(Subject[] subjects) {
+		int num = 0;
+		for (Subject s: subjects) num+= fetchBucketKeys(s, false).size();
+		entries = new long[num];
+		int index = 0;
+		for (int i=0; i< subjects.length; i++) {
+			for (String key: fetchBucketKeys(subjects[i], false)) entries[index++] = makeEntry(key.hashCode(), i);
+		}
+		Arrays.sort(entries);
+		countBuckets();
+	}
+
+	private void countBuckets() {
+		long priorHash = 0;
+		for (int i=0; i< entries.length; i++) {
+			long hash = entries[i] >> 32;
+			if (i==0 || hash != priorHash) numberBuckets++;
+			priorHash = hash;
+		}
+	}
+
+	/**Adds the name index lookups to the candidates, names within maxEditScoreForMatch of the query's.*/
+	public void setNameIndex(QGramIndex nameIndex, double maxEditScoreForMatch) {
+		this.nameIndex = nameIndex;
+		this.maxEditScoreForMatch = maxEditScoreForMatch;
+	}
+
+	/**Adds MRN and DoB metric tree lookups, keys within the maxEditScoreForMatch set with the name index, for queries whose name can't be looked up.
+	 * The trees are built from the registry on first use, most query sets never need them.*/
+	public void setKeyTrees(RegistryStore registry) {
+		keyTreeRegistry = registry;
+		mrnTree = null;
+		dobTree = null;
+	}
+
+	private synchronized void buildKeyTrees() {
+		if (dobTree != null) return;
+		mrnTree = new BKTreeIndex(keyTreeRegistry, BKTreeIndex.MRN_KEY);
+		dobTree = new BKTreeIndex(keyTreeRegistry, BKTreeIndex.DOB_KEY);
+	}
+
+	/**Adds the rows from firstNewRow on, plus the updated rows, to the delta so a server's registry changes don't rebuild the index.
+	 * Updated rows only gain keys, see Subject.setMatches(), so their old entries can only add candidates. Key trees already built are updated too.*/
+	public void update(RegistryStore registry, int firstNewRow, int[] updatedRows) {
+		int[] rows = mergeRows(firstNewRow, registry.size(), updatedRows);
+		int num = 0;
+		for (int row: rows) num+= fetchBucketKeys(registry, row).size();
+		long[] merged = Arrays.copyOf(delta, delta.length + num);
+		int index = delta.length;
+		for (int row: rows) {
+			for (String key: fetchBucketKeys(registry, row)) merged[index++] = makeEntry(key.hashCode(), row);
+		}
+		Arrays.sort(merged);
+		delta = merged;
+		synchronized (this) {
+			if (dobTree != null) {
+				mrnTree.update(registry, rows);
+				dobTree.update(registry, rows);
+			}
+		}
+	}
+
+	/*The updated rows followed by those from firstNewRow to stopRow.*/
+	static int[] mergeRows(int firstNewRow, int stopRow, int[] updatedRows) {
+		int numUpdated = updatedRows == null ? 0 : updatedRows.length;
+		int[] rows = new int[numUpdated + stopRow - firstNewRow];
+		if (numUpdated != 0) System.arraycopy(updatedRows, 0, rows, 0, numUpdated);
+		for (int i=firstNewRow; i< stopRow; i++) rows[numUpdated + i - firstNewRow] = i;
+		return rows;
+	}
+
+	/**Returns the sorted, unique registry indexes that share at least one bucket with the query, or a similar name, MRN or DoB, 
+	 * limited to those >= startIndex and < stopIndex.*/
+	public int[] fetchCandidates(Subject query, int startIndex, int stopIndex) {
+		ArrayList<String> keys = fetchBucketKeys(query, true);
+		int[] nameHits = null;
+		if (nameIndex != null) {
+			String name = query.getLastName()+ query.getFirstName();
+			nameHits = nameIndex.fetchCandidates(name, QGramIndex.fetchMaxEdits(name.length(), maxEditScoreForMatch), startIndex, stopIndex);
+		}
+		int[] mrnHits = null;
+		int[] dobHits = null;
+		if (nameHits == null && keyTreeRegistry != null) {
+			if (dobTree == null) buildKeyTrees();
+			mrnHits = fetchTreeHits(mrnTree, query, startIndex, stopIndex);
+			dobHits = fetchTreeHits(dobTree, query, startIndex, stopIndex);
+		}
+		if (keys.size()==0 && nameHits == null && mrnHits == null && dobHits == null) return new int[0];
+
+		//collect the matching entries from each bucket
+		int numKeys = keys.size();
+		int[][] hits = new int[2 * numKeys + 3][];
+		hits[2 * numKeys] = nameHits == null ? new int[0] : nameHits;
+		hits[2 * numKeys + 1] = mrnHits == null ? new int[0] : mrnHits;
+		hits[2 * numKeys + 2] = dobHits == null ? new int[0] : dobHits;
+		int num = hits[2 * numKeys].length + hits[2 * numKeys + 1].length + hits[2 * numKeys + 2].length;
+		for (int i=0; i< numKeys; i++) {
+			long hash = keys.get(i).hashCode();
+			hits[i] = fetchBucket(entries, hash, startIndex, stopIndex);
+			hits[numKeys + i] = fetchBucket(delta, hash, startIndex, stopIndex);
+			num+= hits[i].length + hits[numKeys + i].length;
+		}
+
+		//merge and remove duplicates
+		int[] all = new int[num];
+		int index = 0;
+		for (int[] h: hits) {
+			System.arraycopy(h, 0, all, index, h.length);
+			index+= h.length;
+		}
+		Arrays.sort(all);
+		int numUnique = 0;
+		for (int i=0; i< all.length; i++) {
+			if (i==0 || all[i] != all[i-1]) all[numUnique++] = all[i];
+		}
+		return Arrays.copyOf(all, numUnique);
+	}
+
+	/*Rows with the tree's key within the max edit score of the query's, null if the query is missing the key.*/
+	private int[] fetchTreeHits(BKTreeIndex tree, Subject query, int startIndex, int stopIndex) {
+		String key = query.getComparisonKeys()[tree.getKeyIndex()];
+		return tree.fetchRows(key, BKTreeIndex.fetchMaxDistance(key.length(), maxEditScoreForMatch), startIndex, stopIndex);
+	}
+
+	/**Returns the bucket keys for a subject, missing keys are skipped. Names are upper cased so the index works for both case sensitive and insensitive searches.
+	 * Queries also include a DoB bucket with the month and day swapped.*/
+	public static ArrayList<String> fetchBucketKeys(String lastName, String firstName, int month, int day, int year, String mrn, boolean isQuery) {
+		ArrayList<String> keys = new ArrayList<String>(8);
+
+		//mrn
+		if (mrn.length()!=0) {
+			keys.add("M<"+ mrn.substring(0, Math.min(MRN_AFFIX_LENGTH, mrn.length())));
+			keys.add("M>"+ mrn.substring(Math.max(0, mrn.length()-MRN_AFFIX_LENGTH)));
+		}
+
+		//dob, partials so a typo in any one field still lands in a shared bucket
+		if (month!=-1 && day!=-1) {
+			keys.add("Dmd"+ month+ "/"+ day);
+			if (isQuery && month!=day && day<= 12) keys.add("Dmd"+ day+ "/"+ month);
+		}
+		if (month!=-1 && year!=-1) keys.add("Dmy"+ month+ "/"+ year);
+		if (day!=-1 && year!=-1) keys.add("Ddy"+ day+ "/"+ year);
+
+		//names, the prefix of one plus the initial of the other
+		String last = lastName.toUpperCase();
+		String first = firstName.toUpperCase();
+		if (last.length()!=0) {
+			String k = "Nl"+ last.substring(0, Math.min(NAME_PREFIX_LENGTH, last.length()));
+			if (first.length()!=0) k = k+ first.charAt(0);
+			keys.add(k);
+		}
+		if (first.length()!=0) {
+			String k = "Nf"+ first.substring(0, Math.min(NAME_PREFIX_LENGTH, first.length()));
+			if (last.length()!=0) k = k+ last.charAt(0);
+			keys.add(k);
+		}
+		return keys;
+	}
+
+	private static ArrayList<String> fetchBucketKeys(Subject s, boolean isQuery) {
+		return fetchBucketKeys(s.getLastName(), s.getFirstName(), s.getDobMonth(), s.getDobDay(), s.getDobYear(), s.getMrn(), isQuery);
+	}
+
+	private static ArrayList<String> fetchBucketKeys(RegistryStore registry, int row) {
+		return fetchBucketKeys(registry.getLastName(row), registry.getFirstName(row), registry.getDobMonth(row), registry.getDobDay(row), registry.getDobYear(row), 
+				registry.getMrn(row), false);
+	}
+
+	/*Registry indexes in the bucket, >= startIndex and < stopIndex.*/
+	private static int[] fetchBucket(long[] entries, long hash, int startIndex, int stopIndex) {
+		int start = lowerBound(entries, makeEntry(hash, startIndex));
+		int stop = lowerBound(entries, makeEntry(hash, stopIndex));
+		int[] rows = new int[stop-start];
+		for (int j=start; j< stop; j++) rows[j-start] = (int)(entries[j] & INDEX_MASK);
+		return rows;
+	}
+
+	/**Returns the index of the first entry >= the key.*/
+	private static int lowerBound(long[] entries, long key) {
+		int low = 0;
+		int high = entries.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (entries[mid] < key) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	private static long makeEntry(long hash, int registryIndex) {
+		return (hash << 32) | (registryIndex & INDEX_MASK);
+	}
+
+	public int getNumberBuckets() {
+		return numberBuckets;
+	}
+
+	public int getNumberEntries() {
+		return entries.length + delta.length;
+	}
+
+	/**The MRN metric tree, null if it hasn't been needed.*/
+	public BKTreeIndex getMrnTree() {
+		return mrnTree;
+	}
+
+	/**The DoB metric tree, null if it hasn't been needed.*/
+	public BKTreeIndex getDobTree() {
+		return dobTree;
+	}
+}
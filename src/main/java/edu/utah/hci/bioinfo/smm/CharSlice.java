@@ -0,0 +1,50 @@
+package edu.utah.hci.bioinfo.smm;
+
+/**Reusable, mutable CharSequence view over part of a Latin-1 byte[] or a char[]. Lets the matchers compare packed registry keys without building Strings.*/
+public final class CharSlice implements CharSequence {
+
+	private byte[] bytes = null;
+	private char[] chars = null;
+	private int offset = 0;
+	private int length = 0;
+
+	public CharSlice set(byte[] bytes, int offset, int length) {
+		this.bytes = bytes;
+		this.chars = null;
+		this.offset = offset;
+		this.length = length;
+		return this;
+	}
+
+	public CharSlice set(char[] chars, int offset, int length) {
+		this.bytes = null;
+		this.chars = chars;
+		this.offset = offset;
+		this.length = length;
+		return this;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public char charAt(int index) {
+		if (bytes != null) return (char)(bytes[offset + index] & 0xFF);
+		return chars[offset + index];
+	}
+
+	/**Copies the chars into dest from 0, as String.getChars(0, length(), dest, 0).*/
+	public void getChars(char[] dest) {
+		if (bytes != null) for (int i=0; i< length; i++) dest[i] = (char)(bytes[offset + i] & 0xFF);
+		else System.arraycopy(chars, offset, dest, 0, length);
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		return toString().substring(start, end);
+	}
+
+	public String toString() {
+		if (bytes != null) return new String(bytes, offset, length, java.nio.charset.StandardCharsets.ISO_8859_1);
+		return new String(chars, offset, length);
+	}
+}
@@ -18,8 +18,31 @@ public class CoreId {
 	
 	// if modifing also do in util.gen.Misc in USeq
 	
+	/**Same as matching the CORE_ID_Pattern, without the regex. The letter and digit runs don't overlap so the run lengths decide it.*/
 	public static boolean isCoreId(String testId) {
-		return CORE_ID_Pattern.matcher(testId).matches();
+		int length = testId.length();
+		if (length < 8 || length > 10) return false;
+		int i = countLetters(testId, 0);
+		if (i < 2 || i > 3 || isDigit(testId, i) == false) return false;
+		int j = countLetters(testId, i + 1);
+		if (j != i + 3 || isDigit(testId, j) == false) return false;
+		int k = countLetters(testId, j + 1);
+		return k == length && k - j - 1 >= 2 && k - j - 1 <= 3;
+	}
+
+	/*Index of the first non coreId letter at or after start.*/
+	private static int countLetters(String s, int start) {
+		int i = start;
+		while (i < s.length()) {
+			char c = s.charAt(i);
+			if (((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')) == false || c == 'O' || c == 'o' || c == 'I' || c == 'i' || c == 'l' || c == 'L') break;
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean isDigit(String s, int i) {
+		return i < s.length() && s.charAt(i) >= '2' && s.charAt(i) <= '9';
 	}
 	
 	public String createCoreId() {
@@ -0,0 +1,237 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**Fast path for queries that share an exact key with a registry subject. Registry rows are hashed by normalized MRN, by each otherSubjectId,
+ * and by full DoB plus gender. A query with all four comparison keys is scored against just the rows sharing one of these, a bounded fuzzy check.
+ * Every other row differs in its MRN and in its DoB or gender, so scores at least fetchLowerBound(). If the best exact key hit passes the max edit
+ * score and beats that bound, it and any ties are the true top matches and the full registry scan is skipped. The remaining top matches
+ * listed for these queries are limited to the exact key rows, just as blocked searches are limited to their candidates.
+ * Entries are a sorted array of (keyHash, registryIndex) longs, as in the BlockingIndex, hash collisions only add rows to score.
+ * Rows added or updated by a running server go into a small sorted delta, see update().*/
+public class ExactKeyIndex {
+
+	private static final long INDEX_MASK = 0xFFFFFFFFL;
+	//slack so differences in the summing order can't let an outside row tie
+	private static final double BOUND_SLACK = 0.000000001;
+
+	private RegistryStore registry = null;
+	private long[] entries = null;
+	private long[] delta = new long[0];
+
+	public ExactKeyIndex(RegistryStore registry) {
+		this.registry = registry;
+		int num = 0;
+		for (int i=0; i< registry.size(); i++) num+= fetchKeys(registry, i).size();
+		entries = new long[num];
+		int index = 0;
+		for (int i=0; i< registry.size(); i++) {
+			for (String key: fetchKeys(registry, i)) entries[index++] = makeEntry(key.hashCode(), i);
+		}
+		Arrays.sort(entries);
+	}
+
+	/**Adds the rows from firstNewRow on, plus the updated rows, to the delta. Updated rows only gain keys, see Subject.setMatches(),
+	 * so their old entries stay correct.*/
+	public void update(int firstNewRow, int[] updatedRows) {
+		int[] rows = BlockingIndex.mergeRows(firstNewRow, registry.size(), updatedRows);
+		int num = 0;
+		for (int row: rows) num+= fetchKeys(registry, row).size();
+		long[] merged = Arrays.copyOf(delta, delta.length + num);
+		int index = delta.length;
+		for (int row: rows) {
+			for (String key: fetchKeys(registry, row)) merged[index++] = makeEntry(key.hashCode(), row);
+		}
+		Arrays.sort(merged);
+		delta = merged;
+	}
+
+	/**Scores the queries with all four keys against their exact key rows in parallel and returns those resolved, with their top hits,
+	 * and the rest that still need the full search.
+	 * @param executor runs the tasks when numberThreads > 1, the caller's pool, it isn't shut down here.*/
+	public Matches match(Subject[] queries, double missingOneKeyPenalty, double missingAdditionalKeyPenalty, double maxEditScoreForMatch,
+			int numMatchesToReturn, int numberThreads, ExecutorService executor) throws IOException {
+		final Matches m = new Matches(queries.length);
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		int numTasks = executor == null ? 1 : Math.max(1, Math.min(queries.length, numberThreads));
+		for (int t=0; t< numTasks; t++) {
+			final MatcherEngine me = new MatcherEngine(registry, 0, 0, queries, null, missingOneKeyPenalty, missingAdditionalKeyPenalty, numMatchesToReturn);
+			final int first = t;
+			final int step = numTasks;
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					RegistryStore.ComparisonKeys ck = registry.createComparisonKeys();
+					TopHits topHits = new TopHits(numMatchesToReturn);
+					for (int q=first; q< queries.length; q+= step) {
+						double bound = fetchLowerBound(queries[q], missingOneKeyPenalty, missingAdditionalKeyPenalty);
+						if (bound <= 0) continue;
+						int[] rows = fetchCandidates(queries[q]);
+						if (rows.length == 0) continue;
+						topHits.clear();
+						String[] queryKeys = queries[q].getComparisonKeys();
+						for (int row: rows) {
+							double score = me.scoreKeysLD(queryKeys, registry.loadComparisonKeys(row, ck), topHits.getWorstScore());
+							if (score != Double.POSITIVE_INFINITY) topHits.add(row, score);
+						}
+						double[] scores = topHits.fetchSortedScores();
+						if (scores[0] <= maxEditScoreForMatch && scores[0] < bound - BOUND_SLACK) {
+							m.indexes[q] = topHits.fetchSortedIndexes();
+							m.scores[q] = scores;
+						}
+					}
+					return null;
+				}
+			});
+		}
+		runTasks(tasks, executor);
+
+		//collect the rest
+		ArrayList<Subject> remaining = new ArrayList<Subject>();
+		for (int q=0; q< queries.length; q++) {
+			if (m.indexes[q] == null) remaining.add(queries[q]);
+			else m.numberResolved++;
+		}
+		m.queries = queries;
+		m.remaining = remaining.toArray(new Subject[remaining.size()]);
+		return m;
+	}
+
+	/**Returns the least score a registry row without an exact MRN, otherId, or DoB plus gender hit could have, 0 if the query is missing a key.
+	 * Such a row has an MRN edit or a missing MRN, plus a DoB or gender edit or one of them missing.*/
+	static double fetchLowerBound(Subject query, double missingOneKeyPenalty, double missingAdditionalKeyPenalty) {
+		if (missingOneKeyPenalty < 0 || missingAdditionalKeyPenalty < 0) return 0;
+		String[] keys = query.getComparisonKeys();
+		for (String k: keys) if (k.length() == 0) return 0;
+		double mrnEdit = 1.0/ keys[3].length();
+		double dobGenderEdit = Math.min(1.0/ keys[1].length(), 1.0/ keys[2].length());
+		return Math.min(mrnEdit + Math.min(dobGenderEdit, missingOneKeyPenalty), missingOneKeyPenalty + Math.min(dobGenderEdit, missingAdditionalKeyPenalty));
+	}
+
+	/**Returns the sorted, unique registry rows sharing an exact key with the query.*/
+	public int[] fetchCandidates(Subject query) {
+		ArrayList<String> keys = fetchKeys(query.getMrn(), query.getOtherSubjectIds(), query.getDobMonth(), query.getDobDay(), query.getDobYear(), query.getGender());
+		int num = 0;
+		int[] starts = new int[2 * keys.size()];
+		int[] stops = new int[2 * keys.size()];
+		for (int i=0; i< keys.size(); i++) {
+			long hash = keys.get(i).hashCode();
+			starts[i] = lowerBound(entries, makeEntry(hash, 0));
+			stops[i] = lowerBound(entries, makeEntry(hash, Integer.MAX_VALUE));
+			starts[keys.size() + i] = lowerBound(delta, makeEntry(hash, 0));
+			stops[keys.size() + i] = lowerBound(delta, makeEntry(hash, Integer.MAX_VALUE));
+			num+= stops[i] - starts[i] + stops[keys.size() + i] - starts[keys.size() + i];
+		}
+		int[] all = new int[num];
+		int index = 0;
+		for (int i=0; i< starts.length; i++) {
+			long[] e = i < keys.size() ? entries : delta;
+			for (int j=starts[i]; j< stops[i]; j++) all[index++] = (int)(e[j] & INDEX_MASK);
+		}
+		Arrays.sort(all);
+		int numUnique = 0;
+		for (int i=0; i< all.length; i++) {
+			if (i==0 || all[i] != all[i-1]) all[numUnique++] = all[i];
+		}
+		return Arrays.copyOf(all, numUnique);
+	}
+
+	/**Hash keys for the exact lookups, missing keys are skipped. The MRN has had its leading zeros removed, see Subject.*/
+	static ArrayList<String> fetchKeys(String mrn, String[] otherSubjectIds, int month, int day, int year, String gender) {
+		ArrayList<String> keys = new ArrayList<String>(4);
+		if (mrn.length()!=0) keys.add("M"+ mrn);
+		if (otherSubjectIds != null) for (String o: otherSubjectIds) if (o.length()!=0) keys.add("O"+ o);
+		if (month!=-1 && day!=-1 && year!=-1 && gender.length()!=0) keys.add("G"+ month+ "/"+ day+ "/"+ year+ gender);
+		return keys;
+	}
+
+	private static ArrayList<String> fetchKeys(RegistryStore registry, int row) {
+		return fetchKeys(registry.getMrn(row), registry.getOtherSubjectIds(row), registry.getDobMonth(row), registry.getDobDay(row),
+				registry.getDobYear(row), registry.getGender(row));
+	}
+
+	/**Returns the index of the first entry >= the key.*/
+	private static int lowerBound(long[] entries, long key) {
+		int low = 0;
+		int high = entries.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (entries[mid] < key) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	private static long makeEntry(long hash, int registryIndex) {
+		return (hash << 32) | (registryIndex & INDEX_MASK);
+	}
+
+	private static void runTasks(ArrayList<Callable<Object>> tasks, ExecutorService executor) throws IOException {
+		if (tasks.size() == 1) {
+			try {
+				tasks.get(0).call();
+			} catch (Exception e) {
+				throw new IOException("ERROR: problem matching exact keys. "+e, e);
+			}
+			return;
+		}
+		//invokeAll waits on every task so none are left running on the shared pool
+		try {
+			for (Future<Object> f: executor.invokeAll(tasks)) f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("ERROR: interrupted while matching exact keys.", e);
+		} catch (ExecutionException e) {
+			throw new IOException("ERROR: problem matching exact keys. "+e.getCause(), e.getCause());
+		}
+	}
+
+	public int getNumberEntries() {
+		return entries.length + delta.length;
+	}
+
+	/**Queries resolved on the fast path with their top hits, and those remaining for the full search.*/
+	public static class Matches {
+		private Subject[] queries = null;
+		private Subject[] remaining = null;
+		private int[][] indexes = null;
+		private double[][] scores = null;
+		private int numberResolved = 0;
+
+		private Matches(int numberQueries) {
+			indexes = new int[numberQueries][];
+			scores = new double[numberQueries][];
+		}
+
+		/**All of the queries, for when there is no index.*/
+		public Matches(Subject[] queries) {
+			this(0);
+			this.queries = new Subject[0];
+			this.remaining = queries;
+		}
+
+		/**Sets the top hits in the resolved queries, the hit Subjects are materialized from the registry.*/
+		public void setTopMatches(RegistryStore registry) {
+			for (int q=0; q< queries.length; q++) {
+				if (indexes[q] == null) continue;
+				Subject[] hits = new Subject[indexes[q].length];
+				for (int i=0; i<hits.length; i++) hits[i] = registry.fetchSubject(indexes[q][i]);
+				queries[q].setTopCandidates(hits, scores[q]);
+			}
+		}
+
+		/**Queries that still need the full search.*/
+		public Subject[] getRemaining() {
+			return remaining;
+		}
+
+		public int getNumberResolved() {
+			return numberResolved;
+		}
+	}
+}
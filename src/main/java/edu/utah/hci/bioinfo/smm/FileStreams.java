@@ -0,0 +1,329 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**Large buffered readers and writers for plain, gzip (.gz), and zip (.zip) files. Compressed files are inflated ahead of the reader on their own
+ * thread and gzip output is deflated behind the writer on its own thread, so on a multi core host the (de)compression overlaps the parsing and formatting.
+ * Text uses the default charset as FileReader and FileWriter do.*/
+public class FileStreams {
+
+	/**Bytes buffered by each reader and writer and passed per hand off between the threads.*/
+	public static final int BUFFER_SIZE = 1 << 18;
+	/**Extension added to gzip compressed output.*/
+	public static final String GZIP_EXTENSION = ".gz";
+	//full buffers waiting on the other thread, bounds the memory to a few MB
+	private static final int QUEUE_SIZE = 4;
+	//level 1 writes the registry ~3.5x faster than the default 6 for ~16% more bytes
+	private static final int GZIP_LEVEL = 1;
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	/**True if the file name ends in .gz or .zip.*/
+	public static boolean isCompressed(File file) {
+		String name = file.getName().toLowerCase();
+		return name.endsWith(".gz") || name.endsWith(".zip");
+	}
+
+	/**Returns the file with .gz appended if gzip is true and it isn't already there.*/
+	public static File fetchOutputFile(File file, boolean gzip) {
+		if (gzip == false || file.getName().endsWith(GZIP_EXTENSION)) return file;
+		return new File(file.getParentFile(), file.getName()+ GZIP_EXTENSION);
+	}
+
+	/**Returns the plain or inflated bytes of the file, read on the calling thread. Zip files return their first entry.*/
+	public static InputStream fetchDecompressingStream(File file) throws IOException {
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".zip")) {
+			final ZipFile zf = new ZipFile(file);
+			ZipEntry ze = (ZipEntry) zf.entries().nextElement();
+			//closing the entry stream leaves the ZipFile open
+			return new FilterInputStream(zf.getInputStream(ze)) {
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						zf.close();
+					}
+				}
+			};
+		}
+		if (name.endsWith(".gz")) return new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE);
+		return new FileInputStream(file);
+	}
+
+	/**Returns the bytes of the file, compressed files are inflated ahead by a daemon thread.*/
+	public static InputStream fetchInputStream(File file) throws IOException {
+		InputStream in = fetchDecompressingStream(file);
+		if (isCompressed(file)) return new ReadAheadInputStream(in, file.getName());
+		return in;
+	}
+
+	/**Returns a gz, zip, or plain file reader based on the extension with a large buffer.*/
+	public static BufferedReader fetchBufferedReader(File file) throws IOException {
+		return new BufferedReader(new InputStreamReader(fetchInputStream(file), CHARSET), BUFFER_SIZE);
+	}
+
+	/**Returns a writer to the file, gzip compressed behind the writer if it ends in .gz. Close it to finish the file.*/
+	public static OutputStream fetchOutputStream(File file) throws IOException {
+		if (file.getName().endsWith(GZIP_EXTENSION)) {
+			OutputStream gz = new GZIPOutputStream(new FileOutputStream(file), BUFFER_SIZE) {
+				{
+					def.setLevel(GZIP_LEVEL);
+				}
+			};
+			return new WriteBehindOutputStream(gz, file.getName());
+		}
+		return new FileOutputStream(file);
+	}
+
+	/**Returns a large buffered writer to the file, see fetchOutputStream().*/
+	public static BufferedWriter fetchBufferedWriter(File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(fetchOutputStream(file), CHARSET), BUFFER_SIZE);
+	}
+
+	/**Returns a large buffered PrintWriter to the file, see fetchOutputStream(). PrintWriter swallows IOExceptions, check checkError() after closing.*/
+	public static PrintWriter fetchPrintWriter(File file) throws IOException {
+		return new PrintWriter(fetchBufferedWriter(file));
+	}
+
+	/*A full buffer, or the end of the stream when length is -1.*/
+	private static class Chunk {
+		private byte[] bytes;
+		private int length;
+
+		Chunk(byte[] bytes, int length) {
+			this.bytes = bytes;
+			this.length = length;
+		}
+	}
+
+	/**Fills buffers from the source on a daemon thread, at most QUEUE_SIZE ahead of the reader. Read errors are rethrown to the reader.
+	 * Only the thread touches the source, it closes it when done, so close() never closes the source under a read in progress.*/
+	static class ReadAheadInputStream extends InputStream implements Runnable {
+		//how often a thread blocked on a full queue checks for close()
+		private static final long OFFER_MILLIS = 50;
+		private InputStream source;
+		private ArrayBlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(QUEUE_SIZE);
+		private Thread thread;
+		private volatile IOException failure = null;
+		private volatile boolean closed = false;
+		private Chunk current = null;
+		private int position = 0;
+		private boolean done = false;
+
+		ReadAheadInputStream(InputStream source, String name) {
+			this.source = source;
+			thread = new Thread(this, "FileStreams-readAhead-"+name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public void run() {
+			try {
+				while (closed == false) {
+					byte[] bytes = new byte[BUFFER_SIZE];
+					int filled = 0;
+					int n = 0;
+					while (filled < bytes.length && (n = source.read(bytes, filled, bytes.length - filled)) != -1) filled+= n;
+					if (filled != 0 && put(new Chunk(bytes, filled)) == false) break;
+					if (n == -1) break;
+				}
+			} catch (IOException e) {
+				failure = e;
+			} catch (InterruptedException e) {
+				//abandoned
+			} finally {
+				try {
+					source.close();
+				} catch (IOException e) {
+					if (failure == null) failure = e;
+				}
+			}
+			try {
+				put(new Chunk(null, -1));
+			} catch (InterruptedException e) {
+				//abandoned
+			}
+		}
+
+		/*Waits for room in the queue, false if closed first.*/
+		private boolean put(Chunk chunk) throws InterruptedException {
+			while (closed == false) {
+				if (queue.offer(chunk, OFFER_MILLIS, TimeUnit.MILLISECONDS)) return true;
+			}
+			return false;
+		}
+
+		/*Moves to the next buffer, false at the end.*/
+		private boolean fill() throws IOException {
+			if (done) return false;
+			try {
+				current = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("ERROR: interrupted while reading.", e);
+			}
+			position = 0;
+			if (current.length != -1) return true;
+			current = null;
+			done = true;
+			if (failure != null) throw new IOException(failure.getMessage(), failure);
+			return false;
+		}
+
+		public int read() throws IOException {
+			if ((current == null || position == current.length) && fill() == false) return -1;
+			return current.bytes[position++] & 0xFF;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			if ((current == null || position == current.length) && fill() == false) return -1;
+			int n = Math.min(len, current.length - position);
+			System.arraycopy(current.bytes, position, b, off, n);
+			position+= n;
+			return n;
+		}
+
+		public int available() {
+			return current == null ? 0 : current.length - position;
+		}
+
+		/**Stops the thread and waits for it to close the source, at most the one read in progress.*/
+		public void close() throws IOException {
+			if (closed) return;
+			closed = true;
+			queue.clear();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("ERROR: interrupted while closing.", e);
+			}
+		}
+	}
+
+	/**Hands full buffers to a daemon thread that writes them to the target. Write errors are rethrown on a later write or on close,
+	 * which waits for the thread to finish the file.*/
+	static class WriteBehindOutputStream extends OutputStream implements Runnable {
+		private OutputStream target;
+		private ArrayBlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(QUEUE_SIZE);
+		private Thread thread;
+		private volatile IOException failure = null;
+		private byte[] buffer = new byte[BUFFER_SIZE];
+		private int filled = 0;
+		private boolean closed = false;
+
+		WriteBehindOutputStream(OutputStream target, String name) {
+			this.target = target;
+			thread = new Thread(this, "FileStreams-writeBehind-"+name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					Chunk chunk = queue.take();
+					if (chunk.length == -1) break;
+					//keep draining after a failure so the writer never blocks
+					if (failure == null) target.write(chunk.bytes, 0, chunk.length);
+				}
+				if (failure == null) target.close();
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				failure = e;
+				//drain so close() isn't blocked
+				try {
+					while (queue.take().length != -1);
+				} catch (InterruptedException ie) {
+					//abandoned
+				}
+			}
+		}
+
+		private void checkFailure() throws IOException {
+			if (failure != null) throw new IOException(failure.getMessage(), failure);
+		}
+
+		/*Passes the filled part of the buffer to the thread.*/
+		private void handOff() throws IOException {
+			if (filled == 0) return;
+			put(new Chunk(buffer, filled));
+			buffer = new byte[BUFFER_SIZE];
+			filled = 0;
+		}
+
+		private void put(Chunk chunk) throws IOException {
+			try {
+				queue.put(chunk);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("ERROR: interrupted while writing.", e);
+			}
+		}
+
+		public void write(int b) throws IOException {
+			if (filled == buffer.length) handOff();
+			buffer[filled++] = (byte)b;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closed) throw new IOException("ERROR: stream closed.");
+			checkFailure();
+			while (len > 0) {
+				if (filled == buffer.length) handOff();
+				int n = Math.min(len, buffer.length - filled);
+				System.arraycopy(b, off, buffer, filled, n);
+				filled+= n;
+				off+= n;
+				len-= n;
+			}
+		}
+
+		/**Passes the buffered bytes to the thread, it doesn't wait for them to be written.*/
+		public void flush() throws IOException {
+			checkFailure();
+			handOff();
+		}
+
+		public void close() throws IOException {
+			if (closed) return;
+			closed = true;
+			handOff();
+			put(new Chunk(null, -1));
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("ERROR: interrupted while finishing the file.", e);
+			}
+			if (failure != null) {
+				try {
+					target.close();
+				} catch (IOException e) {
+					//already failed
+				}
+				checkFailure();
+			}
+		}
+	}
+}
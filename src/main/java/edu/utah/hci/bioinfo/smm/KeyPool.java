@@ -0,0 +1,78 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**Deduplicating pool for repeated key values, e.g. common last and first names, so the subjects holding them share one String.
+ * Once full, new values are returned as is. Thread safe, the loader's parsing threads share one.
+ * DoB keys don't need a pool, all of the valid dates are few enough to cache once, see fetchDobKey().*/
+public class KeyPool {
+
+	public static final int DEFAULT_MAX_SIZE = 1 << 16;
+	private static final int FIRST_YEAR = 1900;
+	private static final int LAST_YEAR = 2050;
+	//m/d/y keys indexed by year, month, day, filled as used. Strings are immutable so a racy fill just makes an equal String.
+	private static final String[] DOB_KEYS = new String[(LAST_YEAR - FIRST_YEAR + 1)* 12* 31];
+
+	private ConcurrentHashMap<String, String> pool = new ConcurrentHashMap<String, String>();
+	private int maxSize;
+	private AtomicLong numberShared = new AtomicLong();
+	private AtomicLong bytesShared = new AtomicLong();
+
+	public KeyPool() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**@param maxSize distinct values held, bounds the pool for long running servers.*/
+	public KeyPool(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**Returns the pooled String equal to s, adding s if it's new and the pool isn't full.*/
+	public String share(String s) {
+		if (s.length() == 0) return "";
+		String pooled = pool.get(s);
+		if (pooled == null) {
+			if (pool.size() >= maxSize) return s;
+			pooled = pool.putIfAbsent(s, s);
+			if (pooled == null) return s;
+		}
+		if (pooled != s) {
+			numberShared.incrementAndGet();
+			bytesShared.addAndGet(estimateBytes(s));
+		}
+		return pooled;
+	}
+
+	/**Returns the m/d/y comparison key, e.g. 11/20/1942, or "" if any part is missing (-1). Each date is built once.*/
+	public static String fetchDobKey(int month, int day, int year) {
+		if (month == -1 || day == -1 || year == -1) return "";
+		if (year < FIRST_YEAR || year > LAST_YEAR || month < 1 || month > 12 || day < 1 || day > 31) return month+"/"+day+"/"+year;
+		int index = ((year - FIRST_YEAR)* 12 + month - 1)* 31 + day - 1;
+		String key = DOB_KEYS[index];
+		if (key == null) {
+			key = month+"/"+day+"/"+year;
+			DOB_KEYS[index] = key;
+		}
+		return key;
+	}
+
+	/**Approximate heap of a Latin-1 String with compressed oops: its 24 byte object plus a 16 byte array header and the chars, 8 byte aligned.*/
+	static long estimateBytes(String s) {
+		return 24 + ((16 + s.length() + 7) & ~7);
+	}
+
+	/**Number of values returned from the pool in place of an equal String.*/
+	public long getNumberShared() {
+		return numberShared.get();
+	}
+
+	/**Estimated heap of the duplicate Strings replaced by pooled ones, freed once nothing else refers to them.*/
+	public long getBytesShared() {
+		return bytesShared.get();
+	}
+
+	public int size() {
+		return pool.size();
+	}
+}
@@ -0,0 +1,91 @@
+package edu.utah.hci.bioinfo.smm;
+
+import org.json.JSONObject;
+
+/**Fixed memory log linear histogram of nanosecond latencies in the style of HdrHistogram. Values below 128 have their own bucket,
+ * larger ones share a bucket with those having the same top 7 bits, so percentiles are within 1/64 (1.6%) of the recorded value.
+ * The count, mean, and max are exact. Not thread safe.*/
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+	//128 exact buckets then 64 per power of two up to Long.MAX_VALUE
+	private long[] counts = new long[SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS + 1)* HALF_COUNT];
+	private long count = 0;
+	private long max = 0;
+	private double sum = 0;
+
+	/**Adds a latency, negative values are counted as 0.*/
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		counts[bucketIndex(nanos)]++;
+		count++;
+		sum+= nanos;
+		if (nanos > max) max = nanos;
+	}
+
+	/**Adds the other's counts to this.*/
+	public void add(LatencyHistogram other) {
+		for (int i=0; i< counts.length; i++) counts[i]+= other.counts[i];
+		count+= other.count;
+		sum+= other.sum;
+		if (other.max > max) max = other.max;
+	}
+
+	/**Largest value in the bucket holding the percentile'th value, capped at the max, 0 if empty. @param percentile 0-100*/
+	public long getValueAtPercentile(double percentile) {
+		if (count == 0) return 0;
+		long rank = Math.max(1, (long)Math.ceil(Math.min(100, percentile) / 100.0 * count));
+		long seen = 0;
+		for (int i=0; i< counts.length; i++) {
+			seen+= counts[i];
+			if (seen >= rank) return Math.min(max, highestValue(i));
+		}
+		return max;
+	}
+
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKET_COUNT) return (int)value;
+		//shift so the top bits land in [64, 128)
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+		return SUB_BUCKET_COUNT + (shift - 1)* HALF_COUNT + (int)(value >>> shift) - HALF_COUNT;
+	}
+
+	static long highestValue(int index) {
+		if (index < SUB_BUCKET_COUNT) return index;
+		int shift = (index - SUB_BUCKET_COUNT)/ HALF_COUNT + 1;
+		long sub = (index - SUB_BUCKET_COUNT)% HALF_COUNT + HALF_COUNT;
+		long high = ((sub + 1) << shift) - 1;
+		return high < 0 ? Long.MAX_VALUE : high;
+	}
+
+	/**The count, mean, p50, p90, p99, and max in milliseconds.*/
+	public JSONObject toJson() {
+		JSONObject jo = new JSONObject();
+		jo.put("count", count);
+		jo.put("meanMs", toMillis(getMean()));
+		jo.put("p50Ms", toMillis(getValueAtPercentile(50)));
+		jo.put("p90Ms", toMillis(getValueAtPercentile(90)));
+		jo.put("p99Ms", toMillis(getValueAtPercentile(99)));
+		jo.put("maxMs", toMillis(max));
+		return jo;
+	}
+
+	static double toMillis(double nanos) {
+		return Math.round(nanos / 1000.0) / 1000.0;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return count == 0 ? 0 : sum / count;
+	}
+}
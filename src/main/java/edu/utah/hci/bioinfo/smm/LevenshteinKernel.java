@@ -0,0 +1,116 @@
+package edu.utah.hci.bioinfo.smm;
+
+/**Levenshtein distances that return the same values as commons-text's LevenshteinDistance, unthresholded and thresholded, without allocating.
+ * The pattern, the left side, is copied into reusable arrays along with the text, Strings and CharSlices straight from their backing arrays.
+ * Patterns of up to 64 Latin-1 chars use the bit parallel algorithm of Myers as formulated by Hyyro, each text char updates one machine word,
+ * longer or wider ones a two row dynamic program. The last String pattern is kept, so scoring one query key against many registry keys
+ * only sets it up once. Not thread safe, use one per thread.*/
+public final class LevenshteinKernel {
+
+	private static final int MAX_BIT_PARALLEL_LENGTH = 64;
+
+	private char[] pattern = new char[MAX_BIT_PARALLEL_LENGTH];
+	private int patternLength = 0;
+	private String lastPattern = null;
+	//bit masks of the positions of each Latin-1 char in the pattern
+	private long[] peq = new long[256];
+	private boolean bitParallel = true;
+	private char[] text = new char[MAX_BIT_PARALLEL_LENGTH];
+	private int[] prior = new int[MAX_BIT_PARALLEL_LENGTH+1];
+	private int[] current = new int[MAX_BIT_PARALLEL_LENGTH+1];
+
+	/**Same as LevenshteinDistance.getDefaultInstance().apply(left, right).*/
+	public int apply(CharSequence left, CharSequence right) {
+		return apply(left, right, Integer.MAX_VALUE);
+	}
+
+	/**Same as new LevenshteinDistance(threshold).apply(left, right), the distance or -1 if it's greater than the threshold.*/
+	public int apply(CharSequence left, CharSequence right, int threshold) {
+		if (left instanceof String == false || left != lastPattern) setPattern(left);
+		return distance(right, threshold);
+	}
+
+	/**Sets the left side for the following distance() calls.*/
+	public void setPattern(CharSequence left) {
+		for (int i=0; i< patternLength; i++) if (pattern[i] < peq.length) peq[pattern[i]] = 0;
+		patternLength = left.length();
+		if (patternLength > pattern.length) pattern = new char[patternLength];
+		copy(left, pattern);
+		lastPattern = left instanceof String ? (String)left : null;
+		bitParallel = patternLength <= MAX_BIT_PARALLEL_LENGTH;
+		for (int i=0; i< patternLength && bitParallel; i++) if (pattern[i] >= peq.length) bitParallel = false;
+		if (bitParallel) for (int i=0; i< patternLength; i++) peq[pattern[i]] |= 1L << i;
+	}
+
+	/**Distance from the pattern to the right side, -1 if it's greater than the threshold.*/
+	public int distance(CharSequence right, int threshold) {
+		int n = patternLength;
+		int m = right.length();
+		if (Math.abs(n - m) > threshold) return -1;
+		if (n == 0) return m;
+		if (m == 0) return n;
+		if (m > text.length) text = new char[Math.max(m, 2 * text.length)];
+		copy(right, text);
+		int d = bitParallel ? bitParallel(m, threshold) : dynamic(m, threshold);
+		return d > threshold ? -1 : d;
+	}
+
+	/*Myers/Hyyro, bit i of the vertical deltas is pattern row i, the last row's running score is the distance.
+	 * The score drops at most one per remaining text char, so it stops once that can't bring it back within the threshold.*/
+	private int bitParallel(int m, int threshold) {
+		long last = 1L << (patternLength-1);
+		long pv = -1L;
+		long mv = 0;
+		int score = patternLength;
+		char[] t = text;
+		long[] eqs = peq;
+		for (int j=0; j< m; j++) {
+			char c = t[j];
+			long eq = c < eqs.length ? eqs[c] : 0;
+			long xv = eq | mv;
+			long xh = (((eq & pv) + pv) ^ pv) | eq;
+			long ph = mv | ~(xh | pv);
+			long mh = pv & xh;
+			if ((ph & last) != 0) score++;
+			else if ((mh & last) != 0) score--;
+			if (score - (m - 1 - j) > threshold) return threshold + 1;
+			ph = (ph << 1) | 1L;
+			mh = mh << 1;
+			pv = mh | ~(xv | ph);
+			mv = ph & xv;
+		}
+		return score;
+	}
+
+	/*Two row dynamic program over the text, stops once a whole row is over the threshold as rows never decrease.*/
+	private int dynamic(int m, int threshold) {
+		if (prior.length < m+1) {
+			prior = new int[m+1];
+			current = new int[m+1];
+		}
+		int[] p = prior;
+		int[] c = current;
+		for (int j=0; j<= m; j++) p[j] = j;
+		for (int i=1; i<= patternLength; i++) {
+			char pc = pattern[i-1];
+			c[0] = i;
+			int rowMin = i;
+			for (int j=1; j<= m; j++) {
+				int cost = pc == text[j-1] ? 0 : 1;
+				c[j] = Math.min(Math.min(c[j-1], p[j]) + 1, p[j-1] + cost);
+				if (c[j] < rowMin) rowMin = c[j];
+			}
+			if (rowMin > threshold) return threshold + 1;
+			int[] swap = p;
+			p = c;
+			c = swap;
+		}
+		return p[m];
+	}
+
+	private static void copy(CharSequence s, char[] dest) {
+		if (s instanceof String) ((String)s).getChars(0, s.length(), dest, 0);
+		else if (s instanceof CharSlice) ((CharSlice)s).getChars(dest);
+		else for (int i=0; i< s.length(); i++) dest[i] = s.charAt(i);
+	}
+}
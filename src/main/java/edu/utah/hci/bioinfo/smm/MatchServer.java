@@ -0,0 +1,216 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import org.json.JSONObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**Long running match server that holds the registry in memory so each request skips the load, see -d.
+ * POST tab delimited query lines, same format as the -q file, to /match and the json report written by printJson is returned for them.
+ * GET /status returns the registry size and number of requests served, GET /metrics the RunMetrics of the requests so far
+ * and GET /diagnostics their query latencies and slowest queries. Only binds to the loopback interface, requests and reports contain PHI.
+ * Registry writes are serialized in process, requests that can change the registry (-a -u) are run one at a time.
+ * Read only requests are scored in parallel and only their reporting is serialized since the materialized registry Subjects are shared.*/
+public class MatchServer {
+
+	private SubjectMatchMaker smm = null;
+	private HttpServer server = null;
+	private ExecutorService requestExecutor = null;
+	private ExecutorService matcherExecutor = null;
+	private ReentrantLock registryLock = new ReentrantLock();
+	private AtomicLong numberRequests = new AtomicLong();
+	private Thread shutdownHook = null;
+	private boolean stopped = false;
+
+	/**@param port the localhost port to listen on, 0 to pick a free one.*/
+	public MatchServer(SubjectMatchMaker smm, int port, int numberThreads) throws IOException {
+		this.smm = smm;
+		int n = Math.max(1, numberThreads);
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/match", new MatchHandler());
+		server.createContext("/status", new StatusHandler());
+		server.createContext("/metrics", new MetricsHandler());
+		server.createContext("/diagnostics", new DiagnosticsHandler());
+		requestExecutor = Executors.newFixedThreadPool(n);
+		matcherExecutor = smm.fetchWorkerExecutor();
+		server.setExecutor(requestExecutor);
+	}
+
+	public void start() {
+		server.start();
+		shutdownHook = new Thread() {
+			public void run() {
+				shutDown();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**Stops the server, waiting for any registry write to finish, and releases the registry lock.*/
+	public void stop() {
+		shutDown();
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			//already shutting down
+		}
+	}
+
+	private synchronized void shutDown() {
+		if (stopped) return;
+		stopped = true;
+		server.stop(0);
+		registryLock.lock();
+		try {
+			requestExecutor.shutdownNow();
+			matcherExecutor.shutdownNow();
+			smm.releaseLock();
+		} finally {
+			registryLock.unlock();
+		}
+	}
+
+	/**Scores the queries against the registry and returns the json report.*/
+	JSONObject match(Subject[] queries) throws Exception {
+		boolean writes = smm.isRegistryWritable();
+		if (writes) registryLock.lock();
+		try {
+			RunMetrics metrics = smm.getRunMetrics();
+			RunMetrics.Timer timer = metrics.start("matchExactKeys");
+			ExactKeyIndex.Matches exact = smm.matchExactKeys(queries);
+			timer.stop();
+			timer = metrics.start("matchQueries");
+			MatcherEngine[] matchers = smm.createMatchers(exact.getRemaining());
+			new MatcherRunner(matcherExecutor, smm.getMatchTimeoutMillis(), 0).run(matchers);
+			metrics.addWorkers("matchQueries", matchers);
+			timer.stop();
+			long comparisons = 0;
+			long pruned = 0;
+			for (MatcherEngine m: matchers) {
+				comparisons+= m.getNumberComparisons();
+				pruned+= m.getNumberPruned();
+			}
+			metrics.addToCounter("queries", queries.length);
+			metrics.addToCounter("exactKeyMatches", exact.getNumberResolved());
+			metrics.addToCounter("queriesScanned", exact.getRemaining().length);
+			metrics.addToCounter("comparisons", comparisons);
+			metrics.addToCounter("pruned", pruned);
+
+			registryLock.lock();
+			try {
+				timer = metrics.start("reportMatches");
+				JSONObject report = smm.reportMatches(queries, exact, matchers);
+				timer.stop();
+				metrics.addQueries(exact.getRemaining(), matchers);
+				//the report is built, drop the materialized registry Subjects so they don't pile up over the server's life
+				smm.getRegistry().releaseSubjects();
+				return report;
+			} finally {
+				registryLock.unlock();
+			}
+		} finally {
+			if (writes) registryLock.unlock();
+		}
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public long getNumberRequests() {
+		return numberRequests.get();
+	}
+
+	private class MatchHandler implements HttpHandler {
+		public void handle(HttpExchange ex) throws IOException {
+			try {
+				if (ex.getRequestMethod().equals("POST") == false) {
+					sendError(ex, 405, "POST tab delimited queries to /match");
+					return;
+				}
+				Subject[] queries = null;
+				ArrayList<String> coreIds = new ArrayList<String>();
+				try {
+					BufferedReader in = new BufferedReader(new InputStreamReader(ex.getRequestBody(), StandardCharsets.UTF_8));
+					queries = smm.parseSubjects(in, true, coreIds, 0, Integer.MAX_VALUE);
+				} catch (Exception e) {
+					sendError(ex, 400, e.getMessage());
+					return;
+				}
+				if (coreIds.size() != 0) sendError(ex, 400, "ERROR: coreId lookups aren't supported by the server, found "+coreIds.get(0));
+				else if (queries.length == 0) sendError(ex, 400, "ERROR: no queries found in the request.");
+				else {
+					JSONObject report = match(queries);
+					numberRequests.incrementAndGet();
+					send(ex, 200, report);
+				}
+			} catch (Exception e) {
+				Util.el("\nERROR matching a server request.");
+				e.printStackTrace();
+				sendError(ex, 500, e.getMessage());
+			} finally {
+				ex.close();
+			}
+		}
+	}
+
+	private class StatusHandler implements HttpHandler {
+		public void handle(HttpExchange ex) throws IOException {
+			try {
+				JSONObject status = new JSONObject();
+				status.put("registrySize", smm.getRegistry().size());
+				status.put("requests", numberRequests.get());
+				send(ex, 200, status);
+			} finally {
+				ex.close();
+			}
+		}
+	}
+
+	private class MetricsHandler implements HttpHandler {
+		public void handle(HttpExchange ex) throws IOException {
+			try {
+				send(ex, 200, smm.getRunMetrics().toJson());
+			} finally {
+				ex.close();
+			}
+		}
+	}
+
+	private class DiagnosticsHandler implements HttpHandler {
+		public void handle(HttpExchange ex) throws IOException {
+			try {
+				send(ex, 200, smm.getRunMetrics().fetchDiagnosticsJson());
+			} finally {
+				ex.close();
+			}
+		}
+	}
+
+	private static void sendError(HttpExchange ex, int code, String message) throws IOException {
+		JSONObject error = new JSONObject();
+		error.put("error", message == null ? "unknown" : message.trim());
+		send(ex, code, error);
+	}
+
+	private static void send(HttpExchange ex, int code, JSONObject json) throws IOException {
+		byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+		ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		ex.sendResponseHeaders(code, body.length);
+		OutputStream out = ex.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+}
@@ -1,91 +1,271 @@
 package edu.utah.hci.bioinfo.smm;
 
-import java.util.Arrays;
-import java.util.Random;
-import org.apache.commons.text.similarity.LevenshteinDistance;
+import java.util.concurrent.CancellationException;
 
 
 public class MatcherEngine implements Runnable {
 
-	private LevenshteinDistance ld = LevenshteinDistance.getDefaultInstance();
+	//one per key so each keeps its query pattern, with reused per key scores, this engine's thread only
+	private LevenshteinKernel[] kernels = new LevenshteinKernel[0];
+	private double[] keyScores = new double[0];
+	//max edits at and above which the unthresholded distance is used, as before with the commons-text instances
+	private static final int MAX_THRESHOLD = 64;
+	//gender, mrn, dob, then the expensive name key
+	private static final int[] KEY_SCORING_ORDER = {2, 3, 1, 0};
+	//slack so differences in the summing order can't prune a candidate that ties the bound
+	private static final double BOUND_SLACK = 0.000000001;
 	private boolean failed = false;
-	// These subjects are only only present in this thread
-	private Subject[] subjectChunk = null;
+	// Registry subjects from startIndex to stopIndex-1 are only scored in this thread
+	private RegistryStore registry = null;
+	private RegistryStore.ComparisonKeys registryKeys = null;
+	private int startIndex = 0;
+	private int stopIndex = 0;
+	private BlockingIndex blockingIndex = null;
 	private Subject[] querySubjects = null;
 	private double missingOneKeyPenalty = 0;
 	private double missingAdditionalKeyPenalty = 0;
 	private int numMatchesToReturn = 0;
+	private long numberBlockedQueries = 0;
+	//read by the progress monitor while running
+	private volatile long numberComparisons = 0;
+	private volatile int numberQueriesDone = 0;
+	private volatile long startTime = 0;
+	private volatile long stopTime = 0;
+	private volatile boolean cancelled = false;
+	private long numberPruned = 0;
+	//most rows scored or pruned for one query, and the thread, its cpu time, and allocation for the run metrics, -1 if not supported
+	private long maxCandidates = 0;
+	private String threadName = null;
+	private long cpuNanos = -1;
+	private long allocatedBytes = -1;
+	private TopHits topHits = null;
+	//null to score every row with the scalar path
+	private BatchScorer batchScorer = null;
+	//per query results for queries queryStart on, only written by this thread, merged once all are done
+	private int queryStart = 0;
+	private int[][] topIndexes = null;
+	private double[][] topScores = null;
+	//per query time, rows considered, and rows pruned in this matcher's range, for the latency histograms and slow query capture
+	private long[] queryNanos = null;
+	private int[] queryCandidates = null;
+	private int[] queryPruned = null;
 	
 	
+	/**Scores the queries against the registry subjects from startIndex to stopIndex-1.*/
+	public MatcherEngine(RegistryStore registry, int startIndex, int stopIndex, SubjectMatchMaker pm) {
+		this(registry, startIndex, stopIndex, pm.getQuerySubjects(), pm.getBlockingIndex(), pm.getMissingOneKeyPenalty(), 
+				pm.getMissingAdditionalKeyPenalty(), pm.getNumberTopMatchesToReturn());
+	}
 	
-	public MatcherEngine(Subject[] subjectChunk, SubjectMatchMaker pm) {
-		this.subjectChunk = subjectChunk;
-		querySubjects = pm.getQuerySubjects();
-		missingOneKeyPenalty = pm.getMissingOneKeyPenalty();
-		missingAdditionalKeyPenalty = pm.getMissingAdditionalKeyPenalty();
-		numMatchesToReturn = pm.getNumberTopMatchesToReturn();
-		
+	/**@param blockingIndex null to score every registry subject in the range.*/
+	public MatcherEngine(RegistryStore registry, int startIndex, int stopIndex, Subject[] querySubjects, BlockingIndex blockingIndex, 
+			double missingOneKeyPenalty, double missingAdditionalKeyPenalty, int numMatchesToReturn) {
+		this.registry = registry;
+		registryKeys = registry.createComparisonKeys();
+		this.startIndex = startIndex;
+		this.stopIndex = stopIndex;
+		this.querySubjects = querySubjects;
+		this.blockingIndex = blockingIndex;
+		this.missingOneKeyPenalty = missingOneKeyPenalty;
+		this.missingAdditionalKeyPenalty = missingAdditionalKeyPenalty;
+		this.numMatchesToReturn = numMatchesToReturn;
+		topHits = new TopHits(numMatchesToReturn);
+		batchScorer = new BatchScorer(registry, missingOneKeyPenalty, missingAdditionalKeyPenalty);
+	}
+
+	/**Skip the registry rows whose columnar lower bound can't make the top hits, the default, or score them all with the scalar path.
+	 * Both give the same top hits.*/
+	public void setBatchScoring(boolean batchScoring) {
+		batchScorer = batchScoring ? new BatchScorer(registry, missingOneKeyPenalty, missingAdditionalKeyPenalty) : null;
 	}
 
 	
 	public void run() {	
 		try {
-			//create a random set of index positions
-			int[] indexes = new int[querySubjects.length];
-			for (int i=0; i< indexes.length; i++) indexes[i] = i;
-			randomize(indexes, new Random());
-			
-			//for each subject, find the top hits from the threads chunk of db subjects
-			for (int i=0; i< indexes.length; i++) {
-				Subject query = querySubjects[indexes[i]];
-				findTopMatches(query);
-			}
-			
+			matchQueries(0, querySubjects.length);
+		} catch (CancellationException e) {
+			failed = true;
 		} catch (Exception e) {
 			failed = true;
 			System.err.println("Error: problem matching subjects" );
 			e.printStackTrace();
 		}
 	}
-	
-	/**For multiple iterations.*/
-	public static void randomize (int[] array, Random rng){     
-	    // n is the number of items left to shuffle
-	    for (int n = array.length; n > 1; n--) {
-	        // Pick a random element to move to the end
-	        int k = rng.nextInt(n);  // 0 <= k <= n - 1.
-	        // Simple swap of variables
-	        int tmp = array[k];
-	        array[k] = array[n - 1];
-	        array[n - 1] = tmp;
-	    }
+
+	/**Merges the per query top hits from each of the finished matchers into the global top hits and sets them in the queries.
+	 * Each matcher's hits are sorted, so this is a k-way merge, ties go to the smaller registry index just as with a single matcher.
+	 * The hit Subjects are materialized from the registry here, only these are created.*/
+	public static void setTopMatches(MatcherEngine[] matchers, RegistryStore registry, Subject[] querySubjects, int numMatchesToReturn) {
+		int[][] indexes = new int[matchers.length][];
+		double[][] scores = new double[matchers.length][];
+		for (int q=0; q< querySubjects.length; q++) {
+			for (int m=0; m< matchers.length; m++) {
+				indexes[m] = matchers[m].topIndexes[q];
+				scores[m] = matchers[m].topScores[q];
+			}
+			TopHits merged = TopHits.merge(indexes, scores, numMatchesToReturn);
+			int[] mergedIndexes = merged.fetchSortedIndexes();
+			Subject[] hits = new Subject[mergedIndexes.length];
+			for (int i=0; i<hits.length; i++) hits[i] = registry.fetchSubject(mergedIndexes[i]);
+			querySubjects[q].setTopCandidates(hits, merged.fetchSortedScores());
+		}
 	}
 
 
-	/*Find top matches*/
-	private void findTopMatches(Subject query) {
+	/**Finds the top hits for the queries from queryStart to queryStop-1 in this matcher's registry range, see getTopIndexes() and getTopScores().*/
+	void matchQueries(int queryStart, int queryStop) {
+		this.queryStart = queryStart;
+		topIndexes = new int[queryStop - queryStart][];
+		topScores = new double[queryStop - queryStart][];
+		queryNanos = new long[queryStop - queryStart];
+		queryCandidates = new int[queryStop - queryStart];
+		queryPruned = new int[queryStop - queryStart];
+		startTime = System.nanoTime();
+		threadName = Thread.currentThread().getName();
+		long cpuStart = RunMetrics.fetchThreadCpuNanos();
+		long allocatedStart = RunMetrics.fetchThreadAllocatedBytes();
 		
-		//set the match score for every query:registry comparison
+		//for each subject, find the top hits from the threads chunk of db subjects, stop early if cancelled
+		try {
+			for (int i=queryStart; i< queryStop; i++) {
+				if (cancelled) throw new CancellationException("Matcher cancelled");
+				long queryStartTime = System.nanoTime();
+				long comparisons = numberComparisons;
+				long pruned = numberPruned;
+				findTopMatches(i);
+				queryNanos[i - queryStart] = System.nanoTime() - queryStartTime;
+				queryCandidates[i - queryStart] = (int)(numberComparisons - comparisons);
+				queryPruned[i - queryStart] = (int)(numberPruned - pruned);
+				numberQueriesDone++;
+			}
+		} finally {
+			stopTime = System.nanoTime();
+			if (cpuStart != -1) cpuNanos = RunMetrics.fetchThreadCpuNanos() - cpuStart;
+			if (allocatedStart != -1) allocatedBytes = RunMetrics.fetchThreadAllocatedBytes() - allocatedStart;
+		}
+	}
+
+	/**Asks a running matcher to stop before its next query, it then throws a CancellationException.*/
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/*Find top matches*/
+	private void findTopMatches(int queryIndex) {
+		Subject query = querySubjects[queryIndex];
 		String[] queryKeys = query.getComparisonKeys();
-		for (Subject c: subjectChunk) {
-			double score = scoreKeysLD(queryKeys, c.getComparisonKeys());
-			c.setScore(score);
+		topHits.clear();
+		
+		//just score the registry subjects sharing a bucket with the query? Too few in the whole registry to fill the top hits? then fall back to the full chunk.
+		int[] candidates = null;
+		if (blockingIndex != null) {
+			candidates = blockingIndex.fetchCandidates(query, startIndex, stopIndex);
+			if (candidates.length < numMatchesToReturn && isTooFewCandidates(query, candidates.length)) candidates = null;
+		}
+		if (candidates != null) {
+			numberComparisons+= candidates.length;
+			if (candidates.length > maxCandidates) maxCandidates = candidates.length;
+			numberBlockedQueries++;
+			scoreRows(query, queryKeys, candidates, 0, candidates.length);
 		}
-		//sort smallest to largest
-		Arrays.sort(subjectChunk);
 		
-		//add top hits to the query subject in a thread safe manner
-		Subject[] topHits = new Subject[numMatchesToReturn];
-		for (int i=0; i<topHits.length; i++)topHits[i] = subjectChunk[i];
-		query.addTopCandidates(topHits);
+		//score every query:registry comparison in the chunk
+		else {
+			numberComparisons+= stopIndex - startIndex;
+			if (stopIndex - startIndex > maxCandidates) maxCandidates = stopIndex - startIndex;
+			scoreRows(query, queryKeys, null, startIndex, stopIndex);
+		}
 		
+		//save the hits for the merge
+		topIndexes[queryIndex - queryStart] = topHits.fetchSortedIndexes();
+		topScores[queryIndex - queryStart] = topHits.fetchSortedScores();
+	}
+
+	/*True if the query has fewer than numMatchesToReturn candidates in the whole registry. Decided over the whole registry, not this matcher's range,
+	 * so every chunk or tile falls back to a full scan together and the top hits don't depend on how the registry was split, see -g and -t.
+	 * Only called once the range has too few, the whole registry is then looked up unless the range is all of it.*/
+	private boolean isTooFewCandidates(Subject query, int numberInRange) {
+		if (startIndex == 0 && stopIndex >= registry.size()) return numberInRange < numMatchesToReturn;
+		return blockingIndex.fetchCandidates(query, 0, registry.size()).length < numMatchesToReturn;
 	}
 
+	/*Scores rows[from] to rows[to-1], or registry rows from to to-1 if rows is null. With the batch scorer, a block at a time, 
+	 * rows whose lower bound is over the worst of the top hits are counted as pruned without scoring them, the scalar path would prune them too.*/
+	private void scoreRows(Subject query, String[] queryKeys, int[] rows, int from, int to) {
+		if (batchScorer == null || batchScorer.setQuery(query, queryKeys) == false) {
+			for (int i=from; i< to; i++) scoreCandidate(queryKeys, rows == null ? i : rows[i]);
+			return;
+		}
+		double[] lowerBounds = batchScorer.getLowerBounds();
+		for (int blockStart=from; blockStart< to; blockStart+= BatchScorer.BLOCK_SIZE) {
+			int blockStop = Math.min(to, blockStart + BatchScorer.BLOCK_SIZE);
+			batchScorer.fillLowerBounds(rows, blockStart, blockStop);
+			for (int i=blockStart; i< blockStop; i++) {
+				if (lowerBounds[i - blockStart] > topHits.getWorstScore() + 2* BOUND_SLACK) numberPruned++;
+				else scoreCandidate(queryKeys, rows == null ? i : rows[i]);
+			}
+		}
+	}
+
+	/*Scores the candidate against the worst of the top hits seen so far, adding it if better. Counts those pruned early.*/
+	private void scoreCandidate(String[] queryKeys, int registryIndex) {
+		CharSequence[] dbKeys = registry.loadComparisonKeys(registryIndex, registryKeys);
+		double score = scoreKeysLD(queryKeys, dbKeys, topHits.getWorstScore());
+		if (score == Double.POSITIVE_INFINITY) numberPruned++;
+		else topHits.add(registryIndex, score);
+	}
+
+	/**Score keys using thresholded Levenshtein Distance, returns POSITIVE_INFINITY as soon as the score can no longer be <= maxScore.
+	 * Keys are compared cheapest and most selective first (gender, mrn, dob, name), with the missing key penalties added as they are found.
+	 * Scores that are returned are identical to scoreKeysLD(query, db). Both reuse this engine's distance kernels, call them from one thread.*/
+	public double scoreKeysLD(CharSequence[] query, CharSequence[] db, double maxScore) {
+		//pruning needs the partial score to only grow
+		if (maxScore == Double.POSITIVE_INFINITY || query.length != KEY_SCORING_ORDER.length || missingOneKeyPenalty < 0 || missingAdditionalKeyPenalty < 0) return scoreKeysLD(query, db);
+		double bound = maxScore + BOUND_SLACK;
+		LevenshteinKernel[] kernels = fetchKernels(query.length);
+		double[] keyScores = this.keyScores;
+		double partial = 0;
+		int numMissing = 0;
+		for (int i: KEY_SCORING_ORDER) {
+			//missing?
+			if (query[i].length() == 0 || db[i].length() == 0) {
+				keyScores[i] = -1;
+				numMissing++;
+				if (numMissing == 1) partial+= missingOneKeyPenalty;
+				else partial+= missingAdditionalKeyPenalty;
+			}
+			else {
+				//max edits that keep the partial score within bound
+				double length = query[i].length();
+				double maxEdits = Math.floor((bound - partial) * length);
+				if (maxEdits < 0) return Double.POSITIVE_INFINITY;
+				double edits;
+				if (maxEdits >= MAX_THRESHOLD) edits = kernels[i].apply(query[i], db[i]);
+				else {
+					edits = kernels[i].apply(query[i], db[i], (int)maxEdits);
+					if (edits == -1) return Double.POSITIVE_INFINITY;
+				}
+				keyScores[i] = edits/length;
+				partial+= keyScores[i];
+			}
+			if (partial > bound) return Double.POSITIVE_INFINITY;
+		}
+		
+		//sum in the key order used by scoreKeysLD
+		double sum = 0;
+		for (int i=0; i< query.length; i++) if (keyScores[i] != -1) sum+= keyScores[i];
+		if (numMissing !=0) {
+			if (numMissing == 1) sum+= missingOneKeyPenalty;
+			else sum = sum + missingOneKeyPenalty + ((numMissing-1)* missingAdditionalKeyPenalty);
+		}
+		return sum;
+	}
 
 	/**Score keys using Levenshtein Distance
 	 * If more than one key is missing, a value of 1 is added to the return score for each.  If just one, then it is ignored.
 	 * Thus it's ok to be missing one key, but afterward the penalty is severe. */
-	public double scoreKeysLD(String[] query, String[] db) {
+	public double scoreKeysLD(CharSequence[] query, CharSequence[] db) {
+			LevenshteinKernel[] kernels = fetchKernels(query.length);
 
 //IO.pl("\nT: "+Misc.stringArrayToString(query, ",")+"\nD: "+Misc.stringArrayToString(db, ","));
 			//for each key
@@ -99,7 +279,7 @@ public class MatcherEngine implements Runnable {
 //IO.pl("missing");
 				}
 				else {
-					double edits = ld.apply(query[i], db[i]);
+					double edits = kernels[i].apply(query[i], db[i]);
 					double length = query[i].length();
 					double ws = edits/length;
 //IO.pl(edits+"/"+length+"="+ws);
@@ -119,9 +299,104 @@ public class MatcherEngine implements Runnable {
 	}
 
 
+	/*The distance kernels and key score array sized for the number of keys.*/
+	private LevenshteinKernel[] fetchKernels(int numberKeys) {
+		if (kernels.length < numberKeys) {
+			LevenshteinKernel[] k = new LevenshteinKernel[numberKeys];
+			for (int i=0; i< numberKeys; i++) k[i] = i < kernels.length ? kernels[i] : new LevenshteinKernel();
+			kernels = k;
+			keyScores = new double[numberKeys];
+		}
+		return kernels;
+	}
+
 	public boolean isFailed() {
 		return failed;
 	}
+
+	/**Top hit registry indexes for each query matched, sorted best to worst, the first is for queryStart.*/
+	int[][] getTopIndexes() {
+		return topIndexes;
+	}
+
+	/**Top hit scores in the same order as getTopIndexes().*/
+	double[][] getTopScores() {
+		return topScores;
+	}
+
+	/**Time spent on each query matched, in the same order as getTopIndexes().*/
+	long[] getQueryNanos() {
+		return queryNanos;
+	}
+
+	/**Registry rows scored or pruned for each query matched, in the same order as getTopIndexes().*/
+	int[] getQueryCandidates() {
+		return queryCandidates;
+	}
+
+	/**Registry rows pruned for each query matched, in the same order as getTopIndexes().*/
+	int[] getQueryPruned() {
+		return queryPruned;
+	}
+
+	/**Number of queries scored against just their blocking index candidates.*/
+	public long getNumberBlockedQueries() {
+		return numberBlockedQueries;
+	}
+
+	/**Number of comparisons abandoned once they could no longer make the top matches.*/
+	public long getNumberPruned() {
+		return numberPruned;
+	}
+
+	/**Number of query:registry subject comparisons scored.*/
+	public long getNumberComparisons() {
+		return numberComparisons;
+	}
+
+	/**Number of queries finished, safe to call while running.*/
+	public int getNumberQueriesDone() {
+		return numberQueriesDone;
+	}
+
+	/**Number of queries this matcher was given.*/
+	public int getNumberQueries() {
+		return topIndexes == null ? querySubjects.length : topIndexes.length;
+	}
+
+	/**Comparisons scored per second so far, 0 if not started.*/
+	public double getComparisonsPerSecond() {
+		long start = startTime;
+		if (start == 0) return 0;
+		long stop = stopTime == 0 ? System.nanoTime() : stopTime;
+		if (stop <= start) return 0;
+		return numberComparisons / ((stop - start)/ 1000000000.0);
+	}
+
+	/**Most registry rows scored or pruned for one query.*/
+	public long getMaxCandidates() {
+		return maxCandidates;
+	}
+
+	/**Name of the thread that ran matchQueries, null if not run.*/
+	public String getThreadName() {
+		return threadName;
+	}
+
+	/**Time spent in matchQueries, 0 if not run.*/
+	public long getBusyNanos() {
+		return stopTime == 0 ? 0 : stopTime - startTime;
+	}
+
+	/**CPU time of the matching thread in matchQueries, -1 if not run or not supported.*/
+	public long getCpuNanos() {
+		return cpuNanos;
+	}
+
+	/**Bytes allocated by the matching thread in matchQueries, -1 if not run or not supported.*/
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
 	
 	
 	
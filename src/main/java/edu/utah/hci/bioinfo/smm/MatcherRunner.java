@@ -0,0 +1,84 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**Runs MatcherEngines on an executor and waits on their futures, no spinning. The first failed matcher or a passed timeout (-w) cancels the rest
+ * and throws right away rather than after every thread finishes. While waiting, each matcher's progress is printed every progressMillis.*/
+public class MatcherRunner {
+
+	private ExecutorService executor = null;
+	private long timeoutMillis = 0;
+	private long progressMillis = 0;
+
+	/**@param timeoutMillis 0 for no limit. @param progressMillis 0 for no progress reports.*/
+	public MatcherRunner(ExecutorService executor, long timeoutMillis, long progressMillis) {
+		this.executor = executor;
+		this.timeoutMillis = timeoutMillis;
+		this.progressMillis = progressMillis;
+	}
+
+	/**Runs the matchers and returns once all have finished, throws an IOException if any failed, the timeout passed, or the caller was interrupted.
+	 * The matchers still running are cancelled before it throws.*/
+	public void run(MatcherEngine[] matchers) throws IOException {
+		ExecutorCompletionService<MatcherEngine> ecs = new ExecutorCompletionService<MatcherEngine>(executor);
+		ArrayList<Future<MatcherEngine>> futures = new ArrayList<Future<MatcherEngine>>(matchers.length);
+		for (MatcherEngine m: matchers) futures.add(ecs.submit(m, m));
+		long startTime = System.currentTimeMillis();
+		long lastProgress = startTime;
+		int numberDone = 0;
+		try {
+			while (numberDone < matchers.length) {
+				//wait for the next to finish, the progress report, or the timeout, whichever is first
+				long now = System.currentTimeMillis();
+				long wait = Long.MAX_VALUE;
+				if (timeoutMillis > 0) {
+					wait = startTime + timeoutMillis - now;
+					if (wait <= 0) throw new IOException("ERROR: matching didn't finish within the "+ (timeoutMillis/1000)+ " sec timeout, "+numberDone+" of "+matchers.length+" matchers done.");
+				}
+				if (progressMillis > 0) wait = Math.min(wait, lastProgress + progressMillis - now);
+				Future<MatcherEngine> f = ecs.poll(Math.max(1, wait), TimeUnit.MILLISECONDS);
+				if (f == null) {
+					if (progressMillis > 0 && System.currentTimeMillis() - lastProgress >= progressMillis) {
+						printProgress(matchers, startTime);
+						lastProgress = System.currentTimeMillis();
+					}
+					continue;
+				}
+				MatcherEngine m = f.get();
+				if (m.isFailed()) throw new IOException("ERROR: Matcher engine issue! \n");
+				numberDone++;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("ERROR: interrupted while matching.", e);
+		} catch (ExecutionException e) {
+			throw new IOException("ERROR: Matcher engine issue! "+e.getCause(), e.getCause());
+		} finally {
+			if (numberDone < matchers.length) {
+				for (MatcherEngine m: matchers) m.cancel();
+				for (Future<MatcherEngine> f: futures) f.cancel(true);
+			}
+		}
+	}
+
+	private static void printProgress(MatcherEngine[] matchers, long startTime) {
+		StringBuilder sb = new StringBuilder("\t"+ Math.round((System.currentTimeMillis() - startTime)/1000.0)+ " sec, matcher queries done and comparisons/sec:");
+		for (int i=0; i< matchers.length; i++) {
+			sb.append("\n\t\t");
+			sb.append(i);
+			sb.append("\t");
+			sb.append(matchers[i].getNumberQueriesDone());
+			sb.append("/");
+			sb.append(matchers[i].getNumberQueries());
+			sb.append("\t");
+			sb.append(Util.formatNumber(matchers[i].getComparisonsPerSecond(), 0));
+		}
+		Util.pl(sb.toString());
+	}
+}
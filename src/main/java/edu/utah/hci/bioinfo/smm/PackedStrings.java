@@ -0,0 +1,164 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**Append only column of Strings packed end to end in one array with an offset table. Stored as Latin-1 bytes until a wider char is added,
+ * then inflated to chars. Empty Strings take no space beyond their offset.*/
+public class PackedStrings {
+
+	private byte[] bytes = new byte[1024];
+	private char[] chars = null;
+	//offsets[i] is the start of String i, offsets[size] the end of the last
+	private int[] offsets = new int[257];
+	private int size = 0;
+
+	public void add(String s) {
+		int start = offsets[size];
+		int end = start + s.length();
+		if (end < 0) throw new IllegalStateException("PackedStrings overflow, more than "+Integer.MAX_VALUE+" chars.");
+		if (size+2 > offsets.length) offsets = Arrays.copyOf(offsets, grow(offsets.length, size+2));
+		if (chars == null) {
+			for (int i=0; i< s.length(); i++) {
+				if (s.charAt(i) > 0xFF) {
+					inflate();
+					break;
+				}
+			}
+		}
+		if (chars == null) {
+			if (end > bytes.length) bytes = Arrays.copyOf(bytes, grow(bytes.length, end));
+			for (int i=0; i< s.length(); i++) bytes[start+i] = (byte)s.charAt(i);
+		}
+		else {
+			if (end > chars.length) chars = Arrays.copyOf(chars, grow(chars.length, end));
+			s.getChars(0, s.length(), chars, start);
+		}
+		offsets[++size] = end;
+	}
+
+	/**Replaces String index. When the length changes the Strings after it are shifted in one array copy, no Strings are created.*/
+	public void set(int index, String s) {
+		int start = offsets[index];
+		int oldEnd = offsets[index+1];
+		int delta = s.length() - (oldEnd - start);
+		int end = offsets[size];
+		if (end + delta < 0) throw new IllegalStateException("PackedStrings overflow, more than "+Integer.MAX_VALUE+" chars.");
+		if (chars == null) {
+			for (int i=0; i< s.length(); i++) {
+				if (s.charAt(i) > 0xFF) {
+					inflate();
+					break;
+				}
+			}
+		}
+		if (chars == null) {
+			if (end + delta > bytes.length) bytes = Arrays.copyOf(bytes, grow(bytes.length, end + delta));
+			System.arraycopy(bytes, oldEnd, bytes, oldEnd + delta, end - oldEnd);
+			for (int i=0; i< s.length(); i++) bytes[start+i] = (byte)s.charAt(i);
+		}
+		else {
+			if (end + delta > chars.length) chars = Arrays.copyOf(chars, grow(chars.length, end + delta));
+			System.arraycopy(chars, oldEnd, chars, oldEnd + delta, end - oldEnd);
+			s.getChars(0, s.length(), chars, start);
+		}
+		if (delta != 0) for (int i=index+1; i<= size; i++) offsets[i]+= delta;
+	}
+
+	public String get(int index) {
+		int start = offsets[index];
+		int length = offsets[index+1] - start;
+		if (length == 0) return "";
+		if (chars != null) return new String(chars, start, length);
+		return new String(bytes, start, length, java.nio.charset.StandardCharsets.ISO_8859_1);
+	}
+
+	/**Points the slice at String index, no copy is made.*/
+	public CharSlice fetch(int index, CharSlice slice) {
+		int start = offsets[index];
+		if (chars != null) return slice.set(chars, start, offsets[index+1] - start);
+		return slice.set(bytes, start, offsets[index+1] - start);
+	}
+
+	public int length(int index) {
+		return offsets[index+1] - offsets[index];
+	}
+
+	public char charAt(int index, int position) {
+		int i = offsets[index] + position;
+		if (chars != null) return chars[i];
+		return (char)(bytes[i] & 0xFF);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**Same as get(index).hashCode() without creating the String.*/
+	public int hashCode(int index) {
+		int h = 0;
+		for (int i=offsets[index]; i< offsets[index+1]; i++) h = 31*h + (chars != null ? chars[i] : (bytes[i] & 0xFF));
+		return h;
+	}
+
+	/**Releases the unused capacity once loading is complete.*/
+	public void trim() {
+		offsets = Arrays.copyOf(offsets, size+1);
+		if (chars != null) chars = Arrays.copyOf(chars, offsets[size]);
+		else bytes = Arrays.copyOf(bytes, offsets[size]);
+	}
+
+	/**Approximate heap use of the column.*/
+	public long estimateBytes() {
+		long b = 4L * offsets.length;
+		if (chars != null) b+= 2L * chars.length;
+		else b+= bytes.length;
+		return b;
+	}
+
+	/**Bytes taken by write().*/
+	long fetchSnapshotLength() {
+		return 4 + 4L * (size+1) + 4 + (chars != null ? 2L * offsets[size] : offsets[size]);
+	}
+
+	void write(RegistrySnapshot.Output out) throws IOException {
+		out.putInt(size);
+		out.putInts(offsets, size+1);
+		out.putInt(chars != null ? 1 : 0);
+		if (chars != null) out.putChars(chars, offsets[size]);
+		else out.putBytes(bytes, offsets[size]);
+	}
+
+	static PackedStrings read(ByteBuffer in) {
+		PackedStrings p = new PackedStrings();
+		p.size = in.getInt();
+		p.offsets = new int[p.size+1];
+		in.asIntBuffer().get(p.offsets);
+		in.position(in.position()+ 4*p.offsets.length);
+		int length = p.offsets[p.size];
+		if (in.getInt() == 1) {
+			p.bytes = null;
+			p.chars = new char[length];
+			in.asCharBuffer().get(p.chars);
+			in.position(in.position()+ 2*length);
+		}
+		else {
+			p.bytes = new byte[length];
+			in.get(p.bytes);
+		}
+		return p;
+	}
+
+	private void inflate() {
+		chars = new char[bytes.length];
+		int end = offsets[size];
+		for (int i=0; i< end; i++) chars[i] = (char)(bytes[i] & 0xFF);
+		bytes = null;
+	}
+
+	static int grow(int current, int needed) {
+		long n = Math.max((long)needed, current + (current >> 1) + 16L);
+		return (int)Math.min(n, Integer.MAX_VALUE - 8);
+	}
+}
@@ -0,0 +1,321 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**Inverted index from name bigrams to registry rows for fuzzy name lookups. Names, lastName+firstName upper cased, are padded with '#'
+ * on each end and split into bigrams, repeats are numbered so shared bigrams count as a multiset. Each bigram is keyed with the name length
+ * so a lookup only reads the lists for names within d of the query's length. Two names within d edits share at least
+ * max(length)+1-2d bigrams, the count filter, so rows below that are dropped without scoring. Hash collisions only add candidates.
+ * The index over the registry file's rows is saved as nameIndex_PHI.smm next to it, rows added or updated since, e.g. from the journal,
+ * go into a small delta segment rebuilt as they change.*/
+public class QGramIndex {
+
+	public static final String INDEX_NAME = "nameIndex_PHI.smm";
+	private static final long MAGIC = 0x534D4D4E414D4531L; //SMMNAME1
+	private static final int VERSION = 1;
+	private static final int MAX_LENGTH = 255;
+	private static final int GRAM_MASK = 0x7FFFFF;
+	private static final long ROW_MASK = 0xFFFFFFFFL;
+
+	private Segment base = null;
+	private Segment delta = null;
+	private int numberBaseRows = 0;
+	private int numberRows = 0;
+	private ArrayList<Integer> deltaRows = new ArrayList<Integer>();
+	private ArrayList<String> deltaNames = new ArrayList<String>();
+
+	/**Indexes the first numberRows of the registry.*/
+	public QGramIndex(RegistryStore registry, int numberRows) {
+		int[] rows = new int[numberRows];
+		String[] names = new String[numberRows];
+		for (int i=0; i< numberRows; i++) {
+			rows[i] = i;
+			names[i] = fetchName(registry, i);
+		}
+		base = new Segment(rows, names);
+		numberBaseRows = numberRows;
+		this.numberRows = numberRows;
+	}
+
+	private QGramIndex(Segment base, int numberBaseRows) {
+		this.base = base;
+		this.numberBaseRows = numberBaseRows;
+		numberRows = numberBaseRows;
+	}
+
+	/**Indexes the registry rows added since the last call, plus the given rows whose names may have changed, in the delta segment.*/
+	public void update(RegistryStore registry, int[] updatedRows) {
+		int num = deltaRows.size();
+		if (updatedRows != null) {
+			for (int row: updatedRows) {
+				if (row >= numberRows) continue;
+				deltaRows.add(row);
+				deltaNames.add(fetchName(registry, row));
+			}
+		}
+		for (int row = numberRows; row< registry.size(); row++) {
+			deltaRows.add(row);
+			deltaNames.add(fetchName(registry, row));
+		}
+		numberRows = Math.max(numberRows, registry.size());
+		if (deltaRows.size() == num) return;
+		int[] rows = new int[deltaRows.size()];
+		for (int i=0; i< rows.length; i++) rows[i] = deltaRows.get(i);
+		delta = new Segment(rows, deltaNames.toArray(new String[deltaNames.size()]));
+	}
+
+	/**Returns the sorted, unique rows >= startIndex and < stopIndex whose names could be within maxEdits of the name, plus some false positives.
+	 * Returns null if the name is empty or too short for the count filter to exclude anything, callers then can't rely on the index.*/
+	public int[] fetchCandidates(String name, int maxEdits, int startIndex, int stopIndex) {
+		if (name.length() == 0) return null;
+		String upper = name.toUpperCase();
+		int length = upper.length();
+		//every name in range must need a shared bigram
+		if (length + 1 - 2 * maxEdits <= 0) return null;
+		int[] grams = fetchGrams(upper);
+		int[] found = base.fetchCandidates(grams, length, maxEdits, startIndex, stopIndex);
+		if (delta == null) return found;
+		int[] more = delta.fetchCandidates(grams, length, maxEdits, startIndex, stopIndex);
+		if (more.length == 0) return found;
+		int[] all = Arrays.copyOf(found, found.length + more.length);
+		System.arraycopy(more, 0, all, found.length, more.length);
+		return sortUnique(all, all.length);
+	}
+
+	/**Returns the max edits allowed in a name of this length for its key score to stay within the max edit score, see MatcherEngine.scoreKeysLD.*/
+	public static int fetchMaxEdits(int nameLength, double maxEditScore) {
+		return (int)Math.floor(maxEditScore * nameLength + 0.000000001);
+	}
+
+	/*Bigram keys of the padded name, repeats numbered, without the length.*/
+	private static int[] fetchGrams(String upper) {
+		String padded = "#"+ upper+ "#";
+		int[] raw = new int[padded.length()-1];
+		int[] grams = new int[raw.length];
+		for (int i=0; i< raw.length; i++) {
+			raw[i] = (padded.charAt(i) << 16) | padded.charAt(i+1);
+			int occurrence = 0;
+			for (int j=0; j< i; j++) if (raw[j] == raw[i]) occurrence++;
+			grams[i] = ((raw[i] * 0x9E3779B1) ^ (occurrence * 0x85EBCA6B)) & GRAM_MASK;
+		}
+		return grams;
+	}
+
+	private static int makeKey(int gram, int length) {
+		return (gram << 8) | Math.min(length, MAX_LENGTH);
+	}
+
+	private static String fetchName(RegistryStore registry, int row) {
+		return (registry.getLastName(row)+ registry.getFirstName(row)).toUpperCase();
+	}
+
+	private static int[] sortUnique(int[] a, int num) {
+		Arrays.sort(a, 0, num);
+		int numUnique = 0;
+		for (int i=0; i< num; i++) {
+			if (i==0 || a[i] != a[i-1]) a[numUnique++] = a[i];
+		}
+		return Arrays.copyOf(a, numUnique);
+	}
+
+	/**Returns the index saved for the first rows of this registry file or null if it is missing, unreadable, or from a different file.
+	 * @param checksum of the registry file, see RegistrySnapshot.checksum()*/
+	public static QGramIndex read(File indexFile, File registryFile, long checksum) {
+		if (indexFile.exists() == false || indexFile.length() > RegistrySnapshot.MAX_LENGTH) return null;
+		try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r"); FileChannel fc = raf.getChannel()) {
+			MappedByteBuffer in = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+			if (in.getLong() != MAGIC || in.getInt() != VERSION) return null;
+			byte[] name = new byte[in.getInt()];
+			in.get(name);
+			if (registryFile.getName().equals(new String(name, StandardCharsets.UTF_8)) == false) return null;
+			if (in.getLong() != registryFile.length()) return null;
+			if (in.getLong() != checksum) return null;
+			int numberBaseRows = in.getInt();
+			int[] keys = new int[in.getInt()];
+			in.asIntBuffer().get(keys);
+			in.position(in.position() + keys.length*4);
+			int[] starts = new int[keys.length+1];
+			in.asIntBuffer().get(starts);
+			in.position(in.position() + starts.length*4);
+			int[] rows = new int[starts[keys.length]];
+			in.asIntBuffer().get(rows);
+			return new QGramIndex(new Segment(keys, starts, rows), numberBaseRows);
+		} catch (Exception e) {
+			Util.el("\tWARNING: failed to read the name index "+indexFile+", rebuilding. "+e);
+			return null;
+		}
+	}
+
+	/**Saves the base segment via a unique temp file, the delta isn't saved since it is rebuilt from the journal.
+	 * Returns false without writing if it would be larger than RegistrySnapshot.MAX_LENGTH, any old index is then removed.
+	 * @param checksum of the registry file, see RegistrySnapshot.checksum()*/
+	public boolean write(File registryFile, long checksum, File indexFile) throws IOException {
+		byte[] name = registryFile.getName().getBytes(StandardCharsets.UTF_8);
+		if (8 + 4 + 4 + name.length + 8 + 8 + 4 + 4 + 4L * (base.keys.length + base.starts.length + base.rows.length) > RegistrySnapshot.MAX_LENGTH) {
+			indexFile.delete();
+			return false;
+		}
+		File temp = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getParentFile());
+		try (RandomAccessFile raf = new RandomAccessFile(temp, "rw"); FileChannel fc = raf.getChannel()) {
+			raf.setLength(0);
+			RegistrySnapshot.Output out = new RegistrySnapshot.Output(fc);
+			out.putLong(MAGIC);
+			out.putInt(VERSION);
+			out.putInt(name.length);
+			out.putBytes(name, name.length);
+			out.putLong(registryFile.length());
+			out.putLong(checksum);
+			out.putInt(numberBaseRows);
+			out.putInt(base.keys.length);
+			out.putInts(base.keys, base.keys.length);
+			out.putInts(base.starts, base.starts.length);
+			out.putInts(base.rows, base.rows.length);
+			out.flush();
+			fc.force(true);
+		}
+		indexFile.delete();
+		if (temp.renameTo(indexFile) == false) {
+			temp.delete();
+			throw new IOException("ERROR: failed to rename the name index "+temp+" to "+indexFile);
+		}
+		return true;
+	}
+
+	/**Returns the index file for the registry, it may not exist.*/
+	public static File fetchIndexFile(File registryFile) {
+		return new File(registryFile.getParentFile(), INDEX_NAME);
+	}
+
+	/**Number of registry rows in the saved segment.*/
+	public int getNumberBaseRows() {
+		return numberBaseRows;
+	}
+
+	public long getNumberEntries() {
+		return base.rows.length + (delta == null ? 0 : delta.rows.length);
+	}
+
+	/**Sorted unique keys, each with its sorted rows in rows[starts[i]] to rows[starts[i+1]].*/
+	private static class Segment {
+		private int[] keys = null;
+		private int[] starts = null;
+		private int[] rows = null;
+
+		private Segment(int[] keys, int[] starts, int[] rows) {
+			this.keys = keys;
+			this.starts = starts;
+			this.rows = rows;
+		}
+
+		private Segment(int[] rowIds, String[] names) {
+			int num = 0;
+			for (String n: names) if (n.length() != 0) num+= n.length()+ 1;
+			long[] entries = new long[num];
+			int index = 0;
+			for (int i=0; i< names.length; i++) {
+				if (names[i].length() == 0) continue;
+				for (int gram: fetchGrams(names[i])) entries[index++] = ((long)makeKey(gram, names[i].length()) << 32) | rowIds[i];
+			}
+			Arrays.sort(entries);
+
+			//one key per run, the rows are already in order
+			int numKeys = 0;
+			for (int i=0; i< num; i++) if (i==0 || (entries[i] >>> 32) != (entries[i-1] >>> 32)) numKeys++;
+			keys = new int[numKeys];
+			starts = new int[numKeys+1];
+			rows = new int[num];
+			int k = -1;
+			for (int i=0; i< num; i++) {
+				int key = (int)(entries[i] >>> 32);
+				if (k == -1 || key != keys[k]) {
+					keys[++k] = key;
+					starts[k] = i;
+				}
+				rows[i] = (int)(entries[i] & ROW_MASK);
+			}
+			starts[numKeys] = num;
+		}
+
+		/*Finds the rows sharing enough bigrams, one name length at a time since the count filter depends on it. A row sharing minShared of the
+		 * query's bigrams must share one of any numGrams-minShared+1 of them, so candidates only come from that many of the shortest lists,
+		 * the prefix filter, and are then counted in the rest by binary search.*/
+		private int[] fetchCandidates(int[] grams, int length, int maxEdits, int startIndex, int stopIndex) {
+			int numGrams = grams.length;
+			int[] passing = new int[16];
+			int numPassing = 0;
+			int[] hits = new int[64];
+			int[] listStarts = new int[numGrams];
+			int[] listStops = new int[numGrams];
+			long[] bySize = new long[numGrams];
+			for (int len = Math.max(1, length - maxEdits); len<= length + maxEdits; len++) {
+				//clamped lengths share a key so their bound must be the smallest
+				int minShared = Math.min(Math.max(length, len), MAX_LENGTH) + 1 - 2 * maxEdits;
+				int numPrefix = numGrams - minShared + 1;
+				if (numPrefix <= 0) continue;
+
+				//each bigram's rows in range, shortest first
+				for (int i=0; i< numGrams; i++) {
+					int k = Arrays.binarySearch(keys, makeKey(grams[i], len));
+					if (k < 0) listStarts[i] = listStops[i] = 0;
+					else {
+						listStarts[i] = lowerBound(starts[k], starts[k+1], startIndex);
+						listStops[i] = lowerBound(listStarts[i], starts[k+1], stopIndex);
+					}
+					bySize[i] = ((long)(listStops[i] - listStarts[i]) << 32) | i;
+				}
+				Arrays.sort(bySize);
+
+				//candidates from the prefix lists
+				int numHits = 0;
+				for (int p=0; p< Math.min(numPrefix, numGrams); p++) {
+					int i = (int)bySize[p];
+					int n = listStops[i] - listStarts[i];
+					if (numHits + n > hits.length) hits = Arrays.copyOf(hits, Math.max(hits.length*2, numHits + n));
+					System.arraycopy(rows, listStarts[i], hits, numHits, n);
+					numHits+= n;
+				}
+				Arrays.sort(hits, 0, numHits);
+
+				//count each in the rest, stop once it passes or can't
+				for (int h=0; h< numHits; ) {
+					int row = hits[h];
+					int count = 0;
+					while (h< numHits && hits[h] == row) {
+						count++;
+						h++;
+					}
+					for (int p=numPrefix; p< numGrams && count < minShared && count + numGrams - p >= minShared; p++) {
+						int i = (int)bySize[p];
+						int f = lowerBound(listStarts[i], listStops[i], row);
+						if (f < listStops[i] && rows[f] == row) count++;
+					}
+					if (count >= minShared) {
+						if (numPassing == passing.length) passing = Arrays.copyOf(passing, numPassing*2);
+						passing[numPassing++] = row;
+					}
+				}
+				if (len == MAX_LENGTH) break;
+			}
+			return sortUnique(passing, numPassing);
+		}
+
+		/*Index of the first row >= value in rows[start, stop).*/
+		private int lowerBound(int start, int stop, int value) {
+			int low = start;
+			int high = stop;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (rows[mid] < value) low = mid + 1;
+				else high = mid;
+			}
+			return low;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**Collapses queries that didn't match the registry, and so have a new coreId, but do match each other so one person isn't given several new coreIds.
+ * Candidate pairs come from a BlockingIndex over the unmatched queries, or every pair for small sets or -x, and are scored in parallel.
+ * A pair is linked if either query scores the other within the max edit score. Linked queries are unioned, so every connected group
+ * takes the new coreId of its first query regardless of the order the pairs were found.*/
+public class QueryClusterer {
+
+	//below this all pairs are scored, cheaper than building the index
+	private static final int MIN_QUERIES_FOR_BLOCKING = 5000;
+	//work units per thread, candidate counts vary so keep them small
+	private static final int TASKS_PER_THREAD = 16;
+
+	private RegistryStore registry = null;
+	private double missingOneKeyPenalty = 0;
+	private double missingAdditionalKeyPenalty = 0;
+	private double maxEditScoreForMatch = 0;
+	private int numberThreads = 0;
+	private ExecutorService executor = null;
+	private boolean exhaustive = false;
+	private boolean forceBlocking = false;
+
+	//stats
+	private long numberPairsScored = 0;
+	private int numberUnmatched = 0;
+	private int numberCollapsed = 0;
+	private int numberLinkedToPrior = 0;
+	private long collapseMillis = 0;
+	private long workerAllocatedBytes = 0;
+
+	/**@param registry only used to create the scoring MatcherEngines.
+	 * @param executor runs the scoring tasks when numberThreads > 1, the caller's pool, it isn't shut down here.*/
+	public QueryClusterer(RegistryStore registry, double missingOneKeyPenalty, double missingAdditionalKeyPenalty, double maxEditScoreForMatch,
+			int numberThreads, ExecutorService executor, boolean exhaustive, boolean forceBlocking) {
+		this.registry = registry;
+		this.missingOneKeyPenalty = missingOneKeyPenalty;
+		this.missingAdditionalKeyPenalty = missingAdditionalKeyPenalty;
+		this.maxEditScoreForMatch = maxEditScoreForMatch;
+		this.numberThreads = executor == null ? 1 : Math.max(1, numberThreads);
+		this.executor = executor;
+		this.exhaustive = exhaustive;
+		this.forceBlocking = forceBlocking;
+	}
+
+	/**Gives every connected group of matching queries with a new coreId the coreId of its first query.*/
+	public void cluster(Subject[] querySubjects) throws IOException {
+		long startTime = System.currentTimeMillis();
+		ArrayList<Subject> al = new ArrayList<Subject>();
+		for (Subject s: querySubjects) if (s.isCoreIdCreated()) al.add(s);
+		final Subject[] unmatched = al.toArray(new Subject[al.size()]);
+		numberUnmatched+= unmatched.length;
+		if (unmatched.length < 2) return;
+		final BlockingIndex index = useBlocking(unmatched.length) ? new BlockingIndex(unmatched) : null;
+
+		//score the candidate pairs in parallel, each task returns its passing (i << 32 | j) pairs
+		int numTasks = Math.min(unmatched.length, numberThreads * TASKS_PER_THREAD);
+		ArrayList<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>(numTasks);
+		for (int t=0; t< numTasks; t++) {
+			final int first = t;
+			final int step = numTasks;
+			tasks.add(new Callable<long[]>() {
+				public long[] call() {
+					return scorePairs(unmatched, index, first, step);
+				}
+			});
+		}
+		ArrayList<long[]> pairs = runTasks(tasks);
+
+		//union the linked queries, the root is always the smallest index
+		int[] parents = new int[unmatched.length];
+		for (int i=0; i< parents.length; i++) parents[i] = i;
+		for (long[] p: pairs) for (long pair: p) union(parents, (int)(pair >>> 32), (int)pair);
+		for (int i=0; i< unmatched.length; i++) {
+			int root = find(parents, i);
+			if (root != i) {
+				unmatched[i].setCoreId(unmatched[root].getCoreId());
+				numberCollapsed++;
+			}
+		}
+		collapseMillis+= System.currentTimeMillis() - startTime;
+	}
+
+	/*Scores every step'th unmatched query, from first, against those after it. Interleaved so the tasks get a similar share of the pairs.*/
+	private long[] scorePairs(Subject[] unmatched, BlockingIndex index, int first, int step) {
+		long allocatedStart = RunMetrics.fetchThreadAllocatedBytes();
+		MatcherEngine me = new MatcherEngine(registry, 0, 0, unmatched, null, missingOneKeyPenalty, missingAdditionalKeyPenalty, 1);
+		long[] passing = new long[16];
+		int numPassing = 0;
+		long numScored = 0;
+		for (int i=first; i< unmatched.length; i+= step) {
+			String[] aKeys = unmatched[i].getComparisonKeys();
+			int[] candidates = null;
+			if (index != null) candidates = index.fetchCandidates(unmatched[i], i+1, unmatched.length);
+			int num = candidates == null ? unmatched.length - i - 1 : candidates.length;
+			numScored+= num;
+			for (int c=0; c< num; c++) {
+				int j = candidates == null ? i+1+c : candidates[c];
+				String[] bKeys = unmatched[j].getComparisonKeys();
+				if (me.scoreKeysLD(aKeys, bKeys, maxEditScoreForMatch) <= maxEditScoreForMatch || me.scoreKeysLD(bKeys, aKeys, maxEditScoreForMatch) <= maxEditScoreForMatch) {
+					if (numPassing == passing.length) passing = Arrays.copyOf(passing, numPassing*2);
+					passing[numPassing++] = ((long)i << 32) | j;
+				}
+			}
+		}
+		synchronized (this) {
+			numberPairsScored+= numScored;
+			//one thread runs the tasks on the caller, its allocation is already the caller's
+			if (numberThreads > 1 && allocatedStart != -1) workerAllocatedBytes+= RunMetrics.fetchThreadAllocatedBytes() - allocatedStart;
+		}
+		return Arrays.copyOf(passing, numPassing);
+	}
+
+	/**Queries with a new coreId that match one created in a prior, already reported, batch take that coreId, along with those sharing their coreId.
+	 * Queries are checked in order against the priors in order, the first that matches wins.*/
+	public void linkToPrior(Subject[] querySubjects, ArrayList<Subject> priorCreated) {
+		if (priorCreated == null || priorCreated.size() == 0) return;
+		long startTime = System.currentTimeMillis();
+		Subject[] priors = priorCreated.toArray(new Subject[priorCreated.size()]);
+		BlockingIndex index = useBlocking(priors.length) ? new BlockingIndex(priors) : null;
+		MatcherEngine me = new MatcherEngine(registry, 0, 0, querySubjects, null, missingOneKeyPenalty, missingAdditionalKeyPenalty, 1);
+
+		//the queries sharing each new coreId
+		HashMap<String, ArrayList<Subject>> groups = new HashMap<String, ArrayList<Subject>>();
+		for (Subject a: querySubjects) {
+			if (a.isCoreIdCreated() == false) continue;
+			ArrayList<Subject> g = groups.get(a.getCoreId());
+			if (g == null) {
+				g = new ArrayList<Subject>();
+				groups.put(a.getCoreId(), g);
+			}
+			g.add(a);
+		}
+
+		for (Subject a: querySubjects) {
+			if (a.isCoreIdCreated() == false) continue;
+			String[] aKeys = a.getComparisonKeys();
+			int[] candidates = index == null ? null : index.fetchCandidates(a, 0, priors.length);
+			int num = candidates == null ? priors.length : candidates.length;
+			numberPairsScored+= num;
+			for (int c=0; c< num; c++) {
+				Subject p = priors[candidates == null ? c : candidates[c]];
+				if (me.scoreKeysLD(aKeys, p.getComparisonKeys(), maxEditScoreForMatch) > maxEditScoreForMatch) continue;
+				String oldCoreId = a.getCoreId();
+				String newCoreId = p.getCoreId();
+				if (oldCoreId.equals(newCoreId) == false) {
+					ArrayList<Subject> moved = groups.remove(oldCoreId);
+					for (Subject b: moved) b.setCoreId(newCoreId);
+					numberLinkedToPrior+= moved.size();
+					ArrayList<Subject> g = groups.get(newCoreId);
+					if (g == null) groups.put(newCoreId, moved);
+					else g.addAll(moved);
+				}
+				break;
+			}
+		}
+		collapseMillis+= System.currentTimeMillis() - startTime;
+	}
+
+	private boolean useBlocking(int numberSubjects) {
+		return exhaustive == false && (forceBlocking || numberSubjects >= MIN_QUERIES_FOR_BLOCKING);
+	}
+
+	private ArrayList<long[]> runTasks(ArrayList<Callable<long[]>> tasks) throws IOException {
+		ArrayList<long[]> results = new ArrayList<long[]>(tasks.size());
+		if (numberThreads == 1) {
+			try {
+				for (Callable<long[]> t: tasks) results.add(t.call());
+			} catch (Exception e) {
+				throw new IOException("ERROR: problem comparing queries. "+e, e);
+			}
+			return results;
+		}
+		//invokeAll waits on every task so none are left running on the shared pool
+		try {
+			for (Future<long[]> f: executor.invokeAll(tasks)) results.add(f.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("ERROR: interrupted while comparing queries.", e);
+		} catch (ExecutionException e) {
+			throw new IOException("ERROR: problem comparing queries. "+e.getCause(), e.getCause());
+		}
+		return results;
+	}
+
+	private static int find(int[] parents, int i) {
+		while (parents[i] != i) {
+			parents[i] = parents[parents[i]];
+			i = parents[i];
+		}
+		return i;
+	}
+
+	/*Links the two groups under the smaller root so each group keeps its first query's coreId.*/
+	private static void union(int[] parents, int a, int b) {
+		int ra = find(parents, a);
+		int rb = find(parents, b);
+		if (ra < rb) parents[rb] = ra;
+		else if (rb < ra) parents[ra] = rb;
+	}
+
+	/**Number of query:query comparisons scored.*/
+	public long getNumberPairsScored() {
+		return numberPairsScored;
+	}
+
+	/**Number of queries with a new coreId that were compared.*/
+	public int getNumberUnmatched() {
+		return numberUnmatched;
+	}
+
+	/**Number of queries that took another query's new coreId.*/
+	public int getNumberCollapsed() {
+		return numberCollapsed;
+	}
+
+	/**Number of queries that took a new coreId from a prior batch.*/
+	public int getNumberLinkedToPrior() {
+		return numberLinkedToPrior;
+	}
+
+	public long getCollapseMillis() {
+		return collapseMillis;
+	}
+
+	/**Bytes allocated by the pool threads scoring pairs, 0 with one thread or if not supported.*/
+	public long getWorkerAllocatedBytes() {
+		return workerAllocatedBytes;
+	}
+}
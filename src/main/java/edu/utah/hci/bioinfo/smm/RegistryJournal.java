@@ -0,0 +1,191 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**Append only log of registry changes, new subjects from -a and keys filled in by -u, kept next to the currentRegistry_ file it applies to.
+ * Each run appends just its changes followed by a commit line and fsyncs, so the write cost scales with the change rather than the registry,
+ * and the registry file and its snapshot are left untouched. The journal is replayed on top of the registry when it is loaded,
+ * a batch without its commit line, e.g. from a crash mid write, is skipped and truncated by the next append.
+ * Compaction (-z) folds it into a new currentRegistry_ file.
+ * Lines: a header naming the registry, 'A' + registry line for an addition, 'U' + row + registry line for a replaced row, 'C' + number of records.*/
+public class RegistryJournal {
+
+	public static final String JOURNAL_NAME = "registryJournal_PHI.txt";
+	private static final String HEADER = "#SMMJournal";
+
+	private File journal = null;
+	private File registryFile = null;
+	private int numberAdded = 0;
+	private int numberUpdated = 0;
+	private int numberSkipped = 0;
+	private int[] updatedRows = new int[0];
+
+	/**@param registryFile the currentRegistry_ file the journal applies to.*/
+	public RegistryJournal(File registryFile) {
+		this.registryFile = registryFile;
+		journal = new File(registryFile.getParentFile(), JOURNAL_NAME);
+	}
+
+	/**Appends the additions and updated rows as one committed batch and forces it to disk. Uncommitted records left at the end by a crash
+	 * are truncated first so they can't run into this batch. Call while holding the exclusive registry lock.*/
+	public void append(List<Subject> additions, List<Subject> updated) throws IOException {
+		long committedEnd = journal.exists() ? findCommittedEnd() : 0;
+		if (committedEnd != 0) checkHeader();
+		try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() != committedEnd) {
+				Util.el("\tWARNING: truncating "+(channel.size() - committedEnd)+" uncommitted bytes from the end of "+journal);
+				channel.truncate(committedEnd);
+			}
+			StringBuilder sb = new StringBuilder();
+			if (committedEnd == 0) sb.append(HEADER).append("\t").append(registryFile.getName()).append("\n");
+			for (Subject s: updated) sb.append("U\t").append(s.getRegistryIndex()).append("\t").append(s.toString()).append("\n");
+			for (Subject s: additions) sb.append("A\t").append(s.toString()).append("\n");
+			sb.append("C\t").append(updated.size() + additions.size()).append("\n");
+			channel.position(committedEnd);
+			ByteBuffer bytes = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+			while (bytes.hasRemaining()) channel.write(bytes);
+			channel.force(true);
+		}
+	}
+
+	/*Returns the byte offset just past the last commit line, or past the header if nothing is committed, 0 if the header itself is torn.*/
+	private long findCommittedEnd() throws IOException {
+		long committedEnd = 0;
+		long offset = 0;
+		boolean lineStart = true;
+		boolean first = true;
+		boolean commit = false;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(journal), FileStreams.BUFFER_SIZE)) {
+			int b;
+			while ((b = in.read()) != -1) {
+				offset++;
+				if (lineStart) commit = b == 'C';
+				lineStart = b == '\n';
+				if (lineStart == false) continue;
+				if (commit || first) committedEnd = offset;
+				first = false;
+			}
+		}
+		return committedEnd;
+	}
+
+	/**Applies the committed batches to the registry and returns it, a new store if rows were replaced. Throws an IOException if the journal
+	 * belongs to another registry file or a committed record is malformed.*/
+	public RegistryStore replay(RegistryStore registry, boolean caseInsensitive) throws IOException {
+		if (journal.exists() == false || journal.length() == 0) return registry;
+		checkHeader();
+
+		ArrayList<Subject> additions = new ArrayList<Subject>();
+		HashMap<Integer,Subject> replaced = new HashMap<Integer,Subject>();
+		ArrayList<String> batch = new ArrayList<String>();
+		int lineNumber = 0;
+		try (BufferedReader in = Util.fetchBufferedReader(journal)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				if (line.startsWith("#")) continue;
+				if (line.startsWith("C\t") == false) {
+					batch.add(line);
+					continue;
+				}
+				//commit, apply the batch
+				if (Integer.parseInt(line.substring(2).trim()) != batch.size()) throw new IOException("ERROR: the batch ending on line "+lineNumber+" of "+journal+" is incomplete.");
+				for (String record: batch) {
+					String[] t = Util.TAB.split(record, -1);
+					if (t[0].equals("A")) {
+						int row = registry.size() + additions.size();
+						additions.add(parseSubject(t, 1, row, caseInsensitive, lineNumber));
+					}
+					else if (t[0].equals("U")) {
+						int row = Integer.parseInt(t[1]);
+						Subject s = parseSubject(t, 2, row, caseInsensitive, lineNumber);
+						if (row >= registry.size() + additions.size() || row < 0) throw new IOException("ERROR: row "+row+" updated in the batch ending on line "+lineNumber+" of "+journal+" isn't in the registry.");
+						if (row >= registry.size()) additions.set(row - registry.size(), s);
+						else replaced.put(row, s);
+					}
+					else throw new IOException("ERROR: unknown record in the batch ending on line "+lineNumber+" of "+journal+", "+record);
+				}
+				batch.clear();
+			}
+		}
+		numberSkipped = batch.size();
+		numberAdded = additions.size();
+		numberUpdated = replaced.size();
+		updatedRows = new int[replaced.size()];
+		int index = 0;
+		for (Integer row: replaced.keySet()) updatedRows[index++] = row;
+		Arrays.sort(updatedRows);
+		if (numberSkipped != 0) Util.el("\tWARNING: skipping "+numberSkipped+" uncommitted records at the end of "+journal);
+
+		//just additions? append, otherwise copy the rows
+		RegistryStore updated = registry;
+		if (replaced.size() != 0) {
+			updated = new RegistryStore(caseInsensitive);
+			for (int i=0; i< registry.size(); i++) {
+				Subject s = replaced.get(i);
+				if (s == null) updated.addRow(registry, i);
+				else updated.add(s);
+			}
+		}
+		for (Subject s: additions) updated.add(s);
+		updated.trim();
+		return updated;
+	}
+
+	private Subject parseSubject(String[] t, int start, int row, boolean caseInsensitive, int lineNumber) throws IOException {
+		String[] fields = new String[t.length - start];
+		System.arraycopy(t, start, fields, 0, fields.length);
+		try {
+			return new Subject(row, fields, false, null, false, caseInsensitive, false);
+		} catch (Exception e) {
+			throw new IOException("ERROR: malformed record in the batch ending on line "+lineNumber+" of "+journal+". "+e.getMessage());
+		}
+	}
+
+	/*The journal must belong to the current registry file, otherwise it is from before a rewrite or compaction that didn't finish.*/
+	private void checkHeader() throws IOException {
+		try (BufferedReader in = Util.fetchBufferedReader(journal)) {
+			String first = in.readLine();
+			String expected = HEADER+ "\t"+ registryFile.getName();
+			if (first == null || first.equals(expected) == false) throw new IOException("ERROR: the registry journal "+journal+" doesn't belong to "+
+					registryFile.getName()+", found '"+first+"'. Fold it into its registry or remove it before rerunning.");
+		}
+	}
+
+	public File getJournalFile() {
+		return journal;
+	}
+
+	public boolean exists() {
+		return journal.exists() && journal.length() != 0;
+	}
+
+	/**Number of subjects added by the last replay.*/
+	public int getNumberAdded() {
+		return numberAdded;
+	}
+
+	/**Registry file rows replaced by the last replay, sorted.*/
+	public int[] getUpdatedRows() {
+		return updatedRows;
+	}
+
+	/**Number of registry rows replaced by the last replay.*/
+	public int getNumberUpdated() {
+		return numberUpdated;
+	}
+}
@@ -0,0 +1,202 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+
+/**Shared or exclusive lock on a registry directory. Read only searches take a shared lock and run side by side, runs that change the registry
+ * (-a -u -z, or creating coreIds) take an exclusive one. The lock is a FileChannel lock on registryLock_PHI in the directory, so the OS
+ * drops it when a run dies and a crashed run can't leave the registry locked. Each holder also writes an owner file (pid, host, start time, mode)
+ * into registryLockOwners_PHI/ under its own lock, used to report who is waiting on whom. Owner files whose lock can be taken are stale,
+ * left by a crashed run, and are removed. FileChannel locks on network file systems rely on their lock daemon.
+ * Older SubjectMatchMakers only know the LOCKED file, they wait while it exists and create it for their own run. So old and new runs still exclude
+ * each other, an exclusive holder treats an existing LOCKED as held and creates its own, removed on release.*/
+public class RegistryLock {
+
+	public static final String LOCK_FILE_NAME = "registryLock_PHI";
+	public static final String OWNER_DIR_NAME = "registryLockOwners_PHI";
+	public static final String LEGACY_LOCK_NAME = "LOCKED";
+	//starts the LOCKED files this version writes, older versions leave them empty
+	private static final String LEGACY_LOCK_HEADER = "SubjectMatchMaker registry lock\t";
+
+	private File registryDir = null;
+	private File ownerDir = null;
+	private RandomAccessFile lockRaf = null;
+	private FileLock lock = null;
+	private File ownerFile = null;
+	private RandomAccessFile ownerRaf = null;
+	private FileLock ownerLock = null;
+	private boolean exclusive = false;
+	private File legacyLock = null;
+
+	public RegistryLock(File registryDir) {
+		this.registryDir = registryDir;
+		ownerDir = new File(registryDir, OWNER_DIR_NAME);
+	}
+
+	/**Tries to take the lock, waiting between attempts and printing the current owners. Returns false if it couldn't be taken in maxTries.*/
+	public boolean acquire(boolean exclusive, int maxTries, long waitMillis) throws IOException, InterruptedException {
+		for (int i=0; i< maxTries; i++) {
+			if (tryAcquire(exclusive)) return true;
+			if (i == maxTries -1) break;
+			Util.pl("\tRegistry "+(exclusive ? "in use" : "being updated")+", waiting... "+ fetchOwnersString());
+			Thread.sleep(waitMillis);
+		}
+		return false;
+	}
+
+	/**Takes the lock without waiting, returns false if it is held in a conflicting mode.*/
+	public boolean tryAcquire(boolean exclusive) throws IOException {
+		if (lock != null) throw new IOException("ERROR: the registry lock is already held by this run.");
+		RandomAccessFile raf = new RandomAccessFile(new File(registryDir, LOCK_FILE_NAME), "rw");
+		FileLock fl = null;
+		try {
+			fl = raf.getChannel().tryLock(0, Long.MAX_VALUE, exclusive == false);
+		} catch (OverlappingFileLockException e) {
+			//held by another run in this JVM
+		}
+		if (fl == null) {
+			raf.close();
+			return false;
+		}
+		if (exclusive && takeLegacyLock() == false) {
+			fl.release();
+			raf.close();
+			return false;
+		}
+		lockRaf = raf;
+		lock = fl;
+		this.exclusive = exclusive;
+		writeOwner();
+		return true;
+	}
+
+	/*Creates the LOCKED file, false if an older run holds it. One with this version's header can only be left by a crashed run since no
+	 * other run of this version can hold it while we have the exclusive lock, it is replaced.*/
+	private boolean takeLegacyLock() throws IOException {
+		File f = new File(registryDir, LEGACY_LOCK_NAME);
+		if (f.exists()) {
+			String owner = "";
+			try {
+				owner = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+			} catch (IOException e) {
+				//removed while reading, try again later
+				return false;
+			}
+			if (owner.startsWith(LEGACY_LOCK_HEADER) == false) return false;
+			if (f.delete()) Util.pl("\tRemoved the LOCKED file left by a crashed run, "+ owner.substring(LEGACY_LOCK_HEADER.length()).trim().replace('\t', ' '));
+		}
+		if (f.createNewFile() == false) return false;
+		String pidHost = ManagementFactory.getRuntimeMXBean().getName();
+		Util.write(new String[] {LEGACY_LOCK_HEADER+ pidHost+ "\t"+ new Date()}, f);
+		legacyLock = f;
+		return true;
+	}
+
+	/**Trades a shared lock for an exclusive one. The lock is dropped in between, so callers must check nothing changed while they waited.*/
+	public boolean upgrade(int maxTries, long waitMillis) throws IOException, InterruptedException {
+		if (exclusive) return true;
+		release();
+		return acquire(true, maxTries, waitMillis);
+	}
+
+	/**Drops the lock and removes the owner file, safe to call more than once.*/
+	public synchronized void release() {
+		try {
+			if (legacyLock != null) legacyLock.delete();
+			if (ownerLock != null) ownerLock.release();
+			if (ownerRaf != null) ownerRaf.close();
+			if (ownerFile != null) ownerFile.delete();
+			if (lock != null) lock.release();
+			if (lockRaf != null) lockRaf.close();
+		} catch (IOException e) {
+			Util.el("\tWARNING: problem releasing the registry lock. "+e.getMessage());
+		}
+		legacyLock = null;
+		ownerLock = null;
+		ownerRaf = null;
+		ownerFile = null;
+		lock = null;
+		lockRaf = null;
+	}
+
+	/*Writes this run's owner file and locks it, the owner file lock is how others tell it isn't stale.*/
+	private void writeOwner() throws IOException {
+		fetchOwners();
+		if (ownerDir.exists() == false && ownerDir.mkdirs() == false && ownerDir.exists() == false) throw new IOException("ERROR: failed to make "+ownerDir);
+		String pidHost = ManagementFactory.getRuntimeMXBean().getName();
+		String pid = pidHost.contains("@") ? pidHost.substring(0, pidHost.indexOf('@')) : pidHost;
+		long start = System.currentTimeMillis();
+		ownerFile = new File(ownerDir, "owner_"+ pid+ "_"+ start+ "_"+ System.nanoTime()+ ".txt");
+		ownerRaf = new RandomAccessFile(ownerFile, "rw");
+		ownerLock = ownerRaf.getChannel().lock();
+		String info = pid+ "\t"+ fetchHostName()+ "\t"+ new Date(start)+ "\t"+ (exclusive ? "exclusive" : "shared")+ "\n";
+		ownerRaf.write(info.getBytes(StandardCharsets.UTF_8));
+		ownerRaf.getChannel().force(true);
+	}
+
+	/**Returns the live owners, pid host start mode, removing stale owner files left by crashed runs.*/
+	public ArrayList<String> fetchOwners() {
+		ArrayList<String> owners = new ArrayList<String>();
+		File[] files = ownerDir.listFiles();
+		if (files == null) return owners;
+		for (File f: files) {
+			if (f.equals(ownerFile)) continue;
+			try (RandomAccessFile raf = new RandomAccessFile(f, "rw"); FileChannel fc = raf.getChannel()) {
+				String info = readOwner(raf);
+				FileLock fl = null;
+				try {
+					fl = fc.tryLock();
+				} catch (OverlappingFileLockException e) {
+					//held by another run in this JVM
+				}
+				if (fl == null) owners.add(info);
+				else {
+					fl.release();
+					if (f.delete()) Util.pl("\tRemoved stale registry lock owner, "+ info);
+				}
+			} catch (IOException e) {
+				//removed while reading
+			}
+		}
+		return owners;
+	}
+
+	private String fetchOwnersString() {
+		ArrayList<String> owners = fetchOwners();
+		String legacy = new File(registryDir, LEGACY_LOCK_NAME).exists() ? ", a LOCKED file from an older SubjectMatchMaker is present" : "";
+		if (owners.size() == 0) return "owner unknown"+ legacy;
+		return "held by pid host start mode: "+ Util.stringArrayToString(owners.toArray(new String[owners.size()]), ", ")+ legacy;
+	}
+
+	private static String readOwner(RandomAccessFile raf) throws IOException {
+		byte[] b = new byte[(int)Math.min(raf.length(), 1024)];
+		raf.readFully(b);
+		return new String(b, StandardCharsets.UTF_8).trim().replace('\t', ' ');
+	}
+
+	private static String fetchHostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (IOException e) {
+			return "unknown";
+		}
+	}
+
+	public boolean isHeld() {
+		return lock != null;
+	}
+
+	public boolean isExclusive() {
+		return lock != null && exclusive;
+	}
+}
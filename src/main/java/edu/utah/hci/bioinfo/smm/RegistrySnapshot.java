@@ -0,0 +1,183 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**Compact binary snapshot of a RegistryStore written next to the text registry so later runs skip parsing and validation.
+ * The header records the source registry's name, size, and CRC32, a snapshot that doesn't match the current registry is ignored and rebuilt.
+ * Snapshots are opened with FileChannel.map and the columns bulk copied into the store's arrays, so one is only written if it fits in a
+ * single mapping, MAX_LENGTH bytes. The caller computes the registry's checksum once and passes it to both the snapshot and the name index.*/
+public class RegistrySnapshot {
+
+	public static final String SNAPSHOT_NAME = "registrySnapshot_PHI.smm";
+	private static final long MAGIC = 0x534D4D534E415031L; //SMMSNAP1
+	private static final int VERSION = 1;
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	/**Largest file a single FileChannel.map can open.*/
+	public static final long MAX_LENGTH = Integer.MAX_VALUE;
+
+	/**Returns the snapshot file for the registry, it may not exist.*/
+	public static File fetchSnapshotFile(File registryFile) {
+		return new File(registryFile.getParentFile(), SNAPSHOT_NAME);
+	}
+
+	/**Returns the store from the snapshot or null if it is missing, unreadable, or was built from a different registry file.
+	 * @param checksum of the registry file, see checksum()*/
+	public static RegistryStore read(File snapshot, File registryFile, long checksum, boolean caseInsensitive) {
+		if (snapshot.exists() == false || snapshot.length() > MAX_LENGTH) return null;
+		try (RandomAccessFile raf = new RandomAccessFile(snapshot, "r"); FileChannel fc = raf.getChannel()) {
+			MappedByteBuffer in = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+			if (in.getLong() != MAGIC || in.getInt() != VERSION) return null;
+
+			//built from this registry?
+			byte[] name = new byte[in.getInt()];
+			in.get(name);
+			if (registryFile.getName().equals(new String(name, StandardCharsets.UTF_8)) == false) return null;
+			if (in.getLong() != registryFile.length()) return null;
+			if (in.getLong() != checksum) return null;
+
+			RegistryStore store = RegistryStore.read(in, caseInsensitive);
+			if (in.hasRemaining()) return null;
+			return store;
+		} catch (Exception e) {
+			Util.el("\tWARNING: failed to read the registry snapshot "+snapshot+", rebuilding. "+e);
+			return null;
+		}
+	}
+
+	/**Writes the snapshot via a temp file so a failed write never leaves a partial snapshot behind. The temp file is unique since
+	 * searches sharing the registry may each write one. Returns false without writing if it would be larger than MAX_LENGTH,
+	 * any old snapshot is then removed.
+	 * @param checksum of the registry file, see checksum()*/
+	public static boolean write(RegistryStore store, File registryFile, long checksum, File snapshot) throws IOException {
+		byte[] name = registryFile.getName().getBytes(StandardCharsets.UTF_8);
+		if (8 + 4 + 4 + name.length + 8 + 8 + store.fetchSnapshotLength() > MAX_LENGTH) {
+			snapshot.delete();
+			return false;
+		}
+		File temp = File.createTempFile(snapshot.getName(), ".tmp", snapshot.getParentFile());
+		try (RandomAccessFile raf = new RandomAccessFile(temp, "rw"); FileChannel fc = raf.getChannel()) {
+			raf.setLength(0);
+			Output out = new Output(fc);
+			out.putLong(MAGIC);
+			out.putInt(VERSION);
+			out.putInt(name.length);
+			out.putBytes(name, name.length);
+			out.putLong(registryFile.length());
+			out.putLong(checksum);
+			store.write(out);
+			out.flush();
+			fc.force(true);
+		}
+		snapshot.delete();
+		if (temp.renameTo(snapshot) == false) {
+			temp.delete();
+			throw new IOException("ERROR: failed to rename the registry snapshot "+temp+" to "+snapshot);
+		}
+		return true;
+	}
+
+	/**CRC32 of the file's bytes.*/
+	public static long checksum(File f) throws IOException {
+		CRC32 crc = new CRC32();
+		try (RandomAccessFile raf = new RandomAccessFile(f, "r"); FileChannel fc = raf.getChannel()) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			while (fc.read(buffer) != -1) {
+				buffer.flip();
+				crc.update(buffer);
+				buffer.clear();
+			}
+		}
+		return crc.getValue();
+	}
+
+	/**Buffered, big endian writer of primitives and primitive arrays to a channel, matching the default order of the mapped reader.*/
+	static class Output {
+		private FileChannel fc = null;
+		private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		Output(FileChannel fc) {
+			this.fc = fc;
+		}
+
+		void putInt(int i) throws IOException {
+			ensure(4);
+			buffer.putInt(i);
+		}
+
+		void putLong(long l) throws IOException {
+			ensure(8);
+			buffer.putLong(l);
+		}
+
+		void putBytes(byte[] a, int length) throws IOException {
+			int i = 0;
+			while (i < length) {
+				ensure(1);
+				int n = Math.min(buffer.remaining(), length-i);
+				buffer.put(a, i, n);
+				i+= n;
+			}
+		}
+
+		void putShorts(short[] a, int length) throws IOException {
+			int i = 0;
+			while (i < length) {
+				ensure(2);
+				int n = Math.min(buffer.remaining()/2, length-i);
+				buffer.asShortBuffer().put(a, i, n);
+				buffer.position(buffer.position()+ n*2);
+				i+= n;
+			}
+		}
+
+		void putChars(char[] a, int length) throws IOException {
+			int i = 0;
+			while (i < length) {
+				ensure(2);
+				int n = Math.min(buffer.remaining()/2, length-i);
+				buffer.asCharBuffer().put(a, i, n);
+				buffer.position(buffer.position()+ n*2);
+				i+= n;
+			}
+		}
+
+		void putInts(int[] a, int length) throws IOException {
+			int i = 0;
+			while (i < length) {
+				ensure(4);
+				int n = Math.min(buffer.remaining()/4, length-i);
+				buffer.asIntBuffer().put(a, i, n);
+				buffer.position(buffer.position()+ n*4);
+				i+= n;
+			}
+		}
+
+		void putLongs(long[] a, int length) throws IOException {
+			int i = 0;
+			while (i < length) {
+				ensure(8);
+				int n = Math.min(buffer.remaining()/8, length-i);
+				buffer.asLongBuffer().put(a, i, n);
+				buffer.position(buffer.position()+ n*8);
+				i+= n;
+			}
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) fc.write(buffer);
+			buffer.clear();
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) flush();
+		}
+	}
+}
@@ -0,0 +1,515 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**Columnar, primitive encoded registry read by the matchers. Names, coreIds and otherIds are packed into PackedStrings, DoBs into yyyymmdd ints
+ * (0 for a missing part), gender into two bit sets, and MRNs into longs when numeric with a String fallback.
+ * Subject objects are only materialized for reporting and saving, those fetched for reporting are cached so key updates (-u) stick to the row.*/
+public class RegistryStore {
+
+	static final long MRN_MISSING = -1;
+	static final long MRN_NOT_NUMERIC = -2;
+	private static final int MAX_NUMERIC_MRN_LENGTH = 18;
+
+	private boolean caseInsensitive = false;
+	private int size = 0;
+
+	//columns
+	private PackedStrings names = new PackedStrings();	//lastName+firstName
+	private short[] lastNameLengths = new short[256];
+	private PackedStrings nameKeys = null;				//upper cased lastName+firstName, only for case insensitive searches
+	private int[] dobs = new int[256];
+	private long[] genderKnown = new long[4];
+	private long[] genderMale = new long[4];
+	private long[] mrns = new long[256];
+	private HashMap<Integer,String> nonNumericMrns = new HashMap<Integer,String>();
+	private PackedStrings coreIds = new PackedStrings();
+	private PackedStrings otherIds = new PackedStrings();	//semicolon joined
+
+	//coreId open addressing hash, row+1, 0 is empty
+	private int[] coreIdTable = null;
+	private int numberCoreIdRows = 0;
+	private int numberCoreIdsCreated = 0;
+
+	//materialized subjects, their names pooled since the top hits of many queries share surnames and first names
+	private HashMap<Integer,Subject> fetchedSubjects = new HashMap<Integer,Subject>();
+	private KeyPool keyPool = new KeyPool();
+
+	public RegistryStore(boolean caseInsensitive) {
+		this.caseInsensitive = caseInsensitive;
+		if (caseInsensitive) nameKeys = new PackedStrings();
+	}
+
+	/**Appends the subject as the next row.*/
+	public void add(Subject s) throws IOException {
+		if (s.getLastName().length() > Short.MAX_VALUE) throw new IOException("ERROR: the last name is too long, > "+Short.MAX_VALUE+" chars, for "+s.getLastName());
+		growForNextRow();
+
+		names.add(s.getLastName()+ s.getFirstName());
+		lastNameLengths[size] = (short)s.getLastName().length();
+		if (caseInsensitive) nameKeys.add(s.getComparisonKeys()[0]);
+		dobs[size] = packDob(s.getDobMonth(), s.getDobDay(), s.getDobYear());
+		if (s.getGender().length()!=0) {
+			genderKnown[size >> 6] |= 1L << size;
+			if (s.getGender().equals("M")) genderMale[size >> 6] |= 1L << size;
+		}
+		mrns[size] = packMrn(s.getMrn());
+		if (mrns[size] == MRN_NOT_NUMERIC) nonNumericMrns.put(size, s.getMrn());
+		coreIds.add(s.getCoreId() == null ? "" : s.getCoreId());
+		otherIds.add(s.getOtherSubjectIds() == null ? "" : Util.stringArrayToString(s.getOtherSubjectIds(), ";"));
+		if (s.isCoreIdCreated()) numberCoreIdsCreated++;
+		size++;
+	}
+
+	/**Overwrites the row with the subject, e.g. one with keys filled in by -u, and drops its cached Subject.
+	 * Packed Strings after the row are shifted if their lengths change, see PackedStrings.set().*/
+	public void replace(int row, Subject s) throws IOException {
+		if (s.getLastName().length() > Short.MAX_VALUE) throw new IOException("ERROR: the last name is too long, > "+Short.MAX_VALUE+" chars, for "+s.getLastName());
+		String name = s.getLastName()+ s.getFirstName();
+		names.set(row, name);
+		lastNameLengths[row] = (short)s.getLastName().length();
+		//made from the name rather than s.getComparisonKeys(), those are cached on the Subject and stale once -u fills in a name
+		if (caseInsensitive) nameKeys.set(row, name.toUpperCase());
+		dobs[row] = packDob(s.getDobMonth(), s.getDobDay(), s.getDobYear());
+		int word = row >> 6;
+		long bit = 1L << row;
+		genderKnown[word] &= ~bit;
+		genderMale[word] &= ~bit;
+		if (s.getGender().length()!=0) {
+			genderKnown[word] |= bit;
+			if (s.getGender().equals("M")) genderMale[word] |= bit;
+		}
+		mrns[row] = packMrn(s.getMrn());
+		nonNumericMrns.remove(row);
+		if (mrns[row] == MRN_NOT_NUMERIC) nonNumericMrns.put(row, s.getMrn());
+		coreIds.set(row, s.getCoreId() == null ? "" : s.getCoreId());
+		otherIds.set(row, s.getOtherSubjectIds() == null ? "" : Util.stringArrayToString(s.getOtherSubjectIds(), ";"));
+		fetchedSubjects.remove(row);
+	}
+
+	/**Appends a row copied column by column from another store, no Subject is created.*/
+	public void addRow(RegistryStore source, int row) {
+		growForNextRow();
+		names.add(source.names.get(row));
+		lastNameLengths[size] = source.lastNameLengths[row];
+		if (caseInsensitive) nameKeys.add(source.nameKeys != null ? source.nameKeys.get(row) : source.names.get(row).toUpperCase());
+		dobs[size] = source.dobs[row];
+		int word = row >> 6;
+		long bit = 1L << row;
+		if ((source.genderKnown[word] & bit) != 0) {
+			genderKnown[size >> 6] |= 1L << size;
+			if ((source.genderMale[word] & bit) != 0) genderMale[size >> 6] |= 1L << size;
+		}
+		mrns[size] = source.mrns[row];
+		if (mrns[size] == MRN_NOT_NUMERIC) nonNumericMrns.put(size, source.nonNumericMrns.get(row));
+		coreIds.add(source.coreIds.get(row));
+		otherIds.add(source.otherIds.get(row));
+		size++;
+	}
+
+	private void growForNextRow() {
+		if (size == dobs.length) {
+			int n = PackedStrings.grow(size, size+1);
+			lastNameLengths = Arrays.copyOf(lastNameLengths, n);
+			dobs = Arrays.copyOf(dobs, n);
+			mrns = Arrays.copyOf(mrns, n);
+		}
+		int words = (size >> 6) + 1;
+		if (words > genderKnown.length) {
+			genderKnown = Arrays.copyOf(genderKnown, PackedStrings.grow(genderKnown.length, words));
+			genderMale = Arrays.copyOf(genderMale, genderKnown.length);
+		}
+	}
+
+	/**Releases the unused capacity once loading is complete.*/
+	public void trim() {
+		names.trim();
+		if (nameKeys != null) nameKeys.trim();
+		coreIds.trim();
+		otherIds.trim();
+		lastNameLengths = Arrays.copyOf(lastNameLengths, size);
+		dobs = Arrays.copyOf(dobs, size);
+		mrns = Arrays.copyOf(mrns, size);
+		genderKnown = Arrays.copyOf(genderKnown, (size >> 6) + 1);
+		genderMale = Arrays.copyOf(genderMale, (size >> 6) + 1);
+	}
+
+	/**Builds the coreId lookup, throws an IOException if a coreId is duplicated.*/
+	public void buildCoreIdIndex() throws IOException {
+		int capacity = Integer.highestOneBit(Math.max(16, size + (size >> 1))) << 1;
+		coreIdTable = new int[capacity];
+		numberCoreIdRows = 0;
+		updateCoreIdIndex();
+	}
+
+	/**Adds the rows appended since the coreId lookup was built or last updated, rebuilding it once it is over two thirds full.
+	 * Throws an IOException if a coreId is duplicated.*/
+	public void updateCoreIdIndex() throws IOException {
+		if (size + (size >> 1) > coreIdTable.length) {
+			buildCoreIdIndex();
+			return;
+		}
+		int mask = coreIdTable.length - 1;
+		for (int i=numberCoreIdRows; i< size; i++) {
+			int h = coreIds.hashCode(i);
+			int slot = (h ^ (h >>> 16)) & mask;
+			while (coreIdTable[slot] != 0 && coreIdEquals(coreIdTable[slot]-1, i) == false) slot = (slot + 1) & mask;
+			if (coreIdTable[slot] != 0) throw new IOException("\nERROR: the coreId "+coreIds.get(i)+" associated with registry subject["+i+"] is a duplicate of a prior registry subject. Duplicate coreIds are not permitted." );
+			coreIdTable[slot] = i+1;
+		}
+		numberCoreIdRows = size;
+	}
+
+	/**Returns the row with the coreId or -1 if not found. Call buildCoreIdIndex() first.*/
+	public int fetchRow(String coreId) {
+		int row = coreIdTable[findSlot(coreId)];
+		return row - 1;
+	}
+
+	/*Returns the slot holding the coreId or the empty slot where it would go.*/
+	private int findSlot(String coreId) {
+		int mask = coreIdTable.length - 1;
+		int h = coreId.hashCode();
+		int slot = (h ^ (h >>> 16)) & mask;
+		while (true) {
+			int row = coreIdTable[slot];
+			if (row == 0 || coreIdEquals(row-1, coreId)) return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private boolean coreIdEquals(int rowA, int rowB) {
+		int length = coreIds.length(rowA);
+		if (coreIds.length(rowB) != length) return false;
+		for (int i=0; i< length; i++) if (coreIds.charAt(rowA, i) != coreIds.charAt(rowB, i)) return false;
+		return true;
+	}
+
+	private boolean coreIdEquals(int row, String coreId) {
+		if (coreIds.length(row) != coreId.length()) return false;
+		for (int i=0; i< coreId.length(); i++) if (coreIds.charAt(row, i) != coreId.charAt(i)) return false;
+		return true;
+	}
+
+	/**Reusable comparison keys for one thread, see loadComparisonKeys().*/
+	public class ComparisonKeys {
+		private CharSequence[] keys = new CharSequence[4];
+		private CharSlice name = new CharSlice();
+		private char[] dobChars = new char[10];
+		private CharSlice dob = new CharSlice();
+		private char[] mrnChars = new char[MAX_NUMERIC_MRN_LENGTH];
+		private CharSlice mrn = new CharSlice();
+
+		/**Keys in the same order and form as Subject.getComparisonKeys(): name, dob, gender, mrn.*/
+		public CharSequence[] getKeys() {
+			return keys;
+		}
+	}
+
+	public ComparisonKeys createComparisonKeys() {
+		return new ComparisonKeys();
+	}
+
+	/**Points the comparison keys at the row, no Strings are created for numeric MRNs. Not thread safe, use one ComparisonKeys per thread.*/
+	public CharSequence[] loadComparisonKeys(int row, ComparisonKeys ck) {
+		CharSequence[] keys = ck.keys;
+
+		//name
+		if (nameKeys != null) keys[0] = nameKeys.fetch(row, ck.name);
+		else keys[0] = names.fetch(row, ck.name);
+
+		//dob as m/d/y, only if all three are present
+		int dob = dobs[row];
+		int year = dob / 10000;
+		int month = (dob / 100) % 100;
+		int day = dob % 100;
+		if (year == 0 || month == 0 || day == 0) keys[1] = "";
+		else {
+			char[] c = ck.dobChars;
+			int i = writeDigits(month, c, 0);
+			c[i++] = '/';
+			i = writeDigits(day, c, i);
+			c[i++] = '/';
+			i = writeDigits(year, c, i);
+			keys[1] = ck.dob.set(c, 0, i);
+		}
+
+		//gender
+		int word = row >> 6;
+		long bit = 1L << row;
+		if ((genderKnown[word] & bit) == 0) keys[2] = "";
+		else if ((genderMale[word] & bit) != 0) keys[2] = "M";
+		else keys[2] = "F";
+
+		//mrn
+		long mrn = mrns[row];
+		if (mrn == MRN_MISSING) keys[3] = "";
+		else if (mrn == MRN_NOT_NUMERIC) keys[3] = nonNumericMrns.get(row);
+		else {
+			char[] c = ck.mrnChars;
+			int end = c.length;
+			int start = end;
+			do {
+				c[--start] = (char)('0' + (mrn % 10));
+				mrn /= 10;
+			} while (mrn != 0);
+			keys[3] = ck.mrn.set(c, start, end-start);
+		}
+		return keys;
+	}
+
+	/**Returns the subject for reporting, these are cached so a row is always the same Subject.*/
+	public Subject fetchSubject(int row) {
+		Subject s = fetchedSubjects.get(row);
+		if (s == null) {
+			s = materializeSubject(row);
+			s.shareNames(keyPool);
+			fetchedSubjects.put(row, s);
+		}
+		return s;
+	}
+
+	/**Returns the cached subject for the row if it was fetched, otherwise a new uncached Subject. Use this when walking the whole registry.*/
+	public Subject fetchSubjectForWriting(int row) {
+		Subject s = fetchedSubjects.get(row);
+		if (s != null) return s;
+		return materializeSubject(row);
+	}
+
+	/**Returns true if any of the fetched subjects had missing keys filled in from a query.*/
+	public boolean isUpdated() {
+		for (Subject s: fetchedSubjects.values()) if (s.getFieldsWereUpdated()) return true;
+		return false;
+	}
+
+	/**Returns the fetched subjects with keys filled in from a query, sorted by row.*/
+	public ArrayList<Subject> fetchUpdatedSubjects() {
+		ArrayList<Subject> updated = new ArrayList<Subject>();
+		for (Subject s: fetchedSubjects.values()) if (s.getFieldsWereUpdated()) updated.add(s);
+		Collections.sort(updated, new Comparator<Subject>() {
+			public int compare(Subject a, Subject b) {
+				return Integer.compare(a.getRegistryIndex(), b.getRegistryIndex());
+			}
+		});
+		return updated;
+	}
+
+	/**Drops the fetched subjects except those with updated keys, these are kept for saving. Use between batches of queries.*/
+	public void releaseSubjects() {
+		Iterator<Subject> it = fetchedSubjects.values().iterator();
+		while (it.hasNext()) if (it.next().getFieldsWereUpdated() == false) it.remove();
+	}
+
+	private Subject materializeSubject(int row) {
+		return new Subject(row, getLastName(row), getFirstName(row), getDobMonth(row), getDobDay(row), getDobYear(row), getGender(row), getMrn(row),
+				getCoreId(row), getOtherSubjectIds(row), caseInsensitive);
+	}
+
+	public String getLastName(int row) {
+		return names.get(row).substring(0, lastNameLengths[row]);
+	}
+
+	public String getFirstName(int row) {
+		return names.get(row).substring(lastNameLengths[row]);
+	}
+
+	/**Returns -1 if missing.*/
+	public int getDobMonth(int row) {
+		int m = (dobs[row] / 100) % 100;
+		return m == 0 ? -1 : m;
+	}
+
+	/**Returns -1 if missing.*/
+	public int getDobDay(int row) {
+		int d = dobs[row] % 100;
+		return d == 0 ? -1 : d;
+	}
+
+	/**Returns -1 if missing.*/
+	public int getDobYear(int row) {
+		int y = dobs[row] / 10000;
+		return y == 0 ? -1 : y;
+	}
+
+	public String getGender(int row) {
+		int word = row >> 6;
+		long bit = 1L << row;
+		if ((genderKnown[word] & bit) == 0) return "";
+		if ((genderMale[word] & bit) != 0) return "M";
+		return "F";
+	}
+
+	public String getMrn(int row) {
+		long mrn = mrns[row];
+		if (mrn == MRN_MISSING) return "";
+		if (mrn == MRN_NOT_NUMERIC) return nonNumericMrns.get(row);
+		return Long.toString(mrn);
+	}
+
+	/**Returns null if none.*/
+	public String[] getOtherSubjectIds(int row) {
+		String other = otherIds.get(row);
+		return other.length() == 0 ? null : Util.SEMICOLON.split(other);
+	}
+
+	public String getCoreId(int row) {
+		String c = coreIds.get(row);
+		return c.length() == 0 ? null : c;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getNumberCoreIdsCreated() {
+		return numberCoreIdsCreated;
+	}
+
+	/**Number of materialized subjects held, see releaseSubjects().*/
+	public int getNumberFetchedSubjects() {
+		return fetchedSubjects.size();
+	}
+
+	/**Pool holding the names of the materialized subjects.*/
+	public KeyPool getKeyPool() {
+		return keyPool;
+	}
+
+	public boolean isCaseInsensitive() {
+		return caseInsensitive;
+	}
+
+	/*Raw columns read by the BatchScorer, don't modify. Fetch them again after adding rows, they're reallocated as they grow.*/
+	int[] getDobColumn() {
+		return dobs;
+	}
+
+	long[] getMrnColumn() {
+		return mrns;
+	}
+
+	long[] getGenderKnownColumn() {
+		return genderKnown;
+	}
+
+	long[] getGenderMaleColumn() {
+		return genderMale;
+	}
+
+	/*The name comparison keys, upper cased for case insensitive searches.*/
+	PackedStrings getNameKeyColumn() {
+		return nameKeys != null ? nameKeys : names;
+	}
+
+	/**Approximate heap use of the columns and coreId index, excluding the fetched subjects.*/
+	public long estimateBytes() {
+		long b = names.estimateBytes() + coreIds.estimateBytes() + otherIds.estimateBytes();
+		if (nameKeys != null) b+= nameKeys.estimateBytes();
+		b+= 2L * lastNameLengths.length + 4L * dobs.length + 8L * mrns.length + 16L * genderKnown.length;
+		b+= 64L * nonNumericMrns.size();
+		if (coreIdTable != null) b+= 4L * coreIdTable.length;
+		return b;
+	}
+
+	/**Upper bound on the bytes taken by write(), non numeric MRNs are counted at 3 UTF-8 bytes a char.*/
+	long fetchSnapshotLength() {
+		int words = (size >> 6) + 1;
+		long b = 4 + 4 + names.fetchSnapshotLength() + 2L * size + 4L * size + 16L * words + 8L * size + 4;
+		for (String mrn: nonNumericMrns.values()) b+= 8 + 3L * mrn.length();
+		return b + coreIds.fetchSnapshotLength() + otherIds.fetchSnapshotLength();
+	}
+
+	/**Writes the columns to a snapshot, see RegistrySnapshot.*/
+	void write(RegistrySnapshot.Output out) throws IOException {
+		out.putInt(size);
+		out.putInt(numberCoreIdsCreated);
+		names.write(out);
+		out.putShorts(lastNameLengths, size);
+		out.putInts(dobs, size);
+		int words = (size >> 6) + 1;
+		out.putLongs(genderKnown, words);
+		out.putLongs(genderMale, words);
+		out.putLongs(mrns, size);
+		out.putInt(nonNumericMrns.size());
+		for (Integer row: nonNumericMrns.keySet()) {
+			byte[] mrn = nonNumericMrns.get(row).getBytes(StandardCharsets.UTF_8);
+			out.putInt(row);
+			out.putInt(mrn.length);
+			out.putBytes(mrn, mrn.length);
+		}
+		coreIds.write(out);
+		otherIds.write(out);
+	}
+
+	/**Reads the columns from a snapshot, the upper cased name keys for case insensitive searches are rebuilt.*/
+	static RegistryStore read(ByteBuffer in, boolean caseInsensitive) {
+		RegistryStore s = new RegistryStore(caseInsensitive);
+		s.size = in.getInt();
+		s.numberCoreIdsCreated = in.getInt();
+		s.names = PackedStrings.read(in);
+		s.lastNameLengths = new short[s.size];
+		in.asShortBuffer().get(s.lastNameLengths);
+		in.position(in.position()+ 2*s.size);
+		s.dobs = new int[s.size];
+		in.asIntBuffer().get(s.dobs);
+		in.position(in.position()+ 4*s.size);
+		int words = (s.size >> 6) + 1;
+		s.genderKnown = new long[words];
+		in.asLongBuffer().get(s.genderKnown);
+		in.position(in.position()+ 8*words);
+		s.genderMale = new long[words];
+		in.asLongBuffer().get(s.genderMale);
+		in.position(in.position()+ 8*words);
+		s.mrns = new long[s.size];
+		in.asLongBuffer().get(s.mrns);
+		in.position(in.position()+ 8*s.size);
+		int numNonNumeric = in.getInt();
+		for (int i=0; i< numNonNumeric; i++) {
+			int row = in.getInt();
+			byte[] mrn = new byte[in.getInt()];
+			in.get(mrn);
+			s.nonNumericMrns.put(row, new String(mrn, StandardCharsets.UTF_8));
+		}
+		s.coreIds = PackedStrings.read(in);
+		s.otherIds = PackedStrings.read(in);
+		if (caseInsensitive) {
+			for (int i=0; i< s.size; i++) s.nameKeys.add(s.names.get(i).toUpperCase());
+			s.nameKeys.trim();
+		}
+		return s;
+	}
+
+	/**Returns yyyymmdd with 0 for any missing part.*/
+	static int packDob(int month, int day, int year) {
+		return (year == -1 ? 0 : year * 10000) + (month == -1 ? 0 : month * 100) + (day == -1 ? 0 : day);
+	}
+
+	/*Numeric MRNs without leading zeros fit in a long, everything else uses the String fallback.*/
+	static long packMrn(String mrn) {
+		if (mrn.length() == 0) return MRN_MISSING;
+		if (mrn.length() > MAX_NUMERIC_MRN_LENGTH || mrn.charAt(0) == '0') return MRN_NOT_NUMERIC;
+		long n = 0;
+		for (int i=0; i< mrn.length(); i++) {
+			char c = mrn.charAt(i);
+			if (c < '0' || c > '9') return MRN_NOT_NUMERIC;
+			n = n * 10 + (c - '0');
+		}
+		return n;
+	}
+
+	private static int writeDigits(int n, char[] c, int index) {
+		if (n >= 1000) c[index++] = (char)('0' + n / 1000);
+		if (n >= 100) c[index++] = (char)('0' + (n / 100) % 10);
+		if (n >= 10) c[index++] = (char)('0' + (n / 10) % 10);
+		c[index++] = (char)('0' + n % 10);
+		return index;
+	}
+}
@@ -0,0 +1,457 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**Wall time, CPU time, and allocation for each stage of a run, the run's counters, and the throughput of each matcher thread.
+ * Written to runMetrics.json in the output directory and, with -j, registered as a JMX MBean for in process callers.
+ * Stages that read or write the registry, queries, or reports also give the file MB per second. CPU time is the whole process's, so it includes
+ * the workers. Allocation is that of the thread timing the stage plus what the matcher and query clustering workers report, other pools,
+ * e.g. the exact key lookups, aren't counted. Stages run more than once, e.g. per batch with -n or per server request, are summed.
+ * Thread safe, the match server times overlapping requests. The matching time of each query scanned by the matchers, summed over the registry chunks or tiles that scored it,
+ * goes into latency histograms, overall and by the number of missing keys, and the non PHI shape of the slowest are kept for queryDiagnostics.json.*/
+public class RunMetrics implements RunMetricsMXBean {
+
+	public static final String FILE_NAME = "runMetrics.json";
+	public static final String MBEAN_NAME = "edu.utah.hci.bioinfo.smm:type=RunMetrics";
+	public static final String DIAGNOSTICS_FILE_NAME = "queryDiagnostics.json";
+	public static final int DEFAULT_NUMBER_SLOW_QUERIES = 100;
+	//comparison key order in Subject
+	private static final String[] KEY_NAMES = {"name", "dob", "gender", "mrn"};
+
+	private long startNanos = 0;
+	private long startCpuNanos = 0;
+	private long startGcCount = 0;
+	private long startGcMillis = 0;
+	private LinkedHashMap<String, Stage> stages = new LinkedHashMap<String, Stage>();
+	private LinkedHashMap<String, Long> counters = new LinkedHashMap<String, Long>();
+	private LinkedHashMap<String, Worker> workers = new LinkedHashMap<String, Worker>();
+	private ObjectName mbeanName = null;
+	private LatencyHistogram queryLatency = new LatencyHistogram();
+	//0, 1, and 2 or more missing keys, the last pay the missingAdditionalKeyPenalty
+	private LatencyHistogram[] queryLatencyByMissing = {new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram()};
+	private int numberSlowQueries = DEFAULT_NUMBER_SLOW_QUERIES;
+	//the fastest of the slow queries on top
+	private PriorityQueue<SlowQuery> slowQueries = new PriorityQueue<SlowQuery>(11, new Comparator<SlowQuery>() {
+		public int compare(SlowQuery a, SlowQuery b) {
+			return Long.compare(a.nanos, b.nanos);
+		}
+	});
+
+	public RunMetrics() {
+		startNanos = System.nanoTime();
+		startCpuNanos = fetchProcessCpuNanos();
+		long[] gc = fetchGcCountAndMillis();
+		startGcCount = gc[0];
+		startGcMillis = gc[1];
+	}
+
+	/**Starts timing the stage on this thread, call stop() on the returned timer from the same thread when it's done.*/
+	public Timer start(String stageName) {
+		return new Timer(stageName);
+	}
+
+	/**Adds bytes allocated by a stage's worker threads.*/
+	public synchronized void addAllocation(String stageName, long bytes) {
+		fetchStage(stageName).allocatedBytes+= bytes;
+	}
+
+	/**Adds the size of a file a stage read or wrote, for its MB per second. Compressed files count their compressed size.*/
+	public synchronized void addFileBytes(String stageName, long bytes) {
+		fetchStage(stageName).fileBytes+= bytes;
+	}
+
+	public synchronized void setCounter(String name, long value) {
+		counters.put(name, value);
+	}
+
+	public synchronized void addToCounter(String name, long value) {
+		Long c = counters.get(name);
+		counters.put(name, c == null ? value : c + value);
+	}
+
+	/**Adds the finished matchers' work to their threads' totals and their allocation to the stage.*/
+	public synchronized void addWorkers(String stageName, MatcherEngine[] matchers) {
+		for (MatcherEngine me: matchers) {
+			addWorker(me);
+			if (me.getAllocatedBytes() > 0) addAllocation(stageName, me.getAllocatedBytes());
+		}
+	}
+
+	/**Adds a finished matcher's work to the totals of the thread it ran on, not its allocation, see addAllocation().*/
+	public synchronized void addWorker(MatcherEngine me) {
+		if (me.getThreadName() == null) return;
+		Worker w = workers.get(me.getThreadName());
+		if (w == null) {
+			w = new Worker();
+			workers.put(me.getThreadName(), w);
+		}
+		w.numberSearches+= me.getNumberQueries();
+		w.numberComparisons+= me.getNumberComparisons();
+		w.numberPruned+= me.getNumberPruned();
+		w.busyNanos+= me.getBusyNanos();
+		if (me.getCpuNanos() > 0) w.cpuNanos+= me.getCpuNanos();
+		if (me.getAllocatedBytes() > 0) w.allocatedBytes+= me.getAllocatedBytes();
+		w.maxCandidates = Math.max(w.maxCandidates, me.getMaxCandidates());
+	}
+
+	/**Records the matching time of each query, summed over the matchers' registry ranges, call once their top hits are set.*/
+	public void addQueries(Subject[] queries, MatcherEngine[] matchers) {
+		long[] nanos = new long[queries.length];
+		int[] candidates = new int[queries.length];
+		int[] pruned = new int[queries.length];
+		for (MatcherEngine me: matchers) {
+			long[] n = me.getQueryNanos();
+			int[] c = me.getQueryCandidates();
+			int[] p = me.getQueryPruned();
+			if (n == null) continue;
+			for (int i=0; i< n.length; i++) {
+				nanos[i]+= n[i];
+				candidates[i]+= c[i];
+				pruned[i]+= p[i];
+			}
+		}
+		addQueries(queries, nanos, candidates, pruned);
+	}
+
+	/**Records the matching time, rows scored or pruned, and rows pruned of each query, call once their top hits are set.*/
+	public synchronized void addQueries(Subject[] queries, long[] nanos, int[] candidates, int[] pruned) {
+		for (int i=0; i< queries.length; i++) {
+			int numberMissing = 0;
+			for (String k: queries[i].getComparisonKeys()) if (k.length() == 0) numberMissing++;
+			queryLatency.record(nanos[i]);
+			queryLatencyByMissing[Math.min(2, numberMissing)].record(nanos[i]);
+			if (numberSlowQueries == 0) continue;
+			if (slowQueries.size() == numberSlowQueries) {
+				if (slowQueries.peek().nanos >= nanos[i]) continue;
+				slowQueries.poll();
+			}
+			slowQueries.add(new SlowQuery(queries[i], nanos[i], candidates[i], pruned[i]));
+		}
+	}
+
+	/**Number of the slowest queries to keep, defaults to 100.*/
+	public synchronized void setNumberSlowQueries(int numberSlowQueries) {
+		this.numberSlowQueries = Math.max(0, numberSlowQueries);
+		while (slowQueries.size() > this.numberSlowQueries) slowQueries.poll();
+	}
+
+	private Stage fetchStage(String name) {
+		Stage s = stages.get(name);
+		if (s == null) {
+			s = new Stage();
+			stages.put(name, s);
+		}
+		return s;
+	}
+
+	/**The metrics as json, stages in the order first run.*/
+	public synchronized JSONObject toJson() {
+		JSONObject jo = new JSONObject();
+		double wallSec = (System.nanoTime() - startNanos) / 1000000000.0;
+		jo.put("wallSec", round(wallSec));
+		if (startCpuNanos != -1) jo.put("cpuSec", round((fetchProcessCpuNanos() - startCpuNanos) / 1000000000.0));
+		long[] gc = fetchGcCountAndMillis();
+		jo.put("gcCount", gc[0] - startGcCount);
+		jo.put("gcSec", round((gc[1] - startGcMillis) / 1000.0));
+		jo.put("peakHeapUsedMB", round(fetchPeakHeapUsed() / 1048576.0));
+		jo.put("maxHeapMB", round(Runtime.getRuntime().maxMemory() / 1048576.0));
+		jo.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+
+		JSONArray sa = new JSONArray();
+		for (Map.Entry<String, Stage> e: stages.entrySet()) {
+			Stage s = e.getValue();
+			JSONObject so = new JSONObject();
+			so.put("name", e.getKey());
+			so.put("calls", s.calls);
+			double sec = s.wallNanos / 1000000000.0;
+			so.put("wallSec", round(sec));
+			if (startCpuNanos != -1) {
+				so.put("cpuSec", round(s.cpuNanos / 1000000000.0));
+				//the threads kept busy on average
+				if (sec > 0) so.put("cpuPerWallSec", round(s.cpuNanos / 1000000000.0 / sec));
+			}
+			if (isAllocationSupported()) {
+				so.put("allocatedMB", round(s.allocatedBytes / 1048576.0));
+				if (sec > 0) so.put("allocatedMBPerSec", round(s.allocatedBytes / 1048576.0 / sec));
+			}
+			if (s.fileBytes > 0) {
+				so.put("fileMB", round(s.fileBytes / 1048576.0));
+				if (sec > 0) so.put("fileMBPerSec", round(s.fileBytes / 1048576.0 / sec));
+			}
+			sa.put(so);
+		}
+		jo.put("stages", sa);
+
+		JSONObject co = new JSONObject();
+		for (Map.Entry<String, Long> e: counters.entrySet()) co.put(e.getKey(), e.getValue());
+		//rows scored or pruned per query that went to the matchers, summed over the registry chunks
+		Long comparisons = counters.get("comparisons");
+		Long scanned = counters.get("queriesScanned");
+		if (comparisons != null && scanned != null && scanned > 0) co.put("candidatesPerQuery", round((double)comparisons / scanned));
+		long maxCandidates = 0;
+		for (Worker w: workers.values()) maxCandidates = Math.max(maxCandidates, w.maxCandidates);
+		if (workers.size() != 0) co.put("maxCandidatesPerSearch", maxCandidates);
+		jo.put("counters", co);
+
+		JSONArray wa = new JSONArray();
+		for (Map.Entry<String, Worker> e: workers.entrySet()) {
+			Worker w = e.getValue();
+			JSONObject wo = new JSONObject();
+			wo.put("thread", e.getKey());
+			wo.put("searches", w.numberSearches);
+			wo.put("comparisons", w.numberComparisons);
+			wo.put("pruned", w.numberPruned);
+			double sec = w.busyNanos / 1000000000.0;
+			wo.put("busySec", round(sec));
+			if (sec > 0) wo.put("comparisonsPerSec", Math.round(w.numberComparisons / sec));
+			if (ManagementFactory.getThreadMXBean().isThreadCpuTimeSupported()) wo.put("cpuSec", round(w.cpuNanos / 1000000000.0));
+			if (isAllocationSupported()) wo.put("allocatedMB", round(w.allocatedBytes / 1048576.0));
+			wa.put(wo);
+		}
+		jo.put("matcherThreads", wa);
+		jo.put("queryLatency", queryLatency.toJson());
+		return jo;
+	}
+
+	/**The query latency histograms, overall and by the number of missing keys, and the slowest queries, slowest first. 
+	 * No PHI, just the shape of each query: its data line index, missing keys, and key lengths.*/
+	public synchronized JSONObject fetchDiagnosticsJson() {
+		JSONObject jo = new JSONObject();
+		jo.put("queryLatency", queryLatency.toJson());
+		JSONObject byMissing = new JSONObject();
+		byMissing.put("0", queryLatencyByMissing[0].toJson());
+		byMissing.put("1", queryLatencyByMissing[1].toJson());
+		byMissing.put("2+", queryLatencyByMissing[2].toJson());
+		jo.put("queryLatencyByMissingKeys", byMissing);
+		ArrayList<SlowQuery> slow = new ArrayList<SlowQuery>(slowQueries);
+		Collections.sort(slow, Collections.reverseOrder(slowQueries.comparator()));
+		JSONArray sa = new JSONArray();
+		for (SlowQuery sq: slow) sa.put(sq.toJson());
+		jo.put("slowestQueries", sa);
+		return jo;
+	}
+
+	/**Writes queryDiagnostics.json to the directory.*/
+	public void writeDiagnostics(File directory) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(new File(directory, DIAGNOSTICS_FILE_NAME)));
+		out.println(fetchDiagnosticsJson().toString(2));
+		out.close();
+	}
+
+	/**Writes runMetrics.json to the directory.*/
+	public void write(File directory) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(new File(directory, FILE_NAME)));
+		out.println(toJson().toString(2));
+		out.close();
+	}
+
+	/**Registers these metrics with the platform MBean server, replacing those of a prior run in this JVM.*/
+	public void registerMBean() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(MBEAN_NAME);
+		if (server.isRegistered(name)) server.unregisterMBean(name);
+		server.registerMBean(this, name);
+		mbeanName = name;
+	}
+
+	/**Removes the MBean if this registered it.*/
+	public void unregisterMBean() {
+		if (mbeanName == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		} catch (Exception e) {
+			//already replaced by a later run
+		}
+		mbeanName = null;
+	}
+
+	public synchronized Map<String, Long> getStageWallMillis() {
+		LinkedHashMap<String, Long> m = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, Stage> e: stages.entrySet()) m.put(e.getKey(), e.getValue().wallNanos / 1000000);
+		return m;
+	}
+
+	public synchronized Map<String, Long> getStageCpuMillis() {
+		LinkedHashMap<String, Long> m = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, Stage> e: stages.entrySet()) m.put(e.getKey(), e.getValue().cpuNanos / 1000000);
+		return m;
+	}
+
+	public synchronized Map<String, Long> getStageAllocatedBytes() {
+		LinkedHashMap<String, Long> m = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, Stage> e: stages.entrySet()) m.put(e.getKey(), e.getValue().allocatedBytes);
+		return m;
+	}
+
+	public synchronized Map<String, Long> getCounters() {
+		return new LinkedHashMap<String, Long>(counters);
+	}
+
+	public synchronized Map<String, Double> getQueryLatencyMillis() {
+		LinkedHashMap<String, Double> m = new LinkedHashMap<String, Double>();
+		m.put("p50", LatencyHistogram.toMillis(queryLatency.getValueAtPercentile(50)));
+		m.put("p90", LatencyHistogram.toMillis(queryLatency.getValueAtPercentile(90)));
+		m.put("p99", LatencyHistogram.toMillis(queryLatency.getValueAtPercentile(99)));
+		m.put("max", LatencyHistogram.toMillis(queryLatency.getMax()));
+		return m;
+	}
+
+	public String getJson() {
+		return toJson().toString();
+	}
+
+	/**CPU time of the whole process, -1 if the JVM doesn't report it.*/
+	public static long fetchProcessCpuNanos() {
+		java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+		return -1;
+	}
+
+	/**CPU time of the calling thread, -1 if not supported.*/
+	public static long fetchThreadCpuNanos() {
+		java.lang.management.ThreadMXBean tb = ManagementFactory.getThreadMXBean();
+		if (tb.isCurrentThreadCpuTimeSupported() == false) return -1;
+		return tb.getCurrentThreadCpuTime();
+	}
+
+	/**Bytes allocated by the calling thread so far, -1 if not supported.*/
+	public static long fetchThreadAllocatedBytes() {
+		java.lang.management.ThreadMXBean tb = ManagementFactory.getThreadMXBean();
+		if (isAllocationSupported() == false) return -1;
+		return ((com.sun.management.ThreadMXBean)tb).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	public static boolean isAllocationSupported() {
+		java.lang.management.ThreadMXBean tb = ManagementFactory.getThreadMXBean();
+		return tb instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean)tb).isThreadAllocatedMemoryEnabled();
+	}
+
+	private static long[] fetchGcCountAndMillis() {
+		long count = 0;
+		long millis = 0;
+		for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+			count+= Math.max(0, gc.getCollectionCount());
+			millis+= Math.max(0, gc.getCollectionTime());
+		}
+		return new long[] {count, millis};
+	}
+
+	private static long fetchPeakHeapUsed() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) peak+= pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+
+	private static double round(double d) {
+		return Math.round(d * 1000) / 1000.0;
+	}
+
+	/**Times one run of a stage on the calling thread.*/
+	public class Timer {
+		private String stageName;
+		private long wallStart;
+		private long cpuStart;
+		private long allocatedStart;
+
+		private Timer(String stageName) {
+			this.stageName = stageName;
+			wallStart = System.nanoTime();
+			cpuStart = fetchProcessCpuNanos();
+			allocatedStart = fetchThreadAllocatedBytes();
+		}
+
+		/**Adds this run to the stage.*/
+		public void stop() {
+			long wall = System.nanoTime() - wallStart;
+			long cpu = cpuStart == -1 ? 0 : fetchProcessCpuNanos() - cpuStart;
+			long allocated = allocatedStart == -1 ? 0 : fetchThreadAllocatedBytes() - allocatedStart;
+			synchronized (RunMetrics.this) {
+				Stage s = fetchStage(stageName);
+				s.calls++;
+				s.wallNanos+= wall;
+				s.cpuNanos+= cpu;
+				s.allocatedBytes+= allocated;
+			}
+		}
+	}
+
+	private static class Stage {
+		private long calls = 0;
+		private long wallNanos = 0;
+		private long cpuNanos = 0;
+		private long allocatedBytes = 0;
+		private long fileBytes = 0;
+	}
+
+	/*Non PHI shape of a slow query.*/
+	private static class SlowQuery {
+		private int dataLineIndex;
+		private long nanos;
+		private int candidates;
+		private int pruned;
+		private int[] keyLengths;
+		private double bestScore = -1;
+
+		SlowQuery(Subject query, long nanos, int candidates, int pruned) {
+			dataLineIndex = query.getDataLineIndex();
+			this.nanos = nanos;
+			this.candidates = candidates;
+			this.pruned = pruned;
+			String[] keys = query.getComparisonKeys();
+			keyLengths = new int[keys.length];
+			for (int i=0; i< keys.length; i++) keyLengths[i] = keys[i].length();
+			double[] scores = query.getTopMatchScores();
+			if (scores != null && scores.length != 0) bestScore = scores[0];
+		}
+
+		JSONObject toJson() {
+			JSONObject jo = new JSONObject();
+			jo.put("dataLineIndex", dataLineIndex);
+			jo.put("ms", LatencyHistogram.toMillis(nanos));
+			jo.put("candidates", candidates);
+			jo.put("pruned", pruned);
+			StringBuilder missing = new StringBuilder();
+			int numberMissing = 0;
+			for (int i=0; i< keyLengths.length; i++) {
+				if (keyLengths[i] != 0) continue;
+				if (numberMissing++ != 0) missing.append(",");
+				missing.append(i < KEY_NAMES.length ? KEY_NAMES[i] : Integer.toString(i));
+			}
+			jo.put("missingKeys", missing.toString());
+			jo.put("numberMissingKeys", numberMissing);
+			jo.put("nameLength", keyLengths[0]);
+			if (keyLengths.length > 3) jo.put("mrnLength", keyLengths[3]);
+			if (bestScore != -1) jo.put("bestScore", Math.round(bestScore * 1000) / 1000.0);
+			return jo;
+		}
+	}
+
+	private static class Worker {
+		private long numberSearches = 0;
+		private long numberComparisons = 0;
+		private long numberPruned = 0;
+		private long busyNanos = 0;
+		private long cpuNanos = 0;
+		private long allocatedBytes = 0;
+		private long maxCandidates = 0;
+	}
+}
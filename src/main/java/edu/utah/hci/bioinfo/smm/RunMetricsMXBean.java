@@ -0,0 +1,25 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.util.Map;
+
+/**JMX view of a RunMetrics, registered as RunMetrics.MBEAN_NAME with -j.*/
+public interface RunMetricsMXBean {
+
+	/**Wall time of each stage so far.*/
+	public Map<String, Long> getStageWallMillis();
+
+	/**Process CPU time of each stage so far, all threads.*/
+	public Map<String, Long> getStageCpuMillis();
+
+	/**Bytes allocated by each stage's timing thread and its matcher and clustering workers.*/
+	public Map<String, Long> getStageAllocatedBytes();
+
+	/**Run counters, e.g. comparisons and pruned.*/
+	public Map<String, Long> getCounters();
+
+	/**p50, p90, p99, and max matching time of the queries scanned by the matchers so far.*/
+	public Map<String, Double> getQueryLatencyMillis();
+
+	/**The runMetrics.json content.*/
+	public String getJson();
+}
@@ -30,12 +30,15 @@ public class Subject implements Comparable<Subject> {
 	public static final Pattern LEADING_ZEROs = Pattern.compile("^0+");
 	private boolean updateTopMatchKeys = false;
 	private boolean fieldsWereUpdated = false;
+	private int registryIndex = -1;
+	private int dataLineIndex = -1;
 	
 	
 	//constructor
 	public Subject(int dataLineIndex, String[] t, boolean addCoreId, CoreId coreIdMaker, boolean isQuery, boolean isCaseInsensitive, boolean updateTopMatchKeys) throws IOException {
 		this.isQuery = isQuery;
 		this.updateTopMatchKeys = updateTopMatchKeys;
+		this.dataLineIndex = dataLineIndex;
 		
 		//required: lastName firstName dobMonth dobDay dobYear gender mrn 
 		//             0        1          2       3      4      5     6
@@ -69,10 +72,12 @@ public class Subject implements Comparable<Subject> {
 		if (t[5].length()!=0) {
 			gender = t[5];
 			if (gender.equals("M") == false && gender.equals("F") == false) throw new IOException("ERROR: the gender field '"+t[5]+"' is malformed, must be M or F, in subject dataline index : "+dataLineIndex);
+			//the literal rather than the parsed copy so all subjects share it
+			gender = gender.equals("M") ? "M" : "F";
 		}
 
 		//strip off any leading zeros, e.g. 0012345
-		if (t[6].length()!=0) mrn = LEADING_ZEROs.matcher(t[6]).replaceAll("");
+		if (t[6].length()!=0) mrn = stripLeadingZeros(t[6]);
 		
 
 		if (t.length > 7 && t[7].length()!=0) {
@@ -94,6 +99,22 @@ public class Subject implements Comparable<Subject> {
 	}
 	
 	
+	/**Materializes a registry subject from the RegistryStore, fields have already been validated.*/
+	Subject(int registryIndex, String lastName, String firstName, int dobMonth, int dobDay, int dobYear, String gender, String mrn, String coreId, 
+			String[] otherSubjectIds, boolean isCaseInsensitive) {
+		this.registryIndex = registryIndex;
+		this.lastName = lastName;
+		this.firstName = firstName;
+		this.dobMonth = dobMonth;
+		this.dobDay = dobDay;
+		this.dobYear = dobYear;
+		this.gender = gender;
+		this.mrn = mrn;
+		this.coreId = coreId;
+		this.otherSubjectIds = otherSubjectIds;
+		makeComparisonKeys(isCaseInsensitive);
+	}
+	
 	public JSONObject fetchJson(boolean includeScore) throws IOException {
 		JSONObject query = new JSONObject();
 		if (lastName.length()!=0) query.put("lastName", lastName);
@@ -191,35 +212,43 @@ public class Subject implements Comparable<Subject> {
 
 
 
-	/**Leave missing data as "", these will be skipped.*/
+	/**Same as LEADING_ZEROs.matcher(s).replaceAll(""), without the regex.*/
+	static String stripLeadingZeros(String s) {
+		int i = 0;
+		while (i < s.length() && s.charAt(i) == '0') i++;
+		return i == 0 ? s : s.substring(i);
+	}
+
+	/**Leave missing data as "", these will be skipped. The DoB key is shared, see KeyPool.fetchDobKey(), and a lone name is its own key.*/
 	private void makeComparisonKeys(boolean caseInsensitive) {
-		String dob = "";
-		if (dobMonth!=-1 && dobDay!=-1 && dobYear!=-1) dob = dobMonth+"/"+dobDay+"/"+dobYear;
+		String name = lastName;
+		if (lastName.length() == 0) name = firstName;
+		else if (firstName.length() != 0) name = lastName+ firstName;
 		comparisonKeys = new String[] {
-				lastName+ firstName,
-				dob,
+				name,
+				KeyPool.fetchDobKey(dobMonth, dobDay, dobYear),
 				gender,
 				mrn
 		};
+		//returns the same String if already upper case
 		if (caseInsensitive) comparisonKeys[0] = comparisonKeys[0].toUpperCase();
 	}
 
-	public synchronized void addTopCandidates(Subject[] topHits) {
-		// yet instantiated?
-		if (topMatches == null) {
-			topMatches = topHits;
-			topMatchScores = new double[topHits.length];
-			for (int i=0; i< topHits.length; i++) topMatchScores[i] = topHits[i].getScore();
-		}
-		else {
-			//for each topHit from the chunk, compare to what this subject has already seen
-			for (int i=0; i< topHits.length; i++) {
-				if (topHits[i].getScore() < topMatchScores[i]) {
-					topMatches[i] = topHits[i];
-					topMatchScores[i] = topHits[i].getScore();
-				}
-			}
-		}
+	/**Replaces the names with equal pooled Strings so common names are held once. Call before the subject is shared between threads.*/
+	void shareNames(KeyPool pool) {
+		String last = lastName;
+		String first = firstName;
+		lastName = pool.share(lastName);
+		firstName = pool.share(firstName);
+		if (comparisonKeys[0] == last) comparisonKeys[0] = lastName;
+		else if (comparisonKeys[0] == first) comparisonKeys[0] = firstName;
+	}
+
+	/**@param topHits registry subjects sorted best to worst, merged from all of the matchers
+	 * @param scores their match scores, the scores in the subjects aren't used since these are shared between queries*/
+	public void setTopCandidates(Subject[] topHits, double[] scores) {
+		topMatches = topHits;
+		topMatchScores = scores;
 	}
 
 	public String toString() {
@@ -282,10 +311,8 @@ public class Subject implements Comparable<Subject> {
 	
 	/**Leave missing data as "", these will be skipped.*/
 	private void addComparisonKeys(StringBuilder sb) {
-		String dob = "";
-		if (dobMonth!=-1 && dobDay!=-1 && dobYear!=-1) dob = dobMonth+"/"+dobDay+"/"+dobYear;
 		sb.append(lastName); sb.append(firstName); sb.append("|");
-		sb.append(dob); sb.append("|");
+		sb.append(KeyPool.fetchDobKey(dobMonth, dobDay, dobYear)); sb.append("|");
 		sb.append(gender); sb.append("|");
 		sb.append(mrn); 
 	}
@@ -391,6 +418,16 @@ public class Subject implements Comparable<Subject> {
 		return fieldsWereUpdated;
 	}
 
+	/**Returns the row of this subject in the RegistryStore, -1 if not a registry subject.*/
+	public int getRegistryIndex() {
+		return registryIndex;
+	}
+
+	/**Returns the index of the data line this subject was parsed from, -1 if materialized from the RegistryStore.*/
+	public int getDataLineIndex() {
+		return dataLineIndex;
+	}
+
 
 
 
@@ -0,0 +1,411 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**Parses a registry or query file in parallel. Plain files are cut into byte ranges at newline boundaries that the threads read and parse themselves,
+ * gzip and zip files are decompressed ahead by their own thread into newline aligned blocks for the parsing threads. Lines are split with a tab scanner,
+ * not a regex, and validated by the Subject constructor, the blocks are then added in file order. A bad line throws the same exception,
+ * with the same data line index, as a line by line read would, and the lines before it are the only ones added.
+ * Lines end with \n, \r, or \r\n as with BufferedReader.readLine(). Files in a default charset that isn't ASCII compatible are read line by line.*/
+public class SubjectFileLoader {
+
+	//bytes per parse task, large enough to amortize the task, small enough to balance the threads
+	private static final int BLOCK_SIZE = 1 << 20;
+	//parse tasks in flight per thread, bounds the parsed blocks held waiting for their turn
+	private static final int BLOCKS_PER_THREAD = 2;
+	//same as the FileReader used for line by line reads
+	private static final Charset CHARSET = Charset.defaultCharset();
+	private static final boolean ASCII_COMPATIBLE = isAsciiCompatible(CHARSET);
+
+	private int numberThreads = 0;
+	private boolean isRegistry = false;
+	private CoreId coreIdMaker = null;
+	private boolean caseInsensitive = false;
+	private boolean updateTopMatchKeys = false;
+	private int blockSize = BLOCK_SIZE;
+	private KeyPool keyPool = null;
+
+	/**@param isRegistry true to create coreIds for registry subjects missing one, false for queries, whose single column lines are coreIds to look up.*/
+	public SubjectFileLoader(int numberThreads, boolean isRegistry, CoreId coreIdMaker, boolean caseInsensitive, boolean updateTopMatchKeys) {
+		this.numberThreads = Math.max(1, numberThreads);
+		this.isRegistry = isRegistry;
+		this.coreIdMaker = coreIdMaker;
+		this.caseInsensitive = caseInsensitive;
+		this.updateTopMatchKeys = updateTopMatchKeys;
+		if (isRegistry == false) keyPool = new KeyPool();
+	}
+
+	/**Parses the registry file into a new RegistryStore.*/
+	public RegistryStore loadRegistry(File file) throws IOException {
+		final RegistryStore store = new RegistryStore(caseInsensitive);
+		load(file, new BlockSink() {
+			public void add(ParsedBlock block) throws IOException {
+				for (Subject s: block.subjects) store.add(s);
+			}
+		});
+		store.trim();
+		return store;
+	}
+
+	/**Parses the query file, single column lines are added to the coreIds.*/
+	public Subject[] loadQueries(File file, final ArrayList<String> coreIds) throws IOException {
+		final ArrayList<Subject> queries = new ArrayList<Subject>();
+		load(file, new BlockSink() {
+			public void add(ParsedBlock block) {
+				queries.addAll(block.subjects);
+				coreIds.addAll(block.coreIds);
+			}
+		});
+		return queries.toArray(new Subject[queries.size()]);
+	}
+
+	/*Parses the blocks in parallel and hands them to the sink in file order.*/
+	private void load(File file, BlockSink sink) throws IOException {
+		if (ASCII_COMPATIBLE == false) {
+			loadLines(file, sink);
+			return;
+		}
+		BlockSource source = null;
+		ExecutorService executor = Executors.newFixedThreadPool(numberThreads);
+		try {
+			String name = file.getName().toLowerCase();
+			if (name.endsWith(".gz") || name.endsWith(".zip")) source = new StreamSource(file, numberThreads * BLOCKS_PER_THREAD);
+			else source = new RangeSource(file);
+
+			ArrayDeque<Future<ParsedBlock>> inFlight = new ArrayDeque<Future<ParsedBlock>>();
+			int numberDataLines = 0;
+			boolean more = true;
+			while (true) {
+				while (more && inFlight.size() < numberThreads * BLOCKS_PER_THREAD) {
+					final Block block = source.next();
+					if (block == null) more = false;
+					else inFlight.add(executor.submit(new Callable<ParsedBlock>() {
+						public ParsedBlock call() throws IOException {
+							return parseBlock(block);
+						}
+					}));
+				}
+				if (inFlight.isEmpty()) break;
+				ParsedBlock parsed = inFlight.poll().get();
+				//parse the bad line again with its index in the file for the same exception
+				if (parsed.failedFields != null) {
+					parseLine(parsed.failedFields, numberDataLines + parsed.numberDataLines, new ParsedBlock());
+					throw new IOException("ERROR: failed to parse the subject at dataline index : "+ (numberDataLines + parsed.numberDataLines)+ " "+parsed.failure);
+				}
+				sink.add(parsed);
+				numberDataLines+= parsed.numberDataLines;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("ERROR: interrupted while loading "+file, e);
+		} catch (ExecutionException e) {
+			throw new IOException("ERROR: problem loading "+file+" "+e.getCause(), e.getCause());
+		} finally {
+			executor.shutdownNow();
+			if (source != null) source.close();
+		}
+	}
+
+	/*Splits the block into lines and parses them, stopping at the first bad line.*/
+	private ParsedBlock parseBlock(Block block) throws IOException {
+		byte[] bytes = block.fetchBytes();
+		int length = block.length;
+		ParsedBlock parsed = new ParsedBlock();
+		int lineStart = 0;
+		while (lineStart < length) {
+			//find the end of the line
+			int lineEnd = lineStart;
+			while (lineEnd < length && bytes[lineEnd] != '\n' && bytes[lineEnd] != '\r') lineEnd++;
+			int next = lineEnd + 1;
+			if (lineEnd < length && bytes[lineEnd] == '\r' && next < length && bytes[next] == '\n') next++;
+
+			if (lineEnd != lineStart && bytes[lineStart] != '#') {
+				String[] fields = splitTabs(bytes, lineStart, lineEnd);
+				try {
+					parseLine(fields, parsed.numberDataLines, parsed);
+				} catch (Exception e) {
+					parsed.failedFields = splitTabs(bytes, lineStart, lineEnd);
+					parsed.failure = e;
+					return parsed;
+				}
+				parsed.numberDataLines++;
+			}
+			lineStart = next;
+		}
+		return parsed;
+	}
+
+	/*Adds the subject or single column coreId to the block, throws as a line by line read would.*/
+	private void parseLine(String[] fields, int dataLineIndex, ParsedBlock parsed) throws IOException {
+		if (isRegistry) parsed.subjects.add(new Subject(dataLineIndex, fields, true, coreIdMaker, false, caseInsensitive, updateTopMatchKeys));
+		else if (fields.length == 1) parsed.coreIds.add(fields[0]);
+		else {
+			Subject s = new Subject(dataLineIndex, fields, false, coreIdMaker, true, caseInsensitive, updateTopMatchKeys);
+			s.shareNames(keyPool);
+			parsed.subjects.add(s);
+		}
+	}
+
+	/**Splits the bytes from start to stop-1 on tabs, decoding each field, with the same fields as Util.TAB.split() of the decoded line.
+	 * The charset must be ASCII compatible so a tab byte is always a tab.*/
+	static String[] splitTabs(byte[] bytes, int start, int stop) {
+		int numberFields = 1;
+		for (int i=start; i< stop; i++) if (bytes[i] == '\t') numberFields++;
+		if (numberFields == 1) return new String[] {new String(bytes, start, stop - start, CHARSET)};
+		//drop the trailing empty fields
+		int end = stop;
+		while (numberFields > 0 && (end == start || bytes[end - 1] == '\t')) {
+			numberFields--;
+			end--;
+		}
+		String[] fields = new String[numberFields];
+		int fieldStart = start;
+		for (int f=0; f< numberFields; f++) {
+			int fieldStop = fieldStart;
+			while (fieldStop < end && bytes[fieldStop] != '\t') fieldStop++;
+			fields[f] = new String(bytes, fieldStart, fieldStop - fieldStart, CHARSET);
+			fieldStart = fieldStop + 1;
+		}
+		return fields;
+	}
+
+	/*Line by line, for charsets where a byte scan can't find the tabs and newlines.*/
+	private void loadLines(File file, BlockSink sink) throws IOException {
+		BufferedReader in = Util.fetchBufferedReader(file);
+		ParsedBlock parsed = new ParsedBlock();
+		String line = null;
+		try {
+			while ((line = in.readLine())!= null) {
+				if (line.length()==0 || line.startsWith("#"))continue;
+				parseLine(Util.splitTabs(line), parsed.numberDataLines, parsed);
+				parsed.numberDataLines++;
+			}
+		} finally {
+			in.close();
+		}
+		sink.add(parsed);
+	}
+
+	private static boolean isAsciiCompatible(Charset charset) {
+		String test = "\t\n\r#.0123456789ABCXYZabcxyz";
+		return Arrays.equals(test.getBytes(charset), test.getBytes(StandardCharsets.US_ASCII)) &&
+				(charset.equals(StandardCharsets.UTF_8) || charset.newEncoder().maxBytesPerChar() == 1);
+	}
+
+	/**Pool for the query names, see Subject.shareNames(), each query loader has its own by default.*/
+	public void setKeyPool(KeyPool keyPool) {
+		this.keyPool = keyPool;
+	}
+
+	/**Bytes per block, for testing the block boundaries, defaults to 1MB.*/
+	public void setBlockSize(int blockSize) {
+		this.blockSize = Math.max(1, blockSize);
+	}
+
+	private interface BlockSink {
+		void add(ParsedBlock block) throws IOException;
+	}
+
+	private interface BlockSource {
+		/*The next newline aligned block in file order, null when done.*/
+		Block next() throws IOException, InterruptedException;
+		void close();
+	}
+
+	/*Newline aligned bytes, read by the parsing thread from the file range if not already loaded.*/
+	private static class Block {
+		private byte[] bytes = null;
+		private int length = 0;
+		private FileChannel channel = null;
+		private long start = 0;
+
+		Block(byte[] bytes, int length) {
+			this.bytes = bytes;
+			this.length = length;
+		}
+
+		Block(FileChannel channel, long start, long stop) {
+			this.channel = channel;
+			this.start = start;
+			length = (int)(stop - start);
+		}
+
+		byte[] fetchBytes() throws IOException {
+			if (bytes != null) return bytes;
+			bytes = new byte[length];
+			ByteBuffer bb = ByteBuffer.wrap(bytes);
+			while (bb.hasRemaining()) {
+				if (channel.read(bb, start + bb.position()) == -1) throw new IOException("ERROR: the file was truncated while loading it.");
+			}
+			return bytes;
+		}
+	}
+
+	private static class ParsedBlock {
+		private ArrayList<Subject> subjects = new ArrayList<Subject>();
+		private ArrayList<String> coreIds = new ArrayList<String>(0);
+		private int numberDataLines = 0;
+		//the first bad line, its index is numberDataLines
+		private String[] failedFields = null;
+		private Exception failure = null;
+	}
+
+	/*Cuts a plain file into ranges ending just after a \n, the parsing threads read their range.*/
+	private class RangeSource implements BlockSource {
+		private RandomAccessFile raf;
+		private FileChannel channel;
+		private long size;
+		private long position = 0;
+
+		RangeSource(File file) throws IOException {
+			raf = new RandomAccessFile(file, "r");
+			channel = raf.getChannel();
+			size = channel.size();
+		}
+
+		public Block next() throws IOException {
+			if (position >= size) return null;
+			long stop = Math.min(size, position + blockSize);
+			//extend to just past the next \n
+			ByteBuffer probe = ByteBuffer.allocate(8192);
+			long p = stop - 1;
+			while (stop < size) {
+				probe.clear();
+				int n = channel.read(probe, p);
+				if (n <= 0) {
+					stop = size;
+					break;
+				}
+				int i = 0;
+				while (i < n && probe.get(i) != '\n') i++;
+				if (i < n) {
+					stop = p + i + 1;
+					break;
+				}
+				p+= n;
+				if (p >= size) stop = size;
+			}
+			Block block = new Block(channel, position, stop);
+			position = stop;
+			return block;
+		}
+
+		public void close() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				//read only
+			}
+		}
+	}
+
+	/*Decompresses ahead on its own thread into newline aligned blocks, at most queueSize are waiting to be parsed.
+	 * Only the thread reads and closes the stream, so close() never closes the inflater under a read in progress.*/
+	private class StreamSource implements BlockSource, Runnable {
+		//how often a thread blocked on a full queue checks for close()
+		private static final long OFFER_MILLIS = 50;
+		private InputStream in;
+		private ArrayBlockingQueue<Block> queue;
+		private Thread thread;
+		private volatile Exception failure = null;
+		private volatile boolean closed = false;
+		private boolean done = false;
+
+		StreamSource(File file, int queueSize) throws IOException {
+			in = FileStreams.fetchDecompressingStream(file);
+			queue = new ArrayBlockingQueue<Block>(queueSize);
+			thread = new Thread(this, "SubjectFileLoader-decompress");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public void run() {
+			try {
+				byte[] buffer = new byte[blockSize];
+				int filled = 0;
+				while (closed == false) {
+					int n = in.read(buffer, filled, buffer.length - filled);
+					if (n == -1) break;
+					filled+= n;
+					if (filled < buffer.length) continue;
+					//hand off through the last \n, keep the partial line, grow if there's no \n
+					int last = filled - 1;
+					while (last >= 0 && buffer[last] != '\n') last--;
+					if (last == -1) {
+						buffer = Arrays.copyOf(buffer, buffer.length * 2);
+						continue;
+					}
+					if (put(new Block(buffer, last + 1)) == false) break;
+					byte[] next = new byte[Math.max(blockSize, filled - last - 1)];
+					System.arraycopy(buffer, last + 1, next, 0, filled - last - 1);
+					filled = filled - last - 1;
+					buffer = next;
+				}
+				if (filled != 0 && closed == false) put(new Block(buffer, filled));
+			} catch (InterruptedException e) {
+				//abandoned
+			} catch (Exception e) {
+				failure = e;
+			} finally {
+				try {
+					in.close();
+				} catch (IOException e) {
+					//read only
+				}
+			}
+			try {
+				//empty block marks the end
+				put(new Block(new byte[0], 0));
+			} catch (InterruptedException e) {
+				//abandoned
+			}
+		}
+
+		/*Waits for room in the queue, false if closed first.*/
+		private boolean put(Block block) throws InterruptedException {
+			while (closed == false) {
+				if (queue.offer(block, OFFER_MILLIS, TimeUnit.MILLISECONDS)) return true;
+			}
+			return false;
+		}
+
+		public Block next() throws IOException, InterruptedException {
+			if (done) return null;
+			Block block = queue.take();
+			if (block.length != 0) return block;
+			done = true;
+			if (failure != null) throw new IOException("ERROR: problem decompressing the file. "+failure, failure);
+			return null;
+		}
+
+		/*Stops the thread and waits for it to close the stream, at most the one read in progress.*/
+		public void close() {
+			if (closed) return;
+			closed = true;
+			queue.clear();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -1,21 +1,23 @@
 package edu.utah.hci.bioinfo.smm;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.json.JSONWriter;
 
 /**Consider 
  encrypting:
@@ -34,25 +36,60 @@ public class SubjectMatchMaker {
 	private boolean verbose = true;
 	private boolean caseInsensitive = false;
 	private boolean updateRegistryWithQuerySubjects = false;
+	private boolean exhaustiveScan = false;
+	private boolean forceBlocking = false;
+	private int serverPort = -1;
+	private int queryBatchSize = 0;
+	private String scheduler = null;
+	private double matchTimeoutMinutes = 0;
+	private boolean registerMBean = false;
+	private boolean gzipOutput = false;
 
 	//internal
-	private Subject[] registrySubjects = null;
+	private RegistryStore registry = null;
 	private Subject[] querySubjects = null;
 	private String[] coreIds = null;
 	private int numberThreads = 0;
 	private int minSubjectsPerChunk = 100;
 	private MatcherEngine[] matchers = null;
+	private BlockingIndex blockingIndex = null;
+	private ExactKeyIndex exactKeyIndex = null;
+	private MatchServer matchServer = null;
+	private ExecutorService workerExecutor = null;
+	private ForkJoinPool tilePool = null;
+	private QueryClusterer queryClusterer = null;
+	private long numberComparisons = 0;
+	private long numberPruned = 0;
+	private long numberBlockedSearches = 0;
+	private long numberSearches = 0;
+	private long numberQueriesMatched = 0;
+	private long numberExactKeyMatches = 0;
+	private int minRegistrySizeForBlocking = 50000;
+	private static final int LOCK_TRIES = 7;
+	private static final long LOCK_WAIT_MILLIS = 10000;
+	private int minQueriesPerThreadForTiles = 4;
+	private long progressMillis = 60000;
 	public int numberTopMatchesToReturn = 3;
 	public double missingOneKeyPenalty = 0.12;
 	public double missingAdditionalKeyPenalty = 1;
 	private double maxEditScoreForMatch = 0.12;
-	private HashMap<String,Subject> coreIdSubject = null;
 	private CoreId coreIdMaker = new CoreId();
-	private File lockedRegistry = null;
+	private RegistryLock registryLock = null;
+	private long loadedRegistryModified = 0;
+	private long loadedJournalLength = 0;
+	private int numberRegistryFileRows = 0;
+	private long registryChecksum = 0;
+	private QGramIndex nameIndex = null;
+	private int[] updatedRows = null;
+	private RegistryJournal journal = null;
+	private boolean compactJournal = false;
 	private ArrayList<Subject[]> registryQueryUpdates = new ArrayList<Subject[]>();
+	private RunMetrics runMetrics = new RunMetrics();
+	private KeyPool keyPool = new KeyPool();
 
 	//results files
 	private File updatedRegistry = null;
+	private File journalFile = null;
 	private File jsonReport = null;
 	private File spreadsheetReport = null;
 
@@ -62,93 +99,112 @@ public class SubjectMatchMaker {
 			long startTime = System.currentTimeMillis();
 
 			processArgs(args);
+			if (registerMBean) runMetrics.registerMBean();
 
 			//load registry subjects
 			Util.p("\nLoading registry... ");
-			registrySubjects = loadSubjectData(subjectRegistryFile, true, false);
-			Util.pl(registrySubjects.length);
+			RunMetrics.Timer timer = runMetrics.start("loadRegistry");
+			registry = loadRegistry(subjectRegistryFile);
+			timer.stop();
+			Util.pl(registry.size()+ " ("+Util.formatNumber(registry.estimateBytes()/1048576.0, 1)+" MB)");
 
-			//any new coreIds created? if so then exit
-			boolean created = false;
-			for (Subject s: registrySubjects) {
-				if (s.isCoreIdCreated()) {
-					created = true;
-					break;
-				}
-			}
-			//save an update and exit?
-			if (created)  {
+			//any new coreIds created? if so then save an update and exit
+			if (registry.getNumberCoreIdsCreated() != 0)  {
 				Util.pl("\nSaving updated registry with new CoreIDs...");
+				lockForWriting();
 				saveUpdatedRegistry(null);
 				Util.pl("\nNo search performed! Rerun with the updated registry.");
 				Util.deleteDirectory(matchResultsDirectory);
 			}
+
+			//fold the journal into a new registry file and exit
+			else if (compactJournal) {
+				if (journal.exists() == false) Util.pl("\nNo registry journal to compact.");
+				else {
+					Util.pl("\nCompacting the registry journal...");
+					saveUpdatedRegistry(null);
+				}
+			}
+			
+			else if (serverPort != -1) {
+				buildCoreIdIndex();
+				buildBlockingIndex();
+				
+				//hold the registry and the lock until shut down
+				matchServer = new MatchServer(this, serverPort, numberThreads);
+				matchServer.start();
+				Util.pl("\nMatch server listening on http://localhost:"+matchServer.getPort()+"/match, stop with Ctrl-C");
+			}
 			
 			else {
-				loadIdSubjectHash();
+				buildCoreIdIndex();
 
-				//load test subjects, will throw error if malformed
-				Util.p("\nLoading test subjects to match against the registry... ");
-				querySubjects = loadSubjectData(querySubjectFile, false, true);
-				if (querySubjects == null && coreIds != null) lookUpSubjectInfo();
+				//read, match, and report the queries in batches?
+				if (queryBatchSize > 0) streamQueries();
+				
 				else {
-					Util.pl(querySubjects.length);
-
-					//make a matcher for each chunk
-					int numPerCore = fetchMinPerCore();
-
-					Subject[][] split = chunk(registrySubjects, numPerCore);
-					matchers = new MatcherEngine[split.length];
-					Util.pl("\nLaunching "+split.length+" lookup threads...");
-					for (int i=0; i< matchers.length; i++)  matchers[i] = new MatcherEngine(split[i], this);
+					//load test subjects, will throw error if malformed
+					Util.p("\nLoading test subjects to match against the registry... ");
+					timer = runMetrics.start("loadQueries");
+					querySubjects = loadSubjectData(querySubjectFile);
+					timer.stop();
+					if (querySubjects == null && coreIds != null) lookUpSubjectInfo();
+					else {
+						Util.pl(querySubjects.length);
 
-					//run the comparison
-					ExecutorService executor = Executors.newFixedThreadPool(matchers.length);
-					for (MatcherEngine l: matchers) executor.execute(l);
-					executor.shutdown();
-					while (!executor.isTerminated()) {}
-
-					//check the matchers 
-					for (MatcherEngine m: matchers) {
-						if (m.isFailed()) throw new IOException("ERROR: Matcher engine issue! \n");
-					}
+						buildBlockingIndex();
+					
+						//run a matcher on each chunk and merge their top hits
+						matchQueries(querySubjects);
+						printMatchStats();
 
-					//check for matches and assign or make coreIds
-					checkForMatches();
+						//check for matches and assign or make coreIds
+						checkForMatches(querySubjects);
 					
-					//compare queries to each other
-					compareQueries(matchers[0]);
+						//compare queries to each other
+						compareQueries(querySubjects, null);
+						printCollapseStats();
 
-					//print the full json report with all of the details
-					printJson();
+						//print the full json report with all of the details
+						timer = runMetrics.start("printJson");
+						printJson();
+						timer.stop();
 
-					//print a spreadsheet report just top matches or new coreIds
-					printResults();
+						//print a spreadsheet report just top matches or new coreIds
+						timer = runMetrics.start("printResults");
+						printResults();
+						timer.stop();
 
-					//update the registry?
-					updateRegistry();
+						//update the registry?
+						updateRegistry(querySubjects);
 					
-					//any registry entries to be updated
-					if (registryQueryUpdates.size()!=0) {
-						if (verbose) {
-							Util.pl("\nConsider updating the following incomplete registry entries with keys from the queries:");
-							for (Subject[] regQue: registryQueryUpdates) {
-								Util.pl("Registry to update:\n"+regQue[0].fetchJson(false).toString(3));
-								Util.pl("Query with new keys:\n"+regQue[1].fetchJson(false).toString(3)+"\n");
+						//any registry entries to be updated
+						if (registryQueryUpdates.size()!=0) {
+							if (verbose) {
+								Util.pl("\nConsider updating the following incomplete registry entries with keys from the queries:");
+								for (Subject[] regQue: registryQueryUpdates) {
+									Util.pl("Registry to update:\n"+regQue[0].fetchJson(false).toString(3));
+									Util.pl("Query with new keys:\n"+regQue[1].fetchJson(false).toString(3)+"\n");
 								
+								}
 							}
-						}
 						
+						}
 					}
 				}
 			}
 
-			//clear the lock
-			lockedRegistry.delete();
+			//clear the lock, a running server keeps it until shut down
+			if (matchServer == null) {
+				if (workerExecutor != null) workerExecutor.shutdownNow();
+				if (tilePool != null) tilePool.shutdown();
+				registryLock.release();
+				writeRunMetrics();
 
-			//finish and calc run time
-			double diffTime = ((double)(System.currentTimeMillis() -startTime))/1000;
-			if (verbose) Util.pl("\nDone! "+Math.round(diffTime)+" Sec\n");
+				//finish and calc run time
+				double diffTime = ((double)(System.currentTimeMillis() -startTime))/1000;
+				if (verbose) Util.pl("\nDone! "+Math.round(diffTime)+" Sec\n");
+			}
 		} catch (Exception e) {
 			Util.el("\nERROR running the SubjectIdMatchMaker, aborting. ");
 			e.printStackTrace();
@@ -157,58 +213,283 @@ public class SubjectMatchMaker {
 		}
 	}
 
-	/* Looks for queries that didn't match and have a new coreId, that do match each other, and assigns them all of the same new coreId.
-	 * Don't want to create multiple new coreIds for the same person.*/
-	private void compareQueries(MatcherEngine me) {
-		ArrayList<Subject> passing = new ArrayList<Subject>();
+	/*Builds the registry's coreId lookup.*/
+	private void buildCoreIdIndex() throws IOException {
+		RunMetrics.Timer timer = runMetrics.start("buildCoreIdIndex");
+		registry.buildCoreIdIndex();
+		timer.stop();
+	}
 
-		//for each query
-		for (int i=0; i< querySubjects.length; i++) {
-			Subject a = querySubjects[i];
-			
-			//did this query have a new coreId assigned to it? thus no match
-			if (a.isCoreIdCreated() == false) continue;
-			
-			//look to see if there are other such queries
-			String[] aKeys = a.getComparisonKeys();
-			passing.clear();
-			for (int j=0; j< querySubjects.length; j++) {
-				Subject b = querySubjects[j];
-				//don't compare to self or to those who didn't have a new coreId assigned
-				if (b.isCoreIdCreated()==false || i==j) continue;
-				
-				//is the score passing? save it
-				double score = me.scoreKeysLD(aKeys, b.getComparisonKeys());
-				if (score <= maxEditScoreForMatch) passing.add(b);
+	/*Sets the run's counters and saves runMetrics.json and queryDiagnostics.json to the output directory, if there is one. 
+	 * Runs that only add coreIds to the registry delete it.*/
+	private void writeRunMetrics() throws IOException {
+		runMetrics.setCounter("registrySubjects", registry.size());
+		runMetrics.setCounter("queries", numberQueriesMatched);
+		runMetrics.setCounter("exactKeyMatches", numberExactKeyMatches);
+		runMetrics.setCounter("queriesScanned", numberQueriesMatched - numberExactKeyMatches);
+		runMetrics.setCounter("searches", numberSearches);
+		runMetrics.setCounter("blockedSearches", numberBlockedSearches);
+		runMetrics.setCounter("comparisons", numberComparisons);
+		runMetrics.setCounter("pruned", numberPruned);
+		//query and top hit names held once
+		runMetrics.setCounter("sharedNames", keyPool.getNumberShared() + registry.getKeyPool().getNumberShared());
+		runMetrics.setCounter("sharedNameBytes", keyPool.getBytesShared() + registry.getKeyPool().getBytesShared());
+		if (queryClusterer != null) {
+			runMetrics.setCounter("queryPairsScored", queryClusterer.getNumberPairsScored());
+			runMetrics.setCounter("queriesCollapsed", queryClusterer.getNumberCollapsed());
+		}
+		if (matchResultsDirectory == null || matchResultsDirectory.exists() == false) return;
+		runMetrics.write(matchResultsDirectory);
+		runMetrics.writeDiagnostics(matchResultsDirectory);
+		if (verbose) {
+			Util.pl("\nSaved the run metrics to "+RunMetrics.FILE_NAME+" and the query latencies and slowest queries to "+RunMetrics.DIAGNOSTICS_FILE_NAME);
+			JSONObject latency = runMetrics.toJson().getJSONObject("queryLatency");
+			if (latency.getLong("count") != 0) Util.pl("\tQuery matching ms p50 "+latency.get("p50Ms")+", p90 "+latency.get("p90Ms")+", p99 "+
+					latency.get("p99Ms")+", max "+latency.get("maxMs"));
+		}
+	}
+
+	/*Loads the saved name index for the registry file, or builds and saves it, then indexes the rows added or updated since.*/
+	private void updateNameIndex() {
+		if (nameIndex == null) {
+			Util.p("Loading name index... ");
+			File indexFile = QGramIndex.fetchIndexFile(subjectRegistryFile);
+			nameIndex = QGramIndex.read(indexFile, subjectRegistryFile, registryChecksum);
+			if (nameIndex == null || nameIndex.getNumberBaseRows() != numberRegistryFileRows) {
+				Util.p("building... ");
+				nameIndex = new QGramIndex(registry, numberRegistryFileRows);
+				try {
+					if (nameIndex.write(subjectRegistryFile, registryChecksum, indexFile) == false) Util.p("too large to save... ");
+				} catch (IOException e) {
+					Util.el("\tWARNING: failed to save the name index "+indexFile+", continuing. "+e.getMessage());
+				}
 			}
+		}
+		nameIndex.update(registry, updatedRows);
+		updatedRows = null;
+		Util.pl(nameIndex.getNumberEntries()+" entries");
+	}
+
+	/*Trades a shared registry lock for an exclusive one before rewriting the registry. Aborts if another run changed it while the lock was dropped.*/
+	private void lockForWriting() throws Exception {
+		if (registryLock.isExclusive()) return;
+		if (registryLock.upgrade(LOCK_TRIES, LOCK_WAIT_MILLIS) == false) throw new IOException("ERROR: failed to lock the registry for writing, it's in use by the runs listed above.");
+		if (subjectRegistryFile.exists() == false || subjectRegistryFile.lastModified() != loadedRegistryModified || 
+				journal.getJournalFile().length() != loadedJournalLength) {
+			throw new IOException("ERROR: the registry was changed by another run while waiting to lock it for writing, rerun.");
+		}
+	}
+
+	/*Builds the blocking index if it is enabled and the registry is large enough.*/
+	private void buildBlockingIndex() {
+		blockingIndex = null;
+		exactKeyIndex = null;
+		if (exhaustiveScan == false && (forceBlocking || registry.size() >= minRegistrySizeForBlocking)) {
+			RunMetrics.Timer timer = runMetrics.start("buildIndexes");
+			Util.p("\nBuilding blocking index... ");
+			blockingIndex = new BlockingIndex(registry);
+			Util.pl(blockingIndex.getNumberBuckets()+" buckets, "+blockingIndex.getNumberEntries()+" entries");
+			updateNameIndex();
+			blockingIndex.setNameIndex(nameIndex, maxEditScoreForMatch);
+			blockingIndex.setKeyTrees(registry);
+			Util.p("Building exact key index... ");
+			exactKeyIndex = new ExactKeyIndex(registry);
+			Util.pl(exactKeyIndex.getNumberEntries()+" entries");
+			timer.stop();
+		}
+	}
+
+	/*Scores the queries against the registry in parallel and sets their merged top matches. Those resolved by the exact key index are skipped.
+	 * Uses the work stealing tiles when there are enough queries to keep the threads busy or if requested, otherwise a matcher for each fixed chunk of the registry.*/
+	private void matchQueries(Subject[] queries) throws IOException {
+		//resolve those with an exact key hit first
+		RunMetrics.Timer timer = runMetrics.start("matchExactKeys");
+		ExactKeyIndex.Matches exact = matchExactKeys(queries);
+		exact.setTopMatches(registry);
+		timer.stop();
+		numberQueriesMatched+= queries.length;
+		numberExactKeyMatches+= exact.getNumberResolved();
+		queries = exact.getRemaining();
+		if (queries.length == 0) return;
+		timer = runMetrics.start("matchQueries");
+
+		boolean useTiles = queries.length >= (long)numberThreads * minQueriesPerThreadForTiles;
+		if (scheduler != null) useTiles = scheduler.equals("tiles");
+		if (useTiles) {
+			TileScheduler ts = new TileScheduler(registry, queries, blockingIndex, missingOneKeyPenalty, missingAdditionalKeyPenalty, 
+					numberTopMatchesToReturn, numberThreads, minSubjectsPerChunk);
+			if (numberSearches == 0) Util.pl("\nLaunching "+numberThreads+" work stealing threads over "+ts.getNumberTiles()+" tiles of "+
+					ts.getQueryBlockSize()+" queries x "+ts.getRegistryTileSize()+" registry subjects...");
+			ts.setRunMetrics(runMetrics);
+			ts.setPool(fetchTilePool());
+			ts.run(getMatchTimeoutMillis(), verbose ? progressMillis : 0);
+			numberComparisons+= ts.getNumberComparisons();
+			numberBlockedSearches+= ts.getNumberBlockedSearches();
+			numberPruned+= ts.getNumberPruned();
+			numberSearches+= ts.getNumberSearches();
+			ts.setTopMatches();
+			runMetrics.addQueries(queries, ts.getQueryNanos(), ts.getQueryCandidates(), ts.getQueryPruned());
+			runMetrics.addAllocation("matchQueries", ts.getAllocatedBytes());
+			timer.stop();
+			return;
+		}
+		
+		//make a matcher for each chunk
+		matchers = createMatchers(queries);
+		if (numberSearches == 0) Util.pl("\nLaunching "+matchers.length+" lookup threads...");
+
+		//run the comparison, throws on the first failure or the timeout
+		new MatcherRunner(fetchWorkerExecutor(), getMatchTimeoutMillis(), verbose ? progressMillis : 0).run(matchers);
+
+		//sum the matcher stats 
+		for (MatcherEngine m: matchers) {
+			numberComparisons+= m.getNumberComparisons();
+			numberBlockedSearches+= m.getNumberBlockedQueries();
+			numberPruned+= m.getNumberPruned();
+		}
+		numberSearches+= (long)queries.length* matchers.length;
+		
+		//merge the top hits from each matcher
+		MatcherEngine.setTopMatches(matchers, registry, queries, numberTopMatchesToReturn);
+		runMetrics.addWorkers("matchQueries", matchers);
+		runMetrics.addQueries(queries, matchers);
+		timer.stop();
+	}
+
+	private void printMatchStats() {
+		if (verbose) {
+			Util.pl("\t"+numberComparisons+" query:registry comparisons scored, "+numberPruned+" pruned early as they could not make the top "+numberTopMatchesToReturn);
+			if (exactKeyIndex != null) Util.pl("\t"+numberExactKeyMatches+" of "+numberQueriesMatched+" queries ("+
+					Util.formatNumber(100.0* numberExactKeyMatches/ Math.max(1, numberQueriesMatched), 1)+"%) resolved on the exact key fast path");
+			if (blockingIndex != null) Util.pl("\t"+numberBlockedSearches+" of "+numberSearches+" query:chunk searches used the blocking index, the rest scanned the full chunk");
+		}
+	}
+
+	/*Reads, matches, and reports the queries in batches of queryBatchSize so memory stays flat no matter how many there are. Report rows are appended
+	 * as each batch finishes, the json via a JSONWriter, and registry subjects materialized for a batch are released unless updated (-u).
+	 * New coreIds are also compared to those created in prior batches, see compareQueries().*/
+	private void streamQueries() throws Exception {
+		buildBlockingIndex();
+		Util.pl("\nMatching test subjects against the registry in batches of "+queryBatchSize+"... ");
+		BufferedReader in = Util.fetchBufferedReader(querySubjectFile);
+		jsonReport = fetchReportFile("matchReport_PHI.json");
+		BufferedWriter jsonOut = FileStreams.fetchBufferedWriter(jsonReport);
+		JSONWriter json = new JSONWriter(jsonOut);
+		json.object().key("searchSettings").value(fetchSearchSettings()).key("searches").array();
+		spreadsheetReport = fetchReportFile("matchReport_PHI.xls");
+		PrintWriter xlsOut = FileStreams.fetchPrintWriter(spreadsheetReport);
+		printResultsHeader(xlsOut);
+
+		ArrayList<Subject> created = new ArrayList<Subject>();
+		ArrayList<String> cAL = new ArrayList<String>();
+		int numberQueries = 0;
+		while (true) {
+			RunMetrics.Timer timer = runMetrics.start("loadQueries");
+			Subject[] batch = parseSubjects(in, true, cAL, numberQueries, queryBatchSize);
+			timer.stop();
+			if (cAL.size()!=0) throw new IOException("ERROR: coreId lookups can't be run in batches, rerun without -n. See "+cAL.get(0));
+			if (batch.length == 0) break;
 			
-			//any passing? assign all the same new coreId using the first query's 
-			if (passing.size()!=0) {
-				String newCoreId = a.getCoreId();
-				for (int x=0; x< passing.size(); x++) passing.get(x).setCoreId(newCoreId);
-			}			
+			matchQueries(batch);
+			checkForMatches(batch);
+			compareQueries(batch, created);
+			timer = runMetrics.start("writeReports");
+			for (Subject tp: batch) {
+				json.value(fetchSearchJson(tp));
+				printResultRow(xlsOut, tp);
+				if (tp.isCoreIdCreated()) created.add(tp);
+			}
+			timer.stop();
+			numberQueries+= batch.length;
+			registry.releaseSubjects();
+			if (verbose) Util.pl("\t"+numberQueries+" matched");
+		}
+		in.close();
+		RunMetrics.Timer timer = runMetrics.start("writeReports");
+		json.endArray().endObject();
+		jsonOut.newLine();
+		jsonOut.close();
+		closeReport(xlsOut, spreadsheetReport);
+		runMetrics.addFileBytes("loadQueries", querySubjectFile.length());
+		runMetrics.addFileBytes("writeReports", jsonReport.length() + spreadsheetReport.length());
+		timer.stop();
+		printMatchStats();
+		printCollapseStats();
+
+		//update the registry?
+		updateRegistry(created.toArray(new Subject[created.size()]));
+	}
+
+	/**Makes a matcher for each chunk of the registry to score the queries against.*/
+	MatcherEngine[] createMatchers(Subject[] queries) {
+		int[][] split = chunk(registry.size(), fetchMinPerCore());
+		MatcherEngine[] m = new MatcherEngine[split.length];
+		for (int i=0; i< m.length; i++) m[i] = new MatcherEngine(registry, split[i][0], split[i][1], queries, blockingIndex, missingOneKeyPenalty, 
+				missingAdditionalKeyPenalty, numberTopMatchesToReturn);
+		return m;
+	}
+
+	/**Resolves the queries with an exact key hit, see ExactKeyIndex, the rest are returned for the matchers. Thread safe.*/
+	ExactKeyIndex.Matches matchExactKeys(Subject[] queries) throws IOException {
+		if (exactKeyIndex == null) return new ExactKeyIndex.Matches(queries);
+		return exactKeyIndex.match(queries, missingOneKeyPenalty, missingAdditionalKeyPenalty, maxEditScoreForMatch, numberTopMatchesToReturn, numberThreads, 
+				fetchWorkerExecutor());
+	}
+
+	/**Sets the exact key and merged matcher top hits, assigns matches and coreIds, saves any registry changes, and returns the json report.
+	 * Used by the MatchServer, registry Subjects are shared so only call this from one thread at a time.*/
+	JSONObject reportMatches(Subject[] queries, ExactKeyIndex.Matches exact, MatcherEngine[] finished) throws Exception {
+		exact.setTopMatches(registry);
+		MatcherEngine.setTopMatches(finished, registry, exact.getRemaining(), numberTopMatchesToReturn);
+		checkForMatches(queries);
+		compareQueries(queries, null);
+		updateRegistry(queries);
+		return fetchJsonReport(queries);
+	}
+
+	/* Looks for queries that didn't match and have a new coreId, that do match each other, and assigns each connected group the same new coreId.
+	 * Don't want to create multiple new coreIds for the same person. When run in batches, those that then match a new coreId created in a prior,
+	 * already reported, batch take that coreId instead. See QueryClusterer.*/
+	private void compareQueries(Subject[] querySubjects, ArrayList<Subject> priorCreated) throws IOException {
+		if (queryClusterer == null) queryClusterer = new QueryClusterer(registry, missingOneKeyPenalty, missingAdditionalKeyPenalty, maxEditScoreForMatch, 
+				numberThreads, fetchWorkerExecutor(), exhaustiveScan, forceBlocking);
+		RunMetrics.Timer timer = runMetrics.start("compareQueries");
+		long allocated = queryClusterer.getWorkerAllocatedBytes();
+		queryClusterer.cluster(querySubjects);
+		queryClusterer.linkToPrior(querySubjects, priorCreated);
+		runMetrics.addAllocation("compareQueries", queryClusterer.getWorkerAllocatedBytes() - allocated);
+		timer.stop();
+	}
+
+	private void printCollapseStats() {
+		if (verbose && queryClusterer != null) {
+			String linked = queryBatchSize > 0 ? ", "+queryClusterer.getNumberLinkedToPrior()+" took a coreId from a prior batch" : "";
+			Util.pl("\nCollapsed "+queryClusterer.getNumberCollapsed()+" of "+queryClusterer.getNumberUnmatched()+" unmatched queries into another's new coreId"+linked+", "+
+					queryClusterer.getNumberPairsScored()+" query:query comparisons scored in "+Util.formatNumber(queryClusterer.getCollapseMillis()/1000.0, 1)+" sec");
 		}
 	}
 
 	private void lookUpSubjectInfo() throws IOException {
 		Util.pl("\n\nLooking up and writing subject info for the provided coreIds... ");
+		RunMetrics.Timer timer = runMetrics.start("lookUpCoreIds");
 		//check all are coreIds
 		for (String s: coreIds) {
 			if (CoreId.isCoreId(s) == false) throw new IOException("\nERROR: the following isn't a valid coreId -> "+s);
 		}
 		//write out report
-		spreadsheetReport = new File (matchResultsDirectory, "coreIdReport_PHI.xls");
-		PrintWriter out = new PrintWriter( new FileWriter(spreadsheetReport));
+		spreadsheetReport = fetchReportFile("coreIdReport_PHI.xls");
+		PrintWriter out = FileStreams.fetchPrintWriter(spreadsheetReport);
 		out.println("QueryCoreId\tLastName\tFirstName\tDobMonth\tdobDay\tDobYear\tGender\tMrn\tCoreId\tOtherIds");
 		for (String s: coreIds) {
 			out.print(s);
 			out.print("\t");
-			Subject sl = coreIdSubject.get(s);
-			if (sl!=null) out.println(sl.toString());
+			int row = registry.fetchRow(s);
+			if (row != -1) out.println(registry.fetchSubject(row).toString());
 			else out.println();
 		}
-		out.close();
-		
+		closeReport(out, spreadsheetReport);
+		runMetrics.addFileBytes("lookUpCoreIds", spreadsheetReport.length());
+		timer.stop();
 	}
 
 	/*
@@ -235,8 +516,9 @@ public class SubjectMatchMaker {
 		}
 	}*/
 	
-	private void updateRegistry() throws Exception {
+	private void updateRegistry(Subject[] querySubjects) throws Exception {
 		//do they want to update the registry
+		RunMetrics.Timer timer = runMetrics.start("updateRegistry");
 		ArrayList<Subject> toAdd = new ArrayList<Subject>();
 		
 		boolean updateIt = false;
@@ -260,42 +542,74 @@ public class SubjectMatchMaker {
 			}
 		}
 		if (updateIt==false && updateRegistryWithQuerySubjects) {
-			for (Subject s: registrySubjects) {
-				if (s.getFieldsWereUpdated()) {
-					updateIt = true;
-					break;
-				}
-			}
+			updateIt = registry.isUpdated();
 			if (updateIt) Util.pl("\nSaving registry with additional info...");
 		}
 		
-		if (updateIt) saveUpdatedRegistry(toAdd);
+		if (updateIt) {
+			long startTime = System.currentTimeMillis();
+			journal.append(toAdd, registry.fetchUpdatedSubjects());
+			journalFile = journal.getJournalFile();
+			Util.pl("\tAppended the changes to "+journalFile.getName()+" in "+(System.currentTimeMillis()-startTime)+" ms, compact it with -z");
+			if (matchServer != null) applyRegistryChanges(toAdd);
+		}
+		timer.stop();
 	}
 
-	private void checkForMatches() throws IOException {
+	/*Applies the journaled changes to the in memory registry so the server's next requests see them. Updated rows are overwritten
+	 * and additions appended in place, the indexes take just these rows in their deltas.*/
+	private void applyRegistryChanges(ArrayList<Subject> additional) throws IOException {
+		ArrayList<Subject> changed = registry.fetchUpdatedSubjects();
+		int[] rows = new int[changed.size()];
+		for (int i=0; i< rows.length; i++) {
+			Subject s = changed.get(i);
+			rows[i] = s.getRegistryIndex();
+			registry.replace(rows[i], s);
+		}
+		int firstNewRow = registry.size();
+		for (Subject s: additional) registry.add(s);
+		registry.updateCoreIdIndex();
+		if (blockingIndex == null) {
+			//may have grown past the minimum for blocking, the name index also needs any rows updated by the journal
+			if (updatedRows != null) {
+				int[] both = Arrays.copyOf(updatedRows, updatedRows.length + rows.length);
+				System.arraycopy(rows, 0, both, updatedRows.length, rows.length);
+				rows = both;
+			}
+			updatedRows = rows;
+			buildBlockingIndex();
+			return;
+		}
+		blockingIndex.update(registry, firstNewRow, rows);
+		nameIndex.update(registry, rows);
+		exactKeyIndex.update(firstNewRow, rows);
+	}
+
+	private void checkForMatches(Subject[] querySubjects) throws IOException {
+		RunMetrics.Timer timer = runMetrics.start("checkForMatches");
 		//are they just looking to see what matches and not add non matches to the registry? if so null the coreIdMaker
 		if (addQuerySubjectsToRegistry == false) coreIdMaker = null; 
 		//for each query
 		for (Subject tp: querySubjects) {
 			tp.setMatches(coreIdMaker, maxEditScoreForMatch);
 		}
+		timer.stop();
 	}
 
 	private void saveUpdatedRegistry(ArrayList<Subject> additional) throws Exception {
+		RunMetrics.Timer timer = runMetrics.start("saveRegistry");
 		String time = new Long(System.currentTimeMillis()).toString();
 		File registryDir = subjectRegistryFile.getParentFile();
 		
+		String extension = gzipOutput ? FileStreams.GZIP_EXTENSION : "";
+		
 		//write out updated registry
-		updatedRegistry = new File (registryDir, "updatedRegistry"+time+"_PHI.txt");
-		PrintWriter out = new PrintWriter ( new FileWriter(updatedRegistry));
-		out.println("#LastName\tFirstName\tDoBMonth(1-12)\tDoBDay(1-31)\tDoBYear(1900-2050)\tGender(M|F)\tMRN\tCoreId\tOtherIds(;delimited)");
-		for (Subject u: registrySubjects) out.println(u.toString());
-		//might be no additional to save
-		if (additional!=null) for (Subject u: additional) out.println(u.toString());
-		out.close();
+		updatedRegistry = new File (registryDir, "updatedRegistry"+time+"_PHI.txt"+extension);
+		writeRegistry(registry, additional, updatedRegistry);
+		runMetrics.addFileBytes("saveRegistry", updatedRegistry.length());
 		
-		//rename original
-		File oldRegistry = new File (registryDir, "oldRegistry_"+time+"_PHI.txt");
+		//rename original, keeping its compression extension
+		File oldRegistry = new File (registryDir, "oldRegistry_"+time+"_PHI.txt"+fetchCompressionExtension(subjectRegistryFile));
 		boolean renamed = subjectRegistryFile.renameTo(oldRegistry);
 		if (renamed == false) throw new IOException("ERROR: failed to rename original registry file "+subjectRegistryFile+" to "+oldRegistry);
 		Util.pl("\tRenamed the original registry file "+subjectRegistryFile.getName()+" to "+oldRegistry.getName());
@@ -304,33 +618,81 @@ public class SubjectMatchMaker {
 		Thread.sleep(500);
 		
 		//move the saved registry to current
-		File newRegistry = new File (registryDir, "currentRegistry_"+time+"_PHI.txt");
+		File newRegistry = new File (registryDir, "currentRegistry_"+time+"_PHI.txt"+extension);
 		renamed = updatedRegistry.renameTo(newRegistry);
 		if (renamed == false) throw new IOException("ERROR: failed to rename updated registry file "+updatedRegistry+" to "+newRegistry);
 		Util.pl("\tUpdated registry successfully saved to "+newRegistry.getName()+". Use this for new searches.");
 		updatedRegistry = newRegistry;
-		
+
+		//the journal is now in the registry, an interrupted delete is caught on the next load since it names the old file
+		if (journal != null && journal.exists()) {
+			if (journal.getJournalFile().delete() == false) throw new IOException("ERROR: failed to delete the compacted registry journal "+journal.getJournalFile()+", remove it before rerunning.");
+			Util.pl("\tDeleted the compacted registry journal "+journal.getJournalFile().getName());
+		}
+		timer.stop();
+	}
+
+	/**Writes the registry subjects, with any updates, followed by the additional ones to a new registry file, gzip compressed if it ends in .gz.*/
+	static void writeRegistry(RegistryStore registry, ArrayList<Subject> additional, File file) throws IOException {
+		PrintWriter out = FileStreams.fetchPrintWriter(file);
+		out.println("#LastName\tFirstName\tDoBMonth(1-12)\tDoBDay(1-31)\tDoBYear(1900-2050)\tGender(M|F)\tMRN\tCoreId\tOtherIds(;delimited)");
+		for (int i=0; i< registry.size(); i++) out.println(registry.fetchSubjectForWriting(i).toString());
+		//might be no additional to save
+		if (additional!=null) for (Subject u: additional) out.println(u.toString());
+		closeReport(out, file);
+	}
+
+	/*The .gz or .zip extension of the file, empty if neither.*/
+	private static String fetchCompressionExtension(File file) {
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".gz")) return ".gz";
+		if (name.endsWith(".zip")) return ".zip";
+		return "";
+	}
+
+	/*The report file in the output directory, gzip compressed with -e.*/
+	private File fetchReportFile(String name) {
+		return FileStreams.fetchOutputFile(new File(matchResultsDirectory, name), gzipOutput);
+	}
+
+	/*Closes the writer, PrintWriters swallow write errors so they're thrown here.*/
+	private static void closeReport(PrintWriter out, File file) throws IOException {
+		out.close();
+		if (out.checkError()) throw new IOException("ERROR: failed to write "+file);
 	}
 
 	private void deleteResults() {
 		if (updatedRegistry!= null) updatedRegistry.delete();
 		if (jsonReport!= null) jsonReport.delete();
 		if (spreadsheetReport!= null) spreadsheetReport.delete();
-		if (lockedRegistry!= null) lockedRegistry.delete();
+		if (registryLock!= null) registryLock.release();
 	}
 
-	private void loadIdSubjectHash() throws IOException {
-		coreIdSubject = new HashMap<String,Subject>();
-		for (int i=0; i< registrySubjects.length; i++) {
-			String coreId = registrySubjects[i].getCoreId();
-			if (coreIdSubject.containsKey(coreId)) throw new IOException("\nERROR: the coreId "+coreId+" associated with registry subject["+i+"] is a duplicate of a prior registry subject. Duplicate coreIds are not permitted." );
-			coreIdSubject.put(coreId, registrySubjects[i]);
-		}
+
+	void printJson() throws IOException {
+		JSONObject results = fetchJsonReport(querySubjects);
+		
+		//save it
+		jsonReport = fetchReportFile("matchReport_PHI.json");
+		PrintWriter out = FileStreams.fetchPrintWriter(jsonReport);
+		out.println(results.toString(4));
+		closeReport(out, jsonReport);
+		runMetrics.addFileBytes("printJson", jsonReport.length());
 	}
 
-	private void printJson() throws IOException {
+	/*The full json report with all of the details.*/
+	private JSONObject fetchJsonReport(Subject[] querySubjects) throws IOException {
 		JSONObject results = new JSONObject();
+		results.put("searchSettings", fetchSearchSettings());
 
+		JSONArray searchArray = new JSONArray();
+		for (Subject tp: querySubjects) searchArray.put(fetchSearchJson(tp));
+		results.put("searches", searchArray);
+		return results;
+	}
+
+	/*The query file and output dir are only included when running from the command line.*/
+	private JSONObject fetchSearchSettings() throws IOException {
 		JSONObject params = new JSONObject();
 		params.put("maximumEditScoreForMatch", maxEditScoreForMatch);
 		params.put("missingOneKeyPenalty", missingOneKeyPenalty);
@@ -338,111 +700,104 @@ public class SubjectMatchMaker {
 		params.put("numberTopMatchesToReturn", numberTopMatchesToReturn);
 		params.put("addQuerySubjectsToRegistry", addQuerySubjectsToRegistry);
 		params.put("registry", subjectRegistryFile.getCanonicalPath());
-		params.put("queries", querySubjectFile.getCanonicalPath());
-		params.put("output", matchResultsDirectory.getCanonicalPath());
+		if (querySubjectFile != null) params.put("queries", querySubjectFile.getCanonicalPath());
+		if (matchResultsDirectory != null) params.put("output", matchResultsDirectory.getCanonicalPath());
 		params.put("isNameCaseInsensitive", caseInsensitive);
 		DateTimeFormatter dtf = DateTimeFormatter.ofPattern("dd MMM uuuu HH:mm:ss");
         LocalDateTime now = LocalDateTime.now();
 		params.put("date", dtf.format(now));
-		results.put("searchSettings", params);
+		return params;
+	}
 
-		JSONArray searchArray = new JSONArray();
+	/*The query, its match result, and top matches.*/
+	private JSONObject fetchSearchJson(Subject tp) throws IOException {
+		JSONObject search = new JSONObject();
 		
-		//for each query
-		for (Subject tp: querySubjects) {
-			JSONObject search = new JSONObject();
-			
-			//get the base features
-			JSONObject query = tp.fetchJson(false);
-			search.put("query", query);
-			
-			//reset the scores in the top matches
-			double[] topScores = tp.getTopMatchScores();
-			Subject[] topMatches = tp.getTopMatches();
-			for (int i=0; i< topMatches.length; i++) topMatches[i].setScore(topScores[i]);
-			
-			//query results
-			JSONObject result = new JSONObject();
-			result.put("topMatchFound", tp.isTopMatchFound());
-			if (tp.isTopMatchFound()) {
-				result.put("topMatchCoreId", topMatches[0].getCoreId());
-			}
-			result.put("newCoreIdCreated", tp.isCoreIdCreated());
-			if (tp.isCoreIdCreated()) result.put("newCoreId", tp.getCoreId());
-			//match warning?
-			if (tp.getMatchWarning()!=null) result.put("topMatchWarning", tp.getMatchWarning());
-			
-			JSONArray matches = new JSONArray();
-			for (int i=0; i< topMatches.length; i++) {
-				JSONObject jo = topMatches[i].fetchJson(true);
-				matches.put(jo);
-			}
-			result.put("matches", matches);
-			
-			//add query to the array
-			search.put("result", result);
-			
-			searchArray.put(search);
-		}
+		//get the base features
+		JSONObject query = tp.fetchJson(false);
+		search.put("query", query);
 		
-		results.put("searches", searchArray);
+		//reset the scores in the top matches
+		double[] topScores = tp.getTopMatchScores();
+		Subject[] topMatches = tp.getTopMatches();
+		for (int i=0; i< topMatches.length; i++) topMatches[i].setScore(topScores[i]);
 		
+		//query results
+		JSONObject result = new JSONObject();
+		result.put("topMatchFound", tp.isTopMatchFound());
+		if (tp.isTopMatchFound()) {
+			result.put("topMatchCoreId", topMatches[0].getCoreId());
+		}
+		result.put("newCoreIdCreated", tp.isCoreIdCreated());
+		if (tp.isCoreIdCreated()) result.put("newCoreId", tp.getCoreId());
+		//match warning?
+		if (tp.getMatchWarning()!=null) result.put("topMatchWarning", tp.getMatchWarning());
 		
-		//save it
-		jsonReport = new File(matchResultsDirectory, "matchReport_PHI.json");
-		PrintWriter out = new PrintWriter( new FileWriter(jsonReport));
-		out.println(results.toString(4));
-		out.close();
+		JSONArray matches = new JSONArray();
+		for (int i=0; i< topMatches.length; i++) {
+			JSONObject jo = topMatches[i].fetchJson(true);
+			matches.put(jo);
+		}
+		result.put("matches", matches);
+		
+		//add query to the array
+		search.put("result", result);
+		return search;
 	}
 
 
-	private void printResults() throws IOException {
+	void printResults() throws IOException {
 
 		//open file writer
-		spreadsheetReport = new File (matchResultsDirectory, "matchReport_PHI.xls");
-		PrintWriter out = new PrintWriter( new FileWriter(spreadsheetReport));
+		spreadsheetReport = fetchReportFile("matchReport_PHI.xls");
+		PrintWriter out = FileStreams.fetchPrintWriter(spreadsheetReport);
+		
+		printResultsHeader(out);
 		
-		//print header
+		//for each subject
+		for (Subject tp: querySubjects) printResultRow(out, tp);
+		
+		//close writer
+		closeReport(out, spreadsheetReport);
+		runMetrics.addFileBytes("printResults", spreadsheetReport.length());
+	}
+
+	private void printResultsHeader(PrintWriter out) {
 		out.print("#OriginalSubject\tMatchFound\tCoreID\tScore\tRegistrySubject\tOtherIDs");
 		for (int i=0; i< numberTopMatchesToReturn; i++) out.print("\tNextBestMatch\tCoreID\tScore\tRegistrySubject\tOtherIDs");
 		out.println();
+	}
+
+	private void printResultRow(PrintWriter out, Subject tp) {
+		//reset the scores in the top matches, these can change 
+		double[] topScores = tp.getTopMatchScores();
+		Subject[] topMatches = tp.getTopMatches();
+		for (int i=0; i< topMatches.length; i++) topMatches[i].setScore(topScores[i]);
 		
-		//for each subject
-		for (Subject tp: querySubjects) {
-			
-			//reset the scores in the top matches, these can change 
-			double[] topScores = tp.getTopMatchScores();
-			Subject[] topMatches = tp.getTopMatches();
-			for (int i=0; i< topMatches.length; i++) topMatches[i].setScore(topScores[i]);
-			
-			StringBuilder sb = new StringBuilder(Util.stringArrayToString(tp.getComparisonKeys(),"|"));
-			
-			//top match found?
-			if (tp.isTopMatchFound()) sb.append("\tTRUE\t");
-			else {
-				sb.append("\tFALSE");
-				if (tp.getCoreId()!=null) {
-					sb.append("\t");
-					sb.append(tp.getCoreId());
-					sb.append("\t.\t.\t.\t.\t");
-				}
-				else sb.append("\t.\t.\t.\t.\t.\t");
-			}
-			topMatches[0].addTabInfo(sb);
-			
-			for (int i=1; i<topMatches.length; i++) {
-				sb.append("\t.\t");
-				topMatches[i].addTabInfo(sb);
+		StringBuilder sb = new StringBuilder(Util.stringArrayToString(tp.getComparisonKeys(),"|"));
+		
+		//top match found?
+		if (tp.isTopMatchFound()) sb.append("\tTRUE\t");
+		else {
+			sb.append("\tFALSE");
+			if (tp.getCoreId()!=null) {
+				sb.append("\t");
+				sb.append(tp.getCoreId());
+				sb.append("\t.\t.\t.\t.\t");
 			}
-			out.println(sb.toString());
+			else sb.append("\t.\t.\t.\t.\t.\t");
 		}
+		topMatches[0].addTabInfo(sb);
 		
-		//close writer
-		out.close();
+		for (int i=1; i<topMatches.length; i++) {
+			sb.append("\t.\t");
+			topMatches[i].addTabInfo(sb);
+		}
+		out.println(sb.toString());
 	}
 
 	private int fetchMinPerCore() {
-		double numAllSubjects = registrySubjects.length;
+		double numAllSubjects = registry.size();
 		for (int i=numberThreads; i >=1; i--) {
 			int numPerChunk = (int)Math.round(numAllSubjects/(double)i);
 			if (numPerChunk >= minSubjectsPerChunk) return numPerChunk;
@@ -450,26 +805,84 @@ public class SubjectMatchMaker {
 		return minSubjectsPerChunk;
 	}
 
-	private Subject[] loadSubjectData(File dataFile, boolean addCoreId, boolean isQuery) throws IOException {
-		String line = null;
-		BufferedReader in = Util.fetchBufferedReader(dataFile);
-		ArrayList<Subject> pAL = new ArrayList<Subject>();
-		ArrayList<String> cAL = new ArrayList<String>();
-		int index = 0;
-		while ((line = in.readLine())!= null) {
-			if (line.length()==0 || line.startsWith("#"))continue;
-			String[] fields = Util.TAB.split(line);
-			if (fields.length == 1) cAL.add(fields[0]);
-			else pAL.add(new Subject(index, fields, addCoreId, coreIdMaker, isQuery, caseInsensitive, updateRegistryWithQuerySubjects));
-			index++;
+	/**Loads the registry into the columnar store and replays its journal, see RegistryJournal.*/
+	private RegistryStore loadRegistry(File dataFile) throws IOException {
+		loadedRegistryModified = dataFile.lastModified();
+		RegistryStore store = loadRegistryFile(dataFile);
+		journal = new RegistryJournal(dataFile);
+		loadedJournalLength = journal.getJournalFile().length();
+		numberRegistryFileRows = store.size();
+		if (journal.exists() == false) return store;
+		int numberRows = store.size();
+		store = journal.replay(store, caseInsensitive);
+		updatedRows = journal.getUpdatedRows();
+		Util.p("+ journal "+journal.getNumberAdded()+" added "+journal.getNumberUpdated()+" updated... ");
+		if (journal.getNumberAdded() + journal.getNumberUpdated() > numberRows / 10 && compactJournal == false) {
+			Util.el("\n\tWARNING: the registry journal holds over 10% of the registry, consider compacting it with -z");
 		}
-		in.close();
+		return store;
+	}
+
+	/**Loads the registry file from its snapshot if current, otherwise each line is validated by parsing it into a Subject 
+	 * that is then discarded and a new snapshot written. Lines are parsed in parallel, see SubjectFileLoader.
+	 * The file's checksum is computed once here for both the snapshot and the name index.*/
+	private RegistryStore loadRegistryFile(File dataFile) throws IOException {
+		registryChecksum = RegistrySnapshot.checksum(dataFile);
+		File snapshot = RegistrySnapshot.fetchSnapshotFile(dataFile);
+		RegistryStore fromSnapshot = RegistrySnapshot.read(snapshot, dataFile, registryChecksum, caseInsensitive);
+		if (fromSnapshot != null) {
+			Util.p("from snapshot... ");
+			return fromSnapshot;
+		}
+		
+		RegistryStore store = new SubjectFileLoader(numberThreads, true, coreIdMaker, caseInsensitive, updateRegistryWithQuerySubjects).loadRegistry(dataFile);
+		runMetrics.addFileBytes("loadRegistry", dataFile.length());
+		
+		//only snapshot complete registries, those needing coreIds are rewritten
+		if (store.getNumberCoreIdsCreated() == 0) {
+			try {
+				if (RegistrySnapshot.write(store, dataFile, registryChecksum, snapshot) == false) {
+					Util.p("too large to snapshot, over "+(RegistrySnapshot.MAX_LENGTH >> 20)+" MB... ");
+				}
+			} catch (IOException e) {
+				Util.el("\tWARNING: failed to write the registry snapshot "+snapshot+", continuing. "+e.getMessage());
+			}
+		}
+		return store;
+	}
+
+	/*Loads the queries in parallel, see SubjectFileLoader, or the coreIds to look up if given a single column.*/
+	private Subject[] loadSubjectData(File dataFile) throws IOException {
+		ArrayList<String> cAL = new ArrayList<String>();
+		SubjectFileLoader loader = new SubjectFileLoader(numberThreads, false, coreIdMaker, caseInsensitive, updateRegistryWithQuerySubjects);
+		loader.setKeyPool(keyPool);
+		Subject[] p = loader.loadQueries(dataFile, cAL);
+		runMetrics.addFileBytes("loadQueries", dataFile.length());
 		
 		if (cAL.size()!=0) {
 			coreIds = new String[cAL.size()];
 			cAL.toArray(coreIds);
 			return null;
 		}
+		return p;
+	}
+
+	/**Parses up to maxNumber tab delimited subjects, single column lines are added to the coreIds and skipped. Throws an IOException if a subject is malformed.
+	 * @param index of the first line, for error messages*/
+	Subject[] parseSubjects(BufferedReader in, boolean isQuery, ArrayList<String> cAL, int index, int maxNumber) throws IOException {
+		String line = null;
+		ArrayList<Subject> pAL = new ArrayList<Subject>();
+		while (pAL.size() < maxNumber && (line = in.readLine())!= null) {
+			if (line.length()==0 || line.startsWith("#"))continue;
+			String[] fields = Util.splitTabs(line);
+			if (fields.length == 1) cAL.add(fields[0]);
+			else {
+				Subject s = new Subject(index, fields, false, coreIdMaker, isQuery, caseInsensitive, updateRegistryWithQuerySubjects);
+				s.shareNames(keyPool);
+				pAL.add(s);
+			}
+			index++;
+		}
 		
 		Subject[] p = new Subject[pAL.size()];
 		pAL.toArray(p);
@@ -507,6 +920,15 @@ public class SubjectMatchMaker {
 						case 's': maxEditScoreForMatch = Double.parseDouble(args[++i]); break;
 						case 'v': verbose = false; break;
 						case 'c': caseInsensitive = true; break;
+						case 'x': exhaustiveScan = true; break;
+						case 'b': forceBlocking = true; break;
+						case 'd': serverPort = Integer.parseInt(args[++i]); break;
+						case 'n': queryBatchSize = Integer.parseInt(args[++i]); break;
+						case 'g': scheduler = args[++i].toLowerCase(); break;
+						case 'w': matchTimeoutMinutes = Double.parseDouble(args[++i]); break;
+						case 'z': compactJournal = true; break;
+						case 'j': registerMBean = true; break;
+						case 'e': gzipOutput = true; break;
 						default: Util.printErrAndExit("\nProblem, unknown option! " + mat.group());
 						}
 					}
@@ -517,11 +939,17 @@ public class SubjectMatchMaker {
 				}
 			}
 			
+			if (scheduler != null && scheduler.equals("tiles") == false && scheduler.equals("chunks") == false) {
+				Util.printErrAndExit("\nERROR: the -g scheduler must be 'tiles' or 'chunks', not "+scheduler);
+			}
+
 			//check registry file
 			checkRegistryDirectory(subjectRegistryDir);
 			
-			//check output dir
-			if (matchResultsDirectory == null) Util.printErrAndExit("ERROR: failed to find the output directory "+matchResultsDirectory);
+			//check output dir, not needed when serving
+			if (matchResultsDirectory == null) {
+				if (serverPort == -1 && compactJournal == false) Util.printErrAndExit("ERROR: failed to find the output directory "+matchResultsDirectory);
+			}
 			else {
 				if (matchResultsDirectory.exists() && matchResultsDirectory.isDirectory()==false) {
 					Util.printErrAndExit("ERROR: the output directory exists but isn't a directory? See "+matchResultsDirectory);
@@ -534,10 +962,10 @@ public class SubjectMatchMaker {
 			}
 
 			//check query subject file
-			if (querySubjectFile == null || querySubjectFile.canRead() == false) Util.printErrAndExit("ERROR: failed to find the query subject file "+querySubjectFile);
+			if (serverPort == -1 && compactJournal == false && (querySubjectFile == null || querySubjectFile.canRead() == false)) Util.printErrAndExit("ERROR: failed to find the query subject file "+querySubjectFile);
 
 			//threads
-			int numProc = Runtime.getRuntime().availableProcessors() - 1;
+			int numProc = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
 			if (numberThreads == 0 || numberThreads > numProc) numberThreads = numProc;		
 
 			//print params
@@ -554,24 +982,16 @@ public class SubjectMatchMaker {
 		//does the dir exist
 		if (subjectRegistryDir == null || subjectRegistryDir.isDirectory()== false) Util.printErrAndExit("ERROR: failed to find the subject registry directory -r ? See "+subjectRegistryDir);
 		
-		//is there a lock on the dir
-		int wait = 0;
-		while (true) {
-			if (wait == 6) {
-				Util.printErrAndExit("\nERROR: a persistant LOCKED file found in "+subjectRegistryDir+". Be sure no other SubjectMatchMaker is running, delete it, and restart.");
-			}
-			File lr = new File (subjectRegistryDir, "LOCKED");
-			if (lr.exists()) {
-				Util.pl("\t"+ lr +" file found, registry in use, waiting...");
-				wait++;
-				//wait 10 seconds
-				Thread.sleep(10000);
-			}
-			else {
-				lockedRegistry = lr;
-				lockedRegistry.createNewFile();
-				break;
-			}
+		//shared lock for searches, exclusive for runs that change the registry
+		boolean exclusive = addQuerySubjectsToRegistry || updateRegistryWithQuerySubjects || compactJournal;
+		registryLock = new RegistryLock(subjectRegistryDir);
+		if (registryLock.acquire(exclusive, LOCK_TRIES, LOCK_WAIT_MILLIS) == false) {
+			Util.printErrAndExit("\nERROR: the registry in "+subjectRegistryDir+" is still "+(exclusive ? "in use" : "being updated")+
+					" by the SubjectMatchMaker runs listed above, rerun when they finish.");
+		}
+		//an exclusive lock also waits on and takes the LOCKED file of older versions, see RegistryLock, searches only read so just warn
+		if (exclusive == false && new File(subjectRegistryDir, RegistryLock.LEGACY_LOCK_NAME).exists()) {
+			Util.el("\tWARNING: found a LOCKED file in "+subjectRegistryDir+", an older SubjectMatchMaker may be updating the registry. If none are running delete it.");
 		}
 		
 		//is there just one currentRegistry_ file found?
@@ -579,7 +999,7 @@ public class SubjectMatchMaker {
 		
 		if (currReg.length == 1) subjectRegistryFile = currReg[0];
 		else {
-			lockedRegistry.delete();
+			registryLock.release();
 			if (currReg.length == 0) Util.printErrAndExit("\nERROR: no file staring with 'currentRegistry_' was found in "+subjectRegistryDir);
 			else Util.printErrAndExit("\nERROR: more than one file staring with 'currentRegistry_' was found in "+subjectRegistryDir);
 		}
@@ -589,7 +1009,7 @@ public class SubjectMatchMaker {
 		String opt = "\nOptions:\n"+
 				"-r Registry file "+ subjectRegistryFile +"\n"+
 				"-q Query file "+ querySubjectFile +"\n"+
-				"-o Output results dir "+ matchResultsDirectory.getCanonicalFile()+"\n"+
+				"-o Output results dir "+ (matchResultsDirectory == null ? null : matchResultsDirectory.getCanonicalFile())+"\n"+
 				"-a Add query subjects to registry? "+ addQuerySubjectsToRegistry+"\n"+
 				"-s Max edit score for match "+ maxEditScoreForMatch+"\n"+
 				"-p First missing key score penalty "+ missingOneKeyPenalty+ "\n"+
@@ -597,7 +1017,16 @@ public class SubjectMatchMaker {
 				"-t Number threads "+ numberThreads+ "\n"+
 				"-m Number of matches to return "+ numberTopMatchesToReturn+"\n"+
 				"-c Is case-insensitive "+caseInsensitive +"\n"+
-		        "-u Update missing keys in registry "+ updateRegistryWithQuerySubjects;
+		        "-u Update missing keys in registry "+ updateRegistryWithQuerySubjects+"\n"+
+		        "-x Exhaustive scan, no blocking index "+ exhaustiveScan+"\n"+
+		        "-b Force blocking index "+ forceBlocking+"\n"+
+		        "-g Scheduler "+ (scheduler == null ? "auto" : scheduler)+"\n"+
+		        "-w Matching timeout "+ (matchTimeoutMinutes == 0 ? "none" : matchTimeoutMinutes+" min")+"\n"+
+		        "-z Compact the registry journal "+ compactJournal+"\n"+
+		        "-n Query batch size "+ (queryBatchSize == 0 ? "none, all at once" : queryBatchSize)+"\n"+
+		        "-d Match server port "+ (serverPort == -1 ? "none, single run" : serverPort)+"\n"+
+		        "-j Register the run metrics MBean "+ registerMBean+"\n"+
+		        "-e Gzip the saved registry and reports "+ gzipOutput;
 
 		Util.pl(opt);
 	}
@@ -605,14 +1034,14 @@ public class SubjectMatchMaker {
 
 
 
-	/**Splits an object[] into chunks containing the minNumEach. Any remainder is evenly distributed over the prior.
-	 * Note this is by reference, the array is not copied. */
-	public static Subject[][] chunk (Subject[] s, int minNumEach){
+	/**Splits numSubjects into chunks containing the minNumEach. Any remainder is evenly distributed over the prior.
+	 * Returns the start (included) and stop (excluded) index of each chunk. */
+	public static int[][] chunk (int numSubjects, int minNumEach){
 		//watch out for cases where the min can't be met
-		int numChunks = s.length/minNumEach;
-		if (numChunks == 0) return new Subject[][]{s};
+		int numChunks = numSubjects/minNumEach;
+		if (numChunks == 0) return new int[][]{{0, numSubjects}};
 
-		double numLeftOver = (double)s.length % (double)minNumEach;
+		double numLeftOver = (double)numSubjects % (double)minNumEach;
 
 		int[] numInEach = new int[numChunks];
 		for (int i=0; i< numChunks; i++) numInEach[i] = minNumEach;
@@ -624,15 +1053,12 @@ public class SubjectMatchMaker {
 				if (numLeftOver == 0) break;
 			}
 		}
-		//build chunk array
-		Subject[][] chunks = new Subject[numChunks][];
+		//build chunk ranges
+		int[][] chunks = new int[numChunks][];
 		int index = 0;
-		//for each chunk
 		for (int i=0; i< numChunks; i++){
-			//create container and fill it
-			Subject[] sub = new Subject[numInEach[i]];
-			for (int j=0; j< sub.length; j++) sub[j] = s[index++];
-			chunks[i] = sub;
+			chunks[i] = new int[] {index, index+ numInEach[i]};
+			index+= numInEach[i];
 		}
 		return chunks;
 	}
@@ -658,6 +1084,11 @@ public class SubjectMatchMaker {
 				"      mrn coreId otherIds. The last two columns are optional. Semicolon delimit\n"+
 				"      otherIds. Use '.' for missing info. CoreIds will be created as needed.\n"+
 				"      Example: Biden Joseph 11 20 1942 M 19485763 . 7474732;847362\n"+
+				"      A binary snapshot of the registry, registrySnapshot_PHI.smm, is saved in this\n"+
+				"      directory to speed up later loads, along with a name index, nameIndex_PHI.smm,\n"+
+				"      when blocking is used. Both are rebuilt when the registry changes.\n"+
+				"      Searches share the registry and run side by side, runs that change it (-a -u -z)\n"+
+				"      wait up to a minute for sole use. Locks from crashed runs are released.\n"+
 				"-q File containing queries to match to the registry, ditto. Alternatively, provide\n"+
 				"      a single column of coreIds to use in fetching subject info from the registry.\n"+
 				"-o Directory to write out the match result reports.\n"+
@@ -671,12 +1102,55 @@ public class SubjectMatchMaker {
 				"-t Number of threads to use, defaults to all.\n"+
 				"-m Number of top matches to return per query, defaults to 3\n"+
 				"-c Case-insensitive name matching, defaults to case sensitive.\n"+
+				"-x Exhaustive scan, score every query against every registry subject. Use this to\n"+
+				"      compare results against the blocking index, which is used by default for\n"+
+				"      registries with >= 50000 subjects to only score those sharing an MRN\n"+
+				"      prefix/suffix, partial DoB, name prefix, or a name within the max edit score\n"+
+				"      with the query, an MRN or DoB within it for queries without a usable name.\n"+
+				"      With it, queries whose best exact MRN, otherId, or DoB+gender hit is a clear\n"+
+				"      match skip the scan.\n"+
+				"-b Use the blocking index regardless of the registry size.\n"+
+				"-g Scheduler, 'tiles' to split the query x registry grid into tiles that idle threads\n"+
+				"      steal, or 'chunks' to score all queries against one fixed registry chunk per\n"+
+				"      thread. Defaults to tiles when there are >= 4 queries per thread.\n"+
+				"-w Matching timeout in minutes, cancels the matchers and aborts if they haven't\n"+
+				"      finished, defaults to none. Progress is printed each minute while matching.\n"+
+				"-n Read, match, and report the queries in batches of this size, e.g. 10000, so memory\n"+
+				"      stays flat for very large query files. Queries without a match that match a new\n"+
+				"      coreId from a prior batch (-a) take that coreId.\n"+
+				"-d Run as a match server on this localhost port, -q and -o aren't needed. The\n"+
+				"      registry is loaded once and held in memory. POST tab delimited queries, ditto,\n"+
+				"      to /match and the json report is returned, GET /status for the registry size.\n"+
+				"      Requests are matched in parallel, those that change the registry (-a -u) are run\n"+
+				"      one at a time and journaled. The registry lock is held until shut down.\n"+
+				"-z Compact the registry journal into a new 'currentRegistry_' file and exit, -q and\n"+
+				"      -o aren't needed. Changes from -a and -u are appended to registryJournal_PHI.txt\n"+
+				"      in the registry directory and replayed on load rather than rewriting the registry.\n"+
+				"-j Register the run metrics as the JMX MBean edu.utah.hci.bioinfo.smm:type=RunMetrics\n"+
+				"      for in process callers and JMX clients. Stage wall/CPU time, allocation, match\n"+
+				"      counters, and matcher thread throughput are always saved to runMetrics.json in\n"+
+				"      the output directory, GET /metrics returns them from the server. Per query\n"+
+				"      matching time percentiles, overall and by the number of missing keys, and the\n"+
+				"      non PHI shape of the 100 slowest queries go to queryDiagnostics.json, GET\n"+
+				"      /diagnostics from the server.\n"+
+				"-e Gzip compress the saved registry and the match reports, adds .gz to their names.\n"+
+				"      Compression runs on its own thread behind the writer, as decompression of .gz\n"+
+				"      and .zip registries and queries runs ahead of the parser. The MB/sec of each\n"+
+				"      file read or written is in runMetrics.json.\n"+
 
 				"\nExample: java -jar pathTo/SubjectIdMatchMaker_xxx.jar -r ~/PHI/SMMRegistry \n"+
 				"      -q ~/Tempus/newPatients_PHI.txt -o ~/Tempus/SMMRes/ -a -c -u\n"+
+				"      java -jar pathTo/SubjectIdMatchMaker_xxx.jar -r ~/PHI/SMMRegistry -d 8085 -c\n"+
+				"      curl --data-binary @newPatients_PHI.txt http://localhost:8085/match\n"+
 				"\n**************************************************************************************\n");
 	}
 
+	public RegistryStore getRegistry() {
+		return registry;
+	}
+	public BlockingIndex getBlockingIndex() {
+		return blockingIndex;
+	}
 	public Subject[] getQuerySubjects() {
 		return querySubjects;
 	}
@@ -690,8 +1164,48 @@ public class SubjectMatchMaker {
 		return missingAdditionalKeyPenalty;
 	}
 
+	/**Returns the registry file rewritten by this run, otherwise the journal its changes were appended to, null if neither.*/
 	public File getUpdatedRegistry() {
-		return updatedRegistry;
+		if (updatedRegistry != null) return updatedRegistry;
+		return journalFile;
+	}
+
+	/**Stage timings, counters, and matcher throughput for this run, or for the server's requests so far.*/
+	public RunMetrics getRunMetrics() {
+		return runMetrics;
+	}
+
+	/**Returns the running server, null if not started with -d.*/
+	public MatchServer getMatchServer() {
+		return matchServer;
+	}
+
+	/**True if matching queries may change the registry, -a or -u.*/
+	public boolean isRegistryWritable() {
+		return addQuerySubjectsToRegistry || updateRegistryWithQuerySubjects;
+	}
+
+	/**The run's pool of numberThreads workers, created on first use and shared by the chunk matchers, the exact key matching, and the query
+	 * clustering so batches and server requests don't each start their own threads. A server runs its matchers on it and shuts it down on stop.*/
+	synchronized ExecutorService fetchWorkerExecutor() {
+		if (workerExecutor == null) workerExecutor = Executors.newFixedThreadPool(Math.max(1, numberThreads));
+		return workerExecutor;
+	}
+
+	/**The run's work stealing pool for the tiles, see -g, created on first use so -n batches share its threads.*/
+	synchronized ForkJoinPool fetchTilePool() {
+		if (tilePool == null) tilePool = new ForkJoinPool(Math.max(1, numberThreads));
+		return tilePool;
+	}
+
+	/**Matching timeout from -w, 0 for none.*/
+	long getMatchTimeoutMillis() {
+		return Math.round(matchTimeoutMinutes * 60000);
+	}
+
+	/**Releases the registry lock, called by the server on shut down.*/
+	void releaseLock() {
+		if (registryLock != null) registryLock.release();
 	}
 
 
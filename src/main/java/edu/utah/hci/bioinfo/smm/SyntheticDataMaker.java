@@ -0,0 +1,245 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**Writes a synthetic registry, queries, and their ground truth for scale and accuracy testing without real PHI, see SyntheticSubjects.*/
+public class SyntheticDataMaker {
+
+	private static final String SUBJECT_HEADER = "#LastName\tFirstName\tDoBMonth(1-12)\tDoBDay(1-31)\tDoBYear(1900-2050)\tGender(M|F)\tMRN";
+
+	//user defined fields
+	private File outputDirectory = null;
+	private int numberRegistryRows = 100000;
+	private int numberQueries = 10000;
+	private long seed = 1;
+	private boolean gzip = false;
+	private SyntheticSubjects subjects = null;
+
+	//internal
+	private long[] duplicates = new long[1024];
+	private int numberDuplicates = 0;
+
+	public SyntheticDataMaker(String[] args) {
+		try {
+			long startTime = System.currentTimeMillis();
+
+			processArgs(args);
+
+			Util.p("\nWriting "+numberRegistryRows+" registry subjects... ");
+			writeRegistry();
+			Util.pl(numberDuplicates+" are a second record of a prior subject");
+
+			Util.p("Writing "+numberQueries+" queries and their ground truth... ");
+			writeQueries();
+
+			double diffTime = ((double)(System.currentTimeMillis() -startTime))/1000;
+			Util.pl("\nDone! "+Math.round(diffTime)+" Sec\n");
+		} catch (Exception e) {
+			Util.el("\nERROR making the synthetic data, aborting. ");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/*The registry, ready for -r, and the person behind each row. Duplicate rows are kept for the query truth.*/
+	private void writeRegistry() throws IOException {
+		File registryDir = new File(outputDirectory, "Registry");
+		if (registryDir.exists() == false && registryDir.mkdirs() == false) throw new IOException("ERROR: failed to make the registry directory "+registryDir);
+		PrintWriter out = fetchWriter(new File(registryDir, "currentRegistry_synthetic_PHI.txt"));
+		PrintWriter truth = fetchWriter(new File(outputDirectory, "registryTruth_PHI.txt"));
+		out.println(SUBJECT_HEADER+ "\tCoreId\tOtherIds(;delimited)");
+		truth.println("#Row\tCoreId\tPersonId");
+		for (int i=0; i< numberRegistryRows; i++) {
+			String[] fields = subjects.fetchRegistryFields(i);
+			out.println(Util.stringArrayToString(fields, "\t"));
+			int root = subjects.fetchRootRow(i);
+			truth.println(i+ "\t"+ fields[7]+ "\tR"+ root);
+			if (root != i) {
+				if (numberDuplicates == duplicates.length) duplicates = Arrays.copyOf(duplicates, duplicates.length * 2);
+				duplicates[numberDuplicates++] = ((long)root << 32) | i;
+			}
+		}
+		out.close();
+		truth.close();
+		duplicates = Arrays.copyOf(duplicates, numberDuplicates);
+		Arrays.sort(duplicates);
+	}
+
+	/*The queries and, in the same order, who each is: their person, the registry coreIds of that person if any, and the keys changed.*/
+	private void writeQueries() throws IOException {
+		PrintWriter out = fetchWriter(new File(outputDirectory, "queries_PHI.txt"));
+		PrintWriter truth = fetchWriter(new File(outputDirectory, "queryTruth_PHI.txt"));
+		out.println(SUBJECT_HEADER);
+		truth.println("#Query\tPersonId\tRegistryCoreIds\tTypoKeys\tMissingKeys");
+		int numberNew = 0;
+		int numberChanged = 0;
+		for (int i=0; i< numberQueries; i++) {
+			out.println(Util.stringArrayToString(subjects.fetchQueryFields(i, numberRegistryRows), "\t"));
+			int typos = subjects.getLastTypos();
+			int missing = subjects.getLastMissing();
+			if (typos != 0 || missing != 0) numberChanged++;
+			int row = subjects.fetchSourceRow(i, numberRegistryRows);
+			String coreIds = ".";
+			if (row == -1) numberNew++;
+			else coreIds = fetchCoreIds(subjects.fetchRootRow(row));
+			truth.println(i+ "\t"+ subjects.fetchPersonId(i, numberRegistryRows)+ "\t"+ coreIds+ "\t"+ SyntheticSubjects.describeKeys(typos)+ "\t"+
+					SyntheticSubjects.describeKeys(missing));
+		}
+		out.close();
+		truth.close();
+		Util.pl(numberNew+" new people, "+numberChanged+" with a typo or missing key");
+	}
+
+	/*The coreIds of the root row and its duplicates, semicolon delimited.*/
+	private String fetchCoreIds(int root) {
+		StringBuilder sb = new StringBuilder(subjects.fetchCoreId(root));
+		int i = Arrays.binarySearch(duplicates, (long)root << 32);
+		if (i < 0) i = -i - 1;
+		for (; i< numberDuplicates && (int)(duplicates[i] >>> 32) == root; i++) {
+			sb.append(";");
+			sb.append(subjects.fetchCoreId((int)duplicates[i]));
+		}
+		return sb.toString();
+	}
+
+	private PrintWriter fetchWriter(File file) throws IOException {
+		if (gzip) return new PrintWriter(new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(
+				new FileOutputStream(file.getPath()+ ".gz"), 65536), "UTF-8"), 65536));
+		return new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 65536));
+	}
+
+	public static void main(String[] args) {
+		if (args.length ==0){
+			printDocs();
+			System.exit(0);
+		}
+		new SyntheticDataMaker(args);
+	}
+
+	/**This method will process each argument and assign new variables*/
+	public void processArgs(String[] args){
+		try {
+			Util.pl("\nArguments: "+ Util.stringArrayToString(args, " ") +"\n");
+			Pattern pat = Pattern.compile("-[a-zA-Z]");
+			File lastNames = null;
+			File femaleNames = null;
+			File maleNames = null;
+			double[] rates = {-1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1};
+			String rateOptions = "uwdknpebigx";
+			for (int i = 0; i<args.length; i++){
+				Matcher mat = pat.matcher(args[i]);
+				if (mat.matches()){
+					char test = args[i].charAt(1);
+					try{
+						switch (test){
+						case 'o': outputDirectory = new File(args[++i]); break;
+						case 'r': numberRegistryRows = Integer.parseInt(args[++i]); break;
+						case 'q': numberQueries = Integer.parseInt(args[++i]); break;
+						case 's': seed = Long.parseLong(args[++i]); break;
+						case 'z': gzip = true; break;
+						case 'l': lastNames = new File(args[++i]); break;
+						case 'f': femaleNames = new File(args[++i]); break;
+						case 'm': maleNames = new File(args[++i]); break;
+						default:
+							int r = rateOptions.indexOf(test);
+							if (r == -1) Util.printErrAndExit("\nProblem, unknown option! " + mat.group());
+							rates[r] = Double.parseDouble(args[++i]);
+							if (rates[r] < 0 || rates[r] > 1) Util.printErrAndExit("\nERROR: the -"+test+" rate must be between 0 and 1, not "+args[i]);
+						}
+					}
+					catch (Exception e){
+						e.printStackTrace();
+						Util.printErrAndExit("\nSorry, something doesn't look right with this parameter: -"+test+"\n");
+					}
+				}
+			}
+
+			//check output dir
+			if (outputDirectory == null) Util.printErrAndExit("ERROR: please provide an output directory, -o");
+			if (outputDirectory.exists() && outputDirectory.isDirectory()==false) Util.printErrAndExit("ERROR: the output directory exists but isn't a directory? See "+outputDirectory);
+			if (outputDirectory.exists()==false && outputDirectory.mkdirs()==false) Util.printErrAndExit("ERROR: failed to make the output directory? See "+outputDirectory);
+			if (new File(outputDirectory, "Registry").exists()) Util.printErrAndExit("ERROR: the output directory already holds a Registry, choose another. See "+outputDirectory);
+
+			if (numberRegistryRows < 0 || numberRegistryRows >= SyntheticSubjects.MAX_ROWS) Util.printErrAndExit("ERROR: the number of registry subjects must be 0 to "+(SyntheticSubjects.MAX_ROWS-1));
+			if (numberQueries < 0) Util.printErrAndExit("ERROR: the number of queries can't be negative");
+
+			subjects = new SyntheticSubjects(seed);
+			if (lastNames != null) subjects.setLastNames(SyntheticSubjects.NameFrequencies.load(lastNames));
+			if (femaleNames != null) subjects.setFemaleNames(SyntheticSubjects.NameFrequencies.load(femaleNames));
+			if (maleNames != null) subjects.setMaleNames(SyntheticSubjects.NameFrequencies.load(maleNames));
+			if (rates[0] != -1) subjects.setMadeUpLastNameRate(rates[0]);
+			if (rates[1] != -1) subjects.setMadeUpFirstNameRate(rates[1]);
+			if (rates[2] != -1) subjects.setRegistryDuplicateRate(rates[2]);
+			if (rates[3] != -1) subjects.setRegistryMissingRate(rates[3]);
+			if (rates[4] != -1) subjects.setNewSubjectRate(rates[4]);
+			if (rates[5] != -1) subjects.setQueryDuplicateRate(rates[5]);
+			if (rates[6] != -1) subjects.setNameTypoRate(rates[6]);
+			if (rates[7] != -1) subjects.setDobTypoRate(rates[7]);
+			if (rates[8] != -1) subjects.setMrnTypoRate(rates[8]);
+			if (rates[9] != -1) subjects.setGenderErrorRate(rates[9]);
+			if (rates[10] != -1) subjects.setMissingRate(rates[10]);
+
+		} catch (Exception e) {
+			e.printStackTrace();
+			Util.printErrAndExit("\nProblem parsing arguments!");
+		}
+	}
+
+	public static void printDocs(){
+		Util.pl("\n" +
+				"**************************************************************************************\n" +
+				"**                          Synthetic Data Maker : Oct 2026                         **\n" +
+				"**************************************************************************************\n" +
+				"Writes a made up registry and queries in the SubjectMatchMaker format, with no real\n"+
+				"PHI, to test throughput and accuracy at scale. Names are drawn from name frequency\n"+
+				"tables plus made up ones, a few registry rows are a second record of a prior subject\n"+
+				"with their own coreId, and queries are copies of registry subjects or of new people,\n"+
+				"some repeated, with typos and missing keys. The same options and seed always write\n"+
+				"the same files. Output, add .gz with -z:\n"+
+				"   Registry/currentRegistry_synthetic_PHI.txt  use the Registry dir with -r\n"+
+				"   queries_PHI.txt                             use with -q\n"+
+				"   queryTruth_PHI.txt  per query in order: its PersonId, the registry coreIds of\n"+
+				"      that person or '.' for a new person, and the keys given a typo or dropped.\n"+
+				"      Queries sharing a PersonId are the same person, one coreId is expected for\n"+
+				"      them with -a.\n"+
+				"   registryTruth_PHI.txt  per registry row: its coreId and PersonId.\n"+
+
+				"\nRequired:\n"+
+				"-o Directory to write the files, it mustn't hold a Registry dir.\n"+
+
+				"\nOptional:\n"+
+				"-r Number of registry subjects, defaults to 100000, up to 134M.\n"+
+				"-q Number of queries, defaults to 10000.\n"+
+				"-s Seed, defaults to 1.\n"+
+				"-z Gzip the files.\n"+
+				"-l Last name frequencies, a tab delimited name and count per line, e.g. from the\n"+
+				"      census, defaults to 60 common names weighted by rank.\n"+
+				"-f Female first name frequencies, ditto.\n"+
+				"-m Male first name frequencies, ditto.\n"+
+				"-u Fraction of made up last names, defaults to 0.4\n"+
+				"-w Fraction of made up first names, defaults to 0.15\n"+
+				"-d Fraction of registry rows that are a second record of a prior one, 0.02\n"+
+				"-k Fraction of registry keys that are missing, 0.02\n"+
+				"-n Fraction of queries that are new people, 0.2\n"+
+				"-p Fraction of queries that repeat a prior query's person, 0.05\n"+
+				"-e Fraction of names with a typo, 0.1\n"+
+				"-b Fraction of DoBs with a typo, a month/day swap, day or decade off, 0.05\n"+
+				"-i Fraction of MRNs with a typo, 0.05\n"+
+				"-g Fraction of genders flipped, 0.01\n"+
+				"-x Fraction of query keys that are missing, 0.05\n"+
+
+				"\nExample: java -cp pathTo/SubjectIdMatchMaker_xxx.jar edu.utah.hci.bioinfo.smm.SyntheticDataMaker\n"+
+				"      -o ~/SMMScale/ -r 50000000 -q 1000000 -z\n"+
+
+				"\n**************************************************************************************\n");
+	}
+}
@@ -0,0 +1,423 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**Makes up registry subjects and queries for benchmarks and scale tests, no real PHI. Registry rows draw last and first names from name frequency
+ * tables, by default common US names weighted by rank, with a long tail of made up and hyphenated names, gender from the first name, 1930-2019 DoBs,
+ * 8 digit MRNs, some otherIds, and a coreId unique to the row. A few rows are duplicates, a second record of an earlier row's person with its own
+ * coreId, often a different MRN, and some noise. Queries are noisy copies of random registry rows or of new people, some repeated so new people
+ * show up more than once. Every row and query is a function of the seed and its index, so any one can be fetched again without storing the rest.
+ * Not thread safe, see SyntheticDataMaker to write them to files.*/
+public class SyntheticSubjects {
+
+	//keys with a typo or missing, see getLastTypos() and getLastMissing()
+	public static final int NAME_KEY = 1;
+	public static final int DOB_KEY = 2;
+	public static final int GENDER_KEY = 4;
+	public static final int MRN_KEY = 8;
+	//rows at and above this would repeat coreIds
+	public static final int MAX_ROWS = 1 << 27;
+
+	private static final String[] LAST_NAMES = {"Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez",
+			"Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Jackson", "Martin", "Lee", "Perez", "Thompson", "White",
+			"Harris", "Sanchez", "Clark", "Ramirez", "Lewis", "Robinson", "Walker", "Young", "Allen", "King", "Wright", "Scott", "Torres", "Nguyen",
+			"Hill", "Flores", "Green", "Adams", "Nelson", "Baker", "Hall", "Rivera", "Campbell", "Mitchell", "Carter", "Roberts", "Jensen", "Christensen",
+			"Larsen", "Nielsen", "Petersen", "Hansen", "Olsen", "Sorensen", "Rasmussen", "Madsen"};
+	private static final String[] FEMALE_NAMES = {"Mary", "Patricia", "Jennifer", "Linda", "Elizabeth", "Barbara", "Susan", "Jessica", "Sarah", "Karen",
+			"Lisa", "Nancy", "Betty", "Margaret", "Sandra", "Ashley", "Kimberly", "Emily", "Donna", "Michelle", "Carol", "Amanda", "Dorothy", "Melissa",
+			"Deborah", "Stephanie", "Rebecca", "Sharon", "Laura", "Cynthia"};
+	private static final String[] MALE_NAMES = {"James", "Robert", "John", "Michael", "David", "William", "Richard", "Joseph", "Thomas", "Charles",
+			"Christopher", "Daniel", "Matthew", "Anthony", "Mark", "Donald", "Steven", "Paul", "Andrew", "Joshua", "Kenneth", "Kevin", "Brian", "George",
+			"Timothy", "Ronald", "Edward", "Jason", "Jeffrey", "Ryan"};
+	private static final String[] SYLLABLES = {"an", "ber", "ca", "dor", "el", "fen", "gar", "ha", "is", "jo", "ka", "lin", "mo", "nor", "ol", "pa",
+			"quin", "ra", "sen", "ta", "ul", "ver", "wa", "xi", "ya", "zo", "tt", "sch", "ley", "son"};
+	private static final String CORE_ID_LETTERS = "ABCDEFGHJKMNPQRSTUVWXYZabcdefghjkmnpqrstuvwxyz";
+	private static final String CORE_ID_DIGITS = "23456789";
+	//46^8 letters x 8^2 digits, the multiplier is coprime to it so rows below MAX_ROWS map to distinct coreIds
+	private static final long NUMBER_CORE_IDS = 20047612231936L * 64L;
+	private static final long CORE_ID_MULTIPLIER = 0x5DEECE66DL;
+	private static final long REGISTRY_SALT = 0x52454749L;
+	private static final long DUPLICATE_SALT = 0x44555053L;
+	private static final long QUERY_SALT = 0x51554552L;
+	private static final long NEW_SUBJECT_SALT = 0x4E455753L;
+
+	private long seed = 0;
+	private Random random = new Random();
+	private NameFrequencies lastNames = new NameFrequencies(LAST_NAMES);
+	private NameFrequencies femaleNames = new NameFrequencies(FEMALE_NAMES);
+	private NameFrequencies maleNames = new NameFrequencies(MALE_NAMES);
+	private double madeUpLastNameRate = 0.4;
+	private double madeUpFirstNameRate = 0.15;
+	//chance a registry key is missing
+	private double registryMissingRate = 0.02;
+	//chance a registry row is a second record of an earlier row's person
+	private double registryDuplicateRate = 0.02;
+	private double otherIdRate = 0.1;
+	//chance a query is a new person rather than a copy of a registry row
+	private double newSubjectRate = 0.2;
+	//chance a query is another copy of an earlier query's person
+	private double queryDuplicateRate = 0.05;
+	//chance each key of a copy has a typo, the gender is flipped
+	private double nameTypoRate = 0.1;
+	private double dobTypoRate = 0.05;
+	private double mrnTypoRate = 0.05;
+	private double genderErrorRate = 0.01;
+	//chance each key of a query is missing
+	private double missingRate = 0.05;
+	private int lastTypos = 0;
+	private int lastMissing = 0;
+
+	public SyntheticSubjects(long seed) {
+		this.seed = seed;
+	}
+
+	/**lastName firstName dobMonth dobDay dobYear gender mrn coreId otherIds of a registry row, '.' for missing keys. The same row always gives the same fields.*/
+	public String[] fetchRegistryFields(int row) {
+		int root = fetchRootRow(row);
+		random.setSeed(mix(seed ^ REGISTRY_SALT, root));
+		String[] f = Arrays.copyOf(makeSubject(registryMissingRate), 9);
+		f[8] = random.nextDouble() < otherIdRate ? makeOtherIds() : ".";
+		if (root != row) {
+			//a second record, often from another facility
+			random.setSeed(mix(seed ^ DUPLICATE_SALT, row));
+			if (random.nextBoolean()) f[6] = Integer.toString(10000000+ random.nextInt(90000000));
+			if (random.nextBoolean()) f[8] = ".";
+			addNoise(f, registryMissingRate);
+		}
+		f[7] = fetchCoreId(row);
+		return f;
+	}
+
+	/**The first row of the row's person, the row itself unless it's a duplicate.*/
+	public int fetchRootRow(int row) {
+		while (row > 0) {
+			random.setSeed(mix(seed ^ REGISTRY_SALT ^ DUPLICATE_SALT, row));
+			if (random.nextDouble() >= registryDuplicateRate) break;
+			row = random.nextInt(row);
+		}
+		return row;
+	}
+
+	/**The registry row a query is a copy of, or -1 if it's a new person.*/
+	public int fetchSourceRow(int query, int registrySize) {
+		long source = fetchSource(query, registrySize);
+		return source < 0 ? -1 : (int)source;
+	}
+
+	/**R and the root registry row or Q and the first query of a new person. Queries and rows of the same person share it.*/
+	public String fetchPersonId(int query, int registrySize) {
+		long source = fetchSource(query, registrySize);
+		return source < 0 ? "Q"+ (-source - 1) : "R"+ fetchRootRow((int)source);
+	}
+
+	/*The registry row, or minus one minus the first query of a new person.*/
+	private long fetchSource(int query, int registrySize) {
+		while (true) {
+			random.setSeed(mix(seed ^ QUERY_SALT, query));
+			if (query > 0 && random.nextDouble() < queryDuplicateRate) query = random.nextInt(query);
+			else if (registrySize == 0 || random.nextDouble() < newSubjectRate) return -1L - query;
+			else return random.nextInt(registrySize);
+		}
+	}
+
+	/**lastName firstName dobMonth dobDay dobYear gender mrn of a query, '.' for missing keys. See getLastTypos() and getLastMissing() for its changes.*/
+	public String[] fetchQueryFields(int query, int registrySize) {
+		long source = fetchSource(query, registrySize);
+		String[] f = null;
+		if (source >= 0) f = fetchRegistryFields((int)source);
+		else {
+			random.setSeed(mix(seed ^ NEW_SUBJECT_SALT, -source - 1));
+			f = makeSubject(registryMissingRate);
+		}
+		String[] q = Arrays.copyOf(f, 7);
+		random.setSeed(mix(seed ^ QUERY_SALT ^ NEW_SUBJECT_SALT, query));
+		addNoise(q, missingRate);
+		return q;
+	}
+
+	/**Builds an in memory registry of the first size rows.*/
+	public RegistryStore makeRegistry(int size, boolean caseInsensitive) throws IOException {
+		RegistryStore registry = new RegistryStore(caseInsensitive);
+		for (int i=0; i< size; i++) registry.add(new Subject(i, fetchRegistryFields(i), false, null, false, caseInsensitive, false));
+		registry.trim();
+		return registry;
+	}
+
+	/**Parses the first number queries against a registry of registrySize rows.*/
+	public Subject[] makeQueries(int number, int registrySize, boolean caseInsensitive) throws IOException {
+		Subject[] queries = new Subject[number];
+		for (int i=0; i< number; i++) queries[i] = new Subject(i, fetchQueryFields(i, registrySize), false, null, true, caseInsensitive, false);
+		return queries;
+	}
+
+	/**A valid coreId for the row, distinct for rows below MAX_ROWS.*/
+	public String fetchCoreId(int row) {
+		long n = (row * CORE_ID_MULTIPLIER + Math.floorMod(seed, NUMBER_CORE_IDS)) % NUMBER_CORE_IDS;
+		char[] c = new char[10];
+		//LLLDLLDLLL, least significant first so neighboring rows don't share a prefix
+		for (int i=0; i< 10; i++) {
+			String alphabet = i == 3 || i == 6 ? CORE_ID_DIGITS : CORE_ID_LETTERS;
+			c[i] = alphabet.charAt((int)(n % alphabet.length()));
+			n /= alphabet.length();
+		}
+		return new String(c);
+	}
+
+	/**The keys, NAME_KEY | DOB_KEY..., given a typo in the last query or duplicate registry row fetched.*/
+	public int getLastTypos() {
+		return lastTypos;
+	}
+
+	/**The keys dropped from the last query or duplicate registry row fetched.*/
+	public int getLastMissing() {
+		return lastMissing;
+	}
+
+	/**Comma delimited names of the keys, e.g. name,mrn, or '.' for none.*/
+	public static String describeKeys(int keys) {
+		if (keys == 0) return ".";
+		StringBuilder sb = new StringBuilder();
+		String[] names = {"name", "dob", "gender", "mrn"};
+		for (int i=0; i< names.length; i++) {
+			if ((keys & (1 << i)) == 0) continue;
+			if (sb.length() != 0) sb.append(",");
+			sb.append(names[i]);
+		}
+		return sb.toString();
+	}
+
+	/*lastName firstName dobMonth dobDay dobYear gender mrn from the current random state.*/
+	private String[] makeSubject(double missing) {
+		boolean male = random.nextBoolean();
+		String last = random.nextDouble() < madeUpLastNameRate ? makeName() : lastNames.pick(random);
+		if (random.nextDouble() < 0.03) last = last+ "-"+ lastNames.pick(random);
+		String first = random.nextDouble() < madeUpFirstNameRate ? makeName() : (male ? maleNames : femaleNames).pick(random);
+		String[] f = {last, first, Integer.toString(1+ random.nextInt(12)), Integer.toString(1+ random.nextInt(28)),
+				Integer.toString(1930+ random.nextInt(90)), male ? "M" : "F", Integer.toString(10000000+ random.nextInt(90000000))};
+		for (int i: new int[] {0, 1, 2, 5, 6}) {
+			if (random.nextDouble() < missing) {
+				f[i] = ".";
+				if (i == 2) f[3] = f[4] = ".";
+			}
+		}
+		return f;
+	}
+
+	private String makeName() {
+		int num = 2+ random.nextInt(3);
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i< num; i++) sb.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+		sb.setCharAt(0, Character.toUpperCase(sb.charAt(0)));
+		return sb.toString();
+	}
+
+	private String makeOtherIds() {
+		String ids = "H"+ (1000000+ random.nextInt(9000000));
+		if (random.nextInt(4) == 0) ids = ids+ ";H"+ (1000000+ random.nextInt(9000000));
+		return ids;
+	}
+
+	/*Typos then missing keys for the first 7 fields, recorded in lastTypos and lastMissing.*/
+	private void addNoise(String[] f, double missing) {
+		lastTypos = 0;
+		lastMissing = 0;
+		for (int i=0; i< 2; i++) {
+			if (f[i].equals(".") == false && random.nextDouble() < nameTypoRate) {
+				f[i] = addEdit(f[i], "abcdefghijklmnopqrstuvwxyz");
+				lastTypos |= NAME_KEY;
+			}
+		}
+		if (f[2].equals(".") == false && random.nextDouble() < dobTypoRate) {
+			addDobTypo(f);
+			lastTypos |= DOB_KEY;
+		}
+		if (f[5].equals(".") == false && random.nextDouble() < genderErrorRate) {
+			f[5] = f[5].equals("M") ? "F" : "M";
+			lastTypos |= GENDER_KEY;
+		}
+		if (f[6].equals(".") == false && random.nextDouble() < mrnTypoRate) {
+			f[6] = addEdit(f[6], "0123456789");
+			lastTypos |= MRN_KEY;
+		}
+		//drop keys, the dob as a whole
+		int[] keys = {NAME_KEY, NAME_KEY, DOB_KEY, 0, 0, GENDER_KEY, MRN_KEY};
+		for (int i: new int[] {0, 1, 2, 5, 6}) {
+			if (f[i].equals(".") == false && random.nextDouble() < missing) {
+				f[i] = ".";
+				if (i == 2) f[3] = f[4] = ".";
+				lastMissing |= keys[i];
+			}
+		}
+	}
+
+	/*One substitution, insertion, deletion, or swap of neighbors.*/
+	private String addEdit(String s, String alphabet) {
+		StringBuilder sb = new StringBuilder(s);
+		char c = alphabet.charAt(random.nextInt(alphabet.length()));
+		int op = random.nextInt(4);
+		if (op == 0 || sb.length() < 2) sb.insert(random.nextInt(sb.length()+ 1), c);
+		else if (op == 1) sb.deleteCharAt(random.nextInt(sb.length()));
+		else if (op == 2) sb.setCharAt(random.nextInt(sb.length()), c);
+		else {
+			int i = random.nextInt(sb.length()- 1);
+			char t = sb.charAt(i);
+			sb.setCharAt(i, sb.charAt(i+1));
+			sb.setCharAt(i+1, t);
+		}
+		return sb.toString();
+	}
+
+	/*Swaps the month and day, or is off by one on the day or ten on the year, staying valid.*/
+	private void addDobTypo(String[] f) {
+		int month = Integer.parseInt(f[2]);
+		int day = Integer.parseInt(f[3]);
+		int year = Integer.parseInt(f[4]);
+		int op = random.nextInt(3);
+		if (op == 0 && day <= 12 && day != month) {
+			f[2] = Integer.toString(day);
+			f[3] = Integer.toString(month);
+		}
+		else if (op < 2) f[3] = Integer.toString(day == 1 ? 2 : day - 1);
+		else f[4] = Integer.toString(year >= 2000 ? year - 10 : year + 10);
+	}
+
+	/*splitmix64 of the salted seed and index, java.util.Random's own seed scrambling leaves neighboring seeds correlated.*/
+	private static long mix(long salt, long index) {
+		long z = salt + (index + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**Names drawn in proportion to their counts.*/
+	public static class NameFrequencies {
+		private String[] names = null;
+		private double[] cumulative = null;
+
+		/**Weighted by rank, the first is twice as common as the second, three times the third...*/
+		public NameFrequencies(String[] names) {
+			double[] counts = new double[names.length];
+			for (int i=0; i< counts.length; i++) counts[i] = 1.0 / (i+ 1);
+			set(names, counts);
+		}
+
+		public NameFrequencies(String[] names, double[] counts) {
+			set(names, counts);
+		}
+
+		/**Loads a tab delimited name and count per line, e.g. from the census name files, the count defaults to 1. Lines starting with # are skipped.*/
+		public static NameFrequencies load(File file) throws IOException {
+			ArrayList<String> names = new ArrayList<String>();
+			ArrayList<Double> counts = new ArrayList<Double>();
+			BufferedReader in = Util.fetchBufferedReader(file);
+			String line = null;
+			while ((line = in.readLine())!= null) {
+				if (line.trim().length()==0 || line.startsWith("#")) continue;
+				String[] t = Util.TAB.split(line.trim());
+				double count = 1;
+				if (t.length > 1) {
+					try {
+						count = Double.parseDouble(t[1]);
+					} catch (NumberFormatException e) {
+						in.close();
+						throw new IOException("ERROR: the name count '"+t[1]+"' isn't a number in "+file+" line: "+line);
+					}
+				}
+				if (count <= 0) continue;
+				names.add(t[0]);
+				counts.add(count);
+			}
+			in.close();
+			if (names.size() == 0) throw new IOException("ERROR: no names found in "+file);
+			double[] c = new double[counts.size()];
+			for (int i=0; i< c.length; i++) c[i] = counts.get(i);
+			return new NameFrequencies(names.toArray(new String[names.size()]), c);
+		}
+
+		private void set(String[] names, double[] counts) {
+			this.names = names;
+			cumulative = new double[counts.length];
+			double sum = 0;
+			for (int i=0; i< counts.length; i++) {
+				sum+= counts[i];
+				cumulative[i] = sum;
+			}
+		}
+
+		public String pick(Random random) {
+			double d = random.nextDouble() * cumulative[cumulative.length - 1];
+			int i = Arrays.binarySearch(cumulative, d);
+			if (i < 0) i = -i - 1;
+			return names[Math.min(i, names.length - 1)];
+		}
+
+		public int size() {
+			return names.length;
+		}
+	}
+
+	public void setLastNames(NameFrequencies lastNames) {
+		this.lastNames = lastNames;
+	}
+
+	public void setFemaleNames(NameFrequencies femaleNames) {
+		this.femaleNames = femaleNames;
+	}
+
+	public void setMaleNames(NameFrequencies maleNames) {
+		this.maleNames = maleNames;
+	}
+
+	public void setMadeUpLastNameRate(double madeUpLastNameRate) {
+		this.madeUpLastNameRate = madeUpLastNameRate;
+	}
+
+	public void setMadeUpFirstNameRate(double madeUpFirstNameRate) {
+		this.madeUpFirstNameRate = madeUpFirstNameRate;
+	}
+
+	public void setRegistryMissingRate(double registryMissingRate) {
+		this.registryMissingRate = registryMissingRate;
+	}
+
+	public void setRegistryDuplicateRate(double registryDuplicateRate) {
+		this.registryDuplicateRate = registryDuplicateRate;
+	}
+
+	public void setOtherIdRate(double otherIdRate) {
+		this.otherIdRate = otherIdRate;
+	}
+
+	public void setNewSubjectRate(double newSubjectRate) {
+		this.newSubjectRate = newSubjectRate;
+	}
+
+	public void setQueryDuplicateRate(double queryDuplicateRate) {
+		this.queryDuplicateRate = queryDuplicateRate;
+	}
+
+	public void setNameTypoRate(double nameTypoRate) {
+		this.nameTypoRate = nameTypoRate;
+	}
+
+	public void setDobTypoRate(double dobTypoRate) {
+		this.dobTypoRate = dobTypoRate;
+	}
+
+	public void setMrnTypoRate(double mrnTypoRate) {
+		this.mrnTypoRate = mrnTypoRate;
+	}
+
+	public void setGenderErrorRate(double genderErrorRate) {
+		this.genderErrorRate = genderErrorRate;
+	}
+
+	public void setMissingRate(double missingRate) {
+		this.missingRate = missingRate;
+	}
+}
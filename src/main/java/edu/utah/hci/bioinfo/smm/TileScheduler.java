@@ -0,0 +1,314 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**Work stealing alternative to one MatcherEngine per fixed registry chunk, see -g. The query x registry grid is cut into tiles of queryBlockSize queries
+ * by registryTileSize registry subjects and split recursively in a ForkJoinPool so idle threads steal the remaining tiles.
+ * A query block's registry tiles are merged pairwise as they finish so only the hits of the blocks in flight are held.
+ * With a blocking index each query's candidates are fetched once per tile, so the registry is only tiled when there are too few queries to keep the threads busy.
+ * The top hits are identical to those of the chunked matchers, ties go to the smaller registry index. With a blocking index that holds since the
+ * full scan fallback is decided over the whole registry, not per tile, see MatcherEngine.*/
+public class TileScheduler {
+
+	//tiles per thread along each dimension, slack for stealing
+	private static final int TILES_PER_THREAD = 4;
+	private static final int MAX_QUERY_BLOCK_SIZE = 256;
+
+	private RegistryStore registry = null;
+	private Subject[] querySubjects = null;
+	private BlockingIndex blockingIndex = null;
+	private double missingOneKeyPenalty = 0;
+	private double missingAdditionalKeyPenalty = 0;
+	private int numMatchesToReturn = 0;
+	private int numberThreads = 0;
+	private int queryBlockSize = 0;
+	private int registryTileSize = 0;
+	private int numberQueryBlocks = 0;
+	private int numberRegistryTiles = 0;
+
+	//merged results, one per query
+	private int[][] topIndexes = null;
+	private double[][] topScores = null;
+	//per query time, rows considered, and rows pruned summed over the registry tiles
+	private long[] queryNanos = null;
+	private int[] queryCandidates = null;
+	private int[] queryPruned = null;
+	private AtomicLong numberComparisons = new AtomicLong();
+	private AtomicLong numberPruned = new AtomicLong();
+	private AtomicLong numberBlockedSearches = new AtomicLong();
+	private AtomicLong numberTilesDone = new AtomicLong();
+	private AtomicLong allocatedBytes = new AtomicLong();
+	private volatile boolean cancelled = false;
+	//tiles being scored, cancelled between queries when the run stops
+	private Set<MatcherEngine> runningMatchers = ConcurrentHashMap.newKeySet();
+	//null to start one for each run()
+	private ForkJoinPool pool = null;
+	//null for none
+	private RunMetrics runMetrics = null;
+
+	/**@param minRegistryTileSize smallest registry tile, like the minimum chunk size of the chunked matchers.*/
+	public TileScheduler(RegistryStore registry, Subject[] querySubjects, BlockingIndex blockingIndex, double missingOneKeyPenalty,
+			double missingAdditionalKeyPenalty, int numMatchesToReturn, int numberThreads, int minRegistryTileSize) {
+		this.registry = registry;
+		this.querySubjects = querySubjects;
+		this.blockingIndex = blockingIndex;
+		this.missingOneKeyPenalty = missingOneKeyPenalty;
+		this.missingAdditionalKeyPenalty = missingAdditionalKeyPenalty;
+		this.numMatchesToReturn = numMatchesToReturn;
+		this.numberThreads = Math.max(1, numberThreads);
+
+		//size the tiles from the data shape
+		int targetTiles = this.numberThreads * TILES_PER_THREAD;
+		queryBlockSize = Math.max(1, Math.min(MAX_QUERY_BLOCK_SIZE, ceil(querySubjects.length, targetTiles)));
+		numberQueryBlocks = ceil(querySubjects.length, queryBlockSize);
+		int registryTiles = 1;
+		if (blockingIndex == null || numberQueryBlocks < targetTiles) registryTiles = Math.max(1, ceil(targetTiles, Math.max(1, numberQueryBlocks)));
+		registryTileSize = Math.max(minRegistryTileSize, ceil(registry.size(), registryTiles));
+		numberRegistryTiles = Math.max(1, ceil(registry.size(), registryTileSize));
+	}
+
+	/**Runs the tiles on the caller's pool, e.g. one kept for the whole run across -n batches, rather than starting and stopping one in run().*/
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**Scores every tile and merges the hits, throws an IOException if a tile fails.*/
+	public void run() throws IOException {
+		run(0, 0);
+	}
+
+	/**Scores every tile and merges the hits, waiting on the pool rather than spinning. A failed tile or a passed timeout cancels the tiles,
+	 * those running stop before their next query, and throws an IOException once the pool is idle. 
+	 * @param timeoutMillis 0 for no limit. @param progressMillis how often to print the tiles done and comparisons/sec, 0 for never.*/
+	public void run(long timeoutMillis, long progressMillis) throws IOException {
+		topIndexes = new int[querySubjects.length][];
+		topScores = new double[querySubjects.length][];
+		queryNanos = new long[querySubjects.length];
+		queryCandidates = new int[querySubjects.length];
+		queryPruned = new int[querySubjects.length];
+		ForkJoinPool pool = this.pool != null ? this.pool : new ForkJoinPool(numberThreads);
+		cancelled = false;
+		long startTime = System.currentTimeMillis();
+		long lastProgress = startTime;
+		try {
+			ForkJoinTask<Void> task = pool.submit(new QueryBlocks(0, numberQueryBlocks));
+			while (true) {
+				long now = System.currentTimeMillis();
+				long wait = Long.MAX_VALUE;
+				if (timeoutMillis > 0) {
+					wait = startTime + timeoutMillis - now;
+					if (wait <= 0) throw new IOException("ERROR: matching didn't finish within the "+ (timeoutMillis/1000)+ " sec timeout, "+
+							numberTilesDone.get()+" of "+getNumberTiles()+" tiles done.");
+				}
+				if (progressMillis > 0) wait = Math.min(wait, lastProgress + progressMillis - now);
+				try {
+					task.get(Math.max(1, wait), TimeUnit.MILLISECONDS);
+					break;
+				} catch (TimeoutException e) {
+					if (progressMillis > 0 && System.currentTimeMillis() - lastProgress >= progressMillis) {
+						double sec = (System.currentTimeMillis() - startTime)/ 1000.0;
+						Util.pl("\t"+Math.round(sec)+" sec, "+numberTilesDone.get()+" of "+getNumberTiles()+" tiles done, "+
+								Util.formatNumber(numberComparisons.get()/ sec, 0)+" comparisons/sec");
+						lastProgress = System.currentTimeMillis();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("ERROR: interrupted while matching.", e);
+		} catch (ExecutionException e) {
+			throw new IOException("ERROR: Matcher engine issue! "+e.getCause(), e.getCause());
+		} finally {
+			//a failed tile or the timeout leaves sibling tiles queued or running, wait for them so none outlives the run
+			cancelled = true;
+			for (MatcherEngine me: runningMatchers) me.cancel();
+			pool.awaitQuiescence(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			if (this.pool == null) pool.shutdown();
+		}
+	}
+
+	/**Sets the merged top hits in the queries, the hit Subjects are materialized from the registry.*/
+	public void setTopMatches() {
+		for (int q=0; q< querySubjects.length; q++) {
+			Subject[] hits = new Subject[topIndexes[q].length];
+			for (int i=0; i<hits.length; i++) hits[i] = registry.fetchSubject(topIndexes[q][i]);
+			querySubjects[q].setTopCandidates(hits, topScores[q]);
+		}
+	}
+
+	/*Splits the query blocks in half until one is left, then scores it against all of the registry tiles.*/
+	private class QueryBlocks extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private int start;
+		private int stop;
+
+		QueryBlocks(int start, int stop) {
+			this.start = start;
+			this.stop = stop;
+		}
+
+		protected void compute() {
+			if (stop - start > 1) {
+				int mid = (start + stop) >>> 1;
+				invokeAll(new QueryBlocks(start, mid), new QueryBlocks(mid, stop));
+				return;
+			}
+			int queryStart = start * queryBlockSize;
+			int queryStop = Math.min(querySubjects.length, queryStart + queryBlockSize);
+			Hits hits = new RegistryTiles(queryStart, queryStop, 0, numberRegistryTiles).compute();
+			System.arraycopy(hits.indexes, 0, topIndexes, queryStart, hits.indexes.length);
+			System.arraycopy(hits.scores, 0, topScores, queryStart, hits.scores.length);
+			System.arraycopy(hits.nanos, 0, queryNanos, queryStart, hits.nanos.length);
+			System.arraycopy(hits.candidates, 0, queryCandidates, queryStart, hits.candidates.length);
+			System.arraycopy(hits.pruned, 0, queryPruned, queryStart, hits.pruned.length);
+		}
+	}
+
+	/*Splits the registry tiles for a query block in half until one is left, scores it, and merges the halves' hits on the way back up.*/
+	private class RegistryTiles extends RecursiveTask<Hits> {
+		private static final long serialVersionUID = 1L;
+		private int queryStart;
+		private int queryStop;
+		private int start;
+		private int stop;
+
+		RegistryTiles(int queryStart, int queryStop, int start, int stop) {
+			this.queryStart = queryStart;
+			this.queryStop = queryStop;
+			this.start = start;
+			this.stop = stop;
+		}
+
+		protected Hits compute() {
+			if (stop - start > 1) {
+				int mid = (start + stop) >>> 1;
+				RegistryTiles right = new RegistryTiles(queryStart, queryStop, mid, stop);
+				right.fork();
+				Hits left = new RegistryTiles(queryStart, queryStop, start, mid).compute();
+				return merge(left, right.join());
+			}
+			int registryStart = start * registryTileSize;
+			int registryStop = Math.min(registry.size(), registryStart + registryTileSize);
+			MatcherEngine me = new MatcherEngine(registry, registryStart, registryStop, querySubjects, blockingIndex, missingOneKeyPenalty,
+					missingAdditionalKeyPenalty, numMatchesToReturn);
+			//registered before checking so a cancel either is seen here or reaches the engine between its queries
+			runningMatchers.add(me);
+			try {
+				if (cancelled) throw new CancellationException("Tiles cancelled");
+				me.matchQueries(queryStart, queryStop);
+			} finally {
+				runningMatchers.remove(me);
+			}
+			numberComparisons.addAndGet(me.getNumberComparisons());
+			numberPruned.addAndGet(me.getNumberPruned());
+			numberBlockedSearches.addAndGet(me.getNumberBlockedQueries());
+			numberTilesDone.incrementAndGet();
+			if (me.getAllocatedBytes() > 0) allocatedBytes.addAndGet(me.getAllocatedBytes());
+			if (runMetrics != null) runMetrics.addWorker(me);
+			return new Hits(me.getTopIndexes(), me.getTopScores(), me.getQueryNanos(), me.getQueryCandidates(), me.getQueryPruned());
+		}
+	}
+
+	/*Merges the hits of two registry ranges for the same queries and sums their per query stats.*/
+	private Hits merge(Hits a, Hits b) {
+		int[][] indexes = new int[a.indexes.length][];
+		double[][] scores = new double[a.indexes.length][];
+		for (int q=0; q< indexes.length; q++) {
+			TopHits merged = TopHits.merge(new int[][] {a.indexes[q], b.indexes[q]}, new double[][] {a.scores[q], b.scores[q]}, numMatchesToReturn);
+			indexes[q] = merged.fetchSortedIndexes();
+			scores[q] = merged.fetchSortedScores();
+			a.nanos[q]+= b.nanos[q];
+			a.candidates[q]+= b.candidates[q];
+			a.pruned[q]+= b.pruned[q];
+		}
+		return new Hits(indexes, scores, a.nanos, a.candidates, a.pruned);
+	}
+
+	private static class Hits {
+		private int[][] indexes;
+		private double[][] scores;
+		private long[] nanos;
+		private int[] candidates;
+		private int[] pruned;
+
+		Hits(int[][] indexes, double[][] scores, long[] nanos, int[] candidates, int[] pruned) {
+			this.indexes = indexes;
+			this.scores = scores;
+			this.nanos = nanos;
+			this.candidates = candidates;
+			this.pruned = pruned;
+		}
+	}
+
+	private static int ceil(int a, int b) {
+		return (int)(((long)a + b - 1) / b);
+	}
+
+	/**Number of query:registry subject comparisons scored.*/
+	public long getNumberComparisons() {
+		return numberComparisons.get();
+	}
+
+	/**Number of comparisons abandoned once they could no longer make the top matches.*/
+	public long getNumberPruned() {
+		return numberPruned.get();
+	}
+
+	/**Number of query:tile searches that used the blocking index.*/
+	public long getNumberBlockedSearches() {
+		return numberBlockedSearches.get();
+	}
+
+	/**Number of query:tile searches.*/
+	public long getNumberSearches() {
+		return (long)querySubjects.length * numberRegistryTiles;
+	}
+
+	/**Time spent on each query summed over the registry tiles, in query order.*/
+	public long[] getQueryNanos() {
+		return queryNanos;
+	}
+
+	/**Registry rows scored or pruned for each query, in query order.*/
+	public int[] getQueryCandidates() {
+		return queryCandidates;
+	}
+
+	/**Registry rows pruned for each query, in query order.*/
+	public int[] getQueryPruned() {
+		return queryPruned;
+	}
+
+	/**Bytes allocated by the pool threads scoring the tiles, 0 if not supported.*/
+	public long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	/**Adds each tile's matcher to these metrics as it finishes.*/
+	public void setRunMetrics(RunMetrics runMetrics) {
+		this.runMetrics = runMetrics;
+	}
+
+	public int getQueryBlockSize() {
+		return queryBlockSize;
+	}
+
+	public int getRegistryTileSize() {
+		return registryTileSize;
+	}
+
+	public int getNumberTiles() {
+		return numberQueryBlocks * numberRegistryTiles;
+	}
+}
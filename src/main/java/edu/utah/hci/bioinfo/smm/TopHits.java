@@ -0,0 +1,130 @@
+package edu.utah.hci.bioinfo.smm;
+
+import java.util.Arrays;
+
+/**Bounded max heap of the best (smallest) scoring registry indexes for one query. Ties go to the smaller registry index, matching a stable
+ * sort of the registry by score. Holds primitives only, so streaming millions of comparisons through it doesn't allocate or touch the Subjects.*/
+public class TopHits {
+
+	private int[] indexes = null;
+	private double[] scores = null;
+	private int size = 0;
+
+	public TopHits(int numberToKeep) {
+		indexes = new int[numberToKeep];
+		scores = new double[numberToKeep];
+	}
+
+	/**Empties the heap for reuse with the next query.*/
+	public void clear() {
+		size = 0;
+	}
+
+	/**Returns the score a new hit must beat, POSITIVE_INFINITY until the heap is full.*/
+	public double getWorstScore() {
+		if (size < indexes.length) return Double.POSITIVE_INFINITY;
+		return scores[0];
+	}
+
+	/**Adds the hit if it is among the best seen, returns true if added.*/
+	public boolean add(int index, double score) {
+		if (size < indexes.length) {
+			indexes[size] = index;
+			scores[size] = score;
+			siftUp(size++);
+			return true;
+		}
+		if (isWorse(index, score, indexes[0], scores[0])) return false;
+		indexes[0] = index;
+		scores[0] = score;
+		siftDown(0);
+		return true;
+	}
+
+	/**K-way merge of hit lists, each sorted best to worst, into the best numberToKeep.*/
+	public static TopHits merge(int[][] sortedIndexes, double[][] sortedScores, int numberToKeep) {
+		TopHits merged = new TopHits(numberToKeep);
+		int[] heads = new int[sortedIndexes.length];
+		while (merged.size < numberToKeep) {
+			//find the best head
+			int best = -1;
+			for (int i=0; i< heads.length; i++) {
+				if (heads[i] == sortedIndexes[i].length) continue;
+				if (best == -1 || isWorse(sortedIndexes[best][heads[best]], sortedScores[best][heads[best]], sortedIndexes[i][heads[i]], sortedScores[i][heads[i]])) best = i;
+			}
+			if (best == -1) break;
+			merged.add(sortedIndexes[best][heads[best]], sortedScores[best][heads[best]]);
+			heads[best]++;
+		}
+		return merged;
+	}
+
+	/**Returns the registry indexes sorted best to worst.*/
+	public int[] fetchSortedIndexes() {
+		sort();
+		return Arrays.copyOf(indexes, size);
+	}
+
+	/**Returns the scores sorted best to worst, in the same order as fetchSortedIndexes().*/
+	public double[] fetchSortedScores() {
+		sort();
+		return Arrays.copyOf(scores, size);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/*Is hit a worse than hit b? Larger scores are worse, ties go to the smaller index.*/
+	private static boolean isWorse(int indexA, double scoreA, int indexB, double scoreB) {
+		if (scoreA != scoreB) return scoreA > scoreB;
+		return indexA > indexB;
+	}
+
+	/*Insertion sort, best first, this breaks the heap so only call once the query is done. Sorting a sorted array is a no-op.*/
+	private void sort() {
+		for (int i=1; i< size; i++) {
+			int index = indexes[i];
+			double score = scores[i];
+			int j = i;
+			while (j > 0 && isWorse(indexes[j-1], scores[j-1], index, score)) {
+				indexes[j] = indexes[j-1];
+				scores[j] = scores[j-1];
+				j--;
+			}
+			indexes[j] = index;
+			scores[j] = score;
+		}
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i-1) >>> 1;
+			if (isWorse(indexes[i], scores[i], indexes[parent], scores[parent]) == false) break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) {
+		while (true) {
+			int left = 2*i + 1;
+			if (left >= size) break;
+			int worst = left;
+			int right = left + 1;
+			if (right < size && isWorse(indexes[right], scores[right], indexes[left], scores[left])) worst = right;
+			if (isWorse(indexes[worst], scores[worst], indexes[i], scores[i]) == false) break;
+			swap(i, worst);
+			i = worst;
+		}
+	}
+
+	private void swap(int a, int b) {
+		int ti = indexes[a];
+		indexes[a] = indexes[b];
+		indexes[b] = ti;
+		double ts = scores[a];
+		scores[a] = scores[b];
+		scores[b] = ts;
+	}
+}
@@ -2,8 +2,6 @@ package edu.utah.hci.bioinfo.smm;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -14,9 +12,6 @@ import java.util.Arrays;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 public class Util {
 
@@ -55,21 +50,33 @@ public class Util {
 		return f.format(num);
 	}
 	
-	/**Returns a gz zip or straight file reader on the file based on it's extension.
-	 * @author davidnix*/
-	public static BufferedReader fetchBufferedReader( File txtFile) throws IOException{
-		BufferedReader in;
-		String name = txtFile.getName().toLowerCase();
-		if (name.endsWith(".zip")) {
-			ZipFile zf = new ZipFile(txtFile);
-			ZipEntry ze = (ZipEntry) zf.entries().nextElement();
-			in = new BufferedReader(new InputStreamReader(zf.getInputStream(ze)));
+	/**Splits on tabs without a regex, identical to TAB.split(line), so trailing empty fields are dropped and a line without tabs is returned whole.*/
+	public static String[] splitTabs(String line) {
+		int length = line.length();
+		int numberFields = 1;
+		for (int i=0; i< length; i++) if (line.charAt(i) == '\t') numberFields++;
+		if (numberFields == 1) return new String[] {line};
+		//drop the trailing empty fields
+		int end = length;
+		while (numberFields > 0 && (end == 0 || line.charAt(end - 1) == '\t')) {
+			numberFields--;
+			end--;
 		}
-		else if (name.endsWith(".gz")) {
-			in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(txtFile))));
+		String[] fields = new String[numberFields];
+		int start = 0;
+		for (int f=0; f< numberFields; f++) {
+			int stop = line.indexOf('\t', start);
+			if (stop == -1 || stop > end) stop = end;
+			fields[f] = line.substring(start, stop);
+			start = stop + 1;
 		}
-		else in = new BufferedReader (new FileReader (txtFile));
-		return in;
+		return fields;
+	}
+
+	/**Returns a gz zip or straight file reader on the file based on it's extension. Compressed files are inflated ahead on their own thread, see FileStreams.
+	 * @author davidnix*/
+	public static BufferedReader fetchBufferedReader( File txtFile) throws IOException{
+		return FileStreams.fetchBufferedReader(txtFile);
 	}
 	
 	/**Returns a String separated by commas for each bin.*/
@@ -0,0 +1,62 @@
+package edu.utah.hci.bioinfo.smm.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.Random;
+import org.apache.commons.text.similarity.LevenshteinDistance;
+import org.junit.Test;
+import edu.utah.hci.bioinfo.smm.BKTreeIndex;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+import edu.utah.hci.bioinfo.smm.Subject;
+
+/**Checks the MRN and DoB trees return exactly the registry rows whose key is within the distance, as found by scanning every row.*/
+public class BKTreeIndexTest {
+
+	@Test
+	public void testRowsMatchOracle() {
+		try {
+			Random random = new Random(30016);
+			//one name, MRNs and DoBs from small pools so keys repeat and sit close together
+			PooledSubjects subjects = new PooledSubjects(random, 1, 12, 28, 12, 3000, 0.1);
+			LevenshteinDistance ld = new LevenshteinDistance();
+			RegistryStore store = new RegistryStore(false);
+			int numRows = 4000;
+			for (int i=0; i< numRows; i++) store.add(makeSubject(subjects, random, i));
+			store.trim();
+			RegistryStore.ComparisonKeys ck = store.createComparisonKeys();
+
+			for (int keyIndex: new int[] {BKTreeIndex.MRN_KEY, BKTreeIndex.DOB_KEY}) {
+				BKTreeIndex tree = new BKTreeIndex(store, keyIndex);
+				assertTrue(tree.getNumberNodes() > 100 && tree.getNumberEntries() < numRows);
+				for (int q=0; q< 300; q++) {
+					String key = makeSubject(subjects, random, 0).getComparisonKeys()[keyIndex];
+					int maxDistance = random.nextInt(4);
+					int start = random.nextInt(numRows);
+					int stop = start+ random.nextInt(numRows- start+ 1);
+					int[] found = tree.fetchRows(key, maxDistance, start, stop);
+					if (key.length() == 0) {
+						assertTrue(found == null);
+						continue;
+					}
+					int index = 0;
+					for (int row=start; row< stop; row++) {
+						CharSequence rowKey = store.loadComparisonKeys(row, ck)[keyIndex];
+						if (rowKey.length() == 0 || ld.apply(key, rowKey) > maxDistance) continue;
+						assertTrue(index < found.length && found[index++] == row);
+					}
+					assertTrue(index == found.length);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		}
+	}
+
+	/**A pooled subject, its MRN with leading zeros now and then.*/
+	private static Subject makeSubject(PooledSubjects subjects, Random random, int index) throws Exception {
+		String[] fields = subjects.makeFields();
+		if (random.nextInt(5) == 0 && fields[6].equals(".") == false) fields[6] = "00"+ fields[6];
+		return new Subject(index, fields, false, null, false, false, false);
+	}
+}
@@ -0,0 +1,107 @@
+package edu.utah.hci.bioinfo.smm.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import edu.utah.hci.bioinfo.smm.BlockingIndex;
+import edu.utah.hci.bioinfo.smm.MatcherEngine;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+import edu.utah.hci.bioinfo.smm.Subject;
+
+/**Checks the blocked candidates always include the brute force best registry hits that share a blocking key with the query, whole registry and chunked.*/
+public class BlockingIndexTest {
+
+	@Test
+	public void testCandidatesIncludeBestHit() {
+		try {
+			Random random = new Random(30001);
+			//many rows share buckets and score close together
+			PooledSubjects subjects = new PooledSubjects(random, 10, 12, 28, 20, 90000, 1.0/ 15);
+			int numRows = 3000;
+			RegistryStore store = new RegistryStore(false);
+			String[][] rows = new String[numRows][];
+			for (int i=0; i< numRows; i++) {
+				rows[i] = subjects.makeFields();
+				store.add(new Subject(i, rows[i].clone(), false, null, false, false, false));
+			}
+			store.trim();
+			RegistryStore.ComparisonKeys ck = store.createComparisonKeys();
+			BlockingIndex index = new BlockingIndex(store);
+			MatcherEngine me = new MatcherEngine(store, 0, 0, new Subject[0], null, 0.12, 1, 1);
+
+			int numChecked = 0;
+			long numCandidates = 0;
+			for (int q=0; q< 400; q++) {
+				//most are a registry subject with typos, swapped or missing keys, the rest new
+				String[] fields = random.nextInt(5) == 0 ? subjects.makeFields() : mutate(random, rows[random.nextInt(numRows)].clone());
+				Subject query = new Subject(0, fields.clone(), false, null, true, false, false);
+				ArrayList<String> queryKeys = BlockingIndex.fetchBucketKeys(query.getLastName(), query.getFirstName(), query.getDobMonth(), query.getDobDay(),
+						query.getDobYear(), query.getMrn(), true);
+
+				//the whole registry and a random chunk
+				int start = random.nextInt(numRows);
+				int stop = start+ random.nextInt(numRows- start+ 1);
+				for (int[] range: new int[][] {{0, numRows}, {start, stop}}) {
+					int[] candidates = index.fetchCandidates(query, range[0], range[1]);
+					numCandidates+= candidates.length;
+
+					//brute force best score in the range
+					double best = Double.POSITIVE_INFINITY;
+					double[] scores = new double[range[1]- range[0]];
+					for (int row=range[0]; row< range[1]; row++) {
+						scores[row- range[0]] = me.scoreKeysLD(query.getComparisonKeys(), store.loadComparisonKeys(row, ck));
+						best = Math.min(best, scores[row- range[0]]);
+					}
+
+					//every best hit sharing a key is a candidate
+					for (int row=range[0]; row< range[1]; row++) {
+						if (scores[row- range[0]] != best) continue;
+						ArrayList<String> rowKeys = BlockingIndex.fetchBucketKeys(store.getLastName(row), store.getFirstName(row), store.getDobMonth(row),
+								store.getDobDay(row), store.getDobYear(row), store.getMrn(row), false);
+						rowKeys.retainAll(queryKeys);
+						if (rowKeys.size() == 0) continue;
+						assertTrue(Arrays.binarySearch(candidates, row) >= 0);
+						numChecked++;
+					}
+					for (int c: candidates) assertTrue(c >= range[0] && c < range[1]);
+				}
+			}
+			//the check ran on most queries and blocking pruned the registry
+			assertTrue(numChecked > 600);
+			assertTrue(numCandidates < 800L * numRows / 2);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		}
+	}
+
+	private static int parse(String field) {
+		return field.equals(".") ? -1 : Integer.parseInt(field);
+	}
+
+	/*Applies one to three changes: a letter typo in a name or MRN, a swapped month and day, a shifted year, or a missing key.*/
+	private static String[] mutate(Random random, String[] fields) {
+		int num = 1+ random.nextInt(3);
+		for (int i=0; i< num; i++) {
+			int field = random.nextInt(7);
+			switch (random.nextInt(3)) {
+			case 0:
+				if (field == 0 || field == 1 || field == 6) fields[field] = PooledSubjects.typo(random, fields[field]);
+				else if (field == 4 && fields[4].equals(".") == false) fields[4] = Integer.toString(Integer.parseInt(fields[4])+ 1);
+				break;
+			case 1:
+				if (parse(fields[3]) <= 12) {
+					String month = fields[2];
+					fields[2] = fields[3];
+					fields[3] = month;
+				}
+				break;
+			default: fields[field] = ".";
+			}
+		}
+		return fields;
+	}
+}
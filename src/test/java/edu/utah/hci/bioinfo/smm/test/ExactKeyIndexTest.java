@@ -0,0 +1,91 @@
+package edu.utah.hci.bioinfo.smm.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import edu.utah.hci.bioinfo.smm.ExactKeyIndex;
+import edu.utah.hci.bioinfo.smm.MatcherEngine;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+import edu.utah.hci.bioinfo.smm.Subject;
+
+/**Checks queries resolved on the exact key fast path get the same best match, and ties, as scoring every registry subject.*/
+public class ExactKeyIndexTest {
+
+	private static final double MAX_EDIT_SCORE = 0.12;
+	private static final int NUM_MATCHES = 3;
+
+	@Test
+	public void testResolvedMatchOracle() {
+		//one pool for every trial as a run shares its workers
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Random random = new Random(30012);
+			//plenty of shared MRNs and DoBs, and missing keys
+			PooledSubjects subjects = new PooledSubjects(random, 8, 2, 3, 3, 200, 0.05);
+			int numResolved = 0;
+			for (int trial = 0; trial< 10; trial++) {
+				RegistryStore store = new RegistryStore(false);
+				String[][] fields = makeFields(subjects, 100+ random.nextInt(2000));
+				Subject[] registry = new Subject[fields.length];
+				for (int i=0; i< fields.length; i++) {
+					registry[i] = new Subject(i, fields[i].clone(), false, null, false, false, false);
+					store.add(registry[i]);
+				}
+				ExactKeyIndex index = new ExactKeyIndex(store);
+
+				//queries copied from the registry with the odd edit, plus random ones
+				Subject[] queries = new Subject[300];
+				for (int i=0; i< queries.length; i++) {
+					String[] f = random.nextBoolean() ? makeFields(subjects, 1)[0] : fields[random.nextInt(fields.length)].clone();
+					if (random.nextInt(3) == 0) f[0] = f[0]+ "e";
+					queries[i] = new Subject(i, f, false, null, true, false, false);
+				}
+
+				ExactKeyIndex.Matches m = index.match(queries, 0.12, 1, MAX_EDIT_SCORE, NUM_MATCHES, 1+ random.nextInt(4), executor);
+				m.setTopMatches(store);
+				numResolved+= m.getNumberResolved();
+				assertTrue(m.getNumberResolved() + m.getRemaining().length == queries.length);
+
+				MatcherEngine oracle = new MatcherEngine(store, 0, 0, queries, null, 0.12, 1, NUM_MATCHES);
+				for (Subject q: queries) {
+					if (q.getTopMatches() == null) continue;
+					//best score and the first registry subject with it, plus the number tied
+					double best = Double.POSITIVE_INFINITY;
+					int bestIndex = -1;
+					int numTied = 0;
+					for (int i=0; i< registry.length; i++) {
+						double s = oracle.scoreKeysLD(q.getComparisonKeys(), registry[i].getComparisonKeys());
+						if (s < best) {
+							best = s;
+							bestIndex = i;
+							numTied = 1;
+						}
+						else if (s == best) numTied++;
+					}
+					double[] scores = q.getTopMatchScores();
+					assertTrue(scores[0] == best && scores[0] <= MAX_EDIT_SCORE);
+					assertTrue(q.getTopMatches()[0].getRegistryIndex() == bestIndex);
+					int found = 0;
+					for (double s: scores) if (s == best) found++;
+					assertTrue(found == Math.min(numTied, NUM_MATCHES));
+				}
+			}
+			assertTrue(numResolved > 0);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**Pooled fields with leading zeros on the MRNs.*/
+	private static String[][] makeFields(PooledSubjects subjects, int num) {
+		String[][] fields = subjects.makeFields(num);
+		for (String[] f: fields) if (f[6].equals(".") == false) f[6] = "00"+ f[6];
+		return fields;
+	}
+}
@@ -0,0 +1,172 @@
+package edu.utah.hci.bioinfo.smm.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import edu.utah.hci.bioinfo.smm.FileStreams;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+import edu.utah.hci.bioinfo.smm.SubjectFileLoader;
+import edu.utah.hci.bioinfo.smm.SubjectMatchMaker;
+import edu.utah.hci.bioinfo.smm.SyntheticDataMaker;
+import edu.utah.hci.bioinfo.smm.Util;
+
+/**Checks the read ahead and write behind streams return the same lines for plain, gzip, and zip files, that a corrupt file fails rather than
+ * ending early, and that -e gzips the reports and saved registry.*/
+public class FileStreamsTest {
+
+	@Test
+	public void testRoundTrip() {
+		File tempDir = null;
+		try {
+			tempDir = Files.createTempDirectory("smmStreams").toFile();
+			//several hand offs worth of lines
+			Random random = new Random(7);
+			ArrayList<String> lines = new ArrayList<String>();
+			long bytes = 0;
+			while (bytes < FileStreams.BUFFER_SIZE * 10) {
+				StringBuilder sb = new StringBuilder();
+				int length = random.nextInt(200);
+				for (int i=0; i< length; i++) sb.append((char)('a' + random.nextInt(26)));
+				if (random.nextInt(10) == 0) sb.append("\t.\t");
+				lines.add(sb.toString());
+				bytes+= length + 1;
+			}
+
+			for (String name: new String[] {"lines.txt", "lines.txt.gz"}) {
+				File file = new File(tempDir, name);
+				PrintWriter out = FileStreams.fetchPrintWriter(file);
+				for (String l: lines) out.println(l);
+				out.close();
+				assertTrue(out.checkError() == false);
+				assertTrue(readLines(FileStreams.fetchBufferedReader(file)).equals(lines));
+				//a standard reader agrees
+				InputStream in = new FileInputStream(file);
+				if (name.endsWith(".gz")) in = new GZIPInputStream(in);
+				assertTrue(readLines(new BufferedReader(new InputStreamReader(in))).equals(lines));
+			}
+			assertTrue(FileStreams.fetchOutputFile(new File(tempDir, "a.xls"), true).getName().equals("a.xls.gz"));
+			assertTrue(FileStreams.fetchOutputFile(new File(tempDir, "a.xls.gz"), true).getName().equals("a.xls.gz"));
+			assertTrue(FileStreams.fetchOutputFile(new File(tempDir, "a.xls"), false).getName().equals("a.xls"));
+
+			//zip, read a byte at a time past the end
+			File zip = new File(tempDir, "lines.zip");
+			ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(zip));
+			zout.putNextEntry(new ZipEntry("lines.txt"));
+			zout.write(Util.loadFile(new File(tempDir, "lines.txt"), "\n", false).getBytes());
+			zout.close();
+			assertTrue(readLines(FileStreams.fetchBufferedReader(zip)).equals(lines));
+			InputStream in = FileStreams.fetchInputStream(zip);
+			long n = 0;
+			while (in.read() != -1) n++;
+			assertTrue(n == new File(tempDir, "lines.txt").length() && in.read() == -1 && in.read(new byte[10], 0, 10) == -1);
+			in.close();
+
+			//a truncated gzip file throws instead of ending early
+			File gz = new File(tempDir, "lines.txt.gz");
+			RandomAccessFile raf = new RandomAccessFile(gz, "rw");
+			raf.setLength(gz.length() / 2);
+			raf.close();
+			try {
+				readLines(FileStreams.fetchBufferedReader(gz));
+				fail("Truncated gzip not caught.");
+			} catch (IOException e) {
+				assertTrue(e.getMessage() != null);
+			}
+
+			//closed early with the queue full, the reader thread has closed the source and stopped by the time close returns
+			for (File f: new File[] {zip, new File(tempDir, "lines.txt.zip")}) {
+				if (f != zip) Files.copy(zip.toPath(), f.toPath());
+				BufferedReader early = FileStreams.fetchBufferedReader(f);
+				assertTrue(early.readLine().equals(lines.get(0)));
+				if (f != zip) Thread.sleep(200);
+				early.close();
+				for (Thread t: Thread.getAllStackTraces().keySet()) assertTrue(t.getName().equals("FileStreams-readAhead-"+ f.getName()) == false);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		} finally {
+			if (tempDir != null) Util.deleteDirectory(tempDir);
+		}
+	}
+
+	@Test
+	public void testGzipOutput() {
+		File tempDir = null;
+		try {
+			tempDir = Files.createTempDirectory("smmGzip").toFile();
+			new SyntheticDataMaker(new String[] {"-o", tempDir.getCanonicalPath(), "-r", "3000", "-q", "200", "-s", "5", "-z"});
+			File registryDir = new File(tempDir, "Registry");
+			String queries = new File(tempDir, "queries_PHI.txt.gz").getCanonicalPath();
+
+			//same spreadsheet plain or gzipped
+			File plainDir = new File(tempDir, "Plain");
+			new SubjectMatchMaker(new String[] {"-r", registryDir.getCanonicalPath(), "-q", queries, "-o", plainDir.getCanonicalPath(), "-v"});
+			File gzDir = new File(tempDir, "Gz");
+			new SubjectMatchMaker(new String[] {"-r", registryDir.getCanonicalPath(), "-q", queries, "-o", gzDir.getCanonicalPath(), "-v", "-e"});
+			assertTrue(new File(gzDir, "matchReport_PHI.xls").exists() == false && new File(gzDir, "matchReport_PHI.json").exists() == false);
+			String[] plainXls = Util.loadFile(new File(plainDir, "matchReport_PHI.xls"));
+			String[] gzXls = Util.loadFile(new File(gzDir, "matchReport_PHI.xls.gz"));
+			assertTrue(plainXls.length == 201 && Arrays.equals(plainXls, gzXls));
+			JSONObject json = new JSONObject(Util.loadFile(new File(gzDir, "matchReport_PHI.json.gz"), " ", true));
+			assertTrue(json.getJSONArray("searches").length() == 200);
+
+			//file throughput for the stages that read and wrote them
+			JSONObject metrics = new JSONObject(Util.loadFile(new File(plainDir, "runMetrics.json"), " ", true));
+			JSONArray stages = metrics.getJSONArray("stages");
+			int withFiles = 0;
+			for (int i=0; i< stages.length(); i++) {
+				JSONObject s = stages.getJSONObject(i);
+				if (s.has("fileMB") == false) continue;
+				withFiles++;
+				assertTrue(s.getString("name"), s.getString("name").matches("loadRegistry|loadQueries|printJson|printResults") && s.getDouble("fileMB") > 0);
+			}
+			assertTrue(withFiles == 4);
+
+			//add the unmatched, compact the journal into a gzipped registry, the gzipped original is kept as is
+			new SubjectMatchMaker(new String[] {"-r", registryDir.getCanonicalPath(), "-q", queries, "-o", new File(tempDir, "Add").getCanonicalPath(), "-v", "-a"});
+			SubjectMatchMaker compact = new SubjectMatchMaker(new String[] {"-r", registryDir.getCanonicalPath(), "-v", "-z", "-e"});
+			File current = compact.getUpdatedRegistry();
+			assertTrue(current.getName().startsWith("currentRegistry_") && current.getName().endsWith("_PHI.txt.gz"));
+			assertTrue(Util.extractFilesStartingWith(registryDir, "oldRegistry_")[0].getName().endsWith("_PHI.txt.gz"));
+			assertTrue(compact.getRunMetrics().getStageWallMillis().containsKey("saveRegistry"));
+			RegistryStore saved = new SubjectFileLoader(2, true, null, false, false).loadRegistry(current);
+			assertTrue(saved.size() == compact.getRegistry().size() && saved.size() > 3000);
+			for (int i=0; i< saved.size(); i++) assertTrue(saved.fetchSubjectForWriting(i).toString().equals(compact.getRegistry().fetchSubjectForWriting(i).toString()));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		} finally {
+			if (tempDir != null) Util.deleteDirectory(tempDir);
+		}
+	}
+
+	private static ArrayList<String> readLines(BufferedReader in) throws IOException {
+		ArrayList<String> lines = new ArrayList<String>();
+		String line = null;
+		try {
+			while ((line = in.readLine()) != null) lines.add(line);
+		} finally {
+			in.close();
+		}
+		return lines;
+	}
+}
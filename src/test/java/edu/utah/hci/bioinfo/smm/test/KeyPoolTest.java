@@ -0,0 +1,104 @@
+package edu.utah.hci.bioinfo.smm.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import org.junit.Test;
+import edu.utah.hci.bioinfo.smm.CoreId;
+import edu.utah.hci.bioinfo.smm.KeyPool;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+import edu.utah.hci.bioinfo.smm.Subject;
+import edu.utah.hci.bioinfo.smm.SubjectFileLoader;
+import edu.utah.hci.bioinfo.smm.SyntheticSubjects;
+import edu.utah.hci.bioinfo.smm.Util;
+
+/**Checks pooled and cached keys equal those built by concatenation, and that loaded queries and fetched registry subjects share their names.*/
+public class KeyPoolTest {
+
+	@Test
+	public void testSharing() {
+		KeyPool pool = new KeyPool(2);
+		String a = new String("Smith");
+		String b = new String("Smith");
+		assertTrue(pool.share(a) == a && pool.share(b) == a && pool.getNumberShared() == 1 && pool.getBytesShared() > 0);
+		assertTrue(pool.share("") == "" && pool.size() == 1);
+		//full, new values come back as is
+		pool.share("Jones");
+		String c = new String("Garcia");
+		assertTrue(pool.share(c) == c && pool.size() == 2);
+
+		for (int y=1899; y<= 2051; y++) {
+			for (int m=1; m<= 12; m++) {
+				for (int d=1; d<= 31; d++) {
+					String key = KeyPool.fetchDobKey(m, d, y);
+					assertTrue(key.equals(m+"/"+d+"/"+y));
+					//built once when in range
+					if (y >= 1900 && y <= 2050) assertTrue(key == KeyPool.fetchDobKey(m, d, y));
+				}
+			}
+		}
+		assertTrue(KeyPool.fetchDobKey(-1, 3, 1950).equals("") && KeyPool.fetchDobKey(3, 3, -1).equals(""));
+	}
+
+	@Test
+	public void testSharedSubjects() {
+		File tempDir = null;
+		try {
+			tempDir = Files.createTempDirectory("smmKeyPool").toFile();
+			SyntheticSubjects ss = new SyntheticSubjects(8);
+			StringBuilder sb = new StringBuilder();
+			for (int i=0; i< 2000; i++) {
+				String[] f = ss.fetchRegistryFields(i);
+				//lone names and missing parts
+				if (i % 5 == 0) f[1] = ".";
+				if (i % 7 == 0) f[0] = ".";
+				if (i % 3 == 0) f[3] = ".";
+				sb.append(Util.stringArrayToString(f, "\t")).append("\n");
+			}
+			File file = new File(tempDir, "subjects.txt");
+			Util.write(new String[] {sb.toString()}, file);
+
+			for (boolean caseInsensitive: new boolean[] {false, true}) {
+				Subject[] queries = new SubjectFileLoader(2, false, null, caseInsensitive, false).loadQueries(file, new ArrayList<String>());
+				assertTrue(queries.length == 2000);
+				int numberSharedLastNames = 0;
+				for (int i=0; i< queries.length; i++) {
+					Subject q = queries[i];
+					String[] keys = q.getComparisonKeys();
+					//same keys as before pooling
+					String name = q.getLastName()+ q.getFirstName();
+					if (caseInsensitive) name = name.toUpperCase();
+					String dob = "";
+					if (q.getDobMonth()!=-1 && q.getDobDay()!=-1 && q.getDobYear()!=-1) dob = q.getDobMonth()+"/"+q.getDobDay()+"/"+q.getDobYear();
+					assertTrue(keys[0].equals(name) && keys[1].equals(dob) && keys[2].equals(q.getGender()) && keys[3].equals(q.getMrn()));
+					assertTrue(q.getGender().length() == 0 || q.getGender() == "M" || q.getGender() == "F");
+					//a lone name is the pooled one
+					if (caseInsensitive == false && q.getFirstName().length() == 0) assertTrue(keys[0] == q.getLastName());
+					for (int j=0; j< i; j++) {
+						if (queries[j].getLastName().equals(q.getLastName()) && q.getLastName().length() != 0) {
+							assertTrue(queries[j].getLastName() == q.getLastName());
+							numberSharedLastNames++;
+							break;
+						}
+					}
+				}
+				assertTrue(numberSharedLastNames > 0);
+
+				//fetched registry subjects too
+				RegistryStore store = new SubjectFileLoader(2, true, new CoreId(), caseInsensitive, false).loadRegistry(file);
+				for (int i=0; i< store.size(); i++) {
+					Subject s = store.fetchSubject(i);
+					assertTrue(s.getComparisonKeys()[0].equals(queries[i].getComparisonKeys()[0]) && s.getComparisonKeys()[1] == queries[i].getComparisonKeys()[1]);
+				}
+				assertTrue(store.getKeyPool().getNumberShared() > 0);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		} finally {
+			if (tempDir != null) Util.deleteDirectory(tempDir);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package edu.utah.hci.bioinfo.smm.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.Random;
+import org.apache.commons.text.similarity.LevenshteinDistance;
+import org.junit.Test;
+import edu.utah.hci.bioinfo.smm.CharSlice;
+import edu.utah.hci.bioinfo.smm.LevenshteinKernel;
+import edu.utah.hci.bioinfo.smm.MatcherEngine;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+
+/**Checks the in house distances and the key scores built on them are identical to commons-text's for random keys, short and long,
+ * Latin-1 and wider, as Strings and as packed CharSlices.*/
+public class LevenshteinKernelTest {
+
+	private static final String[] ALPHABETS = {"01", "0123456789/", "ABCDEFGHIJKLMNOPQRSTUVWXYZ", "aAeE\u00e9\u00c9\u00f1", "ab\u0101\u4e2d"};
+	private static final double MISSING_ONE_KEY_PENALTY = 0.12;
+	private static final double MISSING_ADDITIONAL_KEY_PENALTY = 1;
+
+	@Test
+	public void testDistancesMatchCommons() {
+		try {
+			Random random = new Random(30017);
+			LevenshteinDistance ld = LevenshteinDistance.getDefaultInstance();
+			LevenshteinKernel kernel = new LevenshteinKernel();
+			for (int i=0; i< 50000; i++) {
+				String alphabet = ALPHABETS[random.nextInt(ALPHABETS.length)];
+				String left = makeKey(random, alphabet, random.nextInt(4) == 0 ? 100 : 20);
+				//related keys too so small distances are common
+				String right = random.nextBoolean() ? makeKey(random, alphabet, 100) : mutate(random, left, alphabet);
+				int expected = ld.apply(left, right);
+				assertTrue(kernel.apply(left, right) == expected);
+				assertTrue(kernel.apply(left, toSlice(right, random)) == expected);
+				assertTrue(kernel.apply(toSlice(left, random), right) == expected);
+				int threshold = random.nextInt(8) == 0 ? random.nextInt(100) : random.nextInt(4);
+				assertTrue(kernel.apply(left, right, threshold) == new LevenshteinDistance(threshold).apply(left, right));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		}
+	}
+
+	@Test
+	public void testKeyScoresMatchCommons() {
+		try {
+			Random random = new Random(30018);
+			LevenshteinDistance ld = LevenshteinDistance.getDefaultInstance();
+			MatcherEngine me = new MatcherEngine(new RegistryStore(false), 0, 0, null, null, MISSING_ONE_KEY_PENALTY, MISSING_ADDITIONAL_KEY_PENALTY, 1);
+			for (int i=0; i< 20000; i++) {
+				String[] query = makeKeys(random);
+				String[] db = random.nextBoolean() ? makeKeys(random) : new String[] {mutate(random, query[0], ALPHABETS[2]), query[1], query[2], query[3]};
+				CharSequence[] dbSlices = new CharSequence[db.length];
+				for (int k=0; k< db.length; k++) dbSlices[k] = toSlice(db[k], random);
+
+				//the original scoring with commons-text
+				double expected = 0;
+				int numMissing = 0;
+				for (int k=0; k< query.length; k++) {
+					if (query[k].length() == 0 || db[k].length() == 0) numMissing++;
+					else expected+= ((double)ld.apply(query[k], db[k]))/ query[k].length();
+				}
+				if (numMissing == 1) expected+= MISSING_ONE_KEY_PENALTY;
+				else if (numMissing > 1) expected = expected + MISSING_ONE_KEY_PENALTY + ((numMissing-1)* MISSING_ADDITIONAL_KEY_PENALTY);
+
+				assertTrue(me.scoreKeysLD(query, db) == expected);
+				assertTrue(me.scoreKeysLD(query, dbSlices) == expected);
+				double max = random.nextDouble();
+				double bounded = me.scoreKeysLD(query, dbSlices, max);
+				assertTrue(bounded == expected || (bounded == Double.POSITIVE_INFINITY && expected > max));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		}
+	}
+
+	/**Name, dob, gender, mrn keys, each missing now and then.*/
+	private static String[] makeKeys(Random random) {
+		String name = makeKey(random, ALPHABETS[2], 20);
+		String dob = random.nextInt(10) == 0 ? "" : (1+ random.nextInt(12))+ "/"+ (1+ random.nextInt(28))+ "/"+ (1930+ random.nextInt(90));
+		String gender = random.nextInt(10) == 0 ? "" : (random.nextBoolean() ? "M" : "F");
+		String mrn = makeKey(random, "0123456789", 10);
+		return new String[] {name, dob, gender, mrn};
+	}
+
+	private static String makeKey(Random random, String alphabet, int maxLength) {
+		int length = random.nextInt(maxLength+ 1);
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i< length; i++) sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		return sb.toString();
+	}
+
+	/**A few random substitutions, insertions, and deletions.*/
+	private static String mutate(Random random, String s, String alphabet) {
+		StringBuilder sb = new StringBuilder(s);
+		int num = random.nextInt(4);
+		for (int i=0; i< num; i++) {
+			int op = random.nextInt(3);
+			char c = alphabet.charAt(random.nextInt(alphabet.length()));
+			if (op == 0 || sb.length() == 0) sb.insert(random.nextInt(sb.length()+ 1), c);
+			else if (op == 1) sb.deleteCharAt(random.nextInt(sb.length()));
+			else sb.setCharAt(random.nextInt(sb.length()), c);
+		}
+		return sb.toString();
+	}
+
+	/**The key as a CharSlice over Latin-1 bytes when it fits, otherwise over chars, offset into a larger array like the packed registry columns.*/
+	private static CharSlice toSlice(String s, Random random) {
+		int offset = random.nextInt(5);
+		boolean latin1 = true;
+		for (int i=0; i< s.length(); i++) if (s.charAt(i) > 0xFF) latin1 = false;
+		if (latin1 && random.nextBoolean()) {
+			byte[] bytes = new byte[offset+ s.length()+ 3];
+			for (int i=0; i< s.length(); i++) bytes[offset+ i] = (byte)s.charAt(i);
+			return new CharSlice().set(bytes, offset, s.length());
+		}
+		char[] chars = new char[offset+ s.length()+ 3];
+		s.getChars(0, s.length(), chars, offset);
+		return new CharSlice().set(chars, offset, s.length());
+	}
+}
@@ -0,0 +1,167 @@
+package edu.utah.hci.bioinfo.smm.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import edu.utah.hci.bioinfo.smm.CoreId;
+import edu.utah.hci.bioinfo.smm.MatchServer;
+import edu.utah.hci.bioinfo.smm.RegistryLock;
+import edu.utah.hci.bioinfo.smm.SubjectMatchMaker;
+import edu.utah.hci.bioinfo.smm.Util;
+
+/**Checks the match server returns the same searches as a command line run on the same registry and queries, and that a writable server's
+ * in place registry and index updates match a fresh load of the registry and its journal.*/
+public class MatchServerTest {
+
+	@Test
+	public void testServerMatchesCommandLine() {
+		File tempDir = null;
+		try {
+			tempDir = Files.createTempDirectory("smmServer").toFile();
+			File registryDir = new File(tempDir, "Registry");
+			registryDir.mkdirs();
+			File outputDir = new File(tempDir, "Results");
+			PooledSubjects subjects = new PooledSubjects(new Random(7), 8, 12, 28, 60, 900000, 0);
+
+			//registry with coreIds so nothing is rewritten
+			CoreId coreIdMaker = new CoreId();
+			PrintWriter out = new PrintWriter(new File(registryDir, "currentRegistry_test_PHI.txt"));
+			for (int i=0; i< 300; i++) out.println(subjects.makeLine()+ "\t"+ coreIdMaker.createCoreId());
+			out.close();
+			StringBuilder queries = new StringBuilder();
+			for (int i=0; i< 20; i++) queries.append(subjects.makeLine()+ "\n");
+			File queryFile = new File(tempDir, "queries.txt");
+			Util.write(new String[] {queries.toString()}, queryFile);
+
+			//command line run
+			new SubjectMatchMaker(new String[] {"-r", registryDir.getCanonicalPath(), "-q", queryFile.getCanonicalPath(), "-o", outputDir.getCanonicalPath(), "-v"});
+			JSONObject expected = new JSONObject(Util.loadFile(new File(outputDir, "matchReport_PHI.json"), " ", true));
+
+			//server run, a free port
+			SubjectMatchMaker smm = new SubjectMatchMaker(new String[] {"-r", registryDir.getCanonicalPath(), "-d", "0", "-v"});
+			MatchServer server = smm.getMatchServer();
+			assertTrue(server != null);
+			//a read only server shares the registry, a writer is kept out
+			assertTrue(new RegistryLock(registryDir).tryAcquire(true) == false);
+			try {
+				JSONObject found = new JSONObject(post(server.getPort(), queries.toString(), 200));
+				JSONArray e = expected.getJSONArray("searches");
+				JSONArray f = found.getJSONArray("searches");
+				assertTrue(e.length() == 20 && f.length() == 20);
+				for (int i=0; i< e.length(); i++) assertTrue(e.getJSONObject(i).similar(f.getJSONObject(i)));
+
+				//malformed queries are rejected
+				JSONObject error = new JSONObject(post(server.getPort(), "Smith\tAnn\t13\t1\t1950\tF\t1\n", 400));
+				assertTrue(error.getString("error").contains("dob month"));
+				assertTrue(server.getNumberRequests() == 1);
+				//the reported registry Subjects aren't kept
+				assertTrue(smm.getRegistry().getNumberFetchedSubjects() == 0);
+			} finally {
+				server.stop();
+			}
+			RegistryLock lock = new RegistryLock(registryDir);
+			assertTrue(lock.tryAcquire(true));
+			lock.release();
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		} finally {
+			if (tempDir != null) Util.deleteDirectory(tempDir);
+		}
+	}
+
+	@Test
+	public void testWritableServerUpdatesInPlace() {
+		File tempDir = null;
+		try {
+			tempDir = Files.createTempDirectory("smmServerWrite").toFile();
+			File registryDir = new File(tempDir, "Registry");
+			registryDir.mkdirs();
+			PooledSubjects subjects = new PooledSubjects(new Random(11), 8, 12, 28, 60, 900000, 0);
+
+			//the first rows are missing their MRN for -u to fill in
+			CoreId coreIdMaker = new CoreId();
+			PrintWriter out = new PrintWriter(new File(registryDir, "currentRegistry_test_PHI.txt"));
+			String[] missingMrn = new String[5];
+			for (int i=0; i< 300; i++) {
+				String s = subjects.makeLine();
+				if (i < missingMrn.length) {
+					missingMrn[i] = s;
+					s = s.substring(0, s.lastIndexOf('\t'))+ "\t.";
+				}
+				out.println(s+ "\t"+ coreIdMaker.createCoreId());
+			}
+			out.close();
+			StringBuilder update = new StringBuilder();
+			for (String s: missingMrn) update.append(s).append("\n");
+			String newSubjects = "Quixote\tAlonso\t3\t14\t1915\tM\t31415\nPanza\tSancho\t6\t2\t1920\tM\t27182\n";
+
+			//blocking forced so the indexes are updated rather than scanned around
+			SubjectMatchMaker smm = new SubjectMatchMaker(new String[] {"-r", registryDir.getCanonicalPath(), "-d", "0", "-a", "-u", "-b", "-v"});
+			MatchServer server = smm.getMatchServer();
+			JSONObject second = null;
+			try {
+				post(server.getPort(), update.toString()+ newSubjects, 200);
+				assertTrue(smm.getRegistry().size() == 302 && smm.getRegistry().getNumberFetchedSubjects() == 0);
+				for (int i=0; i< missingMrn.length; i++) assertTrue(smm.getRegistry().getMrn(i).length() != 0);
+				//the additions are found through the updated indexes, nothing more is added
+				second = new JSONObject(post(server.getPort(), newSubjects+ update.toString(), 200));
+				assertTrue(smm.getRegistry().size() == 302);
+				assertTrue(smm.getRegistry().fetchRow(smm.getRegistry().getCoreId(300)) == 300 && smm.getRegistry().fetchRow(smm.getRegistry().getCoreId(301)) == 301);
+			} finally {
+				server.stop();
+			}
+
+			//same rows as a fresh load of the registry and its journal
+			SubjectMatchMaker fresh = new SubjectMatchMaker(new String[] {"-r", registryDir.getCanonicalPath(), "-d", "0", "-v"});
+			fresh.getMatchServer().stop();
+			for (int i=0; i< 302; i++) {
+				assertTrue(smm.getRegistry().fetchSubjectForWriting(i).toString().equals(fresh.getRegistry().fetchSubjectForWriting(i).toString()));
+			}
+
+			//same searches as a command line run on the updated registry
+			File queryFile = new File(tempDir, "queries.txt");
+			Util.write(new String[] {newSubjects+ update.toString()}, queryFile);
+			File outputDir = new File(tempDir, "Results");
+			new SubjectMatchMaker(new String[] {"-r", registryDir.getCanonicalPath(), "-q", queryFile.getCanonicalPath(), "-o", outputDir.getCanonicalPath(), "-b", "-v"});
+			JSONArray e = new JSONObject(Util.loadFile(new File(outputDir, "matchReport_PHI.json"), " ", true)).getJSONArray("searches");
+			JSONArray f = second.getJSONArray("searches");
+			assertTrue(e.length() == 7 && f.length() == 7);
+			for (int i=0; i< e.length(); i++) assertTrue(e.getJSONObject(i).similar(f.getJSONObject(i)));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		} finally {
+			if (tempDir != null) Util.deleteDirectory(tempDir);
+		}
+	}
+
+	private static String post(int port, String body, int expectedCode) throws Exception {
+		HttpURLConnection con = (HttpURLConnection) new URL("http://localhost:"+port+"/match").openConnection();
+		con.setRequestMethod("POST");
+		con.setDoOutput(true);
+		OutputStream out = con.getOutputStream();
+		out.write(body.getBytes(StandardCharsets.UTF_8));
+		out.close();
+		assertTrue(con.getResponseCode() == expectedCode);
+		InputStream in = expectedCode == 200 ? con.getInputStream() : con.getErrorStream();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) bytes.write(buffer, 0, n);
+		in.close();
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
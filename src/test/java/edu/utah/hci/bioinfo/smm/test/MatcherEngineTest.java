@@ -0,0 +1,311 @@
+package edu.utah.hci.bioinfo.smm.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import edu.utah.hci.bioinfo.smm.BlockingIndex;
+import edu.utah.hci.bioinfo.smm.MatcherEngine;
+import edu.utah.hci.bioinfo.smm.MatcherRunner;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+import edu.utah.hci.bioinfo.smm.Subject;
+import edu.utah.hci.bioinfo.smm.TileScheduler;
+
+/**Compares the multi threaded, chunked matchers and the work stealing tiles, and their merged top hits, against a brute force single thread oracle.*/
+public class MatcherEngineTest {
+
+	private static final double MISSING_ONE_KEY_PENALTY = 0.12;
+	private static final double MISSING_ADDITIONAL_KEY_PENALTY = 1;
+
+	@Test
+	public void testChunkedMergeMatchesOracle() {
+		try {
+			Random random = new Random(20221);
+			for (int trial = 0; trial< 25; trial++) {
+				int numMatchesToReturn = 1+ random.nextInt(5);
+				Subject[] registry = makeSubjects(random, 20+ random.nextInt(400));
+				RegistryStore store = new RegistryStore(false);
+				for (Subject s: registry) store.add(s);
+				Subject[] queries = makeSubjects(random, 1+ random.nextInt(40));
+
+				//random chunk boundaries, each at least numMatchesToReturn in size
+				int numChunks = 1+ random.nextInt(Math.min(8, registry.length/ numMatchesToReturn));
+				int[] stops = new int[numChunks];
+				stops[numChunks-1] = registry.length;
+				for (int i=numChunks-2; i>=0; i--) stops[i] = (numMatchesToReturn* (i+1)) + random.nextInt(stops[i+1] - (numMatchesToReturn* (i+2)) + 1);
+
+				//run the matchers in their own threads
+				MatcherEngine[] matchers = new MatcherEngine[numChunks];
+				Thread[] threads = new Thread[numChunks];
+				int start = 0;
+				for (int i=0; i< numChunks; i++) {
+					matchers[i] = new MatcherEngine(store, start, stops[i], queries, null, MISSING_ONE_KEY_PENALTY, MISSING_ADDITIONAL_KEY_PENALTY, numMatchesToReturn);
+					threads[i] = new Thread(matchers[i]);
+					threads[i].start();
+					start = stops[i];
+				}
+				for (Thread t: threads) t.join();
+				for (MatcherEngine m: matchers) assertTrue(m.isFailed() == false);
+				MatcherEngine.setTopMatches(matchers, store, queries, numMatchesToReturn);
+				checkOracle(store, registry, queries, numMatchesToReturn);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		}
+	}
+
+	@Test
+	public void testTilesMatchOracle() {
+		try {
+			Random random = new Random(20222);
+			for (int trial = 0; trial< 25; trial++) {
+				int numMatchesToReturn = 1+ random.nextInt(5);
+				Subject[] registry = makeSubjects(random, 20+ random.nextInt(400));
+				RegistryStore store = new RegistryStore(false);
+				for (Subject s: registry) store.add(s);
+				Subject[] queries = makeSubjects(random, 1+ random.nextInt(600));
+
+				//random thread counts and tile sizes, from one tile to many small ones
+				TileScheduler ts = new TileScheduler(store, queries, null, MISSING_ONE_KEY_PENALTY, MISSING_ADDITIONAL_KEY_PENALTY, numMatchesToReturn, 
+						1+ random.nextInt(8), numMatchesToReturn+ random.nextInt(200));
+				ts.run();
+				ts.setTopMatches();
+				checkOracle(store, registry, queries, numMatchesToReturn);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		}
+	}
+
+	@Test
+	public void testBlockedTilesMatchBlockedChunks() {
+		try {
+			Random random = new Random(20225);
+			for (int trial = 0; trial< 25; trial++) {
+				int numMatchesToReturn = 1+ random.nextInt(5);
+				Subject[] registry = makeSubjects(random, 20+ random.nextInt(400));
+
+				//a few rare subjects repeated 1-5 times, their queries have about numMatchesToReturn candidates spread over the chunks and tiles
+				int numRare = 1+ random.nextInt(4);
+				for (int k=0; k< numRare; k++) {
+					int copies = 1+ random.nextInt(5);
+					for (int c=0; c< copies; c++) {
+						int i = random.nextInt(registry.length);
+						registry[i] = new Subject(i, makeRareFields(k), false, null, false, false, false);
+					}
+				}
+				RegistryStore store = new RegistryStore(false);
+				for (Subject s: registry) store.add(s);
+				store.trim();
+				BlockingIndex index = new BlockingIndex(store);
+
+				//few queries so the tiles cut the registry too
+				Subject[] queries = makeSubjects(random, 1+ random.nextInt(20));
+				for (int q=0; q< queries.length; q++) {
+					if (random.nextBoolean()) queries[q] = new Subject(q, makeRareFields(random.nextInt(numRare+ 1)), false, null, false, false, false);
+				}
+
+				//random chunk boundaries
+				int numChunks = 1+ random.nextInt(8);
+				int[] stops = new int[numChunks];
+				for (int i=0; i< numChunks-1; i++) stops[i] = random.nextInt(registry.length+ 1);
+				stops[numChunks-1] = registry.length;
+				Arrays.sort(stops);
+				MatcherEngine[] matchers = new MatcherEngine[numChunks];
+				int start = 0;
+				for (int i=0; i< numChunks; i++) {
+					matchers[i] = new MatcherEngine(store, start, stops[i], queries, index, MISSING_ONE_KEY_PENALTY, MISSING_ADDITIONAL_KEY_PENALTY, numMatchesToReturn);
+					matchers[i].run();
+					assertTrue(matchers[i].isFailed() == false);
+					start = stops[i];
+				}
+				MatcherEngine.setTopMatches(matchers, store, queries, numMatchesToReturn);
+				Subject[][] chunkMatches = new Subject[queries.length][];
+				double[][] chunkScores = new double[queries.length][];
+				for (int q=0; q< queries.length; q++) {
+					chunkMatches[q] = queries[q].getTopMatches();
+					chunkScores[q] = queries[q].getTopMatchScores();
+				}
+
+				//random thread counts and tile sizes
+				TileScheduler ts = new TileScheduler(store, queries, index, MISSING_ONE_KEY_PENALTY, MISSING_ADDITIONAL_KEY_PENALTY, numMatchesToReturn, 
+						1+ random.nextInt(8), 1+ random.nextInt(100));
+				ts.run();
+				ts.setTopMatches();
+				for (int q=0; q< queries.length; q++) {
+					assertTrue(Arrays.equals(chunkScores[q], queries[q].getTopMatchScores()));
+					assertTrue(chunkMatches[q].length == queries[q].getTopMatches().length);
+					for (int i=0; i< chunkMatches[q].length; i++) assertTrue(chunkMatches[q][i].getRegistryIndex() == queries[q].getTopMatches()[i].getRegistryIndex());
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		}
+	}
+
+	@Test
+	public void testBatchScoringMatchesScalar() {
+		try {
+			Random random = new Random(20224);
+			for (int trial = 0; trial< 10; trial++) {
+				int numMatchesToReturn = 1+ random.nextInt(5);
+				Subject[] registry = makeSubjects(random, 600+ random.nextInt(2000));
+				RegistryStore store = new RegistryStore(false);
+				for (Subject s: registry) store.add(s);
+				Subject[] queries = makeSubjects(random, 1+ random.nextInt(100));
+
+				//a random range, scored a block at a time with the columnar bounds and row by row
+				int start = random.nextInt(registry.length/ 2);
+				MatcherEngine batch = new MatcherEngine(store, start, registry.length, queries, null, MISSING_ONE_KEY_PENALTY, MISSING_ADDITIONAL_KEY_PENALTY, numMatchesToReturn);
+				MatcherEngine scalar = new MatcherEngine(store, start, registry.length, queries, null, MISSING_ONE_KEY_PENALTY, MISSING_ADDITIONAL_KEY_PENALTY, numMatchesToReturn);
+				scalar.setBatchScoring(false);
+				batch.run();
+				scalar.run();
+				assertTrue(batch.isFailed() == false && scalar.isFailed() == false);
+				assertTrue(batch.getNumberPruned() == scalar.getNumberPruned());
+				MatcherEngine.setTopMatches(new MatcherEngine[] {batch}, store, queries, numMatchesToReturn);
+				Subject[][] batchMatches = new Subject[queries.length][];
+				double[][] batchScores = new double[queries.length][];
+				for (int q=0; q< queries.length; q++) {
+					batchMatches[q] = queries[q].getTopMatches();
+					batchScores[q] = queries[q].getTopMatchScores();
+				}
+				MatcherEngine.setTopMatches(new MatcherEngine[] {scalar}, store, queries, numMatchesToReturn);
+				for (int q=0; q< queries.length; q++) {
+					assertTrue(Arrays.equals(batchScores[q], queries[q].getTopMatchScores()));
+					for (int i=0; i< batchMatches[q].length; i++) assertTrue(batchMatches[q][i] == queries[q].getTopMatches()[i]);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		}
+	}
+
+	@Test
+	public void testRunnerFailsFast() {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Random random = new Random(20223);
+			RegistryStore store = new RegistryStore(false);
+			for (Subject s: makeSubjects(random, 5000)) store.add(s);
+			Subject[] queries = makeSubjects(random, 5000);
+			Subject[] badQueries = new Subject[] {null};
+
+			//a failed matcher cancels the slow one and throws right away
+			MatcherEngine slow = new MatcherEngine(store, 0, store.size(), queries, null, MISSING_ONE_KEY_PENALTY, MISSING_ADDITIONAL_KEY_PENALTY, 3);
+			MatcherEngine bad = new MatcherEngine(store, 0, store.size(), badQueries, null, MISSING_ONE_KEY_PENALTY, MISSING_ADDITIONAL_KEY_PENALTY, 3);
+			try {
+				new MatcherRunner(executor, 0, 0).run(new MatcherEngine[] {slow, bad});
+				fail("Failed matcher not reported.");
+			} catch (IOException e) {
+				assertTrue(e.getMessage().contains("Matcher engine issue"));
+			}
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+			assertTrue(slow.isFailed() && slow.getNumberQueriesDone() < queries.length);
+
+			//timeouts too
+			executor = Executors.newFixedThreadPool(2);
+			slow = new MatcherEngine(store, 0, store.size(), queries, null, MISSING_ONE_KEY_PENALTY, MISSING_ADDITIONAL_KEY_PENALTY, 3);
+			try {
+				new MatcherRunner(executor, 50, 0).run(new MatcherEngine[] {slow});
+				fail("Timeout not reported.");
+			} catch (IOException e) {
+				assertTrue(e.getMessage().contains("timeout"));
+			}
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+			assertTrue(slow.isFailed() && slow.getNumberQueriesDone() < queries.length);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testTilesTimeoutOnSharedPool() {
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			Random random = new Random(20226);
+			RegistryStore store = new RegistryStore(false);
+			Subject[] registry = makeSubjects(random, 5000);
+			for (Subject s: registry) store.add(s);
+			Subject[] queries = makeSubjects(random, 5000);
+
+			//a timeout cancels the tiles and waits for the ones running before it throws
+			TileScheduler ts = new TileScheduler(store, queries, null, MISSING_ONE_KEY_PENALTY, MISSING_ADDITIONAL_KEY_PENALTY, 3, 2, 100);
+			ts.setPool(pool);
+			try {
+				ts.run(50, 0);
+				fail("Timeout not reported.");
+			} catch (IOException e) {
+				assertTrue(e.getMessage().contains("timeout"));
+			}
+			assertTrue(pool.isQuiescent() && pool.isShutdown() == false);
+
+			//the pool is still good for the next batch
+			queries = makeSubjects(random, 50);
+			ts = new TileScheduler(store, queries, null, MISSING_ONE_KEY_PENALTY, MISSING_ADDITIONAL_KEY_PENALTY, 3, 2, 100);
+			ts.setPool(pool);
+			ts.run();
+			ts.setTopMatches();
+			checkOracle(store, registry, queries, 3);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**Checks the queries' top matches against scoring every registry subject and a stable sort.*/
+	private static void checkOracle(RegistryStore store, Subject[] registry, Subject[] queries, int numMatchesToReturn) {
+		MatcherEngine oracle = new MatcherEngine(store, 0, 0, queries, null, MISSING_ONE_KEY_PENALTY, MISSING_ADDITIONAL_KEY_PENALTY, numMatchesToReturn);
+		for (Subject q: queries) {
+			final double[] scores = new double[registry.length];
+			Integer[] order = new Integer[registry.length];
+			for (int i=0; i< registry.length; i++) {
+				scores[i] = oracle.scoreKeysLD(q.getComparisonKeys(), registry[i].getComparisonKeys());
+				order[i] = i;
+			}
+			//stable sort, ties keep the smaller index
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return Double.compare(scores[a], scores[b]);
+				}
+			});
+
+			Subject[] topMatches = q.getTopMatches();
+			double[] topScores = q.getTopMatchScores();
+			assertTrue(topMatches.length == numMatchesToReturn);
+			for (int i=0; i< numMatchesToReturn; i++) {
+				assertTrue(topMatches[i].getRegistryIndex() == order[i]);
+				assertTrue(topMatches[i].toString().equals(registry[order[i]].toString()));
+				assertTrue(topScores[i] == scores[order[i]]);
+			}
+		}
+	}
+
+	/**Subjects from a small pool of keys so there are plenty of near matches, ties, and missing keys.*/
+	private static Subject[] makeSubjects(Random random, int num) throws Exception {
+		return new PooledSubjects(random, 10, 2, 3, 3, 20, 0.1).makeSubjects(num);
+	}
+
+	/*Keys outside the pools, so the kth rare subject only shares buckets with its copies.*/
+	private static String[] makeRareFields(int k) {
+		return new String[] {"Rare"+ k, "Solo"+ k, "12", Integer.toString(20+ k), Integer.toString(1990+ k), "F", Integer.toString(90000+ k)};
+	}
+}
@@ -0,0 +1,84 @@
+package edu.utah.hci.bioinfo.smm.test;
+
+import java.util.Random;
+import edu.utah.hci.bioinfo.smm.Subject;
+
+/**Makes up lastName firstName dobMonth dobDay dobYear gender mrn fields for the tests from small pools of keys, so there are plenty of near matches,
+ * ties, and missing keys. Each test sets the pool sizes and missing rate it needs, see SyntheticSubjects for realistic data at scale.*/
+public class PooledSubjects {
+
+	//similar names first, odd ones last: a one letter name, a repeated bigram, and a two letter first name
+	private static final String[] LAST_NAMES = {"Smith", "Smyth", "Jones", "Johns", "Nixon", "Nixen", "Garcia", "Garza", "Lee", "Li", "Nix", "Oconnor",
+			"O", "Annanan"};
+	private static final String[] FIRST_NAMES = {"Annie", "Anne", "Jonny", "Johnny", "Bobby", "Mary", "Ann", "Jon", "Bob", "Marie", "Katherine", "Al"};
+	private static final String LETTERS = "abcdefghijklmnopqrstuvwxyz";
+
+	private Random random;
+	private int numberNames;
+	private int numberMonths;
+	private int numberDays;
+	private int numberYears;
+	private int numberMrns;
+	private double missingRate;
+
+	/**@param numberNames how many of the pooled last and first names to draw from, 0 for made up ones that rarely repeat.
+	 * @param numberMonths months from 1, @param numberDays days from 1, @param numberYears years from 1950, @param numberMrns MRNs from 100000.
+	 * @param missingRate chance each key is '.'*/
+	public PooledSubjects(Random random, int numberNames, int numberMonths, int numberDays, int numberYears, int numberMrns, double missingRate) {
+		this.random = random;
+		this.numberNames = numberNames;
+		this.numberMonths = numberMonths;
+		this.numberDays = numberDays;
+		this.numberYears = numberYears;
+		this.numberMrns = numberMrns;
+		this.missingRate = missingRate;
+	}
+
+	public String[] makeFields() {
+		String[] fields = {
+				numberNames == 0 ? makeName(10) : LAST_NAMES[random.nextInt(Math.min(numberNames, LAST_NAMES.length))],
+				numberNames == 0 ? makeName(7) : FIRST_NAMES[random.nextInt(Math.min(numberNames, FIRST_NAMES.length))],
+				Integer.toString(1+ random.nextInt(numberMonths)),
+				Integer.toString(1+ random.nextInt(numberDays)),
+				Integer.toString(1950+ random.nextInt(numberYears)),
+				random.nextBoolean() ? "M" : "F",
+				Integer.toString(100000+ random.nextInt(numberMrns))
+		};
+		for (int i=0; i< fields.length; i++) if (random.nextDouble() < missingRate) fields[i] = ".";
+		return fields;
+	}
+
+	public String[][] makeFields(int num) {
+		String[][] fields = new String[num][];
+		for (int i=0; i< num; i++) fields[i] = makeFields();
+		return fields;
+	}
+
+	/**Tab delimited fields, a line of a registry or query file.*/
+	public String makeLine() {
+		return String.join("\t", makeFields());
+	}
+
+	/**Registry subjects, each with its array index.*/
+	public Subject[] makeSubjects(int num) throws Exception {
+		Subject[] subjects = new Subject[num];
+		for (int i=0; i< num; i++) subjects[i] = new Subject(i, makeFields(), false, null, false, false, false);
+		return subjects;
+	}
+
+	/**Changes one letter or digit, missing keys stay missing.*/
+	public static String typo(Random random, String s) {
+		if (s.equals(".")) return s;
+		char[] c = s.toCharArray();
+		int i = random.nextInt(c.length);
+		c[i] = Character.isDigit(c[i]) ? (char)('0'+ random.nextInt(10)) : (char)('a'+ random.nextInt(26));
+		return new String(c);
+	}
+
+	private String makeName(int length) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(Character.toUpperCase(LETTERS.charAt(random.nextInt(26))));
+		for (int i=1; i< length; i++) sb.append(LETTERS.charAt(random.nextInt(26)));
+		return sb.toString();
+	}
+}
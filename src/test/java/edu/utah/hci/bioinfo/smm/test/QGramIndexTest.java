@@ -0,0 +1,82 @@
+package edu.utah.hci.bioinfo.smm.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.commons.text.similarity.LevenshteinDistance;
+import org.junit.Test;
+import edu.utah.hci.bioinfo.smm.QGramIndex;
+import edu.utah.hci.bioinfo.smm.RegistrySnapshot;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+import edu.utah.hci.bioinfo.smm.Subject;
+import edu.utah.hci.bioinfo.smm.Util;
+
+/**Checks the name index never drops a registry row whose name is within the allowed edits, for saved, reloaded, and delta segments.*/
+public class QGramIndexTest {
+
+	@Test
+	public void testCandidatesMatchOracle() {
+		File dir = null;
+		try {
+			dir = File.createTempFile("nameIndex", "");
+			dir.delete();
+			dir.mkdirs();
+			File registryFile = new File(dir, "currentRegistry_1_PHI.txt");
+			Util.write(new String[] {"placeholder"}, registryFile);
+			Random random = new Random(30015);
+			//every pooled name, the odd ones too
+			PooledSubjects subjects = new PooledSubjects(random, 14, 1, 1, 1, 1, 0);
+			LevenshteinDistance ld = new LevenshteinDistance();
+
+			RegistryStore store = new RegistryStore(false);
+			int numBase = 3000;
+			for (int i=0; i< numBase; i++) store.add(makeSubject(subjects, random, i));
+			QGramIndex built = new QGramIndex(store, numBase);
+			built.write(registryFile, RegistrySnapshot.checksum(registryFile), QGramIndex.fetchIndexFile(registryFile));
+			QGramIndex index = QGramIndex.read(QGramIndex.fetchIndexFile(registryFile), registryFile, RegistrySnapshot.checksum(registryFile));
+			assertTrue(index != null && index.getNumberBaseRows() == numBase && index.getNumberEntries() == built.getNumberEntries());
+
+			//added rows go to the delta
+			for (int i=numBase; i< numBase+ 500; i++) store.add(makeSubject(subjects, random, i));
+			index.update(store, null);
+
+			for (int q=0; q< 400; q++) {
+				Subject query = makeSubject(subjects, random, 0);
+				String name = query.getLastName()+ query.getFirstName();
+				int maxEdits = QGramIndex.fetchMaxEdits(name.length(), 0.12 + random.nextInt(3)* 0.1);
+				int start = random.nextInt(store.size());
+				int stop = start+ random.nextInt(store.size()- start+ 1);
+				int[] found = index.fetchCandidates(name, maxEdits, start, stop);
+				if (found == null) {
+					assertTrue(name.length()+ 1- 2* maxEdits <= 0);
+					continue;
+				}
+				for (int i=1; i< found.length; i++) assertTrue(found[i] > found[i-1]);
+				for (int row: found) assertTrue(row >= start && row < stop);
+				for (int row=start; row< stop; row++) {
+					String rowName = (store.getLastName(row)+ store.getFirstName(row)).toUpperCase();
+					if (rowName.length() == 0) continue;
+					if (ld.apply(name.toUpperCase(), rowName) <= maxEdits) assertTrue(Arrays.binarySearch(found, row) >= 0);
+				}
+			}
+			//a changed registry file isn't loaded
+			Util.write(new String[] {"changed"}, registryFile);
+			assertTrue(QGramIndex.read(QGramIndex.fetchIndexFile(registryFile), registryFile, RegistrySnapshot.checksum(registryFile)) == null);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+
+	/**A pooled subject, a typo in the last name half the time, the first name missing now and then.*/
+	private static Subject makeSubject(PooledSubjects subjects, Random random, int index) throws Exception {
+		String[] fields = subjects.makeFields();
+		if (random.nextBoolean()) fields[0] = PooledSubjects.typo(random, fields[0]);
+		if (random.nextInt(8) == 0) fields[1] = ".";
+		return new Subject(index, fields, false, null, false, false, false);
+	}
+}
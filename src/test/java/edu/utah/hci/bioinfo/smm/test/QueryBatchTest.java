@@ -0,0 +1,126 @@
+package edu.utah.hci.bioinfo.smm.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import edu.utah.hci.bioinfo.smm.CoreId;
+import edu.utah.hci.bioinfo.smm.SubjectMatchMaker;
+import edu.utah.hci.bioinfo.smm.Util;
+
+/**Checks a run in -n batches writes the same json and xls reports as a single batch run on the same registry and queries, including the new
+ * coreIds shared by queries in different batches.*/
+public class QueryBatchTest {
+
+	private static final int BATCH_SIZE = 4;
+
+	@Test
+	public void testBatchesMatchSingleRun() {
+		File tempDir = null;
+		try {
+			tempDir = Files.createTempDirectory("smmBatch").toFile();
+			//made up names so the subjects are distinct
+			PooledSubjects subjects = new PooledSubjects(new Random(8), 0, 12, 28, 60, 900000, 0);
+
+			//distinct registry subjects with coreIds so nothing is rewritten
+			CoreId coreIdMaker = new CoreId();
+			String[] registry = new String[200];
+			StringBuilder sb = new StringBuilder();
+			for (int i=0; i< registry.length; i++) {
+				registry[i] = subjects.makeLine();
+				sb.append(registry[i]).append("\t").append(coreIdMaker.createCoreId()).append("\n");
+			}
+			String registryText = sb.toString();
+
+			//new subjects repeated within and across batches of 4, a few with a typo, mixed with registry subjects
+			String[] n = new String[7];
+			for (int i=0; i< n.length; i++) n[i] = subjects.makeLine();
+			String[] queries = {
+					n[0], registry[0], n[1], n[1],
+					registry[1], n[2], n[0], registry[2],
+					n[3], n[1], n[3], typo(n[2]),
+					n[4], registry[3], typo(n[0]), n[5],
+					n[4], n[5], n[3], typo(registry[4]),
+					n[6]
+			};
+			File queryFile = new File(tempDir, "queries.txt");
+			Util.write(new String[] {String.join("\n", queries)+ "\n"}, queryFile);
+
+			//single batch then -n, each on its own copy of the registry since -a adds the new subjects
+			String[][] reports = new String[2][];
+			JSONArray[] searches = new JSONArray[2];
+			for (int run = 0; run< 2; run++) {
+				File registryDir = new File(tempDir, "Registry"+run);
+				registryDir.mkdirs();
+				Util.write(new String[] {registryText}, new File(registryDir, "currentRegistry_test_PHI.txt"));
+				File outputDir = new File(tempDir, "Results"+run);
+				String[] args = {"-r", registryDir.getCanonicalPath(), "-q", queryFile.getCanonicalPath(), "-o", outputDir.getCanonicalPath(), "-a", "-v"};
+				if (run == 1) {
+					args = Arrays.copyOf(args, args.length+ 2);
+					args[args.length-2] = "-n";
+					args[args.length-1] = Integer.toString(BATCH_SIZE);
+				}
+				new SubjectMatchMaker(args);
+				searches[run] = new JSONObject(Util.loadFile(new File(outputDir, "matchReport_PHI.json"), " ", true)).getJSONArray("searches");
+				List<String> lines = Files.readAllLines(new File(outputDir, "matchReport_PHI.xls").toPath());
+				reports[run] = lines.toArray(new String[lines.size()]);
+			}
+
+			//new coreIds are random, replace each with the index of the first query given it
+			@SuppressWarnings("unchecked")
+			HashMap<String, String>[] donors = new HashMap[2];
+			for (int run = 0; run< 2; run++) {
+				donors[run] = new HashMap<String, String>();
+				for (int i=0; i< searches[run].length(); i++) {
+					JSONObject result = searches[run].getJSONObject(i).getJSONObject("result");
+					if (result.has("newCoreId") && donors[run].containsKey(result.getString("newCoreId")) == false) {
+						donors[run].put(result.getString("newCoreId"), "newCoreId"+ i);
+					}
+				}
+			}
+			assertTrue(searches[0].length() == queries.length && searches[1].length() == queries.length);
+			assertTrue(donors[0].size() == donors[1].size() && donors[0].size() != 0);
+
+			int numberAcrossBatches = 0;
+			for (int i=0; i< queries.length; i++) {
+				JSONObject single = new JSONObject(replace(searches[0].getJSONObject(i).toString(), donors[0]));
+				JSONObject batched = new JSONObject(replace(searches[1].getJSONObject(i).toString(), donors[1]));
+				assertTrue(single.similar(batched));
+				JSONObject result = batched.getJSONObject("result");
+				if (result.has("newCoreId")) {
+					int donor = Integer.parseInt(result.getString("newCoreId").substring("newCoreId".length()));
+					if (donor / BATCH_SIZE != i / BATCH_SIZE) numberAcrossBatches++;
+				}
+			}
+			//n0, n1, n2, n3, and n5 each reappear in a later batch
+			assertTrue(numberAcrossBatches >= 5);
+
+			assertTrue(reports[0].length == queries.length+ 1 && reports[1].length == reports[0].length);
+			for (int i=0; i< reports[0].length; i++) assertTrue(replace(reports[0][i], donors[0]).equals(replace(reports[1][i], donors[1])));
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		} finally {
+			if (tempDir != null) Util.deleteDirectory(tempDir);
+		}
+	}
+
+	private static String replace(String s, HashMap<String, String> donors) {
+		for (String coreId: donors.keySet()) s = s.replace(coreId, donors.get(coreId));
+		return s;
+	}
+
+	/*Swaps one letter of the last name.*/
+	private static String typo(String subject) {
+		char[] c = subject.toCharArray();
+		c[3] = c[3] == 'z' ? 'y' : (char)(c[3]+ 1);
+		return new String(c);
+	}
+}
@@ -0,0 +1,94 @@
+package edu.utah.hci.bioinfo.smm.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import edu.utah.hci.bioinfo.smm.CoreId;
+import edu.utah.hci.bioinfo.smm.MatcherEngine;
+import edu.utah.hci.bioinfo.smm.QueryClusterer;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+import edu.utah.hci.bioinfo.smm.Subject;
+
+/**Checks the indexed and all pairs query clustering give each connected group of matching unmatched queries the coreId of its first query.*/
+public class QueryClustererTest {
+
+	private static final double MAX_EDIT_SCORE = 0.12;
+
+	@Test
+	public void testClustersMatchOracle() {
+		//one pool for every trial as a run shares its workers
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Random random = new Random(30011);
+			//plenty of near duplicates, chains, and missing keys
+			PooledSubjects subjects = new PooledSubjects(random, 8, 2, 2, 2, 4, 1.0/ 15);
+			RegistryStore store = new RegistryStore(false);
+			for (int trial = 0; trial< 10; trial++) {
+				String[][] fields = subjects.makeFields(50+ random.nextInt(1500));
+				Subject[] expected = makeQueries(fields);
+				setOracleCoreIds(expected);
+
+				//all pairs then the blocking index, on 1 and several threads
+				for (int mode = 0; mode< 2; mode++) {
+					Subject[] queries = makeQueries(fields);
+					QueryClusterer qc = new QueryClusterer(store, 0.12, 1, MAX_EDIT_SCORE, 1+ random.nextInt(4), executor, mode == 0, mode == 1);
+					qc.cluster(queries);
+					int numCollapsed = 0;
+					for (int i=0; i< queries.length; i++) {
+						//coreIds are random, compare the index of the query that donated it
+						assertTrue(donor(queries, i) == donor(expected, i));
+						if (donor(queries, i) != i) numCollapsed++;
+					}
+					assertTrue(numCollapsed == qc.getNumberCollapsed());
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/*Connected groups by a breadth first search over every pair, each takes the coreId of its smallest query.*/
+	private static void setOracleCoreIds(Subject[] queries) throws Exception {
+		MatcherEngine me = new MatcherEngine(new RegistryStore(false), 0, 0, queries, null, 0.12, 1, 1);
+		boolean[] seen = new boolean[queries.length];
+		for (int i=0; i< queries.length; i++) {
+			if (seen[i]) continue;
+			seen[i] = true;
+			ArrayDeque<Integer> toVisit = new ArrayDeque<Integer>();
+			toVisit.add(i);
+			while (toVisit.isEmpty() == false) {
+				int a = toVisit.poll();
+				queries[a].setCoreId(queries[i].getCoreId());
+				for (int b=0; b< queries.length; b++) {
+					if (seen[b]) continue;
+					if (me.scoreKeysLD(queries[a].getComparisonKeys(), queries[b].getComparisonKeys()) <= MAX_EDIT_SCORE ||
+							me.scoreKeysLD(queries[b].getComparisonKeys(), queries[a].getComparisonKeys()) <= MAX_EDIT_SCORE) {
+						seen[b] = true;
+						toVisit.add(b);
+					}
+				}
+			}
+		}
+	}
+
+	/*Index of the first query with the same coreId.*/
+	private static int donor(Subject[] queries, int index) {
+		for (int i=0; i<= index; i++) if (queries[i].getCoreId().equals(queries[index].getCoreId())) return i;
+		return -1;
+	}
+
+	/**Unmatched queries, each with a new coreId.*/
+	private static Subject[] makeQueries(String[][] fields) throws Exception {
+		CoreId coreIdMaker = new CoreId();
+		Subject[] subjects = new Subject[fields.length];
+		for (int i=0; i< fields.length; i++) subjects[i] = new Subject(i, fields[i].clone(), true, coreIdMaker, true, false, false);
+		return subjects;
+	}
+}
@@ -0,0 +1,109 @@
+package edu.utah.hci.bioinfo.smm.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import org.junit.Test;
+import edu.utah.hci.bioinfo.smm.CoreId;
+import edu.utah.hci.bioinfo.smm.RegistryJournal;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+import edu.utah.hci.bioinfo.smm.Subject;
+import edu.utah.hci.bioinfo.smm.Util;
+
+/**Checks committed journal batches replay to the same registry as applying the changes directly, and torn or foreign journals are caught.*/
+public class RegistryJournalTest {
+
+	private static final String[][] FIELDS = {
+			{"Biden", "Joseph", "11", "20", "1942", "M", "19485763"},
+			{"Collins", "Susan", "12", "7", "1952", ".", "."},
+			{"Obama", "Barack", "8", "4", "1961", "M", "0012345"},
+			{"Garcia", "Mary", ".", ".", "1970", "F", "884422"}
+	};
+
+	@Test
+	public void testReplay() {
+		File dir = null;
+		try {
+			dir = makeTempDir();
+			File registryFile = new File(dir, "currentRegistry_1_PHI.txt");
+			registryFile.createNewFile();
+			CoreId coreIdMaker = new CoreId();
+			RegistryStore base = makeStore(coreIdMaker, 3);
+
+			//batch one adds a subject, batch two fills in a base row and the added row
+			RegistryJournal journal = new RegistryJournal(registryFile);
+			ArrayList<Subject> additions = new ArrayList<Subject>();
+			additions.add(new Subject(3, FIELDS[3].clone(), true, coreIdMaker, true, false, false));
+			journal.append(additions, new ArrayList<Subject>());
+			RegistryStore withAdded = journal.replay(base, false);
+			fillKeys(withAdded, 1, "Collins\tSusan\t12\t7\t1952\tF\t555\t.\tavaId123");
+			fillKeys(withAdded, 3, "Garcia\tMary\t3\t9\t1970\tF\t884422\t.\thciId456");
+			journal.append(new ArrayList<Subject>(), withAdded.fetchUpdatedSubjects());
+
+			RegistryStore replayed = journal.replay(makeStore(new CoreId(), 3), false);
+			assertTrue(replayed.size() == 4);
+			assertTrue(journal.getNumberAdded() == 1 && journal.getNumberUpdated() == 1);
+			assertTrue(replayed.getMrn(2).equals("12345") && replayed.getDobYear(0) == 1942);
+			assertTrue(replayed.getMrn(1).equals("555") && replayed.getGender(1).equals("F") && replayed.getOtherSubjectIds(1)[0].equals("avaId123"));
+			assertTrue(replayed.getLastName(3).equals("Garcia") && replayed.getOtherSubjectIds(3)[0].equals("hciId456"));
+
+			//a torn batch at the end is skipped
+			FileWriter out = new FileWriter(journal.getJournalFile(), true);
+			out.write("A\tNixon\tRichard\t1\t9\t1913\tM\t1234\t\t\n");
+			out.close();
+			assertTrue(journal.replay(makeStore(new CoreId(), 3), false).size() == 4);
+
+			//the next append truncates the torn batch, including a last line without its newline, and both replay
+			out = new FileWriter(journal.getJournalFile(), true);
+			out.write("U\t0\tBiden\tJoe");
+			out.close();
+			additions.clear();
+			additions.add(new Subject(4, new String[] {"Nixon", "Richard", "1", "9", "1913", "M", "1234"}, true, coreIdMaker, true, false, false));
+			journal.append(additions, new ArrayList<Subject>());
+			assertTrue(Util.loadFile(journal.getJournalFile(), "\n", false).contains("Joe") == false);
+			replayed = journal.replay(makeStore(new CoreId(), 3), false);
+			assertTrue(replayed.size() == 5 && journal.getNumberAdded() == 2 && journal.getNumberUpdated() == 1);
+			assertTrue(replayed.getLastName(4).equals("Nixon") && replayed.getFirstName(0).equals("Joseph"));
+			additions.clear();
+			journal.append(additions, new ArrayList<Subject>());
+			assertTrue(journal.replay(makeStore(new CoreId(), 3), false).size() == 5);
+
+			//a journal left from another registry file is refused
+			try {
+				new RegistryJournal(new File(dir, "currentRegistry_2_PHI.txt")).replay(base, false);
+				fail("Foreign journal not caught.");
+			} catch (IOException e) {
+				assertTrue(e.getMessage().contains("doesn't belong"));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+
+	/*Fills in the missing keys of the registry row from a query that matched it, as -u does.*/
+	private static void fillKeys(RegistryStore store, int row, String line) throws Exception {
+		Subject query = new Subject(0, Util.TAB.split(line), false, null, true, false, true);
+		query.setTopCandidates(new Subject[] {store.fetchSubject(row)}, new double[] {0});
+		query.setMatches(null, 0.12);
+	}
+
+	private static RegistryStore makeStore(CoreId coreIdMaker, int num) throws Exception {
+		RegistryStore store = new RegistryStore(false);
+		for (int i=0; i< num; i++) store.add(new Subject(i, FIELDS[i].clone(), true, coreIdMaker, false, false, false));
+		store.trim();
+		return store;
+	}
+
+	private static File makeTempDir() throws IOException {
+		File dir = File.createTempFile("registryJournal", "");
+		dir.delete();
+		dir.mkdirs();
+		return dir;
+	}
+}
@@ -0,0 +1,94 @@
+package edu.utah.hci.bioinfo.smm.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import org.junit.Test;
+import edu.utah.hci.bioinfo.smm.RegistryLock;
+import edu.utah.hci.bioinfo.smm.Util;
+
+/**Checks a held lock keeps others out and is reported with its owner, owner files left by crashed runs are removed, and writers honor and
+ * create the LOCKED file of older versions.*/
+public class RegistryLockTest {
+
+	@Test
+	public void testLockAndStaleOwners() {
+		File dir = null;
+		try {
+			dir = File.createTempFile("registryLock", "");
+			dir.delete();
+			dir.mkdirs();
+
+			//an owner file no run holds, as left by a crash
+			File ownerDir = new File(dir, RegistryLock.OWNER_DIR_NAME);
+			ownerDir.mkdirs();
+			File stale = new File(ownerDir, "owner_1_1_1.txt");
+			Util.write(new String[] {"1\tgone\tThu Jan 01 1970\texclusive"}, stale);
+
+			RegistryLock writer = new RegistryLock(dir);
+			assertTrue(writer.tryAcquire(true) && writer.isExclusive());
+			assertTrue(stale.exists() == false);
+
+			//others wait and see the owner
+			RegistryLock other = new RegistryLock(dir);
+			assertTrue(other.tryAcquire(false) == false);
+			assertTrue(other.acquire(true, 2, 10) == false);
+			ArrayList<String> owners = other.fetchOwners();
+			assertTrue(owners.size() == 1 && owners.get(0).endsWith("exclusive"));
+
+			writer.release();
+			writer.release();
+			assertTrue(other.fetchOwners().size() == 0);
+			assertTrue(other.tryAcquire(false) && other.isExclusive() == false);
+			assertTrue(other.upgrade(1, 10) && other.isExclusive());
+			other.release();
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testLegacyLockedFile() {
+		File dir = null;
+		try {
+			dir = File.createTempFile("registryLock", "");
+			dir.delete();
+			dir.mkdirs();
+			File locked = new File(dir, RegistryLock.LEGACY_LOCK_NAME);
+
+			//an older version's empty LOCKED keeps writers out, searches still run
+			Util.write(new String[] {""}, locked);
+			RegistryLock lock = new RegistryLock(dir);
+			assertTrue(lock.tryAcquire(true) == false && lock.acquire(true, 2, 10) == false);
+			assertTrue(lock.tryAcquire(false) && lock.upgrade(1, 10) == false && lock.isHeld() == false);
+			assertTrue(locked.exists());
+
+			//a writer creates LOCKED for older versions to wait on and removes it on release
+			locked.delete();
+			assertTrue(lock.tryAcquire(true) && locked.exists());
+			assertTrue(Util.loadFile(locked)[0].startsWith("SubjectMatchMaker registry lock"));
+			lock.release();
+			assertTrue(locked.exists() == false);
+
+			//one left by a crashed run of this version is replaced
+			assertTrue(lock.tryAcquire(true));
+			File crashed = new File(dir, "crashed");
+			Files.copy(locked.toPath(), crashed.toPath());
+			lock.release();
+			Files.move(crashed.toPath(), locked.toPath());
+			assertTrue(lock.tryAcquire(true) && locked.exists());
+			lock.release();
+			assertTrue(locked.exists() == false);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		} finally {
+			Util.deleteDirectory(dir);
+		}
+	}
+}
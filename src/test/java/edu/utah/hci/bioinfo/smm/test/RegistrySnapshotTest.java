@@ -0,0 +1,108 @@
+package edu.utah.hci.bioinfo.smm.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import edu.utah.hci.bioinfo.smm.CoreId;
+import edu.utah.hci.bioinfo.smm.RegistrySnapshot;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+import edu.utah.hci.bioinfo.smm.Subject;
+import edu.utah.hci.bioinfo.smm.Util;
+
+/**Checks a snapshot reads back every column of the store it was written from, and is ignored once its registry file changes or it is truncated.*/
+public class RegistrySnapshotTest {
+
+	private static final String[] LAST_NAMES = {"Smith", "Jones", "Nixon", "Garcia", "Łukasiewicz", "O", "."};
+	private static final String[] FIRST_NAMES = {"Ann", "Jon", "Bob", "Mary", "Zoë", "."};
+	private static final String[] MRNS = {"19485763", "0012345", "1234567890123456789", "A12B", "."};
+	private static final String[] OTHER_IDS = {"", "avaId123", "avaId123;hciId456"};
+
+	@Test
+	public void testRoundTrip() {
+		File tempDir = null;
+		try {
+			tempDir = Files.createTempDirectory("smmSnapshot").toFile();
+			File registryFile = new File(tempDir, "currentRegistry_1_PHI.txt");
+			Random random = new Random(21);
+			CoreId coreIdMaker = new CoreId();
+			StringBuilder sb = new StringBuilder();
+			for (int i=0; i< 500; i++) {
+				sb.append(LAST_NAMES[random.nextInt(LAST_NAMES.length)]).append("\t").append(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)]).append("\t");
+				sb.append(random.nextInt(5) == 0 ? "." : Integer.toString(1+ random.nextInt(12))).append("\t");
+				sb.append(random.nextInt(5) == 0 ? "." : Integer.toString(1+ random.nextInt(28))).append("\t");
+				sb.append(random.nextInt(5) == 0 ? "." : Integer.toString(1900+ random.nextInt(151))).append("\t");
+				sb.append(random.nextInt(3) == 0 ? "." : random.nextBoolean() ? "M" : "F").append("\t");
+				sb.append(MRNS[random.nextInt(MRNS.length)]).append("\t");
+				sb.append(coreIdMaker.createCoreId()).append("\t").append(OTHER_IDS[random.nextInt(OTHER_IDS.length)]).append("\n");
+			}
+			Util.write(new String[] {sb.toString()}, registryFile);
+			String[] lines = sb.toString().split("\n");
+
+			for (boolean caseInsensitive: new boolean[] {false, true}) {
+				RegistryStore store = new RegistryStore(caseInsensitive);
+				for (int i=0; i< lines.length; i++) store.add(new Subject(i, Util.TAB.split(lines[i], -1), false, null, false, caseInsensitive, false));
+				store.trim();
+				File snapshot = RegistrySnapshot.fetchSnapshotFile(registryFile);
+				long checksum = RegistrySnapshot.checksum(registryFile);
+				assertTrue(RegistrySnapshot.write(store, registryFile, checksum, snapshot));
+
+				RegistryStore read = RegistrySnapshot.read(snapshot, registryFile, checksum, caseInsensitive);
+				assertTrue(read != null && read.size() == store.size() && read.getNumberCoreIdsCreated() == 0);
+				read.buildCoreIdIndex();
+				RegistryStore.ComparisonKeys storeKeys = store.createComparisonKeys();
+				RegistryStore.ComparisonKeys readKeys = read.createComparisonKeys();
+				for (int i=0; i< store.size(); i++) {
+					assertTrue(read.getLastName(i).equals(store.getLastName(i)) && read.getFirstName(i).equals(store.getFirstName(i)));
+					assertTrue(read.getDobMonth(i) == store.getDobMonth(i) && read.getDobDay(i) == store.getDobDay(i) && read.getDobYear(i) == store.getDobYear(i));
+					assertTrue(read.getGender(i).equals(store.getGender(i)) && read.getMrn(i).equals(store.getMrn(i)));
+					assertTrue(read.getCoreId(i).equals(store.getCoreId(i)) && read.fetchRow(store.getCoreId(i)) == i);
+					assertTrue(Arrays.equals(read.getOtherSubjectIds(i), store.getOtherSubjectIds(i)));
+					CharSequence[] a = store.loadComparisonKeys(i, storeKeys);
+					CharSequence[] b = read.loadComparisonKeys(i, readKeys);
+					for (int k=0; k< a.length; k++) assertTrue(a[k].toString().equals(b[k].toString()));
+				}
+				//long, String, and too long for a long MRNs were all covered
+				assertTrue(find(store, "19485763") != find(store, "1234567890123456789") && find(store, "A12B") != find(store, "12345"));
+
+				//a truncated snapshot is refused
+				byte[] whole = Files.readAllBytes(snapshot.toPath());
+				for (long length: new long[] {whole.length - 1, whole.length / 2, 20}) {
+					RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+					raf.setLength(length);
+					raf.close();
+					assertTrue(RegistrySnapshot.read(snapshot, registryFile, checksum, caseInsensitive) == null);
+					Files.write(snapshot.toPath(), whole);
+				}
+				assertTrue(RegistrySnapshot.read(snapshot, registryFile, checksum, caseInsensitive) != null);
+			}
+
+			//refused once the registry changes content, same size, or size
+			File snapshot = RegistrySnapshot.fetchSnapshotFile(registryFile);
+			String original = sb.toString();
+			String sameSize = original.replaceFirst("Smith", "Smyth");
+			assertTrue(sameSize.length() == original.length() && sameSize.equals(original) == false);
+			Util.write(new String[] {sameSize}, registryFile);
+			assertTrue(RegistrySnapshot.read(snapshot, registryFile, RegistrySnapshot.checksum(registryFile), true) == null);
+			Util.write(new String[] {original+ "Lee\tAnn\t1\t1\t1950\tF\t1\n"}, registryFile);
+			assertTrue(RegistrySnapshot.read(snapshot, registryFile, RegistrySnapshot.checksum(registryFile), true) == null);
+			Util.write(new String[] {original}, registryFile);
+			assertTrue(RegistrySnapshot.read(snapshot, registryFile, RegistrySnapshot.checksum(registryFile), true) != null);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		} finally {
+			if (tempDir != null) Util.deleteDirectory(tempDir);
+		}
+	}
+
+	private static int find(RegistryStore store, String mrn) {
+		for (int i=0; i< store.size(); i++) if (store.getMrn(i).equals(mrn)) return i;
+		fail("MRN "+mrn+" not in the store.");
+		return -1;
+	}
+}
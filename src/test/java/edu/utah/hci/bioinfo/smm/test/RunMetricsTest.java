@@ -0,0 +1,124 @@
+package edu.utah.hci.bioinfo.smm.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import javax.management.JMX;
+import javax.management.ObjectName;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import edu.utah.hci.bioinfo.smm.LatencyHistogram;
+import edu.utah.hci.bioinfo.smm.RunMetrics;
+import edu.utah.hci.bioinfo.smm.RunMetricsMXBean;
+import edu.utah.hci.bioinfo.smm.SubjectMatchMaker;
+import edu.utah.hci.bioinfo.smm.SyntheticDataMaker;
+import edu.utah.hci.bioinfo.smm.Util;
+
+/**Checks runMetrics.json and the MBean describe the stages, counters, and matcher threads of a run with each scheduler, 
+ * that queryDiagnostics.json holds the slowest queries, and the latency histogram percentiles.*/
+public class RunMetricsTest {
+
+	@Test
+	public void testRunMetrics() {
+		File tempDir = null;
+		try {
+			tempDir = Files.createTempDirectory("smmMetrics").toFile();
+			new SyntheticDataMaker(new String[] {"-o", tempDir.getCanonicalPath(), "-r", "3000", "-q", "200", "-s", "9"});
+			String registryDir = new File(tempDir, "Registry").getCanonicalPath();
+			String queries = new File(tempDir, "queries_PHI.txt").getCanonicalPath();
+
+			for (String scheduler: new String[] {"tiles", "chunks"}) {
+				File outputDir = new File(tempDir, "Res_"+scheduler);
+				SubjectMatchMaker smm = new SubjectMatchMaker(new String[] {"-r", registryDir, "-q", queries, "-o", outputDir.getCanonicalPath(),
+						"-b", "-g", scheduler, "-j", "-v"});
+				JSONObject metrics = new JSONObject(Util.loadFile(new File(outputDir, RunMetrics.FILE_NAME), " ", true));
+				assertTrue(metrics.getDouble("wallSec") > 0);
+
+				HashSet<String> stages = new HashSet<String>();
+				JSONArray sa = metrics.getJSONArray("stages");
+				for (int i=0; i< sa.length(); i++) {
+					JSONObject s = sa.getJSONObject(i);
+					stages.add(s.getString("name"));
+					assertTrue(s.getLong("calls") == 1 && s.getDouble("wallSec") >= 0);
+				}
+				for (String s: new String[] {"loadRegistry", "buildIndexes", "loadQueries", "matchExactKeys", "matchQueries", "compareQueries", "printJson", "printResults"}) {
+					assertTrue(s, stages.contains(s));
+				}
+
+				//the matcher threads did all of the comparisons
+				JSONObject counters = metrics.getJSONObject("counters");
+				assertTrue(counters.getLong("queries") == 200);
+				long comparisons = counters.getLong("comparisons");
+				assertTrue(comparisons > 0 && counters.getLong("pruned") <= comparisons);
+				assertTrue(counters.getDouble("candidatesPerQuery") > 0 && counters.getLong("maxCandidatesPerSearch") > 0);
+				JSONArray workers = metrics.getJSONArray("matcherThreads");
+				assertTrue(workers.length() > 0);
+				long workerComparisons = 0;
+				for (int i=0; i< workers.length(); i++) workerComparisons+= workers.getJSONObject(i).getLong("comparisons");
+				assertTrue(workerComparisons == comparisons);
+
+				//every scanned query is in the histogram, the slowest are sorted and within the scanned queries
+				long scanned = counters.getLong("queriesScanned");
+				assertTrue(metrics.getJSONObject("queryLatency").getLong("count") == scanned);
+				JSONObject diagnostics = new JSONObject(Util.loadFile(new File(outputDir, RunMetrics.DIAGNOSTICS_FILE_NAME), " ", true));
+				JSONObject byMissing = diagnostics.getJSONObject("queryLatencyByMissingKeys");
+				assertTrue(byMissing.getJSONObject("0").getLong("count") + byMissing.getJSONObject("1").getLong("count") + 
+						byMissing.getJSONObject("2+").getLong("count") == scanned);
+				JSONArray slowest = diagnostics.getJSONArray("slowestQueries");
+				assertTrue(slowest.length() == Math.min(scanned, RunMetrics.DEFAULT_NUMBER_SLOW_QUERIES));
+				for (int i=0; i< slowest.length(); i++) {
+					JSONObject q = slowest.getJSONObject(i);
+					assertTrue(q.getInt("dataLineIndex") >= 0 && q.getInt("dataLineIndex") < 200);
+					assertTrue(q.getInt("candidates") > 0 && q.getInt("pruned") <= q.getInt("candidates"));
+					if (i > 0) assertTrue(q.getDouble("ms") <= slowest.getJSONObject(i-1).getDouble("ms"));
+					//just the shape, no names
+					assertTrue(q.has("nameLength") && q.has("lastName") == false && q.getString("missingKeys").matches("[a-z,]*"));
+				}
+
+				//the same from the MBean
+				RunMetricsMXBean mbean = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), new ObjectName(RunMetrics.MBEAN_NAME), RunMetricsMXBean.class);
+				assertTrue(mbean.getCounters().get("comparisons") == comparisons);
+				assertTrue(mbean.getQueryLatencyMillis().get("max") == metrics.getJSONObject("queryLatency").getDouble("maxMs"));
+				assertTrue(mbean.getStageWallMillis().keySet().equals(smm.getRunMetrics().getStageWallMillis().keySet()));
+				smm.getRunMetrics().unregisterMBean();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		} finally {
+			if (tempDir != null) Util.deleteDirectory(tempDir);
+		}
+	}
+
+	@Test
+	public void testLatencyHistogram() {
+		Random random = new Random(11);
+		long[] values = new long[20000];
+		LatencyHistogram a = new LatencyHistogram();
+		LatencyHistogram b = new LatencyHistogram();
+		for (int i=0; i< values.length; i++) {
+			//ns to tens of seconds
+			values[i] = (long)Math.pow(10, random.nextDouble()* 10);
+			if (i % 2 == 0) a.record(values[i]);
+			else b.record(values[i]);
+		}
+		a.add(b);
+		Arrays.sort(values);
+		assertTrue(a.getCount() == values.length && a.getMax() == values[values.length - 1]);
+		for (double p: new double[] {1, 50, 90, 99, 99.9, 100}) {
+			long exact = values[(int)Math.ceil(p / 100 * values.length) - 1];
+			long found = a.getValueAtPercentile(p);
+			assertTrue(p+" "+exact+" "+found, found >= exact && found <= exact + exact / 64 + 1);
+		}
+		LatencyHistogram small = new LatencyHistogram();
+		for (int i=0; i< 128; i++) small.record(i);
+		assertTrue(small.getValueAtPercentile(50) == 63 && small.getValueAtPercentile(100) == 127);
+		assertTrue(new LatencyHistogram().getValueAtPercentile(50) == 0);
+	}
+}
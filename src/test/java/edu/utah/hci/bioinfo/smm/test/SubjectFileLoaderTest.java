@@ -0,0 +1,160 @@
+package edu.utah.hci.bioinfo.smm.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Test;
+import edu.utah.hci.bioinfo.smm.CoreId;
+import edu.utah.hci.bioinfo.smm.RegistryStore;
+import edu.utah.hci.bioinfo.smm.Subject;
+import edu.utah.hci.bioinfo.smm.SubjectFileLoader;
+import edu.utah.hci.bioinfo.smm.SyntheticSubjects;
+import edu.utah.hci.bioinfo.smm.Util;
+
+/**Checks the parallel loader parses plain, gzip, and zip files, across block boundaries, into the same subjects and errors as a line by line read,
+ * that a load stopped by an error leaves no decompress thread running, and that the tab scanner and coreId check match their regexes.*/
+public class SubjectFileLoaderTest {
+
+	@Test
+	public void testSameAsLineByLine() {
+		File tempDir = null;
+		try {
+			tempDir = Files.createTempDirectory("smmLoader").toFile();
+			SyntheticSubjects ss = new SyntheticSubjects(4);
+			Random random = new Random(4);
+			StringBuilder sb = new StringBuilder("#LastName\tFirstName\tDoBMonth\n");
+			String[] endings = {"\n", "\r\n", "\r"};
+			for (int i=0; i< 3000; i++) {
+				String[] f = ss.fetchRegistryFields(i);
+				//some without coreIds, trailing tabs, blanks, and comments
+				if (i % 7 == 0) f[7] = ".";
+				sb.append(Util.stringArrayToString(f, "\t"));
+				if (i % 11 == 0) sb.append("\t\t");
+				sb.append(endings[random.nextInt(3)]);
+				if (i % 13 == 0) sb.append(endings[random.nextInt(3)]);
+				if (i % 17 == 0) sb.append("#comment\n");
+			}
+			String registry = sb.toString();
+			String[] expected = parseLineByLine(registry);
+			assertTrue(expected.length == 3000);
+
+			for (String name: new String[] {"registry.txt", "registry.txt.gz", "registry.txt.zip"}) {
+				File file = write(tempDir, name, registry);
+				for (int blockSize: new int[] {1, 97, 4096, 1 << 20}) {
+					SubjectFileLoader loader = new SubjectFileLoader(3, true, new CoreId(), false, false);
+					loader.setBlockSize(blockSize);
+					RegistryStore store = loader.loadRegistry(file);
+					assertTrue(store.size() == expected.length && store.getNumberCoreIdsCreated() == (expected.length + 6)/ 7);
+					for (int i=0; i< expected.length; i++) {
+						Subject s = store.fetchSubjectForWriting(i);
+						//new coreIds are random
+						if (i % 7 == 0) assertTrue(CoreId.isCoreId(s.getCoreId()) && s.toString().replace(s.getCoreId(), "").equals(expected[i]));
+						else assertTrue(name+" "+blockSize+" "+i, s.toString().equals(expected[i]));
+					}
+				}
+			}
+
+			//queries with coreIds to look up
+			File queryFile = write(tempDir, "queries.txt", "#coreIds\nAbC3de4Fgh\n\nxYz5ab6Cde\r\n");
+			ArrayList<String> coreIds = new ArrayList<String>();
+			Subject[] queries = new SubjectFileLoader(2, false, null, false, false).loadQueries(queryFile, coreIds);
+			assertTrue(queries.length == 0 && coreIds.equals(Arrays.asList("AbC3de4Fgh", "xYz5ab6Cde")));
+
+			//the same error for the same bad line
+			int middle = registry.indexOf('\n', registry.length()/ 2) + 1;
+			String bad = registry.substring(0, middle) + "Smith\tAnn\t13\t1\t1950\tF\t1\n" + registry.substring(middle);
+			String expectedError = null;
+			try {
+				parseLineByLine(bad);
+			} catch (Exception e) {
+				expectedError = e.getMessage();
+			}
+			assertTrue(expectedError != null && expectedError.contains("dob month"));
+			for (String name: new String[] {"bad.txt", "bad.txt.gz"}) {
+				File file = write(tempDir, name, bad);
+				SubjectFileLoader loader = new SubjectFileLoader(4, true, new CoreId(), false, false);
+				loader.setBlockSize(500);
+				try {
+					loader.loadRegistry(file);
+					fail("Bad line not caught.");
+				} catch (Exception e) {
+					assertTrue(e.getMessage(), e.getMessage().equals(expectedError));
+				}
+				//stopped mid file, the decompress thread has closed the stream and exited
+				for (Thread t: Thread.getAllStackTraces().keySet()) assertTrue(t.getName().equals("SubjectFileLoader-decompress") == false);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		} finally {
+			if (tempDir != null) Util.deleteDirectory(tempDir);
+		}
+	}
+
+	@Test
+	public void testScannersMatchRegexes() {
+		Random random = new Random(5);
+		String chars = "\t\tab.0 ";
+		for (int i=0; i< 20000; i++) {
+			StringBuilder sb = new StringBuilder();
+			int length = random.nextInt(8);
+			for (int j=0; j< length; j++) sb.append(chars.charAt(random.nextInt(chars.length())));
+			String line = sb.toString();
+			assertTrue("'"+line+"'", Arrays.equals(Util.splitTabs(line), Util.TAB.split(line)));
+		}
+		CoreId maker = new CoreId();
+		String coreChars = "AbOoIiLl2391zZ";
+		for (int i=0; i< 20000; i++) {
+			String id = maker.createCoreId();
+			assertTrue(CoreId.isCoreId(id));
+			//mutate, drop, or add a char
+			StringBuilder sb = new StringBuilder(id);
+			int p = random.nextInt(id.length());
+			int op = random.nextInt(3);
+			if (op == 0) sb.setCharAt(p, coreChars.charAt(random.nextInt(coreChars.length())));
+			else if (op == 1) sb.deleteCharAt(p);
+			else sb.insert(p, coreChars.charAt(random.nextInt(coreChars.length())));
+			String m = sb.toString();
+			assertTrue(m, CoreId.isCoreId(m) == CoreId.CORE_ID_Pattern.matcher(m).matches());
+		}
+	}
+
+	/*The subject lines as a BufferedReader and regex split would parse them.*/
+	private static String[] parseLineByLine(String text) throws Exception {
+		BufferedReader in = new BufferedReader(new java.io.StringReader(text));
+		ArrayList<String> subjects = new ArrayList<String>();
+		String line = null;
+		int index = 0;
+		while ((line = in.readLine())!= null) {
+			if (line.length()==0 || line.startsWith("#"))continue;
+			subjects.add(new Subject(index++, Util.TAB.split(line), false, null, false, false, false).toString());
+		}
+		return subjects.toArray(new String[subjects.size()]);
+	}
+
+	private static File write(File dir, String name, String text) throws Exception {
+		File file = new File(dir, name);
+		byte[] bytes = text.getBytes(Charset.defaultCharset());
+		OutputStream out = new FileOutputStream(file);
+		if (name.endsWith(".gz")) out = new GZIPOutputStream(out);
+		else if (name.endsWith(".zip")) {
+			ZipOutputStream zip = new ZipOutputStream(out);
+			zip.putNextEntry(new ZipEntry(name.substring(0, name.length() - 4)));
+			out = zip;
+		}
+		out.write(bytes);
+		out.close();
+		return file;
+	}
+}
@@ -0,0 +1,116 @@
+package edu.utah.hci.bioinfo.smm.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.BufferedReader;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import org.junit.Test;
+import edu.utah.hci.bioinfo.smm.CoreId;
+import edu.utah.hci.bioinfo.smm.Subject;
+import edu.utah.hci.bioinfo.smm.SyntheticDataMaker;
+import edu.utah.hci.bioinfo.smm.SyntheticSubjects;
+import edu.utah.hci.bioinfo.smm.Util;
+
+/**Checks the synthetic subjects are reproducible, parse, have unique valid coreIds, and that the ground truth describes the queries.*/
+public class SyntheticSubjectsTest {
+
+	@Test
+	public void testSubjectsMatchTruth() {
+		try {
+			int size = 20000;
+			SyntheticSubjects ss = new SyntheticSubjects(3);
+			SyntheticSubjects again = new SyntheticSubjects(3);
+			HashSet<String> coreIds = new HashSet<String>();
+			int numberDuplicates = 0;
+			for (int i=0; i< size; i++) {
+				String[] f = ss.fetchRegistryFields(i);
+				assertTrue(Arrays.equals(f, again.fetchRegistryFields(i)));
+				assertTrue(CoreId.isCoreId(f[7]) && coreIds.add(f[7]));
+				new Subject(i, f, false, null, false, false, false);
+				if (ss.fetchRootRow(i) != i) numberDuplicates++;
+			}
+			assertTrue(numberDuplicates > size / 100 && numberDuplicates < size / 25);
+
+			int numberNew = 0;
+			int numberRepeated = 0;
+			HashSet<String> persons = new HashSet<String>();
+			for (int i=0; i< 5000; i++) {
+				String[] q = ss.fetchQueryFields(i, size);
+				assertTrue(q.length == 7);
+				int typos = ss.getLastTypos();
+				int missing = ss.getLastMissing();
+				new Subject(i, q.clone(), false, null, true, false, false);
+				int row = ss.fetchSourceRow(i, size);
+				String person = ss.fetchPersonId(i, size);
+				if (persons.add(person) == false) numberRepeated++;
+				if (row == -1) {
+					numberNew++;
+					assertTrue(person.startsWith("Q"));
+				}
+				else {
+					assertTrue(person.equals("R"+ ss.fetchRootRow(row)));
+					//untouched copies are the registry subject
+					String[] source = Arrays.copyOf(ss.fetchRegistryFields(row), 7);
+					if (typos == 0 && missing == 0) assertTrue(Arrays.equals(q, source));
+					if ((missing & SyntheticSubjects.MRN_KEY) != 0) assertTrue(q[6].equals("."));
+				}
+			}
+			assertTrue(numberNew > 800 && numberNew < 1200);
+			assertTrue(numberRepeated > 0);
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		}
+	}
+
+	@Test
+	public void testDataMakerFiles() {
+		File tempDir = null;
+		try {
+			tempDir = Files.createTempDirectory("smmSynthetic").toFile();
+			new SyntheticDataMaker(new String[] {"-o", tempDir.getCanonicalPath(), "-r", "3000", "-q", "300", "-s", "5", "-d", "0.1", "-z"});
+			File registry = new File(tempDir, "Registry/currentRegistry_synthetic_PHI.txt.gz");
+			String[] registryLines = readSubjectLines(registry);
+			String[] queryLines = readSubjectLines(new File(tempDir, "queries_PHI.txt.gz"));
+			String[] queryTruth = readSubjectLines(new File(tempDir, "queryTruth_PHI.txt.gz"));
+			String[] registryTruth = readSubjectLines(new File(tempDir, "registryTruth_PHI.txt.gz"));
+			assertTrue(registryLines.length == 3000 && registryTruth.length == 3000);
+			assertTrue(queryLines.length == 300 && queryTruth.length == 300);
+
+			//the registry coreIds of each person
+			SyntheticSubjects ss = new SyntheticSubjects(5);
+			for (int i=0; i< queryTruth.length; i++) {
+				String[] t = Util.TAB.split(queryTruth[i]);
+				assertTrue(t[0].equals(Integer.toString(i)));
+				int row = ss.fetchSourceRow(i, 3000);
+				if (row == -1) assertTrue(t[2].equals("."));
+				else {
+					HashSet<String> expected = new HashSet<String>();
+					for (int r=0; r< registryTruth.length; r++) {
+						String[] rt = Util.TAB.split(registryTruth[r]);
+						if (rt[2].equals(t[1])) expected.add(rt[1]);
+					}
+					assertTrue(expected.equals(new HashSet<String>(Arrays.asList(Util.SEMICOLON.split(t[2])))));
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			fail("Exception caught.");
+		} finally {
+			if (tempDir != null) Util.deleteDirectory(tempDir);
+		}
+	}
+
+	private static String[] readSubjectLines(File file) throws Exception {
+		BufferedReader in = Util.fetchBufferedReader(file);
+		ArrayList<String> lines = new ArrayList<String>();
+		String line = null;
+		while ((line = in.readLine())!= null) if (line.startsWith("#") == false) lines.add(line);
+		in.close();
+		return lines.toArray(new String[lines.size()]);
+	}
+}